@@ -259,6 +259,40 @@ public class Term2Re {
     return sb.toString();
   }
   /**********************************************************************/
+  /**
+   * <p>creates a converter like {@link #createConverter
+   * createConverter()}, but for {@link #convertWords convertWords()},
+   * which needs the regular expressions of the words of a term one by
+   * one.</p>
+   */
+  public static DfaRun createWordConverter(String wordSplitRe, ReParser rp)
+    throws ReSyntaxException
+  {
+    return createConverter(wordSplitRe, WORD_MARK, null, rp);
+  }
+  // separates the words in the output of a word converter
+  private static final String WORD_MARK = "\u0000";
+  /**********************************************************************/
+  /**
+   * <p>converts a multi word term with a converter created by {@link
+   * #createWordConverter createWordConverter()} into one regular
+   * expression per word. Put together with separators and the
+   * trailing context, they are the expression {@link #convert
+   * convert()} creates. This is what a {@link monq.jfa.TermMatcher}
+   * needs. If the term starts or ends with a separator, the list
+   * starts or ends with an empty string standing for it.</p>
+   */
+  public static java.util.List<String> convertWords(DfaRun wordConverter,
+                                                    String term) {
+    String all;
+    try {
+      all = wordConverter.filter(term);
+    } catch( java.io.IOException e) {
+      throw new Error("this cannot happen: "+e.toString(), e);
+    }
+    return java.util.Arrays.asList(all.split(WORD_MARK, -1));
+  }
+  /**********************************************************************/
   /**
    * <p>applies {@link #convert} to every line read from
    * <code>System.in</code> and writes the result to
@@ -61,6 +61,38 @@ public abstract class AbstractFaAction implements Serializable, FaAction {
     return null;
   }
 
+  /**
+   * <p>tells whether {@link #mergeWith mergeWith()} behaves exactly
+   * like the implementation in this class, i.e. equal actions merge,
+   * otherwise the higher priority wins and equal priorities
+   * clash. If all actions competing for a stop state of a
+   * <code>Dfa</code> say so, {@link Nfa#compile Nfa.compile()} picks
+   * the winners by looking at the priorities once instead of calling
+   * <code>mergeWith()</code> pairwise.</p>
+   *
+   * <p>The default implementation returns <code>true</code> if and
+   * only if <code>mergeWith()</code> is not overridden. A subclass
+   * which overrides it without changing the result may override this
+   * method too, to return <code>true</code>.</p>
+   */
+  public boolean mergesByPriority() {
+    return DEFAULT_MERGE.get(getClass());
+  }
+
+  private static final ClassValue<Boolean> DEFAULT_MERGE =
+      new ClassValue<Boolean>() {
+    @Override
+    protected Boolean computeValue(Class<?> type) {
+      try {
+        Class<?> declarer =
+            type.getMethod("mergeWith", FaAction.class).getDeclaringClass();
+        return declarer==AbstractFaAction.class;
+      } catch( NoSuchMethodException e ) {
+        return Boolean.FALSE;
+      }
+    }
+  };
+  /**********************************************************************/
   /**
    * <p>although this class is abstract, the constructor is needed to create
    * anonymous subclasses.</p>
@@ -0,0 +1,86 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.io.Serializable;
+import java.util.List;
+
+import monq.stuff.Sizeof;
+
+/**
+ * <p>is a <code>CharTrans</code> for states which have transitions
+ * spanning a large character range, but which are mostly traversed with
+ * ASCII characters. Characters below 128 are looked up directly in a
+ * table, all others by the binary search of an {@link
+ * ArrayCharTrans}.</p>
+ *
+ * <p>A <code>TableCharTrans</code> for a transition like
+ * <code>[^a]</code> would need 64k entries, while this implementation
+ * needs 128 entries plus the small array representation.</p>
+ */
+class AsciiCharTrans<T> implements Serializable, CharTrans<T> {
+  private static final long serialVersionUID = 1L;
+  static final int ASCII = 128;
+
+  private final T[] ascii;
+  private final ArrayCharTrans<T> all;
+
+  /**********************************************************************/
+  public static int estimateSize(int n) {
+    int thisSize =
+        Sizeof.roundUp(Sizeof.MEM_OBJ_OVERHEAD+2*Sizeof.MEM_PTR_SIZE);
+    return thisSize
+        + Sizeof.objectArrayMemEstimate(ASCII)
+        + ArrayCharTrans.estimateSize(n);
+  }
+  /**********************************************************************/
+  public AsciiCharTrans(StringBuilder ranges, List<T> values) {
+    all = new ArrayCharTrans<>(ranges, values);
+    @SuppressWarnings("unchecked")
+    T[] tmp = (T[])new Object[ASCII];
+    ascii = tmp;
+    int L = values.size();
+    for(int pos=0; pos<L; pos++) {
+      char from = ranges.charAt(2*pos);
+      if( from>=ASCII ) break;
+      int to = Math.min(ranges.charAt(2*pos+1), ASCII-1);
+      T o = values.get(pos);
+      for(int ch=from; ch<=to; ch++) ascii[ch] = o;
+    }
+  }
+  /**********************************************************************/
+  @Override
+  public T get(char ch) {
+    if( ch<ASCII ) return ascii[ch];
+    return all.get(ch);
+  }
+  @Override
+  public int size() { return all.size(); }
+  @Override
+  public T getAt(int pos) { return all.getAt(pos); }
+  @Override
+  public char getFirstAt(int pos) { return all.getFirstAt(pos); }
+  @Override
+  public char getLastAt(int pos) { return all.getLastAt(pos); }
+  /**********************************************************************/
+  ///CLOVER:OFF
+  @Override
+  public String toString() {
+    return "Ascii"+all.toString();
+  }
+  ///CLOVER:ON
+}
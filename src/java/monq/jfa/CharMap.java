@@ -0,0 +1,148 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.io.Serializable;
+import java.text.Normalizer;
+
+/**
+ * <p>maps each character to another one, for example to fold upper
+ * and lower case. A <code>Dfa</code> run through {@link
+ * Dfa#withCharMap Dfa.withCharMap()} looks up its transitions with the
+ * mapped characters, while the original text is still copied to the
+ * output and handed to the actions. The automaton is compiled over
+ * the folded alphabet, so instead of expanding every letter of a
+ * dictionary term into a class like <code>[aA]</code>, the terms are
+ * just written in lower case, which keeps the transition tables
+ * small.</p>
+ *
+ * <p>Expressions must only use characters which are the result of
+ * the mapping, or they will never match. Use {@link
+ * #map(CharSequence)} to fold terms before escaping them.</p>
+ *
+ * <p>The mapping is a table with an entry for every character, so
+ * each lookup costs one array access.</p>
+ */
+public final class CharMap implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final char[] table;
+
+  /**
+   * <p>maps upper case and title case letters to lower case with
+   * {@link Character#toLowerCase(char)}.</p>
+   */
+  public static final CharMap LOWERCASE = createLowercase();
+
+  /**
+   * <p>maps letters with diacritics to the letter without, if the
+   * canonical decomposition of the character is the letter followed
+   * by combining marks, e.g. <code>\u00e9</code> to <code>e</code>.</p>
+   */
+  public static final CharMap NO_ACCENTS = createNoAccents();
+
+  /**
+   * <p>maps every {@link Character#isWhitespace whitespace} character
+   * to a blank. Since each character is mapped to exactly one
+   * character, a run of whitespace is not collapsed, but can be
+   * matched with <code>[ ]+</code>.</p>
+   */
+  public static final CharMap WHITESPACE = createWhitespace();
+  /**********************************************************************/
+  private CharMap(char[] table) {
+    this.table = table;
+  }
+  private static char[] identity() {
+    char[] table = new char[Character.MAX_VALUE+1];
+    for(int ch=0; ch<table.length; ch++) table[ch] = (char)ch;
+    return table;
+  }
+  /**********************************************************************/
+  /**
+   * <p>creates a map which maps each character of <code>from</code>
+   * to the character at the same position in <code>to</code> and all
+   * other characters to themselves.</p>
+   *
+   * @throws IllegalArgumentException if the strings differ in length
+   */
+  public static CharMap of(CharSequence from, CharSequence to) {
+    if( from.length()!=to.length() ) {
+      throw new IllegalArgumentException("strings differ in length");
+    }
+    char[] table = identity();
+    for(int i=0; i<from.length(); i++) table[from.charAt(i)] = to.charAt(i);
+    return new CharMap(table);
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns a map which applies <code>this</code> first and then
+   * <code>next</code>.</p>
+   */
+  public CharMap andThen(CharMap next) {
+    char[] result = new char[table.length];
+    for(int ch=0; ch<table.length; ch++) result[ch] = next.table[table[ch]];
+    return new CharMap(result);
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the character <code>ch</code> is mapped to.</p>
+   */
+  public char map(char ch) { return table[ch]; }
+
+  /**
+   * <p>returns <code>s</code> with every character mapped.</p>
+   */
+  public String map(CharSequence s) {
+    char[] result = new char[s.length()];
+    for(int i=0; i<result.length; i++) result[i] = table[s.charAt(i)];
+    return new String(result);
+  }
+  /**********************************************************************/
+  // used by MappedDfa for its lookups
+  char[] table() { return table; }
+  /**********************************************************************/
+  private static CharMap createLowercase() {
+    char[] table = new char[Character.MAX_VALUE+1];
+    for(int ch=0; ch<table.length; ch++) {
+      table[ch] = Character.toLowerCase((char)ch);
+    }
+    return new CharMap(table);
+  }
+  private static CharMap createNoAccents() {
+    char[] table = identity();
+    for(int ch=0; ch<table.length; ch++) {
+      if( !Character.isLetter(ch) ) continue;
+      String d = Normalizer.normalize(String.valueOf((char)ch),
+                                      Normalizer.Form.NFD);
+      if( d.length()<2 ) continue;
+      boolean marks = true;
+      for(int i=1; i<d.length() && marks; i++) {
+        marks = Character.getType(d.charAt(i))==Character.NON_SPACING_MARK;
+      }
+      if( marks ) table[ch] = d.charAt(0);
+    }
+    return new CharMap(table);
+  }
+  private static CharMap createWhitespace() {
+    char[] table = identity();
+    for(int ch=0; ch<table.length; ch++) {
+      if( Character.isWhitespace(ch) ) table[ch] = ' ';
+    }
+    return new CharMap(table);
+  }
+}
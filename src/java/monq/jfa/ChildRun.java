@@ -0,0 +1,67 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+/**
+ * <p>provides one nested {@link DfaRun} of a given {@link Dfa} per
+ * calling <code>DfaRun</code>, for actions which filter their match
+ * with another automaton. The nested run is created on first use
+ * and kept along with the calling run, so that a typical
+ * action</p>
+ * <pre>
+ * private final ChildRun child = new ChildRun(dfa);
+ * public void invoke(StringBuilder out, int start, DfaRun r)
+ *   throws CallbackException
+ * {
+ *   try {
+ *     child.get(r).filter(out, start);
+ *   } catch( CallbackException e ) {
+ *     throw e;
+ *   } catch( IOException e ) {
+ *     throw new Error("impossible", e);
+ *   }
+ * }</pre>
+ * <p>filters the match in place without allocating anything. To
+ * set up the nested run, for example its {@link DfaRun#clientData
+ * clientData}, override {@link #initialValue initialValue()} and
+ * call the super method.</p>
+ */
+public class ChildRun extends RunLocal<DfaRun> {
+  private final Dfa dfa;
+  /**********************************************************************/
+  /**
+   * <p>creates a slot for nested runs of the given
+   * <code>Dfa</code>.</p>
+   */
+  public ChildRun(Dfa dfa) {
+    this.dfa = dfa;
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the <code>Dfa</code> run by the nested runs.</p>
+   */
+  public Dfa getDfa() { return dfa; }
+  /**********************************************************************/
+  /**
+   * <p>creates the nested run for the given calling run.</p>
+   */
+  @Override
+  protected DfaRun initialValue(DfaRun parent) {
+    return new DfaRun(dfa);
+  }
+  /**********************************************************************/
+}
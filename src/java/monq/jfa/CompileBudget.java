@@ -0,0 +1,142 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import monq.stuff.Sizeof;
+
+/**
+ * <p>limits the resources {@link Nfa#compile(DfaRun.FailedMatchBehaviour,
+ * FaAction, CompileBudget) Nfa.compile()} may use. Some innocent
+ * looking regular expressions, like <code>.*a.{20}</code>, compile into
+ * a <code>Dfa</code> with an exponential number of states. Instead of
+ * running until the heap is exhausted, a compilation with a budget
+ * stops with a {@link CompileBudgetException} as soon as one of the
+ * limits is exceeded. The exception tells where in the automaton the
+ * growth happened and which actions are involved.</p>
+ *
+ * <p>Limits not set explicitly are unlimited. Example:</p>
+ * <pre>
+ *   CompileBudget budget = new CompileBudget()
+ *     .setMaxStates(1000000)
+ *     .setMaxMemory(500L*1024*1024)
+ *     .setMaxTime(30000);
+ *   Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY, null, budget);</pre>
+ *
+ * <p>To find the culprit among many regular expressions before
+ * compiling all of them, use {@link #probe probe()} on each of
+ * them.</p>
+ */
+public class CompileBudget {
+  private int maxStates = Integer.MAX_VALUE;
+  private long maxMemory = Long.MAX_VALUE;
+  private long maxTime = Long.MAX_VALUE;
+
+  // rough memory estimates, see estimateState()
+  private static final int STATE_OVERHEAD =
+      Sizeof.roundUp(Sizeof.MEM_OBJ_OVERHEAD+4*Sizeof.MEM_PTR_SIZE+8);
+  private static final int SET_ELEM =
+      Sizeof.roundUp(Sizeof.MEM_OBJ_OVERHEAD+2*Sizeof.MEM_PTR_SIZE);
+  /**********************************************************************/
+  /**
+   * <p>sets the maximum number of states of the resulting
+   * <code>Dfa</code>.</p>
+   */
+  public CompileBudget setMaxStates(int maxStates) {
+    this.maxStates = maxStates;
+    return this;
+  }
+  /**
+   * <p>sets the maximum number of bytes the compilation may allocate
+   * according to a rough estimate which includes the sets of
+   * <code>Nfa</code> states that are kept until compilation
+   * finishes.</p>
+   */
+  public CompileBudget setMaxMemory(long bytes) {
+    this.maxMemory = bytes;
+    return this;
+  }
+  /**
+   * <p>sets the maximum wall clock time in milliseconds.</p>
+   */
+  public CompileBudget setMaxTime(long millis) {
+    this.maxTime = millis;
+    return this;
+  }
+  public int getMaxStates() { return maxStates; }
+  public long getMaxMemory() { return maxMemory; }
+  public long getMaxTime() { return maxTime; }
+  /**********************************************************************/
+  /**
+   * estimates the memory needed during compilation for one
+   * <code>Dfa</code> state which is represented by
+   * <code>nfaStates</code> Nfa states.
+   */
+  static long estimateState(int nfaStates) {
+    return STATE_OVERHEAD
+        + Sizeof.objectArrayMemEstimate(2*nfaStates)
+        + (long)nfaStates*SET_ELEM;
+  }
+  /**********************************************************************/
+  /**
+   * <p>checks a single regular expression for the risk of a state
+   * explosion. It is compiled alone with at most
+   * <code>maxStates</code> states. The expression is considered risky
+   * if the compilation exceeds this limit or if the resulting
+   * <code>Dfa</code> has more than <code>factor</code> times as many
+   * states as the <code>Nfa</code>. For typical regular expressions
+   * the <code>Dfa</code> has about as many states as the
+   * <code>Nfa</code>, while those that blow up the
+   * <code>Dfa</code> exceed any reasonable factor quickly.</p>
+   *
+   * @return <code>null</code> if the expression looks harmless,
+   * otherwise a message explaining the risk
+   */
+  public static String probe(CharSequence regex, int maxStates,
+                             double factor)
+    throws ReSyntaxException
+  {
+    Nfa nfa = new Nfa(regex, Nop.INSTANCE);
+    int nfaStates = nfa.countStates();
+    CompileBudget budget = new CompileBudget().setMaxStates(maxStates);
+    int dfaStates;
+    try {
+      dfaStates = nfa.compile(DfaRun.UNMATCHED_COPY, null, budget)
+          .collectStates().length;
+    } catch( CompileBudgetException e ) {
+      return "regular expression `"+regex+"' needs more than "
+          +maxStates+" states, while its Nfa has only "+nfaStates;
+    } catch( CompileDfaException e ) {
+      // a single action cannot clash with itself
+      throw new Error("impossible", e);
+    }
+    if( dfaStates>factor*nfaStates ) {
+      return "regular expression `"+regex+"' needs "+dfaStates
+          +" states, while its Nfa has only "+nfaStates;
+    }
+    return null;
+  }
+  /**********************************************************************/
+  // a neutral action for probe(), which is compiled but never run
+  private static final class Nop extends AbstractFaAction {
+    private static final long serialVersionUID = 1L;
+    static final Nop INSTANCE = new Nop();
+    @Override
+    public void invoke(StringBuilder yytext, int start, DfaRun runner) {
+      // nothing to do
+    }
+  }
+}
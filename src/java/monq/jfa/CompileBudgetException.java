@@ -0,0 +1,94 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>is thrown by {@link Nfa#compile(DfaRun.FailedMatchBehaviour,
+ * FaAction, CompileBudget) Nfa.compile()} if one of the limits of the
+ * {@link CompileBudget} is exceeded. Besides the numbers reached, it
+ * reports the shortest path through the partial <code>Dfa</code> to
+ * the state that was being expanded when the budget ran out and the
+ * actions that can be reached from there. These are typically
+ * the actions of the regular expressions responsible for the
+ * growth.</p>
+ */
+public class CompileBudgetException extends CompileDfaException {
+  private static final long serialVersionUID = 1L;
+
+  private final int states;
+  private final long memory;
+  private final long millis;
+  private final String path;
+  private final List<FaAction> actions;
+  /**********************************************************************/
+  CompileBudgetException(String limit, int states, long memory,
+                         long millis, String path, List<FaAction> actions,
+                         int moreActions) {
+    super(report(limit, states, memory, millis, path, actions,
+                 moreActions));
+    this.states = states;
+    this.memory = memory;
+    this.millis = millis;
+    this.path = path;
+    this.actions = Collections.unmodifiableList(actions);
+  }
+  /**********************************************************************/
+  private static String report(String limit, int states, long memory,
+                               long millis, String path,
+                               List<FaAction> actions, int moreActions) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("compile budget exceeded: ").append(limit)
+      .append(System.lineSeparator())
+      .append("  states created: ").append(states)
+      .append(", estimated memory: ").append(memory)
+      .append(" bytes, time: ").append(millis).append("ms")
+      .append(System.lineSeparator())
+      .append("  growing at path `").append(path).append("'")
+      .append(System.lineSeparator())
+      .append("  actions reachable from there:");
+    for(FaAction a : actions) {
+      sb.append(System.lineSeparator()).append("    ").append(a);
+    }
+    if( moreActions>0 ) {
+      sb.append(System.lineSeparator())
+        .append("    ... and ").append(moreActions).append(" more");
+    }
+    return sb.toString();
+  }
+  /**********************************************************************/
+  /** <p>returns the number of <code>Dfa</code> states created.</p> */
+  public int getStates() { return states; }
+  /** <p>returns the estimated memory used in bytes.</p> */
+  public long getMemoryEstimate() { return memory; }
+  /** <p>returns the time spent compiling in milliseconds.</p> */
+  public long getTime() { return millis; }
+  /**
+   * <p>returns the shortest path of characters and character ranges
+   * to the <code>Dfa</code> state which was being expanded when the
+   * budget was exceeded.</p>
+   */
+  public String getPath() { return path; }
+  /**
+   * <p>returns (some of) the actions that can be reached from the
+   * <code>Dfa</code> state denoted by {@link #getPath}, nearest
+   * first.</p>
+   */
+  public List<FaAction> getActions() { return actions; }
+}
@@ -18,9 +18,16 @@ package monq.jfa;
 
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import java.io.PrintStream;
 import java.io.FileNotFoundException;
@@ -74,6 +81,21 @@ public class Dfa implements Serializable {
   // The FailedMatchBehaviour to be used initially by a DfaRun
   final DfaRun.FailedMatchBehaviour fmb;
 
+  // the start conditions sharing states with this automaton, set up
+  // by withStartConditions(), or null
+  private Map<String,Dfa> conditions = null;
+
+  // true if the states record their candidate actions, see
+  // Nfa.setUpdatable()
+  boolean updatable = false;
+
+  // properties of the automaton computed once by analyze()
+  private boolean hasSubmatches;
+  private int minMatchLength;
+  private int maxMatchLength;
+  private int terminalStops;
+  private String firstChars;
+
   /**
    * the main match()-function shall be fast. If it is called in a
    * context where submatches are not asked for, I provide a dummy
@@ -91,8 +113,167 @@ public class Dfa implements Serializable {
     this.fmb = fmb;
     this.eofAction = eofA;
     this.startState = start;
+    analyze();
+  }
+  /**********************************************************************/
+  /**
+   * computes the properties of the automaton which allow
+   * <code>DfaRun</code> to select a specialized matching loop and
+   * marks terminal stop states.
+   */
+  private void analyze() {
+    // number the states breadth first like collectStates(), recording
+    // the children by number on the way
+    List<DfaState> order = new ArrayList<>();
+    Map<DfaState,Integer> number = new IdentityHashMap<>();
+    List<int[]> childList = new ArrayList<>();
+    order.add(startState);
+    number.put(startState, 0);
+    for(int n=0; n<order.size(); n++) {
+      DfaState s = order.get(n);
+      CharTrans<DfaState> tr = s.getTrans();
+      int L = tr.size();
+      int[] ch = new int[L];
+      for(int i=0; i<L; i++) {
+        DfaState child = tr.getAt(i);
+        Integer c = number.get(child);
+        if( c==null ) {
+          number.put(child, c = order.size());
+          order.add(child);
+        }
+        ch[i] = c;
+      }
+      childList.add(ch);
+      s.compileTags();
+      hasSubmatches |= s.hasTags();
+      s.terminal = s.getAction()!=null && L==0;
+      if( s.terminal ) terminalStops += 1;
+    }
+    number = null;
+    DfaState[] states = order.toArray(new DfaState[order.size()]);
+    int N = states.length;
+
+    // forward and reverse adjacency by state number
+    int[][] children = childList.toArray(new int[N][]);
+    int[] parentCount = new int[N];
+    for(int n=0; n<N; n++) {
+      for(int c : children[n]) parentCount[c] += 1;
+    }
+    int[][] parents = new int[N][];
+    for(int n=0; n<N; n++) parents[n] = new int[parentCount[n]];
+    for(int n=0; n<N; n++) {
+      for(int c : children[n]) parents[c][--parentCount[c]] = n;
+    }
+
+    // breadth first numbering means distances grow monotonically, so
+    // the shortest match is found with a single BFS
+    int[] dist = new int[N];
+    Arrays.fill(dist, -1);
+    dist[0] = 0;
+    minMatchLength = -1;
+    for(int n=0; n<N; n++) {
+      if( minMatchLength<0 && states[n].getAction()!=null ) {
+        minMatchLength = dist[n];
+      }
+      for(int c : children[n]) if( dist[c]<0 ) dist[c] = dist[n]+1;
+    }
+
+    // states from which a stop state can be reached
+    boolean[] useful = new boolean[N];
+    int[] work = new int[N];
+    int top = 0;
+    for(int n=0; n<N; n++) {
+      if( states[n].getAction()!=null ) {
+        useful[n] = true;
+        work[top++] = n;
+      }
+    }
+    while( top>0 ) {
+      int n = work[--top];
+      for(int p : parents[n]) {
+        if( useful[p] ) continue;
+        useful[p] = true;
+        work[top++] = p;
+      }
+    }
+
+    // The longest match is only finite if the useful states form an
+    // acyclic graph. Topological sort (Kahn) on useful states tells.
+    int[] inDegree = new int[N];
+    int usefulCount = 0;
+    for(int n=0; n<N; n++) {
+      if( !useful[n] ) continue;
+      usefulCount += 1;
+      for(int c : children[n]) if( useful[c] ) inDegree[c] += 1;
+    }
+    int[] longest = new int[N];
+    Arrays.fill(longest, -1);
+    if( useful[0] ) longest[0] = 0;
+    maxMatchLength = -1;
+    int sorted = 0;
+    top = 0;
+    for(int n=0; n<N; n++) if( useful[n] && inDegree[n]==0 ) work[top++] = n;
+    while( top>0 ) {
+      int n = work[--top];
+      sorted += 1;
+      if( longest[n]>=0 && states[n].getAction()!=null ) {
+        maxMatchLength = Math.max(maxMatchLength, longest[n]);
+      }
+      for(int c : children[n]) {
+        if( !useful[c] ) continue;
+        if( longest[n]>=0 ) longest[c] = Math.max(longest[c], longest[n]+1);
+        if( --inDegree[c]==0 ) work[top++] = c;
+      }
+    }
+    if( sorted<usefulCount ) maxMatchLength = -1;
+
+    StringBuilder sb = new StringBuilder();
+    CharTrans<DfaState> tr = startState.getTrans();
+    for(int i=0, L=tr.size(); i<L; i++) {
+      sb.append(tr.getFirstAt(i)).append(tr.getLastAt(i));
+    }
+    firstChars = sb.toString();
   }
   /**********************************************************************/
+  /**
+   * <p>returns <code>true</code> if any state of the automaton carries
+   * information about <a href="doc-files/resyntax.html#rse">reporting
+   * subexpressions</a>. If not, a <code>DfaRun</code> need not record
+   * anything for submatch analysis while matching.</p>
+   */
+  public boolean hasSubmatches() { return hasSubmatches; }
+
+  /**
+   * <p>returns the length of the shortest non-empty or empty match or
+   * -1 if the automaton matches nothing at all.</p>
+   */
+  public int getMinMatchLength() { return minMatchLength; }
+
+  /**
+   * <p>returns the length of the longest possible match or -1 if
+   * matches can be arbitrarily long (or if the automaton matches
+   * nothing). Note that {@link #matchMax} may limit matches
+   * further.</p>
+   */
+  public int getMaxMatchLength() { return maxMatchLength; }
+
+  /**
+   * <p>returns the number of stop states without outgoing
+   * transitions. When such a state is reached, the match is complete
+   * and no further input is read.</p>
+   */
+  public int getTerminalStopCount() { return terminalStops; }
+
+  /**
+   * <p>returns the set of characters on which a match can start as a
+   * sequence of inclusive character ranges, i.e. the string has an
+   * even number of characters, where each pair denotes the first and
+   * last character of a range. The ranges are sorted. If the
+   * automaton {@link #matchesEmpty matches the empty string}, every
+   * character can start a match, even if it is not in this set.</p>
+   */
+  public String getFirstChars() { return firstChars; }
+  /**********************************************************************/
   /**
    * <p>returns <code>true</code> if this automaton can match the empty
    * string. If <code>this</code> can match the empty string, it
@@ -161,6 +342,371 @@ public class Dfa implements Serializable {
     return new Nfa(newStart, newLast);
   }
   /**********************************************************************/
+  /**
+   * returns all states reachable from the start state in breadth
+   * first order. States may be shared with other automata, so their
+   * index in the result is not stored in them, see {@link #numbers}.
+   */
+  DfaState[] collectStates() {
+    List<DfaState> states = new ArrayList<>();
+    Map<DfaState,DfaState> known = new IdentityHashMap<>();
+    states.add(startState);
+    known.put(startState, startState);
+    for(int next=0; next<states.size(); next++) {
+      DfaState current = states.get(next);
+      CharTrans<DfaState> tr = current.getTrans();
+      for(int i=0, L=tr.size(); i<L; i++) {
+        DfaState child = tr.getAt(i);
+        if( known.put(child, child)==null ) states.add(child);
+      }
+    }
+    return states.toArray(new DfaState[states.size()]);
+  }
+  /**********************************************************************/
+  /**
+   * maps each of the given states to its index.
+   */
+  static Map<DfaState,Integer> numbers(DfaState[] states) {
+    Map<DfaState,Integer> result = new IdentityHashMap<>(2*states.length);
+    for(int i=0; i<states.length; i++) result.put(states[i], i);
+    return result;
+  }
+  /**********************************************************************/
+  /**
+   * <p>creates an empty profile for this automaton. Pass it to {@link
+   * DfaRun#setProfile DfaRun.setProfile()} to record state visits, and
+   * then use it with {@link #optimize optimize()}.</p>
+   */
+  public synchronized DfaProfile createProfile() {
+    return new DfaProfile(this, collectStates());
+  }
+  /**********************************************************************/
+  /**
+   * <p>creates a copy of this automaton with transition tables chosen
+   * according to the given <code>profile</code>. The states which
+   * together account for the fraction <code>hotFraction</code> of all
+   * visits recorded in the profile are considered <em>hot</em>. They
+   * get the fastest transition table available for them. All other
+   * states get the transition table with the smallest estimated
+   * memory footprint. In addition the hot states are allocated first,
+   * in order of decreasing visit count, so that they tend to be close
+   * to each other in memory.</p>
+   *
+   * <p>This is an alternative to a large {@link
+   * Nfa#setMemoryForSpeedTradeFactor memory for speed trade factor}
+   * which speeds up all states at the expense of memory, while usually
+   * only few states are really hot.</p>
+   *
+   * @param hotFraction should be between 0.0 and 1.0, where a typical
+   * value is 0.95.
+   *
+   * @param maxTableSpan is the largest number of characters a hot
+   * state's lookup table may cover, before a table for ASCII
+   * characters only is used. A typical value is 256.
+   *
+   * @throws IllegalArgumentException if the profile was not created
+   * for <code>this</code>.
+   * @throws UnsupportedOperationException if this automaton has
+   * {@link #withStartConditions start conditions}
+   */
+  public Dfa optimize(DfaProfile profile, double hotFraction,
+                      int maxTableSpan) {
+    if( profile.getDfa()!=this ) {
+      throw new IllegalArgumentException("profile of a different Dfa");
+    }
+    if( conditions!=null ) {
+      throw new UnsupportedOperationException
+        ("a Dfa with start conditions cannot be optimized");
+    }
+    final DfaState[] states = profile.states;
+    Map<DfaState,Integer> number = numbers(states);
+    final long[] visits = new long[states.length];
+    Integer[] byVisits = new Integer[states.length];
+    for(int i=0; i<states.length; i++) {
+      visits[i] = profile.getVisits(i);
+      byVisits[i] = i;
+    }
+    Arrays.sort(byVisits, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(visits[b], visits[a]);
+      }
+    });
+
+    // allocate hot states first and in order of their visits, then
+    // the cold ones in breadth first order
+    long total = profile.getTotalVisits();
+    long needed = (long)Math.ceil(hotFraction*total);
+    boolean[] hot = new boolean[states.length];
+    DfaState[] newStates = new DfaState[states.length];
+    long covered = 0;
+    for(int i=0; i<byVisits.length && covered<needed; i++) {
+      int n = byVisits[i];
+      if( visits[n]==0 ) break;
+      hot[n] = true;
+      covered += visits[n];
+      newStates[n] = new DfaState(states[n]);
+    }
+    for(int n=0; n<states.length; n++) {
+      if( newStates[n]==null ) newStates[n] = new DfaState(states[n]);
+    }
+
+    Intervals<DfaState> ivals = new Intervals<>();
+    for(int n=0; n<states.length; n++) {
+      CharTrans<DfaState> tr = states[n].getTrans();
+      for(int i=0, L=tr.size(); i<L; i++) {
+        DfaState child = newStates[number.get(tr.getAt(i))];
+        ivals.overwrite(tr.getFirstAt(i), tr.getLastAt(i), child);
+      }
+      if( hot[n] ) {
+        newStates[n].setTrans(ivals.toFastCharTrans(maxTableSpan));
+      } else {
+        newStates[n].setTrans(ivals.toCharTrans(1.0));
+      }
+    }
+    Dfa result = new Dfa(newStates[0], fmb, eofAction);
+    result.matchMax = matchMax;
+    result.updatable = updatable;
+    return result;
+  }
+  /**********************************************************************/
+  /**
+   * <p>creates a new <code>Dfa</code> from this one with the
+   * expressions of <code>added</code> added and those of
+   * <code>removed</code> removed. The result is the same as if the
+   * <code>Nfa</code> this automaton was compiled from had been changed
+   * accordingly and compiled again, but only the states reached by
+   * the added and removed expressions are computed anew. All other
+   * states are shared with this automaton, which for large
+   * dictionaries changing by a few entries is much faster than a
+   * complete compilation. This automaton is not changed.</p>
+   *
+   * <p>Each expression to remove must have been added to the
+   * <code>Nfa</code> before with the same action, as identified by
+   * <code>equals()</code>. Build <code>added</code> and
+   * <code>removed</code> with {@link Nfa#or(CharSequence,FaAction)}
+   * like the original <code>Nfa</code>, which must have been made
+   * {@link Nfa#setUpdatable updatable} before compilation. Expressions
+   * with reporting subexpressions are not supported.</p>
+   *
+   * <p>The transition tables are created with the default memory for
+   * speed trade factor of 1.0. The <code>FailedMatchBehaviour</code>,
+   * the eof action and <code>matchMax</code> are kept.</p>
+   *
+   * @param added may be <code>null</code> if nothing is added
+   * @param removed may be <code>null</code> if nothing is removed
+   *
+   * @throws CompileDfaException if actions clash, as described for
+   * {@link Nfa#compile(DfaRun.FailedMatchBehaviour, FaAction)}
+   * @throws IllegalArgumentException if an action to remove is not
+   * found on a match of the expressions to remove
+   * @throws UnsupportedOperationException if this automaton or the
+   * expressions involve reporting subexpressions, if this automaton
+   * has {@link #withStartConditions start conditions}, or if
+   * expressions are removed and the <code>Nfa</code> was not
+   * updatable
+   */
+  public Dfa update(Nfa added, Nfa removed) throws CompileDfaException {
+    if( hasSubmatches ) {
+      throw new UnsupportedOperationException
+        ("a Dfa with reporting subexpressions cannot be updated");
+    }
+    if( conditions!=null ) {
+      throw new UnsupportedOperationException
+        ("a Dfa with start conditions cannot be updated");
+    }
+    if( removed!=null && !updatable ) {
+      throw new UnsupportedOperationException
+        ("expressions can only be removed from a Dfa compiled from an "
+         +"updatable Nfa");
+    }
+    DfaState start = new DfaUpdate(1.0).update(startState, added, removed);
+    Dfa result = new Dfa(start, fmb, eofAction);
+    result.matchMax = matchMax;
+    result.updatable = updatable;
+    return result;
+  }
+  /**********************************************************************/
+  /**
+   * <p>combines the given automata into one which runs them in
+   * lock-step over the input. It finds the same matches and runs the
+   * same actions as a <code>Dfa</code> compiled from all expressions
+   * of all automata: the longest match wins and if several automata
+   * match the same text, their actions compete by priority or are
+   * merged like in {@link Nfa#compile
+   * Nfa.compile()}. Where a combined compilation would report a clash,
+   * the action of the automaton listed first is used.</p>
+   *
+   * <p>This is meant for rule sets which are too large to be compiled
+   * into one automaton, see {@link Nfa#compileShards
+   * Nfa.compileShards()}. Each character of input is run through all
+   * automata, so use as few as memory permits.</p>
+   *
+   * <p>The result cannot be profiled, optimized, updated or printed.
+   * Do that with the automata combined.</p>
+   *
+   * @throws IllegalArgumentException if <code>shards</code> is empty
+   * or one of the automata has reporting subexpressions
+   */
+  public static Dfa union(List<Dfa> shards, DfaRun.FailedMatchBehaviour fmb,
+                          FaAction eofAction) {
+    List<Dfa> flat = new ArrayList<>();
+    for(Dfa d : shards) {
+      if( d instanceof DfaUnion ) {
+        flat.addAll(Arrays.asList(((DfaUnion)d).getShards()));
+      } else if( d instanceof TermDfa ) {
+        throw new IllegalArgumentException
+          ("automata with terms cannot be combined, add the terms last");
+      } else if( d instanceof MappedDfa ) {
+        throw new IllegalArgumentException
+          ("automata with a CharMap cannot be combined");
+      } else if( d.hasSubmatches() ) {
+        throw new IllegalArgumentException
+          ("automata with reporting subexpressions cannot be combined");
+      } else {
+        flat.add(d);
+      }
+    }
+    if( flat.isEmpty() ) {
+      throw new IllegalArgumentException("nothing to combine");
+    }
+    return new DfaUnion(flat.toArray(new Dfa[flat.size()]), fmb, eofAction);
+  }
+  /**********************************************************************/
+  /**
+   * <p>combines a <code>Dfa</code> with a {@link TermMatcher} into one
+   * automaton. It finds the same matches and runs the same actions as
+   * a <code>Dfa</code> compiled from the expressions of
+   * <code>dfa</code> and the terms, each put together from its words
+   * with the separator and the trailing context of the
+   * <code>TermMatcher</code>. The longest match wins, and where both
+   * find a match of the same length, the actions compete like in
+   * {@link #union union()}.</p>
+   *
+   * <p>The result cannot be profiled, optimized, updated or printed,
+   * and it cannot be combined further by <code>union()</code> or be
+   * run by an {@link OverlapRun}.</p>
+   *
+   * @throws IllegalArgumentException if <code>dfa</code> has
+   * reporting subexpressions
+   */
+  public static Dfa withTerms(Dfa dfa, TermMatcher terms) {
+    if( dfa.hasSubmatches() ) {
+      throw new IllegalArgumentException
+        ("automata with reporting subexpressions cannot be combined");
+    }
+    return new TermDfa(dfa, terms);
+  }
+  /**********************************************************************/
+  /**
+   * <p>creates an automaton which runs <code>dfa</code> on the
+   * characters of the input mapped by <code>map</code>. For example
+   * with {@link CharMap#LOWERCASE}, a <code>Dfa</code> compiled from
+   * lower case expressions matches its input case insensitively. The
+   * text copied to the output and passed to the actions is the
+   * original input. Both share the states, the new automaton only
+   * differs in the lookup of transitions.</p>
+   *
+   * <p>The result can be profiled, optimized and updated, where the
+   * expressions added or removed must again be written over the
+   * mapped characters. It cannot be combined by {@link #union
+   * union()} or with terms, or be run by an {@link OverlapRun}.</p>
+   *
+   * @throws IllegalArgumentException if <code>dfa</code> was not
+   * compiled from an <code>Nfa</code> but combined from other
+   * automata or already runs with a <code>CharMap</code>
+   */
+  public static Dfa withCharMap(Dfa dfa, CharMap map) {
+    if( dfa.getClass()!=Dfa.class ) {
+      throw new IllegalArgumentException
+        ("only automata compiled from an Nfa can be mapped");
+    }
+    return new MappedDfa(dfa, map);
+  }
+  /**********************************************************************/
+  /**
+   * <p>combines the given automata into one with several named
+   * <em>start conditions</em>, like the start conditions of lex. Each
+   * condition behaves like the automaton given for it, including its
+   * <code>FailedMatchBehaviour</code>, eof action and {@link
+   * #matchMax}, but equivalent states of all automata are shared. The
+   * conditions typically have parts in common, like rules for {@link
+   * Xml#Reference character references}, which are then
+   * stored only once.</p>
+   *
+   * <p>The result runs the condition listed first. A {@link DfaRun}
+   * switches to another one with {@link DfaRun#setStartCondition
+   * DfaRun.setStartCondition()}, for example called by a {@link
+   * monq.jfa.actions.SwitchCondition SwitchCondition} action, which
+   * is no more than a pointer change. Since actions refer to the
+   * conditions by name, the automata can be compiled without the
+   * mutual references needed by {@link
+   * monq.jfa.actions.SwitchDfa}.</p>
+   *
+   * <p>The states being shared, {@link #optimize optimize()} and
+   * {@link #update update()} are not supported on the conditions.
+   * Apply them to the automata given before combining them.</p>
+   *
+   * @param conditions maps names to automata compiled from an
+   * <code>Nfa</code>, the first in iteration order is run initially
+   *
+   * @throws IllegalArgumentException if <code>conditions</code> is
+   * empty or one of the automata was not compiled from an
+   * <code>Nfa</code> but combined from other automata or already has
+   * start conditions
+   */
+  public static Dfa withStartConditions(Map<String,Dfa> conditions) {
+    if( conditions.isEmpty() ) {
+      throw new IllegalArgumentException("no start conditions given");
+    }
+    DfaState[] starts = new DfaState[conditions.size()];
+    int i = 0;
+    for(Map.Entry<String,Dfa> e : conditions.entrySet()) {
+      Dfa dfa = e.getValue();
+      if( dfa.getClass()!=Dfa.class || dfa.conditions!=null ) {
+        throw new IllegalArgumentException
+          ("start condition `"+e.getKey()+"' is not a plain Dfa");
+      }
+      starts[i++] = dfa.startState;
+    }
+    starts = StateMerger.merge(starts);
+
+    Map<String,Dfa> views = new LinkedHashMap<>();
+    i = 0;
+    for(Map.Entry<String,Dfa> e : conditions.entrySet()) {
+      Dfa dfa = e.getValue();
+      Dfa view = new Dfa(starts[i++], dfa.fmb, dfa.eofAction);
+      view.matchMax = dfa.matchMax;
+      view.conditions = views;
+      views.put(e.getKey(), view);
+    }
+    return views.values().iterator().next();
+  }
+  /**
+   * <p>returns the start condition with the given name, set up by
+   * {@link #withStartConditions withStartConditions()}.</p>
+   *
+   * @throws IllegalArgumentException if there is no such start
+   * condition
+   */
+  public Dfa getStartCondition(String name) {
+    Dfa result = conditions==null ? null : conditions.get(name);
+    if( result==null ) {
+      throw new IllegalArgumentException
+        ("`"+name+"' is not a start condition");
+    }
+    return result;
+  }
+  /**
+   * <p>returns the names of the start conditions this automaton
+   * belongs to, which is empty if it was not set up by {@link
+   * #withStartConditions withStartConditions()}.</p>
+   */
+  public Set<String> getStartConditions() {
+    if( conditions==null ) return Collections.emptySet();
+    return Collections.unmodifiableSet(conditions.keySet());
+  }
+  /**********************************************************************/
   /**
    * prints a graph representation of the Dfa in the
    * <code>graphviz</code> format.
@@ -188,13 +734,26 @@ public class Dfa implements Serializable {
    * @throws java.io.IOException only if <code>in.read()</code>
    * throws.
    */
-  FaAction match(CharSource in, StringBuilder out, SubmatchData smd)
+  final FaAction match(CharSource in, StringBuilder out, SubmatchData smd)
+    throws java.io.IOException
+  {
+    return match(in, out, smd, matchMax);
+  }
+  /**
+   * is the same as {@link #match(CharSource,StringBuilder,SubmatchData)}
+   * but reads no more than <code>rest</code> characters, if that is
+   * not negative, instead of {@link #matchMax}. As the last character
+   * read is not tested for a stop state, matches are shorter than
+   * <code>rest</code>. Automata combining others pass their own limit
+   * down this way.
+   */
+  FaAction match(CharSource in, StringBuilder out, SubmatchData smd,
+                 long rest)
     throws java.io.IOException
   {
     int startPos = out.length();
     int lastStopPos = startPos;
     DfaState lastStopState = null;
-    long rest = matchMax;
 
     DfaState current = startState;
     smd.reset();
@@ -204,6 +763,8 @@ public class Dfa implements Serializable {
       if( null!=current.getAction() ) {
         lastStopState = current;
         lastStopPos = out.length();
+        // nothing can follow, so don't read another character
+        if( current.terminal && lastStopPos>startPos ) break;
       }
       rest -= 1;
       int ch = in.read();
@@ -219,24 +780,119 @@ public class Dfa implements Serializable {
       current = current.follow((char)ch);
     }
 
-    // we might have read a few characters after the last stop
-    // state. Those characters must be pushed back into the input
-    // source.
-    //System.out.println("LLL("+out+")"+endPos+" "+out.length());
-    in.pushBack(out, lastStopPos);
+    FaAction a = endMatch(in, out, startPos, lastStopPos, lastStopState);
 
     // If we never crossed a stop state, null indicates that we found
     // no match.
-    if( lastStopState==null ) return null;
+    if( a==null ) return null;
 
     // The smd must be trimmed in the same way as out is drained above
     // because too many characters were read
-    smd.size = lastStopPos-startPos+1;
+    smd.trim(out.length()-startPos+1);
+    return a;
+  }
+  /**********************************************************************/
+  /**
+   * is the same as {@link #match(CharSource,StringBuilder,SubmatchData)}
+   * for automata without submatches and without {@link
+   * #matchMax}. Used by <code>DfaRun</code> to save the per character
+   * overhead of the general version.
+   */
+  FaAction matchPlain(CharSource in, StringBuilder out)
+    throws java.io.IOException
+  {
+    int startPos = out.length();
+    int lastStopPos = startPos;
+    DfaState lastStopState = null;
 
-    FaAction a = lastStopState.getAction();
+    DfaState current = startState;
+    while( current!=null ) {
+      if( null!=current.getAction() ) {
+        lastStopState = current;
+        lastStopPos = out.length();
+        if( current.terminal && lastStopPos>startPos ) break;
+      }
+      int ch = in.read();
+      if( ch<0 ) {
+        if( out.length()==startPos ) return DfaRun.EOF;
+        break;
+      }
+      out.append((char)ch);
+      current = current.follow((char)ch);
+    }
+    return endMatch(in, out, startPos, lastStopPos, lastStopState);
+  }
+  /**********************************************************************/
+  /**
+   * finishes a match found by one of the matching loops. The match
+   * ends at <code>stopPos</code> in <code>out</code> with the action
+   * of <code>stop</code>, if that is not <code>null</code>. A trailing
+   * context is cut off, since it is not part of the match, and all
+   * characters read beyond the end of the match are pushed back into
+   * <code>in</code>, so that <code>out</code> ends with the match.
+   *
+   * @return the action of the match or <code>null</code>
+   */
+  static FaAction endMatch(CharSource in, StringBuilder out, int startPos,
+                           int stopPos, DfaState stop)
+  {
+    return endMatch(in, out, startPos, stopPos,
+                    stop==null ? null : stop.getAction());
+  }
+  /**
+   * is the same as {@link
+   * #endMatch(CharSource,StringBuilder,int,int,DfaState)} for the
+   * action found.
+   */
+  static FaAction endMatch(CharSource in, StringBuilder out, int startPos,
+                           int stopPos, FaAction a)
+  {
+    if( a instanceof TrailingContext ) {
+      TrailingContext tc = (TrailingContext)a;
+      stopPos = tc.end(out, startPos, stopPos);
+      a = tc.client;
+    }
+    in.pushBack(out, stopPos);
     return a;
   }
   /**********************************************************************/
+  /**
+   * tells whether a match may start with <code>ch</code>. Automata
+   * which follow states differently override this, and {@link
+   * #skipNonStarters skipNonStarters()} works for all of them.
+   */
+  boolean canStart(char ch) {
+    return startState.follow(ch)!=null;
+  }
+  /**********************************************************************/
+  /**
+   * reads characters from <code>in</code> as long as they cannot start
+   * a match, but not more than <code>max</code>. If <code>out</code> is
+   * not <code>null</code>, the characters are appended to it.
+   *
+   * @return the number of characters read and not pushed back
+   */
+  int skipNonStarters(CharSource in, StringBuilder out, int max,
+                      StringBuilder scratch)
+    throws java.io.IOException
+  {
+    if( matchesEmpty() ) return 0;
+    int skipped = 0;
+    while( skipped<max ) {
+      int ch = in.read();
+      if( ch<0 ) break;
+      if( canStart((char)ch) ) {
+        scratch.setLength(0);
+        scratch.append((char)ch);
+        in.pushBack(scratch, 0);
+        break;
+      }
+      if( out!=null ) out.append((char)ch);
+      skipped += 1;
+    }
+    return skipped;
+  }
+  /**********************************************************************/
   /**
    * <p>determine a matching prefix of <code>in</code> and deliver
    * respective data. If <code>in</code> can be matched by the
@@ -0,0 +1,125 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.util.Map;
+
+/**
+ * <p>records how often each state of a {@link Dfa} is visited while a
+ * {@link DfaRun} operates it. Create a profile with {@link
+ * Dfa#createProfile}, hand it to {@link DfaRun#setProfile
+ * DfaRun.setProfile()}, filter some representative input and then
+ * call {@link Dfa#optimize Dfa.optimize()} to get a <code>Dfa</code>
+ * with transition tables tuned according to the profile.</p>
+ *
+ * <p>Only visits to states of the <code>Dfa</code> the profile was
+ * created for are counted. If a callback switches the
+ * <code>DfaRun</code> to another <code>Dfa</code>, the visits there
+ * are ignored.</p>
+ *
+ * <p><b>Note:</b> Objects of this class are not synchronized. Use one
+ * profile per <code>DfaRun</code>, and {@link #add add()} them up
+ * afterwards if necessary.</p>
+ */
+public class DfaProfile {
+  private final Dfa dfa;
+
+  // all states of dfa in breadth first order
+  final DfaState[] states;
+
+  // the index of each state in states. The states may be shared with
+  // other automata, so the index cannot be stored in the state.
+  private final Map<DfaState,Integer> numbers;
+
+  private final long[] visits;
+  /**********************************************************************/
+  DfaProfile(Dfa dfa, DfaState[] states) {
+    this.dfa = dfa;
+    this.states = states;
+    this.numbers = Dfa.numbers(states);
+    this.visits = new long[states.length];
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the <code>Dfa</code> this profile was created for.</p>
+   */
+  public Dfa getDfa() { return dfa; }
+
+  /**
+   * <p>returns the number of states of the profiled
+   * <code>Dfa</code>.</p>
+   */
+  public int size() { return states.length; }
+
+  /**
+   * <p>returns the number of visits recorded for the state with the
+   * given number. The start state has number 0, the others are
+   * numbered in breadth first order.</p>
+   */
+  public long getVisits(int state) { return visits[state]; }
+
+  /**
+   * <p>returns the total number of state visits recorded.</p>
+   */
+  public long getTotalVisits() {
+    long result = 0;
+    for(long v : visits) result += v;
+    return result;
+  }
+
+  /**
+   * <p>resets all counts to zero.</p>
+   */
+  public void reset() {
+    java.util.Arrays.fill(visits, 0);
+  }
+
+  /**
+   * <p>adds the counts of <code>other</code> to the counts of
+   * <code>this</code>.</p>
+   *
+   * @throws IllegalArgumentException if <code>other</code> was not
+   * created for the same <code>Dfa</code>.
+   */
+  public void add(DfaProfile other) {
+    if( other.dfa!=dfa ) {
+      throw new IllegalArgumentException("profile of a different Dfa");
+    }
+    for(int i=0; i<visits.length; i++) visits[i] += other.visits[i];
+  }
+  /**********************************************************************/
+  void count(DfaState s) {
+    Integer n = numbers.get(s);
+    if( n!=null ) visits[n] += 1;
+  }
+  /**********************************************************************/
+  /**
+   * returns <code>SubmatchData</code> which, in addition to its normal
+   * job, counts the states it sees. It is the only hook into
+   * <code>Dfa.match()</code> called for every state visited.
+   */
+  SubmatchData newRecorder() {
+    return new SubmatchData() {
+      @Override
+      void add(DfaState s) {
+        super.add(s);
+        count(s);
+      }
+    };
+  }
+  /**********************************************************************/
+}
@@ -40,7 +40,8 @@ import java.io.PrintStream;
  * between different action callbacks. Don't let your action callbacks
  * communicate via a common object allocated alongside the
  * <code>Dfa</code>, because this does not allow to share
- * <code>Dfa</code>s between threads.</p>
+ * <code>Dfa</code>s between threads. State private to an action is
+ * best kept in a {@link RunLocal}.</p>
  *
  * <p>Set field {@link #collect} to <code>true</code> in an action
  * callback to prevent the <code>read()</code> methods from
@@ -211,8 +212,24 @@ public class DfaRun implements CharSource, Serializable {
   // reusable field for calling Dfa.match() and the action returned by
   // Dfa.match(). Both are needed to assemble submatch information
   // should a callback call submatches().
-  private final SubmatchData smd = new SubmatchData();
+  private SubmatchData smd = new SubmatchData();
   private FaAction action;
+
+  // only non-null while profiling
+  private DfaProfile profile = null;
+
+  // used by Dfa.skipNonStarters() to push back a single character
+  private final StringBuilder pushBackBuf = new StringBuilder(1);
+
+  // reused by filter(StringBuilder,int)
+  private CharSequenceCharSource tailIn = null;
+
+  // values of RunLocal slots, indexed by RunLocal.index, and the
+  // stamp of the RunLocal each value belongs to
+  Object[] locals = NOLOCALS;
+  int[] localStamps = NOSTAMPS;
+  private static final Object[] NOLOCALS = new Object[0];
+  private static final int[] NOSTAMPS = new int[0];
   /**********************************************************************/
   /**
    * <p>creates a <code>DfaRun</code> object to operate the given {@link
@@ -303,11 +320,47 @@ public class DfaRun implements CharSource, Serializable {
     this.onFailedMatch = dfa.fmb;
   }
 
+  /**
+   * <p>switches to the start condition with the given name of the
+   * {@link Dfa} currently operated, as set up by {@link
+   * Dfa#withStartConditions Dfa.withStartConditions()}. Like {@link
+   * #setDfa setDfa()}, this may be called at any time within an
+   * action callback and also (re)initializes the way to handle
+   * unmatched input.</p>
+   *
+   * @throws IllegalArgumentException if there is no such start
+   * condition
+   */
+  public void setStartCondition(String name) {
+    setDfa(dfa.getStartCondition(name));
+  }
+
   /**
    * returns the {@link Dfa} operated by <code>this</code>.
    */
   public Dfa getDfa() { return dfa; }
 
+  /**
+   * <p>switches on profiling by recording visits of states into the
+   * given profile. Only states of the <code>Dfa</code> for which the
+   * profile was {@link Dfa#createProfile created} are counted. Pass
+   * <code>null</code> to switch profiling off again.</p>
+   *
+   * <p>Profiling slows down matching, so use it only to collect
+   * information for {@link Dfa#optimize Dfa.optimize()}.</p>
+   */
+  public void setProfile(DfaProfile profile) {
+    this.profile = profile;
+    if( profile==null ) smd = new SubmatchData();
+    else smd = profile.newRecorder();
+  }
+
+  /**
+   * <p>returns the profile set with {@link #setProfile setProfile()}
+   * or <code>null</code>.</p>
+   */
+  public DfaProfile getProfile() { return profile; }
+
   /**
    * <p>changes the way how unmatched input is handled. Any of the
    * values {@link #UNMATCHED_COPY}, {@link #UNMATCHED_DROP} or {@link
@@ -348,6 +401,20 @@ public class DfaRun implements CharSource, Serializable {
    */
   public int matchStart() { return matchStart; }
 
+  /**
+   * <p>returns the ids of all regular expressions matching the text
+   * of the most recent match, provided they were bound to {@link
+   * IdAction}s. Like {@link #matchStart}, call it immediately after
+   * {@link #next next()} or from within the action callback.</p>
+   *
+   * @return a fresh <code>BitSet</code> or <code>null</code> if the
+   * most recent match was not bound to an <code>IdAction</code>.
+   */
+  public java.util.BitSet matchSet() {
+    if( !(action instanceof IdAction) ) return null;
+    return ((IdAction)action).getIds();
+  }
+
   /**********************************************************************/
   /**
    * reads one character immediately from the input source and returns
@@ -492,7 +559,12 @@ public class DfaRun implements CharSource, Serializable {
     throws java.io.IOException
   {
     matchStart = out.length();
-    FaAction a = dfa.match(in, out, smd);
+    boolean plain = !dfa.hasSubmatches() && profile==null && dfa.matchMax<0;
+    if( plain ) smd.reset();
+    // characters which cannot start a match are passed over without a
+    // match attempt, unless a profile wants to see them
+    boolean skip = profile==null;
+    FaAction a = match(out, plain);
 
     if( a==null ) {
       // There was no match, so we have to search for the first
@@ -503,14 +575,21 @@ public class DfaRun implements CharSource, Serializable {
         do {
           out.append((char)(in.read()));
           unmatched += 1;
-          a = dfa.match(in, out, smd);
+          if( skip ) {
+            unmatched += dfa.skipNonStarters(in, out, maxCopy-unmatched,
+                                             pushBackBuf);
+          }
+          a = match(out, plain);
         } while( a==null && unmatched<maxCopy );
         matchStart += unmatched;
 
       } else if( onFailedMatch==UNMATCHED_DROP ) {
         do {
           in.read();
-          a = dfa.match(in, out, smd);
+          if( skip ) {
+            dfa.skipNonStarters(in, null, Integer.MAX_VALUE, pushBackBuf);
+          }
+          a = match(out, plain);
         } while( a==null );
 
       } else {
@@ -524,12 +603,23 @@ public class DfaRun implements CharSource, Serializable {
     // We handle EOF and eofAction as if we have found a match
     if( a==EOF && dfa.eofAction!=null && eofArmed) {
       eofArmed = false;
-      return dfa.eofAction;
+      a = dfa.eofAction;
     }
 
+    action = a;
     return a;
   }
   /**********************************************************************/
+  // Automata without submatches and without matchMax need not
+  // record anything per character, so they are run by a leaner loop,
+  // unless a profile wants to see every state visited.
+  private FaAction match(StringBuilder out, boolean plain)
+    throws java.io.IOException
+  {
+    if( plain ) return dfa.matchPlain(in, out);
+    return dfa.match(in, out, smd);
+  }
+  /**********************************************************************/
   /**
    * fetch a bit of lookahead for use in messages for
    * exceptions. The lookahead is pushed back into the input
@@ -721,6 +811,26 @@ public class DfaRun implements CharSource, Serializable {
     out.flush();
   }
   /**********************************************************************/
+  /**
+   * <p>filters the tail of <code>out</code> starting at
+   * <code>start</code> and replaces it with the result. The tail is
+   * read in place, with the output appended behind it, and is
+   * deleted when done. No copy of the tail is made and the input
+   * source used is kept for the next call, so that an action can
+   * filter its match with a nested <code>DfaRun</code> without
+   * allocating anything (see {@link ChildRun}). The input source
+   * previously set is replaced.</p>
+   */
+  public void filter(StringBuilder out, int start) throws IOException {
+    int end = out.length();
+    if( tailIn==null ) tailIn = new CharSequenceCharSource();
+    tailIn.setSource(out, start, end);
+    setIn(tailIn);
+    filter(out);
+    out.delete(start, end);
+    tailIn.setSource("");
+  }
+  /**********************************************************************/
   /**
    * <p>reads and filters the given input and returns the filtered
    * result.</p>
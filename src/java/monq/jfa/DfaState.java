@@ -11,6 +11,24 @@ final class DfaState implements FaState<DfaState> {
   private Map<FaAction,FaSubinfo[]> subinfos = null;
   private CharTrans<DfaState> trans = EmptyCharTrans.instance();
   private FaAction action = null;
+
+  // the actions of all stop states of the Nfa this state was compiled
+  // from, if there is more than one, including duplicates. The action
+  // above was chosen from these. Dfa.update() needs them when
+  // expressions are removed, so they are only recorded if the Nfa is
+  // updatable, while RECORD marks a state still to record them.
+  private FaAction[] candidates = null;
+  private static final FaAction[] RECORD = new FaAction[0];
+
+  // true for a stop state without outgoing transitions, set by the
+  // analysis performed when the Dfa is created.
+  boolean terminal = false;
+
+  // subinfos compiled by compileTags() into a form which can be
+  // scanned without hashing. They are computed only once and
+  // published as one object with final fields, since the state may
+  // already be run by other threads as part of another Dfa.
+  private Tags tags = null;
   
   public DfaState() {
     // nothing
@@ -18,6 +36,15 @@ final class DfaState implements FaState<DfaState> {
   public DfaState(FaAction a) {
     this.action = a;
   }
+  /**
+   * creates a state with the same action and subgraph information as
+   * <code>other</code>, but without transitions.
+   */
+  DfaState(DfaState other) {
+    this.action = other.action;
+    this.subinfos = other.subinfos;
+    this.candidates = other.candidates;
+  }
   @Override
   public boolean isImportant() {
     return getTrans().size()==0 || getAction()!=null || subinfos!=null;
@@ -90,16 +117,109 @@ final class DfaState implements FaState<DfaState> {
     throw new UnsupportedOperationException();    
   }
 
+  /**
+   * merges the subinfos of the given states and, as this is the only
+   * place where a new <code>DfaState</code> sees the states it is
+   * compiled from, records the candidate actions if {@link
+   * #recordCandidates} was called before.
+   */
   @Override
   public <X extends FaState<X>> void mergeSubinfos(Set<X> nfaStates) {
     subinfos = NfaState.mergeSubinfosInto(subinfos, nfaStates);
+    if( candidates!=RECORD ) return;
+    candidates = null;
+    int n = 0;
+    for(X s : nfaStates) if( s.getAction()!=null ) n += 1;
+    if( n<2 ) return;
+    candidates = new FaAction[n];
+    n = 0;
+    for(X s : nfaStates) {
+      if( s.getAction()!=null ) candidates[n++] = s.getAction();
+    }
   }
 
+  /**
+   * returns the actions this state's action was chosen from, as
+   * recorded by {@link #mergeSubinfos}, or <code>null</code> if it is
+   * just the action of the state.
+   */
+  FaAction[] getCandidates() { return candidates; }
+  void recordCandidates() { candidates = RECORD; }
+  void setCandidates(FaAction[] candidates) { this.candidates = candidates; }
+
   @Override
   public Map<FaAction,FaSubinfo[]> getSubinfos() {
     return subinfos;
   }
   
+  /**
+   * converts the subinfos into the arrays used by {@link #getTags},
+   * unless that was done before.
+   */
+  void compileTags() {
+    if( tags!=null || subinfos==null ) return;
+    int L = subinfos.size();
+    FaAction[] actions = new FaAction[L];
+    int[][] ops = new int[L][];
+    boolean starts = false;
+    int i = 0;
+    for(Map.Entry<FaAction,FaSubinfo[]> e : subinfos.entrySet()) {
+      FaSubinfo[] ary = e.getValue();
+      int[] codes = new int[ary.length];
+      for(int k=0; k<ary.length; k++) {
+        codes[k] = ary[k].code();
+        starts |= ary[k].isStart();
+      }
+      java.util.Arrays.sort(codes);
+      actions[i] = e.getKey();
+      ops[i] = codes;
+      i += 1;
+    }
+    tags = new Tags(actions, ops, starts);
+  }
+  /**
+   * returns the encoded subgraph markers of this state for action
+   * <code>a</code> or <code>null</code> if there are none. The handful
+   * of actions typically found here are compared by identity first.
+   * Since the subinfos map keeps only one of several equal actions,
+   * like two <code>Embed</code>s with the same tags, the stop state
+   * may hold another instance, which is then found by
+   * <code>equals()</code>.
+   */
+  int[] getTags(FaAction a) {
+    Tags t = tags;
+    if( t==null ) return null;
+    FaAction[] actions = t.actions;
+    for(int i=0; i<actions.length; i++) {
+      if( actions[i]==a ) return t.ops[i];
+    }
+    for(int i=0; i<actions.length; i++) {
+      if( actions[i].equals(a) ) return t.ops[i];
+    }
+    return null;
+  }
+  boolean hasTags() { return tags!=null; }
+  /**
+   * tells whether this state starts a subgraph. If not, visiting it
+   * several times in a row only extends the subgraphs it continues,
+   * so that {@link SubmatchData} need to record only the last visit.
+   */
+  boolean startsTags() { return tags!=null && tags.starts; }
+
+  // actions[i] has the subgraph markers ops[i], each encoded by
+  // FaSubinfo.code() and sorted, and starts tells whether any of them
+  // is a start
+  private static final class Tags {
+    final FaAction[] actions;
+    final int[][] ops;
+    final boolean starts;
+    Tags(FaAction[] actions, int[][] ops, boolean starts) {
+      this.actions = actions;
+      this.ops = ops;
+      this.starts = starts;
+    }
+  }
+
   private static final class ChildIterator implements Iterator<DfaState> {
     private final CharTrans<DfaState> trans;
     private int next = 0;
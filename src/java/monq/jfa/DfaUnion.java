@@ -0,0 +1,236 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>runs several automata in lock-step over the same input as if
+ * they were one, see {@link Dfa#union Dfa.union()}. At each position
+ * where at least one of them is in a stop state, the actions found
+ * there compete by priority, and the longest match wins, exactly as
+ * the states of a single <code>Dfa</code> compiled from all
+ * expressions would decide.</p>
+ */
+final class DfaUnion extends Dfa {
+  private static final long serialVersionUID = 1L;
+
+  private final Dfa[] shards;
+
+  private final int minMatchLength;
+  private final int maxMatchLength;
+  private final int terminalStops;
+  private final String firstChars;
+  private final boolean matchesEmpty;
+
+  // the current state of each shard in match(), kept per thread to
+  // not allocate an array for every match attempt
+  private static final ThreadLocal<DfaState[]> CURRENT =
+      new ThreadLocal<DfaState[]>() {
+        @Override
+        protected DfaState[] initialValue() { return new DfaState[0]; }
+      };
+  /**********************************************************************/
+  DfaUnion(Dfa[] shards, DfaRun.FailedMatchBehaviour fmb, FaAction eofA) {
+    super(new DfaState(), fmb, eofA);
+    this.shards = shards;
+
+    int min = -1;
+    int max = -1;
+    boolean unbounded = false;
+    int stops = 0;
+    boolean empty = false;
+    List<char[]> ranges = new ArrayList<>();
+    for(Dfa d : shards) {
+      stops += d.getTerminalStopCount();
+      empty |= d.matchesEmpty();
+      int dmin = d.getMinMatchLength();
+      if( dmin<0 ) continue;
+      if( min<0 || dmin<min ) min = dmin;
+      int dmax = d.getMaxMatchLength();
+      if( dmax<0 ) unbounded = true;
+      else max = Math.max(max, dmax);
+      String fc = d.getFirstChars();
+      for(int i=0; i<fc.length(); i+=2) {
+        ranges.add(new char[] {fc.charAt(i), fc.charAt(i+1)});
+      }
+    }
+    this.minMatchLength = min;
+    this.maxMatchLength = unbounded ? -1 : max;
+    this.terminalStops = stops;
+    this.matchesEmpty = empty;
+    this.firstChars = mergeRanges(ranges);
+  }
+  /**********************************************************************/
+  // merges overlapping and adjacent ranges into sorted, disjoint ones
+  static String mergeRanges(List<char[]> ranges) {
+    char[][] ary = ranges.toArray(new char[ranges.size()][]);
+    Arrays.sort(ary, new java.util.Comparator<char[]>() {
+      @Override
+      public int compare(char[] a, char[] b) {
+        return a[0]-b[0];
+      }
+    });
+    StringBuilder sb = new StringBuilder();
+    for(char[] r : ary) {
+      int L = sb.length();
+      if( L>0 && r[0]<=sb.charAt(L-1)+1 ) {
+        if( r[1]>sb.charAt(L-1) ) sb.setCharAt(L-1, r[1]);
+      } else {
+        sb.append(r[0]).append(r[1]);
+      }
+    }
+    return sb.toString();
+  }
+  /**********************************************************************/
+  /**
+   * returns the automata combined by this one.
+   */
+  Dfa[] getShards() { return shards; }
+
+  @Override
+  public boolean hasSubmatches() { return false; }
+  @Override
+  public int getMinMatchLength() { return minMatchLength; }
+  @Override
+  public int getMaxMatchLength() { return maxMatchLength; }
+  @Override
+  public int getTerminalStopCount() { return terminalStops; }
+  @Override
+  public String getFirstChars() { return firstChars; }
+  @Override
+  public boolean matchesEmpty() { return matchesEmpty; }
+  /**********************************************************************/
+  /**
+   * returns the union of the <code>Nfa</code>s of the automata
+   * combined.
+   */
+  @Override
+  public Nfa toNfa(double memoryForSpeedTradeFactor) {
+    Nfa result = shards[0].toNfa(memoryForSpeedTradeFactor);
+    for(int i=1; i<shards.length; i++) {
+      result.or(shards[i].toNfa(memoryForSpeedTradeFactor));
+    }
+    return result;
+  }
+  @Override
+  public synchronized DfaProfile createProfile() {
+    throw new UnsupportedOperationException("profile the shards instead");
+  }
+  @Override
+  public Dfa optimize(DfaProfile profile, double hotFraction,
+                      int maxTableSpan) {
+    throw new UnsupportedOperationException("optimize the shards instead");
+  }
+  @Override
+  public Dfa update(Nfa added, Nfa removed) {
+    throw new UnsupportedOperationException("update the shards instead");
+  }
+  @Override
+  public void toDot(PrintStream out) {
+    throw new UnsupportedOperationException("print the shards instead");
+  }
+  /**********************************************************************/
+  @Override
+  FaAction match(CharSource in, StringBuilder out, SubmatchData smd,
+                 long rest)
+    throws IOException
+  {
+    // there are no submatches, so smd stays empty
+    smd.reset();
+    return match(in, out, rest);
+  }
+  @Override
+  FaAction matchPlain(CharSource in, StringBuilder out) throws IOException {
+    return match(in, out, -1);
+  }
+  /**********************************************************************/
+  private FaAction match(CharSource in, StringBuilder out, long rest)
+    throws IOException
+  {
+    int N = shards.length;
+    DfaState[] current = CURRENT.get();
+    if( current.length<N ) CURRENT.set(current = new DfaState[N]);
+    for(int i=0; i<N; i++) current[i] = shards[i].getStart();
+    int alive = N;
+
+    int startPos = out.length();
+    int lastStopPos = startPos;
+    FaAction lastAction = null;
+    while( alive>0 && rest!=0 ) {
+      FaAction a = null;
+      boolean more = false;
+      for(int i=0; i<N; i++) {
+        DfaState s = current[i];
+        if( s==null ) continue;
+        a = compete(a, s.getAction());
+        more |= s.getTrans().size()>0;
+      }
+      if( a!=null ) {
+        lastAction = a;
+        lastStopPos = out.length();
+        // nothing can follow, so don't read another character
+        if( !more && lastStopPos>startPos ) break;
+      }
+      rest -= 1;
+      int ch = in.read();
+      if( ch<0 ) {
+        if( out.length()==startPos ) return DfaRun.EOF;
+        break;
+      }
+      out.append((char)ch);
+      alive = 0;
+      for(int i=0; i<N; i++) {
+        if( current[i]==null ) continue;
+        current[i] = current[i].follow((char)ch);
+        if( current[i]!=null ) alive += 1;
+      }
+    }
+    return endMatch(in, out, startPos, lastStopPos, lastAction);
+  }
+  /**********************************************************************/
+  @Override
+  boolean canStart(char ch) {
+    for(Dfa d : shards) {
+      if( d.getStart().follow(ch)!=null ) return true;
+    }
+    return false;
+  }
+  /**********************************************************************/
+  // decides between the actions of two shards like Nfa.findAction()
+  // decides between those of stop states. On a clash, which a
+  // combined compilation would report as an error, the action of the
+  // shard listed first wins.
+  static FaAction compete(FaAction a, FaAction b) {
+    if( b==null || a==b ) return a;
+    if( a==null ) return b;
+    if( a instanceof AbstractFaAction && b instanceof AbstractFaAction ) {
+      AbstractFaAction aa = (AbstractFaAction)a;
+      AbstractFaAction bb = (AbstractFaAction)b;
+      if( aa.mergesByPriority() && bb.mergesByPriority() ) {
+        return bb.priority>aa.priority ? b : a;
+      }
+    }
+    FaAction merged = b.mergeWith(a);
+    if( merged==null ) merged = a.mergeWith(b);
+    return merged==null ? a : merged;
+  }
+}
@@ -0,0 +1,309 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>implements {@link Dfa#update Dfa.update()} as a product of the
+ * existing <code>Dfa</code> with the <code>Nfa</code>s of the
+ * expressions added and removed. A state of the result is a state of
+ * the <code>Dfa</code>, or <code>null</code>, paired with a set of
+ * states of the <code>Nfa</code>s. Only where the set is not empty a
+ * new state must be computed. All other states are the old ones,
+ * shared with the old <code>Dfa</code>, since neither they nor their
+ * children change. The work is therefore proportional to the number
+ * of states reached by the expressions added and removed, not to the
+ * size of the <code>Dfa</code>.</p>
+ *
+ * <p>The action of a new state is chosen from the candidate actions
+ * the old state was chosen from, see {@link DfaState#getCandidates},
+ * plus the actions of the added stop states and minus those of the
+ * removed ones, in the same way as {@link Nfa#compile
+ * Nfa.compile()} chooses it.</p>
+ */
+final class DfaUpdate {
+  private final double memoryForSpeedTradeFactor;
+
+  // the stop states of the Nfa of removed expressions
+  private final Set<NfaState> removedStops = new HashSet<>();
+
+  // the new states
+  private final Map<Key,DfaState> known = new HashMap<>();
+  private final LinkedList<Task> stack = new LinkedList<>();
+
+  private final List<Nfa.Clash> clashes = new LinkedList<>();
+  private final Set<FaAction> found = new HashSet<>(3);
+  private final StringBuilder dfaPath = new StringBuilder();
+  private boolean haveStopState = false;
+  private boolean sharesOld = false;
+  /**********************************************************************/
+  DfaUpdate(double memoryForSpeedTradeFactor) {
+    this.memoryForSpeedTradeFactor = memoryForSpeedTradeFactor;
+  }
+  /**********************************************************************/
+  /**
+   * returns the start state of the updated automaton.
+   *
+   * @param added may be <code>null</code>
+   * @param removed may be <code>null</code>
+   */
+  DfaState update(DfaState start, Nfa added, Nfa removed)
+    throws CompileDfaException
+  {
+    Set<NfaState> startSet = new PlainSet<>();
+    if( added!=null ) {
+      startSet.add(added.getStart());
+      collectStops(added.getStart(), new HashSet<NfaState>());
+    }
+    if( removed!=null ) {
+      startSet.add(removed.getStart());
+      collectStops(removed.getStart(), removedStops);
+    }
+    Nfa.eclosure(startSet);
+
+    DfaState result = lookup(start, startSet, '1', '0', 0);
+    if( result==null ) {
+      // the old automaton matched nothing and nothing was added
+      return new DfaState();
+    }
+
+    Intervals<DfaState> dfaTrans = new Intervals<>();
+    RangeSweep sweep = new RangeSweep();
+    List<DfaState> dfaDsts = new ArrayList<>();
+    List<NfaState> nfaDsts = new ArrayList<>();
+    while( stack.size()>0 ) {
+      Task task = stack.removeLast();
+      if( task.steps>0 ) {
+        dfaPath.setLength(2*task.steps-2);
+        dfaPath.append(task.chLeft).append(task.chRight);
+      }
+
+      // Partition the ranges of the old state together with those of
+      // the Nfa states. The old state's transitions get the first
+      // target numbers.
+      sweep.clear();
+      dfaDsts.clear();
+      nfaDsts.clear();
+      if( task.old!=null ) {
+        CharTrans<DfaState> tr = task.old.getTrans();
+        for(int j=0, L=tr.size(); j<L; j++) {
+          DfaState st = tr.getAt(j);
+          if( j==0 || st!=tr.getAt(j-1) ) dfaDsts.add(st);
+          sweep.add(tr.getFirstAt(j), tr.getLastAt(j), dfaDsts.size()-1);
+        }
+      }
+      int offset = dfaDsts.size();
+      for(NfaState ns : task.nfaStates) {
+        CharTrans<NfaState> tr = ns.getTrans();
+        if( tr==null ) continue;
+        for(int j=0, L=tr.size(); j<L; j++) {
+          NfaState st = tr.getAt(j);
+          if( j==0 || st!=tr.getAt(j-1) ) nfaDsts.add(st);
+          sweep.add(tr.getFirstAt(j), tr.getLastAt(j),
+                    offset+nfaDsts.size()-1);
+        }
+      }
+      sweep.sweep();
+
+      dfaTrans.reset();
+      int[] targets = sweep.getTargets();
+      DfaState lastDst = null;
+      for(int i=0, L=sweep.size(); i<L; i++) {
+        int from = sweep.getFrom(i);
+        int to = sweep.getTo(i);
+        if( from==to ) continue;
+        char first = sweep.getFirstAt(i);
+        char last = sweep.getLastAt(i);
+        if( sweep.sameAsPrevious(i) ) {
+          if( lastDst!=null ) dfaTrans.overwrite(first, last, lastDst);
+          continue;
+        }
+        DfaState oldChild = null;
+        Set<NfaState> set = new PlainSet<>();
+        for(int k=from; k<to; k++) {
+          int t = targets[k];
+          if( t<offset ) oldChild = dfaDsts.get(t);
+          else set.add(nfaDsts.get(t-offset));
+        }
+        Nfa.eclosure(set);
+        DfaState dst = lookup(oldChild, set, first, last, task.steps+1);
+        if( dst!=null ) dfaTrans.overwrite(first, last, dst);
+        lastDst = dst;
+      }
+      task.dfaState.setTrans(dfaTrans.toCharTrans(memoryForSpeedTradeFactor));
+    }
+
+    if( clashes.size()>0 ) {
+      throw new CompileDfaException(Nfa.clashToString(clashes));
+    }
+    if( !haveStopState && !(sharesOld && reachesStop(result)) ) {
+      return new DfaState();
+    }
+    return result;
+  }
+  /**********************************************************************/
+  // returns the state for the pair (old, nfaStates), creating it if
+  // necessary, or null if both are empty.
+  private DfaState lookup(DfaState old, Set<NfaState> nfaStates,
+                          char first, char last, int steps) {
+    if( nfaStates.isEmpty() ) {
+      sharesOld |= old!=null;
+      return old;
+    }
+
+    Key key = new Key(old, nfaStates);
+    DfaState dst = known.get(key);
+    if( dst!=null ) return dst;
+
+    List<FaAction> candidates = new ArrayList<>();
+    if( old!=null ) {
+      FaAction[] c = old.getCandidates();
+      if( c!=null ) {
+        for(FaAction a : c) candidates.add(a);
+      } else if( old.getAction()!=null ) {
+        candidates.add(old.getAction());
+      }
+    }
+    for(NfaState ns : nfaStates) {
+      if( ns.getAction()!=null && !removedStops.contains(ns) ) {
+        candidates.add(ns.getAction());
+      }
+    }
+    for(NfaState ns : nfaStates) {
+      if( !removedStops.contains(ns) ) continue;
+      if( !remove(candidates, ns.getAction()) ) {
+        throw new IllegalArgumentException
+          ("action `"+ns.getAction()+"' to remove is not found for "
+           +"all matches of the expressions to remove");
+      }
+    }
+    FaAction a = Nfa.findAction(dfaPath, first, last, clashes, found,
+                                candidates);
+    haveStopState |= a!=null;
+    dst = new DfaState(a);
+    if( candidates.size()>1 ) {
+      dst.setCandidates(candidates.toArray(new FaAction[candidates.size()]));
+    }
+    known.put(key, dst);
+    stack.add(new Task(dst, old, nfaStates, steps, first, last));
+    return dst;
+  }
+  /**********************************************************************/
+  // removes one occurrence of a, preferring an identical object
+  private static boolean remove(List<FaAction> candidates, FaAction a) {
+    int i = candidates.size()-1;
+    while( i>=0 && candidates.get(i)!=a ) i -= 1;
+    if( i<0 ) i = candidates.indexOf(a);
+    if( i<0 ) return false;
+    candidates.remove(i);
+    return true;
+  }
+  /**********************************************************************/
+  // tells whether a stop state can be reached from s, needed only if
+  // no new state is a stop state
+  private static boolean reachesStop(DfaState s) {
+    Set<DfaState> seen =
+      Collections.newSetFromMap(new IdentityHashMap<DfaState,Boolean>());
+    LinkedList<DfaState> work = new LinkedList<>();
+    work.add(s);
+    seen.add(s);
+    while( work.size()>0 ) {
+      DfaState ds = work.removeLast();
+      if( ds.getAction()!=null ) return true;
+      CharTrans<DfaState> tr = ds.getTrans();
+      for(int i=0, L=tr.size(); i<L; i++) {
+        DfaState child = tr.getAt(i);
+        if( seen.add(child) ) work.add(child);
+      }
+    }
+    return false;
+  }
+  /**********************************************************************/
+  // adds the states with an action which are reachable from start to
+  // stops and makes sure there are no reporting subexpressions
+  private static void collectStops(NfaState start, Set<NfaState> stops) {
+    Set<NfaState> seen = new HashSet<>();
+    LinkedList<NfaState> work = new LinkedList<>();
+    work.add(start);
+    seen.add(start);
+    while( work.size()>0 ) {
+      NfaState ns = work.removeLast();
+      if( ns.getSubinfos()!=null ) {
+        throw new UnsupportedOperationException
+          ("expressions with reporting subexpressions cannot be "
+           +"added to or removed from a Dfa");
+      }
+      if( ns.getAction()!=null ) stops.add(ns);
+      NfaState[] eps = ns.getEps();
+      if( eps!=null ) {
+        for(NfaState e : eps) if( seen.add(e) ) work.add(e);
+      }
+      CharTrans<NfaState> tr = ns.getTrans();
+      if( tr==null ) continue;
+      for(int i=0, L=tr.size(); i<L; i++) {
+        NfaState child = tr.getAt(i);
+        if( seen.add(child) ) work.add(child);
+      }
+    }
+  }
+  /**********************************************************************/
+  private static final class Key {
+    private final DfaState old;
+    private final Set<NfaState> nfaStates;
+    Key(DfaState old, Set<NfaState> nfaStates) {
+      this.old = old;
+      this.nfaStates = nfaStates;
+    }
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(old)*31+nfaStates.hashCode();
+    }
+    @Override
+    public boolean equals(Object o) {
+      if( !(o instanceof Key) ) return false;
+      Key other = (Key)o;
+      return old==other.old && nfaStates.equals(other.nfaStates);
+    }
+  }
+  /**********************************************************************/
+  private static final class Task {
+    final DfaState dfaState;
+    final DfaState old;
+    final Set<NfaState> nfaStates;
+    final int steps;
+    final char chLeft;
+    final char chRight;
+    Task(DfaState dfaState, DfaState old, Set<NfaState> nfaStates,
+         int steps, char chLeft, char chRight) {
+      this.dfaState = dfaState;
+      this.old = old;
+      this.nfaStates = nfaStates;
+      this.steps = steps;
+      this.chLeft = chLeft;
+      this.chRight = chRight;
+    }
+  }
+}
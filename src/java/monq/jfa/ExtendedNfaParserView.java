@@ -0,0 +1,30 @@
+package monq.jfa;
+
+/**
+ * <p>is implemented by those {@link NfaParserView}s which support
+ * operations added after <code>NfaParserView</code> was published. An
+ * {@link ReParser} should check with <code>instanceof</code> whether
+ * the view it got implements this interface and otherwise fall back
+ * to the operations of <code>NfaParserView</code>, so that existing
+ * implementations of <code>NfaParserView</code> keep working.</p>
+ *
+ * <p>The views provided by {@link Nfa} implement this interface.</p>
+ */
+public interface ExtendedNfaParserView extends NfaParserView {
+
+  /** 
+   * <p>performs the equivalent of {@link Nfa#repeat} on the top
+   * element of the expression stack.</p>
+   */
+  void repeat(int from, int to);
+  /**
+   * <p>concatenates the two top elements of the expression stack,
+   * where the top one becomes a trailing context which is not part
+   * of the match, like in <code>r/s</code> of lex. The trailing
+   * context is applied by the action added next.</p>
+   *
+   * @return <code>false</code> if the element below can match the
+   * empty string. The stack is not changed in this case.
+   */
+  boolean trail();
+}
\ No newline at end of file
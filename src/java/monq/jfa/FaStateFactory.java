@@ -27,5 +27,20 @@ public abstract class FaStateFactory<S extends FaState<S>> {
           return new DfaState(a);
         }
   };
+
+  // creates states which record their candidate actions
+  static final FaStateFactory<DfaState> forUpdatableDfa =
+      new FaStateFactory<>() {
+        @Override public DfaState create() {
+          return new DfaState();
+        }
+
+        @Override
+        public DfaState create(FaAction a) {
+          DfaState s = new DfaState(a);
+          s.recordCandidates();
+          return s;
+        }
+  };
   
 }
@@ -80,6 +80,20 @@ class FaSubinfo implements Comparable<FaSubinfo>, Serializable {
   public boolean isInner() {return (type&SUBINNER)!=0;}
 
 
+  /**
+   * <p>encodes id and type into one <code>int</code>, the type in the
+   * lowest 3 bits. Comparing codes compares the ids first, like
+   * {@link #compareTo compareTo()} does, except that the id is taken as
+   * unsigned.</p>
+   */
+  public int code() { return ((id&0xff)<<3) | type; }
+
+  static int codeId(int code) { return code>>>3; }
+  static byte codeToId(int code) { return (byte)(code>>>3); }
+  static boolean isStart(int code) {return (code&SUBSTART)!=0;}
+  static boolean isStop(int code) {return (code&SUBSTOP)!=0;}
+  static boolean isInner(int code) {return (code&SUBINNER)!=0;}
+
   public String typeString() {
     return TYPESTRINGS[type];    
   }
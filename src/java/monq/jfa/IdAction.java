@@ -0,0 +1,142 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.util.BitSet;
+
+/**
+ * <p>is an {@link FaAction} which identifies the regular expression
+ * it is bound to by a number. Where expressions bound to
+ * <code>IdAction</code>s have matches in common, {@link Nfa#compile
+ * Nfa.compile()} does not report a clash but merges them into an
+ * <code>IdAction</code> which carries the numbers of all of them. The
+ * stop state of a match therefore knows every expression matching
+ * this very text, and {@link DfaRun#matchSet} or {@link
+ * Regexp#matchSet} retrieve them as a <code>BitSet</code>.</p>
+ *
+ * <p>An <code>IdAction</code> may wrap a client action which is
+ * invoked for the match. When merging, the client of higher priority
+ * wins. Clients of the same priority must be merged by their {@link
+ * FaAction#mergeWith mergeWith()} method, otherwise the compilation
+ * reports a clash as usual. Without a client, the match is copied to
+ * the output unchanged.</p>
+ */
+public final class IdAction extends AbstractFaAction {
+  private static final long serialVersionUID = 1L;
+
+  private final BitSet ids;
+  private final FaAction client;
+  // the ids as a sorted array, computed on first use by TermMatcher
+  private transient volatile int[] idList = null;
+  /**********************************************************************/
+  /**
+   * <p>creates an action identifying its regular expression by
+   * <code>id</code>.</p>
+   */
+  public IdAction(int id) {
+    this(id, null);
+  }
+  /**
+   * <p>creates an action identifying its regular expression by
+   * <code>id</code> and delegating to <code>client</code> when
+   * invoked.</p>
+   *
+   * @param client may be <code>null</code>
+   */
+  public IdAction(int id, FaAction client) {
+    if( id<0 ) throw new IllegalArgumentException("negative id "+id);
+    this.ids = new BitSet(id+1);
+    this.ids.set(id);
+    this.client = client;
+    if( client instanceof AbstractFaAction ) {
+      this.priority = ((AbstractFaAction)client).priority;
+    }
+  }
+  private IdAction(BitSet ids, FaAction client, int priority) {
+    this.ids = ids;
+    this.client = client;
+    this.priority = priority;
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns a copy of the ids of all regular expressions merged into
+   * this action.</p>
+   */
+  public BitSet getIds() { return (BitSet)ids.clone(); }
+
+  // the ids as a sorted array, for TermMatcher, which looks them up
+  // for each word matched. Walking the BitSet instead costs a scan
+  // over all its words, which for the highest ids of a large
+  // dictionary are mostly empty.
+  int[] idList() {
+    int[] result = idList;
+    if( result==null ) {
+      result = new int[ids.cardinality()];
+      for(int i=0, id=ids.nextSetBit(0); id>=0; id=ids.nextSetBit(id+1)) {
+        result[i++] = id;
+      }
+      idList = result;
+    }
+    return result;
+  }
+
+  /**
+   * <p>returns the client action, which may be
+   * <code>null</code>.</p>
+   */
+  public FaAction getClient() { return client; }
+  /**********************************************************************/
+  @Override
+  public void invoke(StringBuilder yytext, int start, DfaRun runner)
+    throws CallbackException
+  {
+    if( client!=null ) client.invoke(yytext, start, runner);
+  }
+  /**********************************************************************/
+  /**
+   * <p>merges with another <code>IdAction</code> into a new one
+   * carrying the ids of both. Any other action is not merged.</p>
+   */
+  @Override
+  public FaAction mergeWith(FaAction other) {
+    if( other==this ) return this;
+    if( !(other instanceof IdAction) ) return null;
+    IdAction o = (IdAction)other;
+
+    FaAction c;
+    if( client==o.client ) c = client;
+    else if( client==null ) c = o.client;
+    else if( o.client==null ) c = client;
+    else if( priority>o.priority ) c = client;
+    else if( priority<o.priority ) c = o.client;
+    else {
+      c = client.mergeWith(o.client);
+      if( c==null ) c = o.client.mergeWith(client);
+      if( c==null ) return null;
+    }
+
+    BitSet merged = (BitSet)ids.clone();
+    merged.or(o.ids);
+    return new IdAction(merged, c, Math.max(priority, o.priority));
+  }
+  /**********************************************************************/
+  @Override
+  public String toString() {
+    return "IdAction"+ids+(client==null ? "" : "("+client+")");
+  }
+}
@@ -41,7 +41,7 @@ public class Intervals<D> {
   private StringBuilder ranges = new StringBuilder();
   private List<D> vtmp = new ArrayList<>();
  
-  public static final long[] stats = new long[4];
+  public static final long[] stats = new long[5];
   /**********************************************************************/
   public Intervals() {
     init();
@@ -123,6 +123,16 @@ public class Intervals<D> {
     return pos;
   }
   /**********************************************************************/
+  /**
+   * <p>appends an interval starting at <code>first</code> and mapped to
+   * <code>o</code>. The interval currently last is cut short at
+   * <code>first</code>, which must lie truly within it.</p>
+   */
+  final void append(char first, D o) {
+    ivals.append(first);
+    values.add(o);
+  }
+  /**********************************************************************/
   public final void overwrite(char first, char last, D o) {
     int from = split(first);
     if( from<0 ) from = -(from+1);
@@ -199,7 +209,96 @@ public class Intervals<D> {
     }
   }
   /**********************************************************************/
+  /**
+   * <p>converts the intervals into a {@link CharTrans} choosing the
+   * implementation by estimated memory footprint. See {@link
+   * Nfa#setMemoryForSpeedTradeFactor} for the meaning of the
+   * parameter. Afterwards <code>this</code> is {@link #reset}.</p>
+   */
   public CharTrans<D> toCharTrans(double memoryForSpeedTradeFactor) {
+    if( !collapse() ) {
+      reset();
+      return null;
+    }
+
+    CharTrans<D> t = toSmallCharTrans();
+    if( t==null ) {
+      // estimate the size of an ArrayCharTrans
+      int arrayTransSize = ArrayCharTrans.estimateSize(vtmp.size());
+      int tableTransSize = TableCharTrans.estimateSize(tableSpan());
+
+      //System.out.println("array: "+arrayTransSize);
+      //System.out.println("table: "+tableTransSize);
+
+      if( arrayTransSize*memoryForSpeedTradeFactor<tableTransSize ) {
+        t = new ArrayCharTrans<>(ranges, vtmp);
+        stats[2] += 1;
+      } else {
+        t = new TableCharTrans<>(ranges, vtmp);
+        stats[3] += 1;
+      }
+    }
+    reset();
+    return t;
+  }
+  /*+******************************************************************/
+  /**
+   * <p>converts the intervals into the fastest {@link CharTrans}
+   * implementation available, as is desirable for frequently visited
+   * states. A direct lookup table is used if it covers no more than
+   * <code>maxTableSpan</code> characters. Otherwise, if the
+   * transitions start in the ASCII range, ASCII characters are
+   * looked up in a table while all others use a binary
+   * search. Afterwards <code>this</code> is {@link #reset}.</p>
+   */
+  public CharTrans<D> toFastCharTrans(int maxTableSpan) {
+    if( !collapse() ) {
+      reset();
+      return null;
+    }
+
+    CharTrans<D> t = toSmallCharTrans();
+    if( t==null ) {
+      if( tableSpan()<=maxTableSpan ) {
+        t = new TableCharTrans<>(ranges, vtmp);
+        stats[3] += 1;
+      } else if( ranges.charAt(0)<AsciiCharTrans.ASCII ) {
+        t = new AsciiCharTrans<>(ranges, vtmp);
+        stats[4] += 1;
+      } else {
+        t = new ArrayCharTrans<>(ranges, vtmp);
+        stats[2] += 1;
+      }
+    }
+    reset();
+    return t;
+  }
+  /*+******************************************************************/
+  // number of characters a TableCharTrans for the collapsed ranges
+  // would have to cover
+  private int tableSpan() {
+    return ranges.charAt(2*vtmp.size()-1)-ranges.charAt(0)+1;
+  }
+  /*+******************************************************************/
+  // for a single range after collapse(), returns the respective
+  // trivial CharTrans, otherwise null.
+  private CharTrans<D> toSmallCharTrans() {
+    if( vtmp.size()!=1 ) return null;
+    char first = ranges.charAt(0);
+    char last = ranges.charAt(1);
+    if( first==last ) {
+      stats[0] += 1;
+      return new SingletonCharTrans<>(first, vtmp.get(0));
+    }
+    stats[1] += 1;
+    return new RangeCharTrans<>(first, last, vtmp.get(0));
+  }
+  /*+******************************************************************/
+  /**
+   * fills ranges and vtmp from the intervals and returns false if
+   * everything is mapped to null.
+   */
+  private boolean collapse() {
     // We have to do the following:
     // 1) convert right open intervals to ranges [a,b]
     // 2) drop intervals which map to null
@@ -228,43 +327,8 @@ public class Intervals<D> {
     }
     
     //if( combined>0 ) System.err.println("combined "+combined+" intervals");
-    if( vtmp.size()==0 ) {
-      reset();
-      return null;
-    }
     assert vtmp.size()*2 == ranges.length();
-
-    CharTrans<D> t;
-    if( vtmp.size()==1 ) {
-      char first = ranges.charAt(0);
-      char last = ranges.charAt(1);
-      if( first==last ) {
-        t = new SingletonCharTrans<>(first, vtmp.get(0));
-        stats[0] += 1;
-      } else {
-        t = new RangeCharTrans<>(first, last, vtmp.get(0));
-        stats[1] += 1;
-      }
-    } else {
-      // estimate the size of an ArrayCharTrans
-      int arrayTransSize = ArrayCharTrans.estimateSize(vtmp.size());
-      int tableTransSize = TableCharTrans.estimateSize
-	(ranges.charAt(2*vtmp.size()-1)-ranges.charAt(0)+1);
-
-      //System.out.println("array: "+arrayTransSize);
-      //System.out.println("table: "+tableTransSize);
-
-      if( arrayTransSize*memoryForSpeedTradeFactor<tableTransSize ) {
-        t = new ArrayCharTrans<>(ranges, vtmp);
-        stats[2] += 1;
-      } else {
-        t = new TableCharTrans<>(ranges, vtmp);
-        stats[3] += 1;
-      }
-
-    }
-    reset();
-    return t;
+    return vtmp.size()>0;
   }
   /*+******************************************************************/
   public String toString() {
@@ -0,0 +1,133 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.io.IOException;
+
+/**
+ * <p>runs a <code>Dfa</code> with transitions looked up on the
+ * characters mapped by a {@link CharMap}, see {@link Dfa#withCharMap
+ * Dfa.withCharMap()}. The states are shared with the
+ * <code>Dfa</code>, only the matching loops differ in that they
+ * follow <code>map[ch]</code> while appending <code>ch</code>.</p>
+ */
+final class MappedDfa extends Dfa {
+  private static final long serialVersionUID = 1L;
+
+  private final CharMap map;
+  // the table of map, looked up directly in the matching loops
+  private final char[] table;
+  private final String firstChars;
+  /**********************************************************************/
+  MappedDfa(Dfa dfa, CharMap map) {
+    super(dfa.getStart(), dfa.fmb, dfa.eofAction);
+    this.matchMax = dfa.matchMax;
+    this.updatable = dfa.updatable;
+    this.map = map;
+    this.table = map.table();
+
+    // all characters which are mapped to a first character
+    StringBuilder sb = new StringBuilder();
+    DfaState start = getStart();
+    int from = -1;
+    for(int ch=0; ch<=table.length; ch++) {
+      boolean first = ch<table.length && start.follow(table[ch])!=null;
+      if( first && from<0 ) from = ch;
+      if( !first && from>=0 ) {
+        sb.append((char)from).append((char)(ch-1));
+        from = -1;
+      }
+    }
+    this.firstChars = sb.toString();
+  }
+  /**********************************************************************/
+  @Override
+  public String getFirstChars() { return firstChars; }
+
+  @Override
+  public Dfa optimize(DfaProfile profile, double hotFraction,
+                      int maxTableSpan) {
+    return new MappedDfa(super.optimize(profile, hotFraction, maxTableSpan),
+                         map);
+  }
+  @Override
+  public Dfa update(Nfa added, Nfa removed) throws CompileDfaException {
+    return new MappedDfa(super.update(added, removed), map);
+  }
+  /**********************************************************************/
+  @Override
+  FaAction match(CharSource in, StringBuilder out, SubmatchData smd,
+                 long rest)
+    throws IOException
+  {
+    int startPos = out.length();
+    int lastStopPos = startPos;
+    DfaState lastStopState = null;
+
+    DfaState current = getStart();
+    smd.reset();
+    while( current!=null && rest!=0 ) {
+      smd.add(current);
+      if( null!=current.getAction() ) {
+        lastStopState = current;
+        lastStopPos = out.length();
+        if( current.terminal && lastStopPos>startPos ) break;
+      }
+      rest -= 1;
+      int ch = in.read();
+      if( ch<0 ) {
+        if( out.length()==startPos ) return DfaRun.EOF;
+        break;
+      }
+      out.append((char)ch);
+      current = current.follow(table[ch]);
+    }
+    FaAction a = endMatch(in, out, startPos, lastStopPos, lastStopState);
+    if( a==null ) return null;
+    smd.trim(out.length()-startPos+1);
+    return a;
+  }
+  @Override
+  FaAction matchPlain(CharSource in, StringBuilder out) throws IOException {
+    int startPos = out.length();
+    int lastStopPos = startPos;
+    DfaState lastStopState = null;
+
+    DfaState current = getStart();
+    while( current!=null ) {
+      if( null!=current.getAction() ) {
+        lastStopState = current;
+        lastStopPos = out.length();
+        if( current.terminal && lastStopPos>startPos ) break;
+      }
+      int ch = in.read();
+      if( ch<0 ) {
+        if( out.length()==startPos ) return DfaRun.EOF;
+        break;
+      }
+      out.append((char)ch);
+      current = current.follow(table[ch]);
+    }
+    return endMatch(in, out, startPos, lastStopPos, lastStopState);
+  }
+  /**********************************************************************/
+  @Override
+  boolean canStart(char ch) {
+    return getStart().follow(table[ch])!=null;
+  }
+}
@@ -0,0 +1,245 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>runs several independent {@link Dfa}s over the same input while
+ * reading it only once. Each <code>Dfa</code> added with {@link #add
+ * add()} gets its own {@link DfaRun} and its own output, just as if it
+ * were run separately with {@link DfaRun#filter(java.io.PrintStream)
+ * DfaRun.filter()}. The input is read from the shared {@link
+ * CharSource} in chunks which all runs consume in turn before the next
+ * chunk is read. This way the cost of reading and decoding the input is
+ * paid once, not once per <code>Dfa</code>.</p>
+ *
+ * <p>Each run keeps its own position in the input, because the
+ * longest match of one <code>Dfa</code> does not end where the match
+ * of another one ends. A run looking beyond the current chunk simply
+ * causes the next chunk to be read early. Characters pushed back by a
+ * run, for example with {@link DfaRun#unskip DfaRun.unskip()}, are
+ * seen only by this run.</p>
+ *
+ * <p>Action callbacks work as usual and may use {@link DfaRun#clientData
+ * clientData} or {@link DfaRun#collect collect} of their run. An action
+ * switching its run to another input with {@link DfaRun#setIn setIn()}
+ * detaches it from the shared input.</p>
+ *
+ * <p><b>Note:</b> Objects of this class are not synchronized and are
+ * meant to filter their input once.</p>
+ */
+public class MultiDfaRun {
+  private final CharSource in;
+  private final int chunkSize;
+
+  // input not yet consumed by all runs is buf[0..end), buf[0] is at
+  // input position base
+  private char[] buf;
+  private int end = 0;
+  private long base = 0;
+  private boolean eof = false;
+
+  private final List<Tenant> tenants = new ArrayList<>();
+  /**********************************************************************/
+  /**
+   * <p>creates a <code>MultiDfaRun</code> reading from
+   * <code>in</code> in chunks of 8192 characters.</p>
+   */
+  public MultiDfaRun(CharSource in) {
+    this(in, 8192);
+  }
+  /**
+   * <p>creates a <code>MultiDfaRun</code> reading from
+   * <code>in</code> in chunks of <code>chunkSize</code>
+   * characters. Larger chunks mean fewer switches between the runs,
+   * smaller ones keep the shared buffer in the processor cache.</p>
+   */
+  public MultiDfaRun(CharSource in, int chunkSize) {
+    if( chunkSize<1 ) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    this.in = in;
+    this.chunkSize = chunkSize;
+    this.buf = new char[2*chunkSize];
+  }
+  /**********************************************************************/
+  /**
+   * <p>adds a <code>Dfa</code> to be run over the shared input. The
+   * filtered output is appended to <code>out</code>, which may be
+   * <code>null</code> if the actions of the <code>Dfa</code> produce
+   * no output of interest.</p>
+   *
+   * @return the <code>DfaRun</code> operating <code>dfa</code>. Use
+   * it to set up {@link DfaRun#clientData clientData} or a {@link
+   * DfaProfile} before calling {@link #filter}, but do not read from
+   * it directly.
+   */
+  public DfaRun add(Dfa dfa, Appendable out) {
+    Tenant t = new Tenant(dfa, out);
+    tenants.add(t);
+    return t.run;
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the number of <code>Dfa</code>s added.</p>
+   */
+  public int size() { return tenants.size(); }
+
+  /**
+   * <p>returns the number of characters read from the shared input so
+   * far.</p>
+   */
+  public long getCharsRead() { return base+end; }
+  /**********************************************************************/
+  /**
+   * <p>filters the input with all <code>Dfa</code>s added until EOF is
+   * hit, delivering the output of each to the <code>Appendable</code>
+   * given with it. An output which is {@link java.io.Flushable} is
+   * flushed at the end.</p>
+   *
+   * @exception java.io.EOFException if EOF is hit while one of the
+   * runs is in {@link DfaRun#collect collect} mode.
+   * @exception CallbackException if a callback throws this exception
+   */
+  public void filter() throws IOException {
+    StringBuilder sb = new StringBuilder(500);
+    int running = tenants.size();
+    while( running>0 ) {
+      fill();
+      for(Tenant t : tenants) {
+        if( t.done ) continue;
+        // no need to stop at the chunk boundary after EOF
+        while( eof || !t.cursor.caughtUp() ) {
+          boolean more = t.run.read(sb);
+          if( t.out!=null ) t.out.append(sb);
+          sb.setLength(0);
+          if( !more ) {
+            t.done = true;
+            running -= 1;
+            if( t.out instanceof Flushable ) ((Flushable)t.out).flush();
+            break;
+          }
+        }
+      }
+      trim();
+    }
+  }
+  /**********************************************************************/
+  /**
+   * reads the next chunk of input into buf. Returns false if nothing
+   * was read due to EOF.
+   */
+  private boolean fill() throws IOException {
+    if( eof ) return false;
+    if( end+chunkSize>buf.length ) {
+      buf = java.util.Arrays.copyOf(buf, 2*(end+chunkSize));
+    }
+    int start = end;
+    for(int i=0; i<chunkSize; i++) {
+      int ch = in.read();
+      if( ch<0 ) {
+        eof = true;
+        break;
+      }
+      buf[end++] = (char)ch;
+    }
+    return end>start;
+  }
+  /**********************************************************************/
+  /**
+   * drops the head of buf which all runs still working have consumed.
+   */
+  private void trim() {
+    int min = end;
+    for(Tenant t : tenants) {
+      if( !t.done && t.cursor.pos<min ) min = t.cursor.pos;
+    }
+    if( min==0 ) return;
+    System.arraycopy(buf, min, buf, 0, end-min);
+    end -= min;
+    base += min;
+    for(Tenant t : tenants) t.cursor.pos -= min;
+  }
+  /**********************************************************************/
+  private final class Tenant {
+    final Cursor cursor = new Cursor();
+    final DfaRun run;
+    final Appendable out;
+    boolean done = false;
+    Tenant(Dfa dfa, Appendable out) {
+      this.run = new DfaRun(dfa, cursor);
+      this.out = out;
+    }
+  }
+  /**********************************************************************/
+  /**
+   * is the view of one run on the shared input.
+   */
+  private final class Cursor implements CharSource {
+    // index of the next character to read from buf
+    int pos = 0;
+
+    // characters pushed back which differ from the input, in reverse
+    // order such that the next one to read is at the end
+    private final StringBuilder pushed = new StringBuilder();
+
+    @Override
+    public int read() throws IOException {
+      int n = pushed.length();
+      if( n>0 ) {
+        char ch = pushed.charAt(n-1);
+        pushed.setLength(n-1);
+        return ch;
+      }
+      if( pos==end && !fill() ) return -1;
+      return buf[pos++];
+    }
+
+    @Override
+    public void pushBack(StringBuilder from, int startAt) {
+      int L = from.length()-startAt;
+      if( pushed.length()==0 && isInput(from, startAt, L) ) {
+        // the usual case: a DfaRun returns the look ahead beyond the
+        // longest match
+        pos -= L;
+      } else {
+        for(int i=from.length()-1; i>=startAt; i--) {
+          pushed.append(from.charAt(i));
+        }
+      }
+      from.setLength(startAt);
+    }
+
+    private boolean isInput(StringBuilder from, int startAt, int L) {
+      int off = pos-L;
+      if( off<0 ) return false;
+      for(int i=0; i<L; i++) {
+        if( from.charAt(startAt+i)!=buf[off+i] ) return false;
+      }
+      return true;
+    }
+
+    boolean caughtUp() {
+      return pushed.length()==0 && pos>=end;
+    }
+  }
+}
@@ -21,10 +21,12 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +34,7 @@ import java.util.Queue;
 import java.util.Set;
 
 import monq.jfa.FaState.IterType;
+import monq.jfa.actions.Copy;
 import monq.jfa.actions.DefaultAction;
 
 /**
@@ -74,7 +77,18 @@ public class Nfa  {
   private int subgraphID = 0;
 
   private final ParserView pView = new ParserView();
+
+  // the trailing context parsed last, with no client yet, to be
+  // applied by the next call to addAction() if lastState is still
+  // trailLast, or null
+  private TrailingContext trail = null;
+  private NfaState trailLast;
+
+  // if not null, regular expressions are collected in a position
+  // automaton until an operation requires Thompson's construction
+  private PositionAutomaton positions = null;
   private double memoryForSpeedTradeFactor = 1.0;
+  private boolean updatable = false;
 
   /**
    * <p>is used by each <code>Nfa</code> to obtain a default regular
@@ -377,8 +391,91 @@ public class Nfa  {
     this.reParser = reParser;
     return this;
   }
+  /**
+   * <p>selects the front end used for regular expressions added with
+   * {@link #or(CharSequence,FaAction)}. If switched on, the
+   * expressions are translated into a position automaton, also known
+   * as Glushkov automaton, which has no epsilon transitions and is
+   * compiled into a {@link Dfa} without the need to compute epsilon
+   * closures. For large dictionaries and rule sets this is faster and
+   * needs less memory during compilation.</p>
+   *
+   * <p>Expressions with reporting subexpressions or with operators
+   * needing intermediate compilation, like <code>!</code> or
+   * <code>~</code>, as well as all other operations on the
+   * <code>Nfa</code> as a whole, silently switch back to the classic
+   * Thompson construction, replaying all expressions added so
+   * far. The resulting <code>Dfa</code> is the same in both
+   * cases.</p>
+   *
+   * @throws IllegalStateException if switched on for an automaton
+   * which is not empty
+   */
+  public Nfa setPositionAutomaton(boolean on) {
+    if( !on ) {
+      thompson();
+      return this;
+    }
+    if( positions!=null ) return this;
+    if( start.getEps()!=null || start.getTrans()!=null ) {
+      throw new IllegalStateException("the automaton is not empty");
+    }
+    positions = new PositionAutomaton();
+    return this;
+  }
+  /**
+   * <p>makes {@link #compile compile()} record for each state of the
+   * <code>Dfa</code> all the actions its action is chosen from, which
+   * {@link Dfa#update Dfa.update()} needs to remove expressions. This
+   * costs an array for each state where several expressions match,
+   * so it is off by default. Expressions can be added to any
+   * <code>Dfa</code>.</p>
+   */
+  public Nfa setUpdatable(boolean on) {
+    updatable = on;
+    return this;
+  }
+  /**
+   * <p>tells whether {@link #compile compile()} creates a
+   * <code>Dfa</code> from which expressions can be removed.</p>
+   *
+   * @see #setUpdatable
+   */
+  public boolean isUpdatable() {
+    return updatable;
+  }
+  /**
+   * <p>tells whether expressions are currently collected in a
+   * position automaton.</p>
+   *
+   * @see #setPositionAutomaton
+   */
+  public boolean isPositionAutomaton() {
+    return positions!=null;
+  }
+  /**********************************************************************/
+  // adds all expressions collected in the position automaton by
+  // Thompson's construction and drops the position automaton
+  private void thompson() {
+    if( positions==null ) return;
+    PositionAutomaton pa = positions;
+    positions = null;
+    List<String> regexes = pa.getRegexes();
+    List<FaAction> actions = pa.getActions();
+    try {
+      for(int i=0; i<regexes.size(); i++) {
+        or(regexes.get(i), actions.get(i));
+      }
+    } catch( ReSyntaxException e ) {
+      throw new IllegalStateException("parsed before, but not now", e);
+    }
+  }
+
   //-********************************************************************/
-  NfaState getStart() {return start;}
+  NfaState getStart() {
+    thompson();
+    return start;
+  }
   //private AbstractFaState.EpsState getLastState() {return lastState;}
 
   /**
@@ -394,9 +491,13 @@ public class Nfa  {
    * uncompilable due to conflicting actions.
    */
   public Nfa addAction(FaAction a) {
+    thompson();
     if( a==null ) return this;
 
-    NfaState newLast = new NfaState(a);
+    // reporting subexpressions stay bound to the action itself, since
+    // the trailing context is removed before they are analyzed
+    NfaState newLast = new NfaState(trailed(a));
+    trail = null;
     lastState.addEps(newLast);
     lastState = newLast;
 
@@ -416,8 +517,15 @@ public class Nfa  {
     return this;
   }
 
+  // wraps a into the trailing context parsed last, if the automaton
+  // was not changed since
+  private FaAction trailed(FaAction a) {
+    if( trail==null || trailLast!=lastState ) return a;
+    return trail.wrap(a);
+  }
   /*+******************************************************************/
   public void toDot(PrintStream out) {
+    thompson();
     FaToDot.print(out, start, lastState);
   }
   /*+******************************************************************/
@@ -456,6 +564,7 @@ public class Nfa  {
    * performed, because the number of possible subgraphs was exceeded.
    */
   public boolean markAsSub() {
+    thompson();
     if( subgraphID>Byte.MAX_VALUE ) return false;
 
     byte id = (byte)subgraphID++;
@@ -539,6 +648,7 @@ public class Nfa  {
    * @return the return value is <code>this</code>.
    */
   public Nfa optional() {
+    thompson();
     start.addEps(lastState);
     return this;
   }
@@ -546,6 +656,7 @@ public class Nfa  {
    * <p>applies the Kleene closure (<code>*</code>) operator to the NFA.</p>
    */
   public Nfa star() {
+    thompson();
     lastState.addEps(start);
     embed();
     start.addEps(lastState);
@@ -555,6 +666,7 @@ public class Nfa  {
    * <p>applies the <code>+</code> operator to the NFA.</p>
    */
   public Nfa plus() {
+    thompson();
     lastState.addEps(start);
     // the following is necessary to maintain a situation such that
     // the stop state has no outgoing transitions, as is necessary for
@@ -562,6 +674,268 @@ public class Nfa  {
     embed();
     return this;
   }
+  /**
+   * <p>applies the counted repetition operator
+   * <code>{from,to}</code> to the NFA, i.e. the automaton then matches
+   * at least <code>from</code> and at most <code>to</code>
+   * repetitions of what it matched before. If <code>to</code> is
+   * negative, the number of repetitions is not bounded.</p>
+   *
+   * <p>The automaton is copied as often as needed. The optional
+   * copies are nested, as in <code>(x(x(x)?)?)?</code>, if all strings
+   * matched have the same length, which keeps the sets of states
+   * small during compilation. Otherwise nesting can result in a much
+   * larger <code>Dfa</code> and the copies are just made optional in a
+   * row. Note that a <code>Dfa</code> needs at least as many states as
+   * the maximum count, so very large counts should be checked with a
+   * {@link CompileBudget}.</p>
+   *
+   * @throws IllegalArgumentException if <code>to</code> is not
+   * negative but less than <code>from</code> or equal to zero
+   */
+  public Nfa repeat(int from, int to) {
+    thompson();
+    if( to==0 || (to>0 && to<from) || from<0 ) {
+      throw new IllegalArgumentException("bad repeat count {"
+                                         +from+","+to+"}");
+    }
+    if( to<0 && from==0 ) return star();
+
+    // All copies must be made before this is changed.
+    Nfa[] copies = new Nfa[(to<0 ? from : to)-1];
+    for(int i=0; i<copies.length; i++) copies[i] = copy();
+
+    if( to<0 ) {
+      // x{3,} is done as xxx+
+      if( from>1 ) copies[from-2].plus();
+      else plus();
+      for(Nfa c : copies) seq(c);
+      return this;
+    }
+
+    // Chain the optional copies from the innermost outwards. If there
+    // is no mandatory copy, this becomes the outermost one.
+    int optionals = to-from;
+    boolean nested = optionals>1 && hasFixedLength();
+    Nfa tail = null;
+    for(int i=0; i<optionals; i++) {
+      Nfa opt = from==0 && i==optionals-1 ? this : copies[copies.length-1-i];
+      if( nested ) {
+        if( tail!=null ) opt.seq(tail);
+        opt.optional();
+      } else {
+        opt.optional();
+        if( tail!=null ) opt.seq(tail);
+      }
+      tail = opt;
+    }
+    if( from==0 ) return this;
+
+    for(int i=0; i<from-1; i++) seq(copies[i]);
+    if( tail!=null ) seq(tail);
+    return this;
+  }
+  /**
+   * tells whether all strings matched by this automaton have the same
+   * length. This is the case if every state is reached from the
+   * start state by a unique number of character transitions.
+   */
+  private boolean hasFixedLength() {
+    return fixedLength(start, lastState)>=0;
+  }
+  /**
+   * returns the length of all strings matched from <code>start</code>
+   * to <code>last</code> or -1 if they differ in length. If
+   * <code>last</code> cannot be reached, 0 is returned.
+   */
+  private static int fixedLength(NfaState start, NfaState lastState) {
+    Map<NfaState,Integer> depth = new IdentityHashMap<>();
+    List<NfaState> work = new ArrayList<>();
+    depth.put(start, 0);
+    work.add(start);
+    while( !work.isEmpty() ) {
+      NfaState s = work.remove(work.size()-1);
+      int d = depth.get(s);
+      if( s==lastState ) continue;
+      NfaState[] eps = s.getEps();
+      if( eps!=null ) {
+        for(NfaState child : eps) {
+          if( !visitAtDepth(depth, work, child, d) ) return -1;
+        }
+      }
+      CharTrans<NfaState> trans = s.getTrans();
+      if( trans==null ) continue;
+      for(int i=0, L=trans.size(); i<L; i++) {
+        if( !visitAtDepth(depth, work, trans.getAt(i), d+1) ) return -1;
+      }
+    }
+    Integer result = depth.get(lastState);
+    return result==null ? 0 : result;
+  }
+  /**
+   * tells whether <code>to</code> can be reached from
+   * <code>from</code> by epsilon transitions only.
+   */
+  private static boolean epsReaches(NfaState from, NfaState to) {
+    Set<NfaState> seen =
+      Collections.newSetFromMap(new IdentityHashMap<NfaState,Boolean>());
+    List<NfaState> work = new ArrayList<>();
+    work.add(from);
+    while( !work.isEmpty() ) {
+      NfaState s = work.remove(work.size()-1);
+      if( s==to ) return true;
+      if( !seen.add(s) ) continue;
+      NfaState[] eps = s.getEps();
+      if( eps!=null ) work.addAll(Arrays.asList(eps));
+    }
+    return false;
+  }
+  private static boolean visitAtDepth(Map<NfaState,Integer> depth,
+                                      List<NfaState> work,
+                                      NfaState s, int d) {
+    Integer known = depth.get(s);
+    if( known!=null ) return known==d;
+    depth.put(s, d);
+    work.add(s);
+    return true;
+  }
+  /*+******************************************************************/
+  /**
+   * <p>transforms the automaton to match all strings within
+   * Levenshtein distance <code>maxEdits</code> of a string matched
+   * before, i.e. all strings which can be turned into such a string by
+   * at most <code>maxEdits</code> insertions, deletions or
+   * substitutions of single characters. Inserted and substituted
+   * characters must match <code>alphabet</code>, a regular expression
+   * for one character, like <code>[A-Za-z0-9]</code>.</p>
+   *
+   * <p>The automaton is copied once for every number of edits up to
+   * <code>maxEdits</code>, with edits leading from one copy to the
+   * next. The <code>Dfa</code> compiled from it finds fuzzy matches at
+   * the normal speed of a {@link DfaRun}, and compiling it is much
+   * cheaper than adding spelling variants with {@link
+   * #or(CharSequence,FaAction) or()}. Actions already added are
+   * kept, but subexpressions marked for reporting are no longer
+   * reported.</p>
+   *
+   * <p>Note that with enough edits, short strings allow to match the
+   * empty string.</p>
+   *
+   * @throws IllegalArgumentException if <code>maxEdits</code> is
+   * negative or <code>alphabet</code> matches more than a single
+   * character
+   */
+  public Nfa fuzzy(int maxEdits, CharSequence alphabet)
+    throws ReSyntaxException
+  {
+    if( maxEdits<0 ) {
+      throw new IllegalArgumentException("negative number of edits");
+    }
+    Nfa alpha = new Nfa();
+    getReParser().parse(alpha.pView, alphabet);
+    alpha.pView.clear();
+    CharTrans<NfaState> at = alpha.start.getTrans();
+    if( alpha.start.getEps()!=null || at==null ) {
+      throw new IllegalArgumentException("alphabet `"+alphabet
+                                         +"' is not a character set");
+    }
+    StringBuilder pairs = new StringBuilder();
+    for(int i=0, L=at.size(); i<L; i++) {
+      NfaState target = at.getAt(i);
+      if( target==null ) continue;
+      if( target!=alpha.lastState ) {
+        throw new IllegalArgumentException("alphabet `"+alphabet
+                                           +"' is not a character set");
+      }
+      pairs.append(at.getFirstAt(i)).append(at.getLastAt(i));
+    }
+
+    thompson();
+    if( maxEdits==0 ) return this;
+
+    List<NfaState> states = new ArrayList<>();
+    Map<NfaState,Integer> index = new IdentityHashMap<>();
+    index.put(start, 0);
+    states.add(start);
+    for(int k=0; k<states.size(); k++) {
+      NfaState s = states.get(k);
+      NfaState[] eps = s.getEps();
+      if( eps!=null ) {
+        for(NfaState child : eps) addIndexed(index, states, child);
+      }
+      CharTrans<NfaState> trans = s.getTrans();
+      if( trans==null ) continue;
+      for(int i=0, L=trans.size(); i<L; i++) {
+        NfaState child = trans.getAt(i);
+        if( child!=null ) addIndexed(index, states, child);
+      }
+    }
+
+    // layer[e][k] is the copy of states.get(k) reached with e edits
+    int n = states.size();
+    NfaState[][] layer = new NfaState[maxEdits+1][n];
+    for(NfaState[] copies : layer) {
+      for(int k=0; k<n; k++) {
+        copies[k] = new NfaState(states.get(k).getAction());
+      }
+    }
+    NfaState newLast = new NfaState();
+    Intervals<NfaState> ivals = new Intervals<>();
+    for(int e=0; e<=maxEdits; e++) {
+      NfaState[] copies = layer[e];
+      NfaState[] next = e<maxEdits ? layer[e+1] : null;
+      for(int k=0; k<n; k++) {
+        NfaState s = states.get(k);
+        NfaState copy = copies[k];
+        if( s==lastState ) copy.addEps(newLast);
+        NfaState[] eps = s.getEps();
+        if( eps!=null ) {
+          for(NfaState child : eps) copy.addEps(copies[index.get(child)]);
+        }
+        // insertion of a character
+        if( next!=null ) copy.addEps(editState(pairs, next[k]));
+
+        CharTrans<NfaState> trans = s.getTrans();
+        if( trans==null ) continue;
+        ivals.reset();
+        Set<NfaState> targets = new HashSet<>();
+        for(int i=0, L=trans.size(); i<L; i++) {
+          NfaState child = trans.getAt(i);
+          if( child==null ) continue;
+          ivals.overwrite(trans.getFirstAt(i), trans.getLastAt(i),
+                          copies[index.get(child)]);
+          targets.add(child);
+        }
+        copy.setTrans(ivals.toCharTrans(memoryForSpeedTradeFactor));
+        if( next==null ) continue;
+        for(NfaState child : targets) {
+          NfaState edited = next[index.get(child)];
+          // deletion and substitution of the character
+          copy.addEps(edited);
+          copy.addEps(editState(pairs, edited));
+        }
+      }
+    }
+    start = layer[0][0];
+    lastState = newLast;
+    return this;
+  }
+  private static void addIndexed(Map<NfaState,Integer> index,
+                                 List<NfaState> states, NfaState s) {
+    if( index.containsKey(s) ) return;
+    index.put(s, states.size());
+    states.add(s);
+  }
+  // a state moving on every character of pairs to target
+  private NfaState editState(CharSequence pairs, NfaState target) {
+    Intervals<NfaState> ivals = new Intervals<>();
+    for(int i=0; i<pairs.length(); i+=2) {
+      ivals.overwrite(pairs.charAt(i), pairs.charAt(i+1), target);
+    }
+    NfaState result = new NfaState();
+    result.setTrans(ivals.toCharTrans(memoryForSpeedTradeFactor));
+    return result;
+  }
   /*+******************************************************************/
   /**
    * <p>
@@ -601,6 +975,7 @@ public class Nfa  {
    * @see #matchComplement
    */
   public Nfa completeToSkip(FaAction noMatchAction) throws CompileDfaException {
+    thompson();
     Nfa completer = matchComplement(this);
     completer.addAction(noMatchAction);
     or(completer);
@@ -677,6 +1052,7 @@ public class Nfa  {
    *         throws this exception
    */
   public Nfa allPrefixes() throws CompileDfaException {
+    thompson();
     if (null==lastState.getAction()) {
       addAction(DefaultAction.nullInstance());
     }
@@ -877,6 +1253,7 @@ public class Nfa  {
    * compiled. Compilation is a necessary step to invert the automaton.
    */
   public Nfa invert() throws CompileDfaException {
+    thompson();
     // This automaton is going to be compiled. The lastState shall be
     // treated like a stop state afterwards. Consequently we
     // temporarily make it into a stop state, if necessary.
@@ -951,6 +1328,7 @@ public class Nfa  {
    * enclose the matching text in brackets.</p>
    */
   public Nfa not() throws CompileDfaException {
+    thompson();
     // If this is equivalent to re, we do invert("(.*re.*)?")
 
     pView.pushDot();
@@ -1016,6 +1394,7 @@ public class Nfa  {
    * like a stop state, even if it is none.
    */
   public Nfa shortest() throws CompileDfaException {
+    thompson();
     // lastState will be treated like a stop state, which means we
     // might have to mark it.
     FaAction mark = null;
@@ -1052,6 +1431,7 @@ public class Nfa  {
    * actions are kept such that both Nfas reference the same actions.
    */
   public Nfa copy() {
+    thompson();
     final Map<NfaState,NfaState> visited = new IdentityHashMap<>();
     final Queue<NfaState> work = new LinkedList<>();
     work.add(start);
@@ -1112,6 +1492,7 @@ public class Nfa  {
   public Nfa seq(CharSequence regex, FaAction a)
     throws ReSyntaxException
   {
+    thompson();
     getReParser().parse(pView, regex);
     addAction(a);
     pView.seq();
@@ -1136,10 +1517,37 @@ public class Nfa  {
    * create a mess</p>
    */
   public Nfa seq(Nfa other) {
+    thompson();
+    other.thompson();
     initializeAsSequence(start, lastState, other.start, other.lastState);
     other.initialize();
     return this;
   }
+  /**
+   * <p>appends <code>regex</code> as a trailing context, like
+   * <code>(?=regex)</code> at the end of a <a
+   * href="doc-files/resyntax.html">regular expression</a>: the
+   * automaton then only matches if <code>regex</code> follows, but the
+   * text it matches is not part of the match and stays in the input.
+   * The trailing context is applied by the action {@link #addAction
+   * added} next. If the automaton is changed otherwise before, the
+   * text matched by <code>regex</code> becomes a normal part of the
+   * match.</p>
+   *
+   * @throws ReSyntaxException if <code>regex</code> cannot be parsed
+   * or if this automaton matches the empty string
+   */
+  public Nfa trailingContext(CharSequence regex) throws ReSyntaxException {
+    thompson();
+    getReParser().parse(pView, regex);
+    if( !pView.trail() ) {
+      start = pView.pop(pView.startStack);
+      lastState = pView.pop(pView.lastStack);
+      throw new ReSyntaxException(ReSyntaxException.ETRAILLENGTH,
+                                  regex.toString(), 0, 0);
+    }
+    return this;
+  }
   /**********************************************************************/
 
   /**
@@ -1149,6 +1557,11 @@ public class Nfa  {
   public Nfa or(CharSequence regex, FaAction action)
     throws ReSyntaxException
   {
+    if( positions!=null && action!=null
+        && positions.add(regex, action, getReParser()) ) {
+      return this;
+    }
+    thompson();
     getReParser().parse(pView, regex);
     addAction(action);
     pView.or();
@@ -1173,10 +1586,396 @@ public class Nfa  {
    * create a mess</p>
    */
   public Nfa or(Nfa other) {
+    thompson();
+    other.thompson();
     initializeAsOr(other.start, other.lastState, start, lastState);
     other.initialize();
     return this;
   }
+  /**
+   * <p>adds all regular expressions with their actions like repeated
+   * calls of {@link #or(CharSequence,FaAction)}, but parses them with
+   * the given number of threads, each with its own {@link ReParser}
+   * from the {@link #getDefaultParserFactory default parser
+   * factory}. The partial automata of the threads are joined with a
+   * balanced tree of {@link #or(Nfa) or()} operations.</p>
+   *
+   * <p>An expression repeated with different actions is parsed only
+   * once, and the actions are attached to the end of the common
+   * automaton, unless it contains reporting subexpressions. Only
+   * identical expressions are shared this way, different expressions
+   * with a common part are each parsed in full.</p>
+   *
+   * <p>If a parser was set with {@link #setReParser setReParser()},
+   * it is used in the calling thread only, because a parser cannot
+   * be shared between threads. If the <code>Nfa</code> {@link
+   * #setPositionAutomaton collects a position automaton}, the
+   * expressions are added one by one.</p>
+   *
+   * @param regexes the regular expressions to add
+   * @param actions the action for each expression, may contain
+   * <code>null</code>
+   * @param threads the maximum number of threads to use
+   *
+   * @throws ReSyntaxException of the first expression, in the order
+   * given, which has a syntax error. Nothing is added in this case.
+   * @throws IllegalArgumentException if the lists differ in length
+   * or <code>threads</code> is not positive
+   * @throws RuntimeException or {@link Error} thrown by one of the
+   * threads, like an <code>OutOfMemoryError</code>, in the calling
+   * thread
+   */
+  public Nfa or(List<? extends CharSequence> regexes,
+                List<? extends FaAction> actions, int threads)
+    throws ReSyntaxException
+  {
+    if( regexes.size()!=actions.size() ) {
+      throw new IllegalArgumentException("got "+regexes.size()
+                                         +" regexes but "+actions.size()
+                                         +" actions");
+    }
+    if( threads<1 ) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    if( positions!=null ) {
+      for(int i=0; i<regexes.size(); i++) or(regexes.get(i), actions.get(i));
+      return this;
+    }
+
+    Map<String,Integer> firstIndex = new HashMap<>();
+    List<Map.Entry<String,List<FaAction>>> entries =
+        group(regexes, actions, firstIndex);
+    if( reParser!=null ) threads = 1;
+    threads = Math.max(1, Math.min(threads, entries.size()/MIN_PER_THREAD));
+
+    BulkParser[] parsers = new BulkParser[threads];
+    int chunk = (entries.size()+threads-1)/threads;
+    for(int t=0; t<threads; t++) {
+      Nfa part = new Nfa();
+      part.setReParser(reParser!=null ? reParser
+                       : getDefaultParserFactory().newReParser());
+      int from = Math.min(entries.size(), t*chunk);
+      int to = Math.min(entries.size(), from+chunk);
+      parsers[t] = new BulkParser(part, entries.subList(from, to));
+    }
+    Thread[] running = new Thread[threads-1];
+    for(int t=1; t<threads; t++) {
+      running[t-1] = new Thread(parsers[t]);
+      running[t-1].start();
+    }
+    parsers[0].run();
+    boolean interrupted = false;
+    for(Thread t : running) {
+      while( t.isAlive() ) {
+        try {
+          t.join();
+        } catch( InterruptedException e ) {
+          interrupted = true;
+        }
+      }
+    }
+    if( interrupted ) Thread.currentThread().interrupt();
+
+    for(BulkParser p : parsers) if( p.failure!=null ) rethrow(p.failure);
+
+    // report the syntax error of the first expression, if any
+    ReSyntaxException error = null;
+    int errorIndex = Integer.MAX_VALUE;
+    for(BulkParser p : parsers) {
+      if( p.error==null ) continue;
+      int i = firstIndex.get(p.errorRegex);
+      if( i<errorIndex ) {
+        error = p.error;
+        errorIndex = i;
+      }
+    }
+    if( error!=null ) throw error;
+
+    // join the parts with a balanced or-tree
+    List<Nfa> parts = new ArrayList<>();
+    for(BulkParser p : parsers) parts.add(p.nfa);
+    while( parts.size()>1 ) {
+      List<Nfa> joined = new ArrayList<>();
+      for(int i=0; i<parts.size(); i+=2) {
+        if( i+1<parts.size() ) parts.get(i).or(parts.get(i+1));
+        joined.add(parts.get(i));
+      }
+      parts = joined;
+    }
+    return or(parts.get(0));
+  }
+  /**
+   * calls {@link #or(List,List,int)} with one thread per available
+   * processor.
+   */
+  public Nfa or(List<? extends CharSequence> regexes,
+                List<? extends FaAction> actions)
+    throws ReSyntaxException
+  {
+    return or(regexes, actions, Runtime.getRuntime().availableProcessors());
+  }
+
+  // groups repeated expressions, keeping the order of first
+  // occurrence, and records the index of the first occurrence
+  private static List<Map.Entry<String,List<FaAction>>>
+    group(List<? extends CharSequence> regexes,
+          List<? extends FaAction> actions, Map<String,Integer> firstIndex)
+  {
+    Map<String,List<FaAction>> groups = new LinkedHashMap<>();
+    for(int i=0; i<regexes.size(); i++) {
+      String re = regexes.get(i).toString();
+      List<FaAction> l = groups.get(re);
+      if( l==null ) {
+        groups.put(re, l = new ArrayList<>(1));
+        firstIndex.put(re, i);
+      }
+      l.add(actions.get(i));
+    }
+    return new ArrayList<>(groups.entrySet());
+  }
+
+  // below this number of expressions per thread, starting a thread
+  // costs more than it saves
+  private static final int MIN_PER_THREAD = 1000;
+
+  /**
+   * <p>compiles the expressions into <code>shards</code> separate
+   * automata, for rule sets too large to be compiled into one {@link
+   * Dfa} in reasonable memory. The expressions are sorted, so that
+   * those with a common prefix tend to end up in the same shard, and
+   * then cut into shards of equal size. Up to <code>threads</code>
+   * shards are compiled at the same time, each from its own
+   * <code>Nfa</code> with {@link #compile(DfaRun.FailedMatchBehaviour)
+   * compile(fmb)}. Combine the result with {@link Dfa#union
+   * Dfa.union()} to get an automaton which finds the same matches as
+   * one compiled from all expressions.</p>
+   *
+   * <p>Peak memory is that of the largest shards compiled in
+   * parallel, so reduce <code>threads</code> to reduce it.</p>
+   *
+   * @throws ReSyntaxException for the first expression in the list
+   * with a syntax error
+   * @throws CompileDfaException for the first shard with clashing
+   * actions
+   * @throws RuntimeException or {@link Error} thrown while compiling
+   * a shard, like an <code>OutOfMemoryError</code>, in the calling
+   * thread
+   */
+  public static List<Dfa> compileShards(List<? extends CharSequence> regexes,
+                                        List<? extends FaAction> actions,
+                                        DfaRun.FailedMatchBehaviour fmb,
+                                        int shards, int threads)
+    throws ReSyntaxException, CompileDfaException
+  {
+    if( regexes.size()!=actions.size() ) {
+      throw new IllegalArgumentException("got "+regexes.size()
+                                         +" regexes but "+actions.size()
+                                         +" actions");
+    }
+    if( shards<1 || threads<1 ) {
+      throw new IllegalArgumentException
+        ("shards and threads must be positive");
+    }
+    final String[] res = new String[regexes.size()];
+    Integer[] order = new Integer[res.length];
+    for(int i=0; i<res.length; i++) {
+      res[i] = regexes.get(i).toString();
+      order[i] = i;
+    }
+    Arrays.sort(order, new java.util.Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return res[a].compareTo(res[b]);
+      }
+    });
+
+    ShardCompiler[] compilers = new ShardCompiler[shards];
+    int chunk = (res.length+shards-1)/shards;
+    for(int s=0; s<shards; s++) {
+      int from = Math.min(res.length, s*chunk);
+      int to = Math.min(res.length, from+chunk);
+      // within the shard the given order decides which syntax error
+      // is found first
+      Arrays.sort(order, from, to);
+      List<String> r = new ArrayList<>(to-from);
+      List<FaAction> a = new ArrayList<>(to-from);
+      int[] index = new int[to-from];
+      for(int i=from; i<to; i++) {
+        r.add(res[order[i]]);
+        a.add(actions.get(order[i]));
+        index[i-from] = order[i];
+      }
+      compilers[s] = new ShardCompiler(r, a, index, fmb);
+    }
+
+    // the threads take the next shard not yet compiled
+    final java.util.concurrent.atomic.AtomicInteger next =
+        new java.util.concurrent.atomic.AtomicInteger();
+    final ShardCompiler[] todo = compilers;
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int s;
+        while( (s=next.getAndIncrement())<todo.length ) todo[s].run();
+      }
+    };
+    Thread[] running = new Thread[Math.min(threads, shards)-1];
+    for(int t=0; t<running.length; t++) {
+      running[t] = new Thread(worker);
+      running[t].start();
+    }
+    worker.run();
+    boolean interrupted = false;
+    for(Thread t : running) {
+      while( t.isAlive() ) {
+        try {
+          t.join();
+        } catch( InterruptedException e ) {
+          interrupted = true;
+        }
+      }
+    }
+    if( interrupted ) Thread.currentThread().interrupt();
+
+    for(ShardCompiler c : compilers) {
+      if( c.failure!=null ) rethrow(c.failure);
+    }
+
+    // a syntax error is reported for the expression first in the
+    // given list
+    ReSyntaxException syntax = null;
+    int syntaxIndex = Integer.MAX_VALUE;
+    List<Dfa> result = new ArrayList<>(shards);
+    for(int s=0; s<shards; s++) {
+      ShardCompiler c = compilers[s];
+      if( c.syntax!=null && c.syntaxIndex<syntaxIndex ) {
+        syntax = c.syntax;
+        syntaxIndex = c.syntaxIndex;
+      }
+      result.add(c.dfa);
+    }
+    if( syntax!=null ) throw syntax;
+    for(ShardCompiler c : compilers) if( c.clash!=null ) throw c.clash;
+    return result;
+  }
+
+  // compiles the expressions of one shard
+  private static final class ShardCompiler implements Runnable {
+    final List<String> regexes;
+    final List<FaAction> actions;
+    // index in the list given to compileShards() of each expression
+    final int[] index;
+    final DfaRun.FailedMatchBehaviour fmb;
+    Dfa dfa = null;
+    ReSyntaxException syntax = null;
+    int syntaxIndex = -1;
+    CompileDfaException clash = null;
+    // anything else thrown, to be rethrown by the calling thread
+    Throwable failure = null;
+    ShardCompiler(List<String> regexes, List<FaAction> actions,
+                  int[] index, DfaRun.FailedMatchBehaviour fmb) {
+      this.regexes = regexes;
+      this.actions = actions;
+      this.index = index;
+      this.fmb = fmb;
+    }
+    @Override
+    public void run() {
+      try {
+        Map<String,Integer> firstIndex = new HashMap<>();
+        BulkParser p = new BulkParser(new Nfa(),
+                                      group(regexes, actions, firstIndex));
+        p.run();
+        if( p.failure!=null ) {
+          failure = p.failure;
+        } else if( p.error!=null ) {
+          syntax = p.error;
+          syntaxIndex = index[firstIndex.get(p.errorRegex)];
+        } else {
+          dfa = p.nfa.compile(fmb);
+        }
+      } catch( CompileDfaException e ) {
+        clash = e;
+      } catch( Throwable e ) {
+        failure = e;
+      }
+    }
+  }
+
+  // parses a slice of grouped expressions into its own Nfa
+  private static final class BulkParser implements Runnable {
+    final Nfa nfa;
+    final List<Map.Entry<String,List<FaAction>>> entries;
+    ReSyntaxException error = null;
+    String errorRegex = null;
+    // anything else thrown, to be rethrown by the calling thread
+    Throwable failure = null;
+    BulkParser(Nfa nfa, List<Map.Entry<String,List<FaAction>>> entries) {
+      this.nfa = nfa;
+      this.entries = entries;
+    }
+    @Override
+    public void run() {
+      String regex = null;
+      try {
+        for(Map.Entry<String,List<FaAction>> e : entries) {
+          regex = e.getKey();
+          nfa.orGroup(regex, e.getValue());
+        }
+      } catch( ReSyntaxException ex ) {
+        error = ex;
+        errorRegex = regex;
+      } catch( Throwable ex ) {
+        failure = ex;
+      }
+    }
+  }
+  /**********************************************************************/
+  // rethrows what a worker thread caught, which cannot be a checked
+  // exception
+  private static void rethrow(Throwable t) {
+    if( t instanceof RuntimeException ) throw (RuntimeException)t;
+    if( t instanceof Error ) throw (Error)t;
+    throw new IllegalStateException(t);
+  }
+  /**
+   * adds <code>regex</code> with all the given actions, parsing it
+   * only once if possible.
+   */
+  private void orGroup(String regex, List<FaAction> actions)
+    throws ReSyntaxException
+  {
+    int subgraphs = subgraphID;
+    getReParser().parse(pView, regex);
+    if( subgraphID>subgraphs ) {
+      // reporting subexpressions are bound to one action each
+      addAction(actions.get(0));
+      pView.or();
+      for(int i=1; i<actions.size(); i++) or(regex, actions.get(i));
+      return;
+    }
+
+    // Without reporting subexpressions there is nothing addAction()
+    // would have to bind, so the stop states are just appended.
+    if( actions.size()==1 ) {
+      FaAction a = actions.get(0);
+      if( a!=null ) {
+        NfaState stop = new NfaState(trailed(a));
+        lastState.addEps(stop);
+        lastState = stop;
+      }
+    } else {
+      NfaState newLast = new NfaState();
+      for(FaAction a : actions) {
+        NfaState stop = a==null ? new NfaState() : new NfaState(trailed(a));
+        lastState.addEps(stop);
+        stop.addEps(newLast);
+      }
+      lastState = newLast;
+    }
+    trail = null;
+    pView.or();
+  }
   /**********************************************************************/
   // is a convenience wrapper around findAction for use in findPath
   private static boolean hasAction(Set<NfaState> nfaStates) {
@@ -1191,6 +1990,7 @@ public class Nfa  {
    * intended for crosschecks in unit-testing.
    */
   int findPath(String s) {
+    thompson();
     int lastMatch;
     Set<NfaState> current = newSet(100);
     Set<NfaState> other = newSet(100);
@@ -1220,7 +2020,7 @@ public class Nfa  {
   /**********************************************************************/
   // generate a human readable exception from the clash information
   // collected during compilation.
-  private static String clashToString(List<Clash> clashes) {
+  static String clashToString(List<Clash> clashes) {
 
     StringBuilder s = new StringBuilder(200);
     s.append(CompileDfaException.EAMBIGUOUS)
@@ -1245,7 +2045,7 @@ public class Nfa  {
     removing unimportant states, i.e. states which are no stop states
     and have no outgoing non-epsilons.
   *****/
-  private static <T extends FaState<T>> void eclosure(Set<T> states) {
+  static <T extends FaState<T>> void eclosure(Set<T> states) {
     LinkedList<T> stack = new LinkedList<>();
     Set<T> closure = Nfa.<T>newSet(states.size()+20);
 
@@ -1292,18 +2092,35 @@ public class Nfa  {
    *        the highest priority action. A clash is defined by having two or
    *        more non mergable actions.
    */
-  private static FaAction findAction(StringBuilder dfaPath, char first,
-                                     char last, List<Clash> clashes,
-                                     Set<FaAction> actions,
-                                     Set<NfaState> nfaStates)
+  static FaAction findAction(StringBuilder dfaPath, char first,
+                             char last, List<Clash> clashes,
+                             Set<FaAction> actions,
+                             Set<NfaState> nfaStates)
+  {
+    List<FaAction> candidates = new ArrayList<>(nfaStates.size());
+    for(NfaState ns : nfaStates) {
+      if( ns.getAction()!=null ) candidates.add(ns.getAction());
+    }
+    return findAction(dfaPath, first, last, clashes, actions, candidates);
+  }
+  /**
+   * finds the action like {@link
+   * #findAction(StringBuilder,char,char,List,Set,Set)} but given the
+   * non-<code>null</code> actions of the stop states.
+   */
+  static FaAction findAction(StringBuilder dfaPath, char first,
+                             char last, List<Clash> clashes,
+                             Set<FaAction> actions,
+                             List<FaAction> candidates)
   {
     FaAction actionFound = null;
     actions.clear();
 
-    for(FaState<?> ns : nfaStates) {
-      FaAction a = ns.getAction();
-      if( a!=null ) {
-        actionFound = mergeInto(actions, ns.getAction());
+    if( mergeByPriority(actions, candidates) ) {
+      if( actions.size()>0 ) actionFound = actions.iterator().next();
+    } else {
+      for(FaAction a : candidates) {
+        actionFound = mergeInto(actions, a);
       }
     }
 
@@ -1318,8 +2135,20 @@ public class Nfa  {
     // add the very last step to dfaPath
     if( first<=last ) dfaPath.append(first).append(last);
 
-    // convert dfaPath into something more readable, folding character
-    // ranges with first==last into one character
+    Clash c = new Clash(printablePath(dfaPath), actions);
+    clashes.add(c);
+
+    // correct dfaPath again, otherwise clashing siblings will show
+    // the wrong path
+    if( first<=last ) dfaPath.setLength(dfaPath.length()-2);
+
+    // return an arbitrarily chosen action
+    return actionFound;
+  }
+  /********************************************************************/
+  // converts dfaPath into something more readable, folding character
+  // ranges with first==last into one character
+  private static String printablePath(CharSequence dfaPath) {
     StringBuilder sb = new StringBuilder();
     int L = dfaPath.length();
     for(int i = 0; i<L; i += 2) {
@@ -1336,15 +2165,94 @@ public class Nfa  {
         sb.append(']');
       }
     }
-    Clash c = new Clash(sb.toString(), actions);
-    clashes.add(c);
+    return sb.toString();
+  }
+  /********************************************************************/
+  // maximum number of actions listed in a CompileBudgetException
+  private static final int MAX_REPORTED_ACTIONS = 10;
 
-    // correct dfaPath again, otherwise clashing siblings will show
-    // the wrong path
-    if( first<=last ) dfaPath.setLength(dfaPath.length()-2);
+  static void checkBudget(CompileBudget budget, int stateCount,
+                          long memory, long startTime,
+                          CharSequence dfaPath, Set<NfaState> growing)
+    throws CompileBudgetException
+  {
+    String limit;
+    long millis = System.currentTimeMillis()-startTime;
+    if( stateCount>budget.getMaxStates() ) {
+      limit = "more than "+budget.getMaxStates()+" states";
+    } else if( memory>budget.getMaxMemory() ) {
+      limit = "more than "+budget.getMaxMemory()+" bytes";
+    } else if( millis>budget.getMaxTime() ) {
+      limit = "more than "+budget.getMaxTime()+"ms";
+    } else {
+      return;
+    }
 
-    // return an arbitrarily chosen action
-    return actionFound;
+    // collect the actions reachable from the state being expanded
+    final Set<FaAction> found = new HashSet<>();
+    final List<FaAction> actions = new ArrayList<>();
+    FaStateTraverser<NfaState, Void> ft =
+        new FaStateTraverser<>(IterType.ALL, null);
+    FaStateTraverser.StateVisitor<NfaState, Void> collector =
+        new FaStateTraverser.StateVisitor<NfaState, Void>() {
+      @Override
+      public void visit(NfaState state, Void unused) {
+        FaAction a = state.getAction();
+        if( a!=null && found.add(a) && actions.size()<MAX_REPORTED_ACTIONS ) {
+          actions.add(a);
+        }
+      }
+    };
+    for(NfaState s : growing) ft.traverse(s, collector);
+
+    throw new CompileBudgetException(limit, stateCount, memory, millis,
+                                     printablePath(dfaPath), actions,
+                                     found.size()-actions.size());
+  }
+  /********************************************************************/
+  /**
+   * returns the number of states of this automaton.
+   */
+  int countStates() {
+    thompson();
+    final int[] count = {0};
+    FaStateTraverser<NfaState, Void> ft =
+        new FaStateTraverser<>(IterType.ALL, null);
+    ft.traverse(start, new FaStateTraverser.StateVisitor<NfaState, Void>() {
+      @Override
+      public void visit(NfaState state, Void unused) {
+        count[0] += 1;
+      }
+    });
+    return count[0];
+  }
+  /********************************************************************/
+  /**
+   * is the shortcut of findAction() for the common case that all
+   * actions are {@link AbstractFaAction}s which {@link
+   * AbstractFaAction#mergesByPriority merge by priority}. The result
+   * is then the set of distinct actions with the highest priority,
+   * which is found in two linear passes without calling
+   * <code>mergeWith()</code>. With distinct priorities the pairwise
+   * merge is linear too, but several times slower, though both are
+   * small against the subset construction.
+   *
+   * @return <code>false</code> if the shortcut cannot be applied, in
+   * which case <code>actions</code> is not changed.
+   */
+  static boolean mergeByPriority(Set<FaAction> actions,
+                                 List<FaAction> candidates) {
+    int best = Integer.MIN_VALUE;
+    for(FaAction a : candidates) {
+      if( !(a instanceof AbstractFaAction) ) return false;
+      AbstractFaAction aa = (AbstractFaAction)a;
+      if( !aa.mergesByPriority() ) return false;
+      if( aa.priority>best ) best = aa.priority;
+    }
+    for(FaAction a : candidates) {
+      if( ((AbstractFaAction)a).priority==best ) actions.add(a);
+    }
+    return true;
   }
   /********************************************************************/
   static FaAction mergeInto(Set<FaAction> actions, FaAction other) {
@@ -1366,39 +2274,6 @@ public class Nfa  {
     actions.add(other);
     return other;
   }
-  /********************************************************************/
-  void addTransition(Intervals<Set<NfaState>> v,
-                     char first, char last, NfaState dst) {
-    int from = v.split(first);
-    if( from<0 ) {
-      // first falls just on an interval border
-      from = -(from+1);
-    } else {
-      // Need a fresh Set for the new interval pos, which starts with ch
-      Set<NfaState> states = v.getAt(from);
-      if( states!=null ) v.setAt(from, newSet(states));
-    }
-
-    int to = v.size();
-    if( last<Character.MAX_VALUE ) {
-      to = v.split((char)(last+1));
-      if( to<0 ) {
-	to = -(to+1);
-      } else {
-	Set<NfaState> states = v.getAt(to);
-	if( states!=null ) v.setAt(to, newSet(states));
-      }
-    }
-
-    // now we are sure that interval borders nicely fit with first and
-    // last
-    for(int i=from; i<to; i++) {
-      Set<NfaState> s = v.getAt(i);
-      if( s==null ) s = newSet();
-      s.add(dst);
-      v.setAt(i, s);
-    }
-  }
   /**********************************************************************/
   /**
    * <p>compiles this non-deterministic finite automaton into a
@@ -1428,8 +2303,36 @@ public class Nfa  {
   public Dfa compile(DfaRun.FailedMatchBehaviour fmb, FaAction eofAction)
     throws CompileDfaException
   {
-    DfaState tmpStart = compile_p(FaStateFactory.forDfa);
-    return new Dfa(tmpStart, fmb, eofAction);
+    return compile(fmb, eofAction, null);
+  }
+
+  /**
+   * <p>compiles like {@link #compile(DfaRun.FailedMatchBehaviour,
+   * FaAction)} but stops as soon as the given budget is exceeded.</p>
+   *
+   * @param budget may be <code>null</code> for an unlimited
+   * compilation
+   *
+   * @throws CompileBudgetException if the budget is exceeded. The
+   * exception describes where the <code>Dfa</code> was growing.
+   * @throws CompileDfaException if actions clash, as described for
+   * {@link #compile(DfaRun.FailedMatchBehaviour, FaAction)}
+   */
+  public Dfa compile(DfaRun.FailedMatchBehaviour fmb, FaAction eofAction,
+                     CompileBudget budget)
+    throws CompileDfaException
+  {
+    DfaState tmpStart;
+    if( positions!=null ) {
+      tmpStart = positions.compile(memoryForSpeedTradeFactor, updatable,
+                                   budget);
+    } else {
+      tmpStart = compile_p(updatable ? FaStateFactory.forUpdatableDfa
+                           : FaStateFactory.forDfa, budget);
+    }
+    Dfa result = new Dfa(tmpStart, fmb, eofAction);
+    result.updatable = updatable;
+    return result;
   }
 
   /**
@@ -1451,6 +2354,19 @@ public class Nfa  {
   <STATE extends FaState<STATE>> STATE
   compile_p(FaStateFactory<STATE> stateFac) throws CompileDfaException
   {
+    return compile_p(stateFac, null);
+  }
+  <STATE extends FaState<STATE>> STATE
+  compile_p(FaStateFactory<STATE> stateFac, CompileBudget budget)
+    throws CompileDfaException
+  {
+    thompson();
+
+    // resources used so far, only checked if there is a budget
+    long startTime = System.currentTimeMillis();
+    int stateCount = 1;
+    long memory = 0;
+
     // If we find multiple actions on some stop states, these are
     // registered as clashes here and will finally result in an
     // exception.
@@ -1489,6 +2405,7 @@ public class Nfa  {
     STATE dfaStart = stateFac.create(startAction);
     dfaStart.mergeSubinfos(starters);
     haveStopState |= startAction!=null;
+    memory += CompileBudget.estimateState(starters.size());
 
     // The map 'known' stores unique sets of NFA states as keys and
     // maps them to their assigned DFA state
@@ -1510,6 +2427,8 @@ public class Nfa  {
     // it.
     Intervals<Set<NfaState>> currentTrans = new Intervals<>();
     Intervals<STATE> dfaTrans = new Intervals<>();
+    RangeSweep sweep = new RangeSweep();
+    List<NfaState> dsts = new ArrayList<>();
 
     while( stack.size()>0 ) {
       CompileTask<STATE> currentTask = stack.removeLast();
@@ -1519,23 +2438,44 @@ public class Nfa  {
 	dfaPath.append(currentTask.chRight);
       }
 
-      // loop over nfa-states which define current and over all of
-      // their transitions and add those transitions to
-      // currentTrans. Note that during this operation, the objects
-      // stored in currentTrans are not destination states but
-      // Sets of destination states.
-      currentTrans.reset();
+      // Collect all transitions of the nfa-states which define
+      // current and partition their character ranges. Then store the
+      // set of destination states of each part in currentTrans.
+      // Consecutive ranges of one state with the same destination,
+      // like those of a character class, get the same target number,
+      // so the sweep can tell when a set can be reused.
+      sweep.clear();
+      dsts.clear();
       for(NfaState nfaState : currentTask.nfaStates) {
         CharTrans<NfaState> trans = nfaState.getTrans();
 	if( trans==null ) continue;
 	int L = trans.size();
+	NfaState prev = null;
 	for(int j=0; j<L; j++) {
-	  char first = trans.getFirstAt(j);
-	  char last = trans.getLastAt(j);
 	  NfaState st = trans.getAt(j);
-	  addTransition(currentTrans, first, last, st);
+	  if( j==0 || st!=prev ) dsts.add(st);
+	  prev = st;
+	  sweep.add(trans.getFirstAt(j), trans.getLastAt(j), dsts.size()-1);
 	}
       }
+      sweep.sweep();
+      currentTrans.reset();
+      int[] targets = sweep.getTargets();
+      Set<NfaState> lastSet = null;
+      for(int i=0, L=sweep.size(); i<L; i++) {
+        int from = sweep.getFrom(i);
+        int to = sweep.getTo(i);
+        Set<NfaState> dstSet = null;
+        if( sweep.sameAsPrevious(i) ) {
+          dstSet = lastSet;
+        } else if( from<to ) {
+          dstSet = newSet();
+          for(int k=from; k<to; k++) dstSet.add(dsts.get(targets[k]));
+          lastSet = dstSet;
+        }
+        if( i==0 ) currentTrans.setAt(0, dstSet);
+        else currentTrans.append(sweep.getFirstAt(i), dstSet);
+      }
 
       // Convert the generated sets of NFA states which are stored in
       // currentTrans to unique ones and replace the transition
@@ -1543,17 +2483,24 @@ public class Nfa  {
       // exists already or will be created right heree.
       int L = currentTrans.size();
       dfaTrans.reset();
+      Set<NfaState> lastStateSet = null;
+      STATE lastDst = null;
       for(int i=0; i<L; i++) {
         Set<NfaState> stateSet = currentTrans.getAt(i);
 	if( stateSet==null ) {
 	  continue;
 	}
 
-	eclosure(stateSet);
-	STATE dst = known.get(stateSet);
-
 	char first = currentTrans.getFirstAt(i);
 	char last = currentTrans.getLastAt(i);
+
+	// intervals with the same targets share the set
+	if( stateSet==lastStateSet ) {
+	  dfaTrans.overwrite(first, last, lastDst);
+	  continue;
+	}
+	eclosure(stateSet);
+	STATE dst = known.get(stateSet);
 	if( dst==null ) {
 	  FaAction a = findAction(dfaPath, first, last,
 				  clashes, actions, stateSet);
@@ -1565,8 +2512,17 @@ public class Nfa  {
 	      new CompileTask<>(dst, currentTask.steps+1, first, last, stateSet);
 	  stack.add(t);
 	  known.put(stateSet, dst);
+
+          if( budget!=null ) {
+            stateCount += 1;
+            memory += CompileBudget.estimateState(stateSet.size());
+            checkBudget(budget, stateCount, memory, startTime,
+                        dfaPath, currentTask.nfaStates);
+          }
 	}
 	dfaTrans.overwrite(first, last, dst);
+	lastStateSet = stateSet;
+	lastDst = dst;
       }
 
       // make a (space minimal) copy of dfaTrans and stick it into
@@ -1576,6 +2532,7 @@ public class Nfa  {
       @SuppressWarnings("unchecked")
       CharTrans<STATE> tmp2 = (CharTrans<STATE>)tmp;
       currentTask.dfaState.setTrans(tmp2);
+      if( ct!=null ) memory += ArrayCharTrans.estimateSize(ct.size());
     }
     if( clashes.size()>0 ) {
       throw new CompileDfaException(clashToString(clashes));
@@ -1609,7 +2566,7 @@ public class Nfa  {
     }
   }
   //-*****************************************************************
-  private static final class Clash {
+  static final class Clash {
     final String message;
     final List<FaAction> actions;
     public Clash(String message, Set<FaAction> actions) {
@@ -1618,7 +2575,7 @@ public class Nfa  {
     }
   }
   //-*****************************************************************
-  private class ParserView implements NfaParserView {
+  private class ParserView implements ExtendedNfaParserView {
     private List<NfaState> startStack = new ArrayList<>();
     private List<NfaState> lastStack = new ArrayList<>();
 
@@ -1675,6 +2632,8 @@ public class Nfa  {
     @Override
     public void optional() { Nfa.this.optional(); }
     @Override
+    public void repeat(int from, int to) { Nfa.this.repeat(from, to); }
+    @Override
     public void dup() {
       Nfa copy = Nfa.this.copy();
       startStack.add(copy.start);
@@ -1693,6 +2652,38 @@ public class Nfa  {
     public void shortest() throws CompileDfaException { Nfa.this.shortest(); }
     @Override
     public boolean markAsSub() { return Nfa.this.markAsSub(); }
+    @Override
+    public boolean trail() {
+      NfaState rStart = startStack.get(startStack.size()-1);
+      NfaState rLast = lastStack.get(lastStack.size()-1);
+      if( epsReaches(rStart, rLast) ) return false;
+      int give = fixedLength(start, lastState);
+      TrailingContext tc;
+      if( give>=0 ) {
+        tc = new TrailingContext(null, give);
+      } else {
+        // the split between r and s is found after the match by
+        // automata of their own
+        Nfa s = Nfa.this.copy();
+        swap();
+        Nfa r = Nfa.this.copy();
+        swap();
+        try {
+          tc = new TrailingContext(null,
+                                   r.addAction(Copy.COPY)
+                                   .compile(DfaRun.UNMATCHED_COPY),
+                                   s.addAction(Copy.COPY)
+                                   .compile(DfaRun.UNMATCHED_COPY));
+        } catch( CompileDfaException e ) {
+          // cannot happen with only one action
+          throw new Error("impossible", e);
+        }
+      }
+      seq();
+      trail = tc;
+      trailLast = lastState;
+      return true;
+    }
   }
   //-*****************************************************************
 }
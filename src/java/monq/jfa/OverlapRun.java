@@ -0,0 +1,395 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>finds all matches of a {@link Dfa} in the input, including those
+ * overlapping or nested in other matches. Where a {@link DfaRun}
+ * reports the leftmost longest match and continues behind it, an
+ * <code>OverlapRun</code> reports every piece of the input which
+ * takes the <code>Dfa</code> from its start state to a stop state, as
+ * Aho-Corasick does for a dictionary. In <code>"protein kinase
+ * C"</code>, the dictionary entries <code>"protein kinase C"</code>
+ * and <code>"kinase"</code> are both found.</p>
+ *
+ * <p>The input is read once. For every position which can start a
+ * match, a thread of the <code>Dfa</code> is started and advanced
+ * with each character until it has no transition. Each stop state
+ * a thread reaches is a match. Threads in the same state share their
+ * future, so they are advanced together as one group which lists
+ * their start positions. The work per character is therefore bounded
+ * by the number of states of the <code>Dfa</code> plus the number of
+ * matches found, however many threads are live, and the input is
+ * processed in linear time. Matches are delivered by {@link #next}
+ * in the order of their end position and, for the same end, in the
+ * order of their start, so longer matches come first. The empty
+ * string is never reported. A match with a trailing context
+ * <code>r(?=s)</code> is delivered when <code>s</code> was read,
+ * but its {@link #end} is that of <code>r</code>.</p>
+ *
+ * <p>A <code>Dfa</code> created by {@link Dfa#union Dfa.union()} is
+ * run shard by shard, and the actions of shards matching the same
+ * text compete for it as they do in a <code>DfaRun</code>.</p>
+ *
+ * <p><b>Note:</b> Objects of this class are not synchronized.</p>
+ */
+public class OverlapRun {
+  private final Dfa dfa;
+  private final DfaState[] starts;
+  private CharSource in;
+
+  // groups of live threads, one per state, each with the list of
+  // start positions of its threads and the oldest of them
+  private DfaState[] states = new DfaState[16];
+  private Start[] heads = new Start[16];
+  private Start[] tails = new Start[16];
+  private long[] oldest = new long[16];
+  private int n = 0;
+  private final Map<DfaState,Integer> groupOf = new IdentityHashMap<>();
+
+  // matches ending at pos as found, then sorted by start and shard
+  private long[] rawStart = new long[16];
+  private int[] rawShard = new int[16];
+  private FaAction[] rawAction = new FaAction[16];
+  private int[] order = new int[16];
+  private int[] scratch = new int[16];
+  private int rawCount = 0;
+
+  // matches ending at pos, delivered by next()
+  private long[] hitStart = new long[16];
+  private FaAction[] hitAction = new FaAction[16];
+  private int hitCount = 0;
+  private int hitNext = 0;
+
+  // input from position base on, starting one character before the
+  // oldest live thread to provide charBefore()
+  private final StringBuilder window = new StringBuilder();
+  private long base = 0;
+  private long pos = 0;
+
+  // the current match
+  private long start = -1;
+  private long end = -1;
+  private FaAction action = null;
+
+  // runner handed to actions by apply(), reading from pushedBack
+  private final PushBackSink pushedBack = new PushBackSink();
+  private final DfaRun runner;
+  /**********************************************************************/
+  /**
+   * <p>creates an <code>OverlapRun</code> to find all matches of
+   * <code>dfa</code> in <code>in</code>.</p>
+   *
+   * @throws IllegalArgumentException if <code>dfa</code> was created
+   * by {@link Dfa#withTerms Dfa.withTerms()} or {@link Dfa#withCharMap
+   * Dfa.withCharMap()}
+   */
+  public OverlapRun(Dfa dfa, CharSource in) {
+    if( dfa instanceof TermDfa || dfa instanceof MappedDfa ) {
+      throw new IllegalArgumentException("automata with terms or a "
+                                         +"CharMap are not supported");
+    }
+    this.dfa = dfa;
+    if( dfa instanceof DfaUnion ) {
+      Dfa[] shards = ((DfaUnion)dfa).getShards();
+      starts = new DfaState[shards.length];
+      for(int i=0; i<shards.length; i++) starts[i] = shards[i].getStart();
+    } else {
+      starts = new DfaState[] {dfa.getStart()};
+    }
+    this.runner = new DfaRun(dfa, pushedBack);
+    setIn(in);
+  }
+  /**********************************************************************/
+  /**
+   * <p>starts over with the given input.</p>
+   */
+  public void setIn(CharSource in) {
+    this.in = in;
+    java.util.Arrays.fill(heads, 0, n, null);
+    java.util.Arrays.fill(tails, 0, n, null);
+    n = 0;
+    hitCount = hitNext = 0;
+    window.setLength(0);
+    base = pos = 0;
+    start = end = -1;
+    action = null;
+  }
+  /**********************************************************************/
+  public Dfa getDfa() { return dfa; }
+
+  /**
+   * <p>returns the <code>DfaRun</code> passed to actions by {@link
+   * #apply apply()}, for example to set up its {@link
+   * DfaRun#clientData clientData}. It does not read the input of
+   * <code>this</code>.</p>
+   */
+  public DfaRun getRunner() { return runner; }
+  /**********************************************************************/
+  /**
+   * <p>finds the next match.</p>
+   *
+   * @return <code>false</code> at EOF, when no more matches exist.
+   */
+  public boolean next() throws IOException {
+    while( hitNext>=hitCount ) {
+      if( !advance() ) {
+        start = end = -1;
+        action = null;
+        return false;
+      }
+    }
+    start = hitStart[hitNext];
+    action = hitAction[hitNext];
+    hitNext += 1;
+    end = pos;
+    // a trailing context is not part of the match
+    if( action instanceof TrailingContext ) {
+      TrailingContext tc = (TrailingContext)action;
+      end = base+tc.end(window, (int)(start-base), (int)(end-base));
+      action = tc.client;
+    }
+    return true;
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the input position of the first character of the
+   * current match.</p>
+   */
+  public long start() { checkMatch(); return start; }
+
+  /**
+   * <p>returns the input position just behind the current match.</p>
+   */
+  public long end() { checkMatch(); return end; }
+
+  /**
+   * <p>returns the action of the stop state of the current match.</p>
+   */
+  public FaAction action() { checkMatch(); return action; }
+
+  /**
+   * <p>returns the text of the current match.</p>
+   */
+  public String text() {
+    checkMatch();
+    return window.substring((int)(start-base), (int)(end-base));
+  }
+
+  /**
+   * <p>returns the character before the current match or -1 if the
+   * match starts at the beginning of the input. This allows to
+   * reject matches starting within a word.</p>
+   */
+  public int charBefore() {
+    checkMatch();
+    if( start==0 ) return -1;
+    return window.charAt((int)(start-1-base));
+  }
+  /**********************************************************************/
+  /**
+   * <p>appends the text of the current match to <code>out</code> and
+   * invokes its action on it, just as a {@link DfaRun} would do for
+   * a match. The action is passed the {@link #getRunner runner} of
+   * <code>this</code>. Characters the action pushes back, for
+   * example with {@link DfaRun#unskip DfaRun.unskip()} to give back a
+   * trailing context, are discarded.</p>
+   *
+   * @return the end of the match as seen by the action, which is
+   * {@link #end} less the number of characters pushed back
+   */
+  public long apply(StringBuilder out) throws CallbackException {
+    int at = out.length();
+    out.append(window, (int)(start()-base), (int)(end-base));
+    action.invoke(out, at, runner);
+    return end-pushedBack.drop();
+  }
+  /**********************************************************************/
+  private void checkMatch() {
+    if( action==null ) {
+      throw new IllegalStateException("no current match available");
+    }
+  }
+  /**********************************************************************/
+  // reads one character and advances all groups of threads, recording
+  // the matches ending behind it
+  private boolean advance() throws IOException {
+    int ch = in.read();
+    if( ch<0 ) return false;
+    char c = (char)ch;
+
+    // keep the window from one character before the oldest thread,
+    // but only copy if a good part can be dropped
+    long keep = pos;
+    for(int i=0; i<n; i++) keep = Math.min(keep, oldest[i]);
+    keep -= 1;
+    if( keep-base>4096 && keep-base>window.length()/2 ) {
+      window.delete(0, (int)(keep-base));
+      base = keep;
+    }
+    window.append(c);
+
+    // groups ending up in the same state are joined
+    int live = 0;
+    for(int i=0; i<n; i++) {
+      DfaState s = states[i].follow(c);
+      Start head = heads[i];
+      Start tail = tails[i];
+      long old = oldest[i];
+      heads[i] = tails[i] = null;
+      if( s==null ) continue;
+      live = join(live, s, head, tail, old);
+    }
+    for(int i=0; i<starts.length; i++) {
+      DfaState s = starts[i].follow(c);
+      if( s==null ) continue;
+      Start st = new Start(pos, i);
+      live = join(live, s, st, st, pos);
+    }
+    n = live;
+    groupOf.clear();
+
+    rawCount = 0;
+    for(int i=0; i<n; i++) {
+      FaAction a = states[i].getAction();
+      if( a==null ) continue;
+      for(Start st=heads[i]; st!=null; st=st.next) {
+        addRaw(st.pos, st.shard, a);
+      }
+    }
+    sortHits();
+    pos += 1;
+    return true;
+  }
+  /**********************************************************************/
+  // adds the threads from head to tail to the group in state s,
+  // creating it if needed, and returns the new number of groups
+  private int join(int live, DfaState s, Start head, Start tail,
+                   long old) {
+    Integer g = groupOf.get(s);
+    if( g!=null ) {
+      int k = g;
+      tails[k].next = head;
+      tails[k] = tail;
+      oldest[k] = Math.min(oldest[k], old);
+      return live;
+    }
+    if( live==states.length ) {
+      states = java.util.Arrays.copyOf(states, 2*live);
+      heads = java.util.Arrays.copyOf(heads, 2*live);
+      tails = java.util.Arrays.copyOf(tails, 2*live);
+      oldest = java.util.Arrays.copyOf(oldest, 2*live);
+    }
+    groupOf.put(s, live);
+    states[live] = s;
+    heads[live] = head;
+    tails[live] = tail;
+    oldest[live] = old;
+    return live+1;
+  }
+  /**********************************************************************/
+  private void addRaw(long hs, int shard, FaAction a) {
+    if( rawCount==rawStart.length ) {
+      int l = 2*rawCount;
+      rawStart = java.util.Arrays.copyOf(rawStart, l);
+      rawShard = java.util.Arrays.copyOf(rawShard, l);
+      rawAction = java.util.Arrays.copyOf(rawAction, l);
+      order = new int[l];
+      scratch = new int[l];
+    }
+    rawStart[rawCount] = hs;
+    rawShard[rawCount] = shard;
+    rawAction[rawCount] = a;
+    rawCount += 1;
+  }
+  /**********************************************************************/
+  // orders the matches found by start and shard, since joined groups
+  // list their starts in no particular order, and lets the shards of a
+  // union matching the same text compete for it
+  private void sortHits() {
+    hitCount = hitNext = 0;
+    for(int i=0; i<rawCount; i++) order[i] = i;
+    mergeSort(0, rawCount);
+    for(int i=0; i<rawCount; i++) {
+      int k = order[i];
+      long hs = rawStart[k];
+      FaAction a = rawAction[k];
+      rawAction[k] = null;
+      if( hitCount>0 && hitStart[hitCount-1]==hs ) {
+        hitAction[hitCount-1] = DfaUnion.compete(hitAction[hitCount-1], a);
+        continue;
+      }
+      if( hitCount==hitStart.length ) {
+        hitStart = java.util.Arrays.copyOf(hitStart, 2*hitCount);
+        hitAction = java.util.Arrays.copyOf(hitAction, 2*hitCount);
+      }
+      hitStart[hitCount] = hs;
+      hitAction[hitCount] = a;
+      hitCount += 1;
+    }
+  }
+  /**********************************************************************/
+  private void mergeSort(int from, int to) {
+    if( to-from<2 ) return;
+    int mid = (from+to)>>>1;
+    mergeSort(from, mid);
+    mergeSort(mid, to);
+    if( !before(order[mid], order[mid-1]) ) return;
+    System.arraycopy(order, from, scratch, from, to-from);
+    int i = from, j = mid, k = from;
+    while( i<mid && j<to ) {
+      order[k++] = before(scratch[j], scratch[i]) ? scratch[j++] : scratch[i++];
+    }
+    while( i<mid ) order[k++] = scratch[i++];
+    while( j<to ) order[k++] = scratch[j++];
+  }
+  private boolean before(int a, int b) {
+    if( rawStart[a]!=rawStart[b] ) return rawStart[a]<rawStart[b];
+    return rawShard[a]<rawShard[b];
+  }
+  /**********************************************************************/
+  // start position of a thread and the shard it runs in
+  private static final class Start {
+    private final long pos;
+    private final int shard;
+    private Start next = null;
+    Start(long pos, int shard) {
+      this.pos = pos;
+      this.shard = shard;
+    }
+  }
+  /**********************************************************************/
+  // collects and counts what actions push back in apply()
+  private static final class PushBackSink extends EmptyCharSource {
+    private int count = 0;
+    @Override
+    public void pushBack(StringBuilder buf, int start) {
+      count += buf.length()-start;
+      buf.setLength(start);
+    }
+    int drop() {
+      int result = count;
+      count = 0;
+      return result;
+    }
+  }
+}
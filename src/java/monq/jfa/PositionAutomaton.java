@@ -0,0 +1,602 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>is the position automaton (Glushkov automaton) front end of an
+ * {@link Nfa}. Regular expressions are parsed through an {@link
+ * NfaParserView} which computes, for every character class of the
+ * expression (a <em>position</em>), the set of positions that may
+ * follow. The result has no epsilon transitions at all, so the subset
+ * construction in {@link #compile compile()} works on sets of
+ * positions, stored as sorted <code>int</code> arrays, and needs
+ * neither an epsilon closure nor the filtering of unimportant
+ * states.</p>
+ *
+ * <p>Reporting subexpressions and the operators which require
+ * intermediate compilation (<code>!</code>, <code>~</code>,
+ * <code>^</code> and <code>@</code>) are not supported. {@link #add
+ * add()} reports this, upon which the <code>Nfa</code> falls back to
+ * Thompson's construction.</p>
+ */
+class PositionAutomaton {
+  // character class of each position as pairs of characters, each
+  // pair an inclusive range, sorted and not overlapping
+  private char[][] classes = new char[64][];
+  // follow sets, possibly with duplicates, followSize[p] is used
+  private int[][] follow = new int[64][];
+  private int[] followSize = new int[64];
+  // 1 + the index of the expression into acceptors, if the position
+  // is a last one of it, 0 otherwise
+  private int[] accept = new int[64];
+  private int size = 0;
+
+  // one stop state per expression, carrying its action
+  private final List<NfaState> acceptors = new ArrayList<>();
+
+  // positions reachable from the start, and the expressions matching
+  // the empty string
+  private final IntList startFirst = new IntList();
+  private final IntList startAccept = new IntList();
+
+  // used by stateKey() to collect positions and expressions without
+  // duplicates
+  private int[] positionMark;
+  private int[] acceptMark;
+  private int stamp;
+
+  // what was added, to allow replay into an Nfa
+  private final List<String> regexes = new ArrayList<>();
+  private final List<FaAction> actions = new ArrayList<>();
+  /**********************************************************************/
+  List<String> getRegexes() { return regexes; }
+  List<FaAction> getActions() { return actions; }
+  /**********************************************************************/
+  /**
+   * parses <code>regex</code> into positions and assigns
+   * <code>action</code> to it.
+   *
+   * @return <code>false</code> if the expression uses a feature not
+   * supported, in which case nothing is changed
+   */
+  boolean add(CharSequence regex, FaAction action, ReParser parser)
+    throws ReSyntaxException
+  {
+    int oldSize = size;
+    View view = new View();
+    try {
+      parser.parse(view, regex);
+    } catch( UnsupportedOperationException e ) {
+      rollback(oldSize);
+      return false;
+    } catch( ReSyntaxException e ) {
+      rollback(oldSize);
+      throw e;
+    }
+    Frag f = view.pop();
+    int entry = acceptors.size();
+    acceptors.add(new NfaState(view.give<0 ? action
+                               : new TrailingContext(action, view.give)));
+    for(int i=0; i<f.last.size; i++) accept[f.last.data[i]] = entry+1;
+    startFirst.addAll(f.first);
+    if( f.nullable ) startAccept.add(entry);
+    regexes.add(regex.toString());
+    actions.add(action);
+    return true;
+  }
+  /**********************************************************************/
+  private void rollback(int oldSize) {
+    for(int p=oldSize; p<size; p++) {
+      classes[p] = null;
+      follow[p] = null;
+      followSize[p] = 0;
+    }
+    size = oldSize;
+  }
+  /**********************************************************************/
+  private int newPosition(char[] cls) {
+    if( size==classes.length ) {
+      int n = 2*size;
+      classes = Arrays.copyOf(classes, n);
+      follow = Arrays.copyOf(follow, n);
+      followSize = Arrays.copyOf(followSize, n);
+      accept = Arrays.copyOf(accept, n);
+    }
+    classes[size] = cls;
+    return size++;
+  }
+  /**********************************************************************/
+  private void addFollow(IntList from, IntList to) {
+    for(int i=0; i<from.size; i++) {
+      int p = from.data[i];
+      int[] f = follow[p];
+      int n = followSize[p];
+      if( f==null ) {
+        f = new int[Math.max(4, to.size)];
+      } else if( n+to.size>f.length ) {
+        f = Arrays.copyOf(f, Math.max(2*f.length, n+to.size));
+      }
+      System.arraycopy(to.data, 0, f, n, to.size);
+      follow[p] = f;
+      followSize[p] = n+to.size;
+    }
+  }
+  /**********************************************************************/
+  /**
+   * <p>runs the subset construction. A state of the <code>Dfa</code>
+   * is represented by the positions which may be read next together
+   * with the expressions which match at this point, which is the
+   * same as the set of important states Thompson's construction would
+   * arrive at. The sets of positions just read would distinguish
+   * states which behave the same and result in a larger
+   * <code>Dfa</code>.</p>
+   */
+  DfaState compile(double memoryForSpeedTradeFactor, boolean updatable,
+                   CompileBudget budget)
+    throws CompileDfaException
+  {
+    long startTime = System.currentTimeMillis();
+    int stateCount = 1;
+    long memory = 0;
+
+    List<Nfa.Clash> clashes = new LinkedList<>();
+    Set<FaAction> found = new HashSet<>(3);
+    Set<NfaState> stopStates = new HashSet<>();
+    StringBuilder dfaPath = new StringBuilder();
+
+    positionMark = new int[size];
+    acceptMark = new int[acceptors.size()];
+    stamp = 0;
+
+    IntList startKey = stateKey(startFirst, startAccept);
+    FaAction startAction = Nfa.findAction(dfaPath, '1', '0', clashes, found,
+                                          stopStates(startKey, stopStates));
+    boolean haveStopState = startAction!=null;
+    DfaState dfaStart = new DfaState(startAction);
+    if( updatable ) dfaStart.recordCandidates();
+    dfaStart.mergeSubinfos(stopStates);
+    memory += CompileBudget.estimateState(startKey.size);
+
+    Map<IntList,DfaState> known = new HashMap<>();
+    known.put(startKey, dfaStart);
+    LinkedList<Task> stack = new LinkedList<>();
+    stack.add(new Task(dfaStart, 0, (char)0, (char)0, startKey));
+
+    RangeSweep sweep = new RangeSweep();
+    Intervals<DfaState> dfaTrans = new Intervals<>();
+
+    while( stack.size()>0 ) {
+      Task task = stack.removeLast();
+      if( task.steps>0 ) {
+        dfaPath.setLength(2*task.steps-2);
+        dfaPath.append(task.chLeft).append(task.chRight);
+      }
+
+      // The key starts with the positions to read next.
+      sweep.clear();
+      int[] next = task.key.data;
+      for(int i=0; next[i]>=0; i++) {
+        char[] cls = classes[next[i]];
+        for(int k=0; k<cls.length; k+=2) sweep.add(cls[k], cls[k+1], next[i]);
+      }
+      sweep.sweep();
+
+      dfaTrans.reset();
+      int[] read = sweep.getTargets();
+      DfaState lastDst = null;
+      for(int i=0, L=sweep.size(); i<L; i++) {
+        int from = sweep.getFrom(i);
+        int to = sweep.getTo(i);
+        if( from==to ) continue;
+        char first = sweep.getFirstAt(i);
+        char last = sweep.getLastAt(i);
+        if( sweep.sameAsPrevious(i) ) {
+          dfaTrans.overwrite(first, last, lastDst);
+          continue;
+        }
+        IntList key = stateKey(read, from, to);
+        DfaState dst = known.get(key);
+        if( dst==null ) {
+          FaAction a = Nfa.findAction(dfaPath, first, last, clashes, found,
+                                      stopStates(key, stopStates));
+          haveStopState |= a!=null;
+          dst = new DfaState(a);
+          if( updatable ) dst.recordCandidates();
+          dst.mergeSubinfos(stopStates);
+          known.put(key, dst);
+          stack.add(new Task(dst, task.steps+1, first, last, key));
+
+          if( budget!=null ) {
+            stateCount += 1;
+            memory += CompileBudget.estimateState(key.size);
+            Nfa.checkBudget(budget, stateCount, memory, startTime, dfaPath,
+                            reachableStopStates(task.key));
+          }
+        }
+        dfaTrans.overwrite(first, last, dst);
+        lastDst = dst;
+      }
+      CharTrans<DfaState> ct = dfaTrans.toCharTrans(memoryForSpeedTradeFactor);
+      task.dfaState.setTrans(ct);
+      if( ct!=null ) memory += ArrayCharTrans.estimateSize(ct.size());
+    }
+    positionMark = null;
+    acceptMark = null;
+
+    if( clashes.size()>0 ) {
+      throw new CompileDfaException(Nfa.clashToString(clashes));
+    }
+    if( !haveStopState ) return new DfaState();
+    return dfaStart;
+  }
+  /**********************************************************************/
+  // The key of the state reached by reading the positions
+  // read[from..to-1] lists the sorted positions that may follow, then
+  // -1, then the sorted expressions which match.
+  private IntList stateKey(int[] read, int from, int to) {
+    IntList key = new IntList();
+    stamp += 1;
+    for(int i=from; i<to; i++) {
+      int p = read[i];
+      int[] f = follow[p];
+      for(int k=0, L=followSize[p]; k<L; k++) {
+        int q = f[k];
+        if( positionMark[q]==stamp ) continue;
+        positionMark[q] = stamp;
+        key.add(q);
+      }
+    }
+    int n = key.size;
+    Arrays.sort(key.data, 0, n);
+    key.add(-1);
+    for(int i=from; i<to; i++) {
+      int e = accept[read[i]]-1;
+      if( e<0 || acceptMark[e]==stamp ) continue;
+      acceptMark[e] = stamp;
+      key.add(e);
+    }
+    Arrays.sort(key.data, n+1, key.size);
+    return key;
+  }
+  private IntList stateKey(IntList next, IntList matching) {
+    IntList key = new IntList();
+    stamp += 1;
+    for(int i=0; i<next.size; i++) {
+      int q = next.data[i];
+      if( positionMark[q]==stamp ) continue;
+      positionMark[q] = stamp;
+      key.add(q);
+    }
+    Arrays.sort(key.data, 0, key.size);
+    key.add(-1);
+    key.addAll(matching);
+    return key;
+  }
+  /**********************************************************************/
+  // fills and returns result with the stop states listed in the key
+  private Set<NfaState> stopStates(IntList key, Set<NfaState> result) {
+    result.clear();
+    int i = 0;
+    while( key.data[i]>=0 ) i += 1;
+    for(i++; i<key.size; i++) result.add(acceptors.get(key.data[i]));
+    return result;
+  }
+  /**********************************************************************/
+  // the stop states reachable from the state with the given key, to
+  // tell which actions are involved if the budget is exceeded
+  private Set<NfaState> reachableStopStates(IntList key) {
+    Set<NfaState> result = new HashSet<>();
+    stopStates(key, result);
+    boolean[] seen = new boolean[size];
+    IntList work = new IntList();
+    for(int i=0; key.data[i]>=0; i++) work.add(key.data[i]);
+    while( work.size>0 ) {
+      int p = work.data[--work.size];
+      if( seen[p] ) continue;
+      seen[p] = true;
+      if( accept[p]>0 ) result.add(acceptors.get(accept[p]-1));
+      for(int k=0; k<followSize[p]; k++) work.add(follow[p][k]);
+    }
+    return result;
+  }
+  /**********************************************************************/
+  private static final class Task {
+    final DfaState dfaState;
+    final int steps;
+    final char chLeft;
+    final char chRight;
+    final IntList key;
+    Task(DfaState dfaState, int steps, char chLeft, char chRight,
+         IntList key) {
+      this.dfaState = dfaState;
+      this.steps = steps;
+      this.chLeft = chLeft;
+      this.chRight = chRight;
+      this.key = key;
+    }
+  }
+  /**********************************************************************/
+  // growable int array with value semantics for equals() and hashCode()
+  static final class IntList {
+    int[] data;
+    int size = 0;
+    IntList() {
+      data = new int[4];
+    }
+    void add(int v) {
+      if( size==data.length ) data = Arrays.copyOf(data, 2*size);
+      data[size++] = v;
+    }
+    void addAll(IntList other) {
+      for(int i=0; i<other.size; i++) add(other.data[i]);
+    }
+    @Override
+    public int hashCode() {
+      int h = 1;
+      for(int i=0; i<size; i++) h = 31*h+data[i];
+      return h;
+    }
+    @Override
+    public boolean equals(Object o) {
+      if( !(o instanceof IntList) ) return false;
+      IntList other = (IntList)o;
+      if( other.size!=size ) return false;
+      for(int i=0; i<size; i++) if( data[i]!=other.data[i] ) return false;
+      return true;
+    }
+  }
+  /**********************************************************************/
+  // A fragment of the automaton, made of the given positions. The
+  // follow sets of its positions refer only to its own positions.
+  private static final class Frag {
+    IntList positions = new IntList();
+    IntList first = new IntList();
+    IntList last = new IntList();
+    boolean nullable;
+    int minLen;
+    // -1 if unbounded
+    int maxLen;
+  }
+  /**********************************************************************/
+  private final class View implements ExtendedNfaParserView {
+    private final List<Frag> stack = new ArrayList<>();
+    // length of the trailing context parsed, or -1
+    private int give = -1;
+
+    Frag pop() { return stack.remove(stack.size()-1); }
+    private Frag top() { return stack.get(stack.size()-1); }
+
+    private void pushPosition(char[] cls) {
+      Frag f = new Frag();
+      int p = newPosition(cls);
+      f.positions.add(p);
+      f.first.add(p);
+      f.last.add(p);
+      f.minLen = f.maxLen = 1;
+      stack.add(f);
+    }
+    @Override
+    public void pushCharSet(CharSequence pairs, boolean invert) {
+      Intervals<Boolean> ivals = new Intervals<>();
+      if( pairs!=null ) {
+        if( pairs.length()%2!=0 ) {
+          throw new IllegalArgumentException
+            ("pairs must be null or have even length");
+        }
+        for(int i=0; i<pairs.length(); i+=2) {
+          char from = pairs.charAt(i);
+          char to = pairs.charAt(i+1);
+          if( from>to ) { char tmp=from; from=to; to=tmp; }
+          ivals.overwrite(from, to, Boolean.TRUE);
+        }
+      }
+      if( invert ) ivals.invert(Boolean.TRUE);
+      StringBuilder sb = new StringBuilder();
+      for(int i=0, L=ivals.size(); i<L; i++) {
+        if( ivals.getAt(i)==null ) continue;
+        sb.append(ivals.getFirstAt(i)).append(ivals.getLastAt(i));
+      }
+      char[] cls = new char[sb.length()];
+      sb.getChars(0, cls.length, cls, 0);
+      pushPosition(cls);
+    }
+    @Override
+    public void pushDot() {
+      pushPosition(new char[] {Character.MIN_VALUE, Character.MAX_VALUE});
+    }
+    @Override
+    public void pushString(CharSequence str) {
+      pushPosition(new char[] {str.charAt(0), str.charAt(0)});
+      for(int i=1; i<str.length(); i++) {
+        pushPosition(new char[] {str.charAt(i), str.charAt(i)});
+        seq();
+      }
+    }
+    // The lists of the popped fragments are reused to not get
+    // quadratic in the length of long literals.
+    @Override
+    public void or() {
+      Frag b = pop();
+      Frag a = top();
+      a.positions.addAll(b.positions);
+      a.first.addAll(b.first);
+      a.last.addAll(b.last);
+      a.nullable |= b.nullable;
+      a.minLen = Math.min(a.minLen, b.minLen);
+      a.maxLen = a.maxLen<0 || b.maxLen<0 ? -1 : Math.max(a.maxLen, b.maxLen);
+    }
+    @Override
+    public void seq() {
+      Frag b = pop();
+      seq(top(), b);
+    }
+    private void seq(Frag a, Frag b) {
+      addFollow(a.last, b.first);
+      a.positions.addAll(b.positions);
+      if( a.nullable ) a.first.addAll(b.first);
+      if( b.nullable ) {
+        a.last.addAll(b.last);
+      } else {
+        a.last = b.last;
+      }
+      a.nullable &= b.nullable;
+      a.minLen = a.minLen+b.minLen;
+      a.maxLen = a.maxLen<0 || b.maxLen<0 ? -1 : a.maxLen+b.maxLen;
+    }
+    @Override
+    public void star() {
+      plus();
+      optional();
+    }
+    @Override
+    public void plus() {
+      Frag f = top();
+      addFollow(f.last, f.first);
+      if( f.maxLen!=0 ) f.maxLen = -1;
+    }
+    @Override
+    public void optional() {
+      optional(top());
+    }
+    private void optional(Frag f) {
+      f.nullable = true;
+      f.minLen = 0;
+    }
+    @Override
+    public void dup() {
+      Frag f = top();
+      Map<Integer,Integer> map = new HashMap<>();
+      for(int i=0; i<f.positions.size; i++) {
+        int p = f.positions.data[i];
+        map.put(p, newPosition(classes[p]));
+      }
+      Frag c = new Frag();
+      for(int i=0; i<f.positions.size; i++) {
+        int p = f.positions.data[i];
+        int q = map.get(p);
+        c.positions.add(q);
+        int n = followSize[p];
+        if( n>0 ) {
+          int[] fl = new int[n];
+          for(int k=0; k<n; k++) fl[k] = map.get(follow[p][k]);
+          follow[q] = fl;
+          followSize[q] = n;
+        }
+      }
+      for(int i=0; i<f.first.size; i++) c.first.add(map.get(f.first.data[i]));
+      for(int i=0; i<f.last.size; i++) c.last.add(map.get(f.last.data[i]));
+      c.nullable = f.nullable;
+      c.minLen = f.minLen;
+      c.maxLen = f.maxLen;
+      stack.add(c);
+    }
+    @Override
+    public void swap() {
+      Frag b = pop();
+      Frag a = pop();
+      stack.add(b);
+      stack.add(a);
+    }
+    @Override
+    public void repeat(int from, int to) {
+      // same structure as in Nfa.repeat()
+      if( to<0 && from==0 ) {
+        star();
+        return;
+      }
+      Frag f = top();
+      Frag[] copies = new Frag[(to<0 ? from : to)-1];
+      for(int i=0; i<copies.length; i++) {
+        dup();
+        copies[i] = pop();
+      }
+
+      if( to<0 ) {
+        Frag last = from>1 ? copies[from-2] : f;
+        addFollow(last.last, last.first);
+        for(Frag c : copies) seq(f, c);
+        f.maxLen = -1;
+        return;
+      }
+
+      int optionals = to-from;
+      boolean nested = optionals>1 && f.minLen==f.maxLen;
+      Frag tail = null;
+      for(int i=0; i<optionals; i++) {
+        Frag opt = from==0 && i==optionals-1 ? f : copies[copies.length-1-i];
+        if( nested ) {
+          if( tail!=null ) seq(opt, tail);
+          optional(opt);
+        } else {
+          optional(opt);
+          if( tail!=null ) seq(opt, tail);
+        }
+        tail = opt;
+      }
+      if( from==0 ) return;
+
+      for(int i=0; i<from-1; i++) seq(f, copies[i]);
+      if( tail!=null ) seq(f, tail);
+    }
+    @Override
+    public boolean markAsSub() {
+      throw new UnsupportedOperationException("markAsSub");
+    }
+    @Override
+    public boolean trail() {
+      Frag b = pop();
+      Frag a = top();
+      if( a.nullable ) {
+        stack.add(b);
+        return false;
+      }
+      // the split of a variable length context is found by automata
+      // of r and s, which only the Thompson construction provides
+      if( b.minLen!=b.maxLen ) {
+        throw new UnsupportedOperationException("trail");
+      }
+      seq(a, b);
+      give = b.minLen;
+      return true;
+    }
+    @Override
+    public void allPrefixes() {
+      throw new UnsupportedOperationException("allPrefixes");
+    }
+    @Override
+    public void not() {
+      throw new UnsupportedOperationException("not");
+    }
+    @Override
+    public void invert() {
+      throw new UnsupportedOperationException("invert");
+    }
+    @Override
+    public void shortest() {
+      throw new UnsupportedOperationException("shortest");
+    }
+  }
+}
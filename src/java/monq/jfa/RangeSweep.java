@@ -0,0 +1,208 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.util.Arrays;
+
+/**
+ * <p>partitions the character ranges of a set of transitions into
+ * disjoint intervals and lists for each interval the transitions
+ * covering it. This is done with one sort of all range endpoints and
+ * a single sweep over them, instead of splitting an {@link Intervals}
+ * twice per transition and copying the sets of the split
+ * intervals.</p>
+ *
+ * <p>Transitions are identified by the <code>int</code> passed to
+ * {@link #add add()}. After {@link #sweep}, interval <code>i</code>
+ * starts at {@link #getFirstAt getFirstAt(i)}, reaches up to just
+ * before the start of the next one, and is covered by the
+ * transitions <code>getTargets()[k]</code> for
+ * <code>getFrom(i)&lt;=k&lt;getTo(i)</code>. The first interval
+ * always starts at character 0 and every <code>first</code> and
+ * <code>last+1</code> passed to <code>add()</code> starts an interval,
+ * so the partition is exactly the one repeated splitting would
+ * create.</p>
+ *
+ * <p>Character classes like {@link Xml#Name} consist of hundreds of
+ * ranges which all lead to the same target. For each interval,
+ * {@link #sameAsPrevious sameAsPrevious()} therefore tells whether it
+ * has the same targets as the previous non-empty interval, so that
+ * the caller can reuse what it created for that.</p>
+ */
+final class RangeSweep {
+  // range endpoint events, encoded as (char position << 40) | (start
+  // flag << 39) | transition
+  private long[] events = new long[64];
+  private int nevents = 0;
+  private int ntrans = 0;
+
+  // the transitions active in the sweep and where they are in active
+  private int[] active = new int[16];
+  private int nactive = 0;
+  private int[] where = new int[32];
+
+  // the result
+  private char[] firsts = new char[16];
+  private int[] offsets = new int[17];
+  private int size = 0;
+  private int[] targets = new int[64];
+  private int[] transTargets = new int[32];
+  private int maxTarget = -1;
+
+  // same[i] is true if interval i has the same targets as the last
+  // non-empty interval before it, which are marked with stamp
+  private boolean[] same = new boolean[16];
+  private int[] mark = new int[32];
+  private int stamp = 0;
+  private int lastFull;
+
+  private long[] sorted = new long[64];
+  private static final int LOW_BITS = 9;
+  private final int[] count = new int[(1<<LOW_BITS)+1];
+
+  private static final long START = 1L<<39;
+  private static final long TRANS = START-1;
+  /**********************************************************************/
+  /**
+   * removes all transitions.
+   */
+  void clear() {
+    nevents = 0;
+    ntrans = 0;
+    size = 0;
+    maxTarget = -1;
+  }
+  /**********************************************************************/
+  /**
+   * adds a transition on the characters <code>first</code> to
+   * <code>last</code>, both inclusive, to the given target.
+   */
+  void add(char first, char last, int target) {
+    if( nevents+2>events.length ) {
+      events = Arrays.copyOf(events, 2*events.length);
+    }
+    if( ntrans==transTargets.length ) {
+      transTargets = Arrays.copyOf(transTargets, 2*ntrans);
+    }
+    int t = ntrans++;
+    transTargets[t] = target;
+    if( target>maxTarget ) maxTarget = target;
+    events[nevents++] = ((long)first<<40) | START | t;
+    events[nevents++] = ((long)(last+1)<<40) | t;
+  }
+  /**********************************************************************/
+  /**
+   * computes the partition of all transitions added since the last
+   * {@link #clear}.
+   */
+  void sweep() {
+    sortEvents();
+    if( where.length<ntrans ) where = new int[Math.max(ntrans, 2*where.length)];
+    if( mark.length<=maxTarget ) mark = new int[Math.max(maxTarget+1, 2*mark.length)];
+    nactive = 0;
+    size = 0;
+    lastFull = -1;
+    int nt = 0;
+    int i = 0;
+    if( nevents==0 || (events[0]>>>40)>0 ) {
+      // an empty interval at the start
+      nt = addInterval((char)0, nt);
+    }
+    while( i<nevents ) {
+      long pos = events[i]>>>40;
+      for(/**/; i<nevents && (events[i]>>>40)==pos; i++) {
+        int t = (int)(events[i]&TRANS);
+        if( (events[i]&START)!=0 ) {
+          if( nactive==active.length ) {
+            active = Arrays.copyOf(active, 2*nactive);
+          }
+          where[t] = nactive;
+          active[nactive++] = t;
+        } else {
+          // swap the last active transition into the free slot
+          int w = where[t];
+          int moved = active[--nactive];
+          active[w] = moved;
+          where[moved] = w;
+        }
+      }
+      if( pos>Character.MAX_VALUE ) break;
+      nt = addInterval((char)pos, nt);
+    }
+  }
+  /**********************************************************************/
+  // Sorts the events by character position with a two pass radix
+  // sort, which is linear in the number of events. Character classes
+  // of many Nfa states are often the same, giving many events and
+  // only few distinct positions.
+  private void sortEvents() {
+    if( sorted.length<nevents ) sorted = new long[events.length];
+    radixPass(events, sorted, 40, LOW_BITS);
+    radixPass(sorted, events, 40+LOW_BITS, 17-LOW_BITS);
+  }
+  private void radixPass(long[] from, long[] to, int shift, int bits) {
+    int mask = (1<<bits)-1;
+    Arrays.fill(count, 0);
+    for(int i=0; i<nevents; i++) {
+      count[1+(int)((from[i]>>>shift)&mask)] += 1;
+    }
+    for(int b=1; b<=mask; b++) count[b] += count[b-1];
+    for(int i=0; i<nevents; i++) {
+      long e = from[i];
+      to[count[(int)((e>>>shift)&mask)]++] = e;
+    }
+  }
+  /**********************************************************************/
+  private int addInterval(char first, int nt) {
+    if( size+1==firsts.length ) {
+      firsts = Arrays.copyOf(firsts, 2*firsts.length);
+      offsets = Arrays.copyOf(offsets, 2*offsets.length);
+      same = Arrays.copyOf(same, 2*same.length);
+    }
+    if( nt+nactive>targets.length ) {
+      targets = Arrays.copyOf(targets, Math.max(2*targets.length, nt+nactive));
+    }
+    int from = nt;
+    for(int k=0; k<nactive; k++) targets[nt++] = transTargets[active[k]];
+
+    // A target is active at most once, because the ranges of one
+    // transition table do not overlap, so equal sizes and all targets
+    // marked mean equal sets.
+    boolean isSame = nactive>0 && lastFull>=0
+        && offsets[lastFull+1]-offsets[lastFull]==nactive;
+    for(int k=from; isSame && k<nt; k++) isSame = mark[targets[k]]==stamp;
+    if( nactive>0 && !isSame ) {
+      stamp += 1;
+      for(int k=from; k<nt; k++) mark[targets[k]] = stamp;
+      lastFull = size;
+    }
+    same[size] = isSame;
+    firsts[size] = first;
+    offsets[++size] = nt;
+    return nt;
+  }
+  /**********************************************************************/
+  int size() { return size; }
+  char getFirstAt(int i) { return firsts[i]; }
+  char getLastAt(int i) {
+    return i+1<size ? (char)(firsts[i+1]-1) : Character.MAX_VALUE;
+  }
+  int getFrom(int i) { return offsets[i]; }
+  int getTo(int i) { return offsets[i+1]; }
+  int[] getTargets() { return targets; }
+  boolean sameAsPrevious(int i) { return same[i]; }
+}
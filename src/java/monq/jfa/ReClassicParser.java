@@ -24,6 +24,8 @@ public class ReClassicParser implements ReParser {
   private static final int TOK_HAT      = Character.MAX_VALUE+'^';
   private static final int TOK_MINUS    = Character.MAX_VALUE+'-';
   private static final int TOK_AT       = Character.MAX_VALUE+'@';
+  // "(?=", the start of a trailing context
+  private static final int TOK_TRAIL    = Character.MAX_VALUE+'=';
 
   private static final char[] specialChars
 
@@ -51,6 +53,11 @@ public class ReClassicParser implements ReParser {
   private int lookaheadToken;
   private boolean lookaheadValid = false;
 
+  // nesting of parentheses and whether an alternative was seen
+  // outside of them, to restrict the place of a trailing context
+  private int depth;
+  private boolean topLevelOr;
+
   // recent input, kept for error messages
   private char[] recent = new char[60];
   private int recentNext = 0;                   // first free in recent
@@ -80,6 +87,8 @@ public class ReClassicParser implements ReParser {
     inNext = 0;
     recentNext = 0;
     recentWrapped = false;
+    depth = 0;
+    topLevelOr = false;
     nextToken();
     parseOr(nfa);
     if( token!=TOK_EOF ) throw error(ReSyntaxException.EEXTRACHAR);
@@ -191,7 +200,16 @@ public class ReClassicParser implements ReParser {
       switch( ch ) {
       case '[': token = TOK_OBRACKET; break;
       case '{': token = TOK_OCURLY; break;
-      case '(': token = TOK_OPAREN; break;
+      case '(':
+        if( inNext+1<in.length() && in.charAt(inNext)=='?'
+            && in.charAt(inNext+1)=='=' ) {
+          nextChar();
+          nextChar();
+          token = TOK_TRAIL;
+        } else {
+          token = TOK_OPAREN;
+        }
+        break;
       case ')': token = TOK_CPAREN; break;
       case '?': token = TOK_QMARK; break;
       case '*': token = TOK_STAR; break;
@@ -288,7 +306,9 @@ public class ReClassicParser implements ReParser {
         isReporting = true;
         nextToken();
       }
+      depth += 1;
       parseOr(nfa);
+      depth -= 1;
       if( token!=TOK_CPAREN ) throw error(ReSyntaxException.ECLOSINGP);
       nextToken();
 
@@ -419,15 +439,18 @@ public class ReClassicParser implements ReParser {
     }
     nextToken();
 
-    // TODO: there are too many cases below. Is there a better way to do this
-    // with much fewer ifs?
     if (to>-1 && to<from) {
       throw error(ReSyntaxException.ETOLESSFROM);
     }
     if (to==0) {
       throw error(ReSyntaxException.EEMPTY);
     }
+    if (nfa instanceof ExtendedNfaParserView) {
+      ((ExtendedNfaParserView)nfa).repeat(from, to);
+      return;
+    }
 
+    // a view which cannot repeat gets the copies one by one
     if (to<0) {
       if (from==0) {
         nfa.star();
@@ -473,15 +496,38 @@ public class ReClassicParser implements ReParser {
 
     while( token!=TOK_EOF && token!=TOK_OR && token!=TOK_CPAREN ) {
       //System.out.println("token:"+token);
+      if( token==TOK_TRAIL ) {
+        parseTrail(nfa);
+        return;
+      }
       parsePostfixedAtom(nfa);
       nfa.seq();
     }
   }
   /********************************************************************/
+  private void parseTrail(NfaParserView nfa) throws ReSyntaxException {
+    // have just seen "(?=", which may only end the whole expression
+    if( depth>0 || topLevelOr ) throw error(ReSyntaxException.ETRAILPLACE);
+    nextToken();
+    depth += 1;
+    parseOr(nfa);
+    depth -= 1;
+    if( token!=TOK_CPAREN ) throw error(ReSyntaxException.ECLOSINGP);
+    nextToken();
+    if( token!=TOK_EOF ) throw error(ReSyntaxException.ETRAILPLACE);
+    if( !(nfa instanceof ExtendedNfaParserView) ) {
+      throw error(ReSyntaxException.ETRAILVIEW);
+    }
+    if( !((ExtendedNfaParserView)nfa).trail() ) {
+      throw error(ReSyntaxException.ETRAILLENGTH);
+    }
+  }
+  /********************************************************************/
   private void parseOr(NfaParserView nfa) throws ReSyntaxException {
     parseSequence(nfa);
 
     while( token==TOK_OR ) {
+      if( depth==0 ) topLevelOr = true;
       nextToken();
       parseSequence(nfa);
       nfa.or();
@@ -49,6 +49,12 @@ public class ReSyntaxException extends Exception {
   public static final String EMISSINGCURLYCLOSE = "missing closing '}'";
   public static final String ETOLESSFROM = "upper boundary smaller than lower";
   public static final String EEMPTY = "range {0,0} not allowed";
+  public static final String ETRAILPLACE =
+    "trailing context must end the expression outside of alternatives";
+  public static final String ETRAILLENGTH =
+    "trailing context must follow a non-empty expression";
+  public static final String ETRAILVIEW =
+    "trailing context not supported by this parser view";
 
   public String emsg;
   public int line;
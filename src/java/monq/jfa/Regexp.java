@@ -67,6 +67,28 @@ public class Regexp {
       throw new Error("impossible", e);
     }
   }
+  /**********************************************************************/
+  /**
+   * <p>creates a <code>Regexp</code> object matching any of the given
+   * regular expressions, each identified by its index in the list.
+   * After a match, {@link #matchSet} tells which of them
+   * matched. Checking a string against many expressions this way
+   * runs one automaton once instead of one per expression.</p>
+   *
+   * @throws IllegalArgumentException in case one of the expressions
+   * contains syntax errors.
+   */
+  public Regexp(java.util.List<? extends CharSequence> res) {
+    java.util.List<FaAction> actions = new java.util.ArrayList<>(res.size());
+    for(int i=0; i<res.size(); i++) actions.add(new IdAction(i));
+    try {
+      dfa = new Nfa().or(res, actions, 1).compile(DfaRun.UNMATCHED_COPY);
+    } catch( ReSyntaxException e ) {
+      throw makeEx("regexp syntax error", e);
+    } catch( CompileDfaException e ) {
+      throw new Error("impossible", e);
+    }
+  }
   /*+******************************************************************/
   public Dfa getDfa() {
     return dfa;
@@ -239,6 +261,27 @@ public class Regexp {
     return ts;
   }
   /**********************************************************************/
+  /**
+   * <p>returns the indexes of all expressions which match the text
+   * of the most recent match, if <code>this</code> was created from
+   * a list of expressions. After {@link #matches matches()} returned
+   * <code>true</code>, these are all expressions matching the whole
+   * input.</p>
+   *
+   * @return a fresh <code>BitSet</code> or <code>null</code> if
+   * <code>this</code> was created from a single expression.
+   *
+   * @throws IllegalStateException if the most recent application of
+   * <code>this</code> did not yield a match.
+   */
+  public java.util.BitSet matchSet() {
+    if( a==null || a==DfaRun.EOF ) {
+      throw new IllegalStateException("no recent match available");
+    }
+    if( !(a instanceof IdAction) ) return null;
+    return ((IdAction)a).getIds();
+  }
+  /**********************************************************************/
 
 }
  
@@ -0,0 +1,149 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>is a slot for per-run state of an {@link FaAction}, similar to
+ * a <code>ThreadLocal</code>, but with one value per {@link
+ * DfaRun}. Actions which need to keep state while a
+ * <code>DfaRun</code> operates them create a <code>RunLocal</code>
+ * in their constructor and then keep the <code>Dfa</code>
+ * shareable between threads:</p>
+ * <pre>
+ * class Seen extends AbstractFaAction {
+ *   private final RunLocal&lt;Set&lt;String&gt;&gt; seen =
+ *     new RunLocal&lt;Set&lt;String&gt;&gt;() {
+ *       protected Set&lt;String&gt; initialValue(DfaRun r) {
+ *         return new HashSet&lt;&gt;();
+ *       }
+ *     };
+ *   public void invoke(StringBuilder out, int start, DfaRun r) {
+ *     if( !seen.get(r).add(out.substring(start)) ) out.setLength(start);
+ *   }
+ * }</pre>
+ *
+ * <p>Each <code>RunLocal</code> gets a fixed index into an array
+ * held by the <code>DfaRun</code>, so that {@link #get get()} is an
+ * array access instead of the lookup of a key in a <code>Map</code>
+ * provided by {@link DfaRun#clientData clientData}. The array grows
+ * on demand to the largest index used by a run. The index of a
+ * <code>RunLocal</code> which was garbage collected is given to the
+ * next one created, so that replacing actions, for example when
+ * reloading a dictionary, does not let the array grow. A run still
+ * holding a value for the old <code>RunLocal</code> recognizes it by
+ * its stamp and does not hand it to the new one. Nevertheless create
+ * <code>RunLocal</code>s along with the actions, not while running
+ * them.</p>
+ */
+public class RunLocal<T> {
+  // indexes of collected RunLocals are reused
+  private static final ReferenceQueue<RunLocal<?>> COLLECTED =
+      new ReferenceQueue<>();
+  private static final Set<Slot> SLOTS = new HashSet<>();
+  private static final BitSet FREE = new BitSet();
+  private static int nextIndex = 0;
+  private static int nextStamp = 0;
+
+  private final int index;
+  // tells this RunLocal from earlier ones with the same index
+  private final int stamp;
+
+  public RunLocal() {
+    synchronized(SLOTS) {
+      Reference<? extends RunLocal<?>> ref;
+      while( (ref=COLLECTED.poll())!=null ) {
+        Slot slot = (Slot)ref;
+        SLOTS.remove(slot);
+        FREE.set(slot.index);
+      }
+      int i = FREE.nextSetBit(0);
+      if( i<0 ) {
+        i = nextIndex++;
+      } else {
+        FREE.clear(i);
+      }
+      index = i;
+      stamp = ++nextStamp;
+      SLOTS.add(new Slot(this, i));
+    }
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the value for a run which did not yet have one. The
+   * default implementation returns <code>null</code>.</p>
+   */
+  protected T initialValue(DfaRun r) { return null; }
+  /**********************************************************************/
+  /**
+   * <p>returns the value of this slot for the given run. If there
+   * is none or it is <code>null</code>, the result of {@link
+   * #initialValue initialValue()} is stored and returned.</p>
+   */
+  public T get(DfaRun r) {
+    Object[] locals = r.locals;
+    if( index<locals.length && locals[index]!=null
+        && r.localStamps[index]==stamp ) {
+      @SuppressWarnings("unchecked")
+      T value = (T)locals[index];
+      return value;
+    }
+    T value = initialValue(r);
+    set(r, value);
+    return value;
+  }
+  /**********************************************************************/
+  /**
+   * <p>sets the value of this slot for the given run.</p>
+   */
+  public void set(DfaRun r, T value) {
+    if( index>=r.locals.length ) {
+      if( value==null ) return;
+      int l = Math.max(index+1, 2*r.locals.length);
+      r.locals = Arrays.copyOf(r.locals, l);
+      r.localStamps = Arrays.copyOf(r.localStamps, l);
+    }
+    r.locals[index] = value;
+    r.localStamps[index] = stamp;
+  }
+  /**********************************************************************/
+  /**
+   * <p>removes the value of this slot for the given run, so that the
+   * next {@link #get get()} calls {@link #initialValue
+   * initialValue()} again.</p>
+   */
+  public void remove(DfaRun r) { set(r, null); }
+  /**********************************************************************/
+  // returns the index of the slot, for tests
+  int index() { return index; }
+  /**********************************************************************/
+  // enqueued when its RunLocal was collected, to free the index
+  private static final class Slot extends PhantomReference<RunLocal<?>> {
+    private final int index;
+    Slot(RunLocal<?> owner, int index) {
+      super(owner, COLLECTED);
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,413 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import monq.jfa.PositionAutomaton.IntList;
+
+/**
+ * <p>merges equivalent states of one or more automata, as needed by
+ * {@link Dfa#withStartConditions Dfa.withStartConditions()}. Two
+ * states are equivalent if they have the same action, compared by
+ * identity, the same candidate actions, no subgraph information, and
+ * if each character leads to equivalent states.</p>
+ *
+ * <p>The classes of equivalent states are found by partition
+ * refinement, starting from the partition by action. A class is split
+ * if its members differ in the classes of their children. Once a
+ * class was checked, only those of its members can differ from the
+ * others which have a child that moved to a new class since, so
+ * only they are looked at again. Checking all states in each round
+ * would take as many rounds as the longest word of a
+ * dictionary.</p>
+ *
+ * <p>The automata given are not changed. The result consists of new
+ * states, one per class, which keep the kind of transition table of
+ * the state they are copied from.</p>
+ */
+final class StateMerger {
+  private final DfaState[] states;
+  private final int[] startIndex;
+
+  // class of each state; the states ordered by class in perm, where
+  // class c is perm[first[c]..end[c]-1] and pos is the inverse of perm
+  private final int[] cls;
+  private final int[] perm;
+  private final int[] pos;
+  private int[] first = new int[16];
+  private int[] end = new int[16];
+  private int classCount = 0;
+
+  // transition t of state n, transStart[n]<=t<transStart[n+1], is
+  // from ranges[2t] to ranges[2t+1] into state child[t], copied once
+  // since iterating a CharTrans by index is not fast for all
+  // implementations
+  private final int[] transStart;
+  private final char[] ranges;
+  private final int[] child;
+
+  // predecessors of state n are preds[predStart[n]..predStart[n+1]-1]
+  private int[] predStart;
+  private int[] preds;
+
+  // states to check again, each listed once
+  private IntList touched = new IntList();
+  private final boolean[] isTouched;
+  /**********************************************************************/
+  private StateMerger(DfaState[] starts) {
+    List<DfaState> all = new ArrayList<>();
+    Map<DfaState,Integer> index = new IdentityHashMap<>();
+    startIndex = new int[starts.length];
+    for(int i=0; i<starts.length; i++) {
+      Integer n = index.get(starts[i]);
+      if( n==null ) {
+        index.put(starts[i], n = all.size());
+        all.add(starts[i]);
+      }
+      startIndex[i] = n;
+    }
+    IntList start = new IntList();
+    StringBuilder ranges = new StringBuilder();
+    IntList children = new IntList();
+    for(int next=0; next<all.size(); next++) {
+      start.add(children.size);
+      CharTrans<DfaState> tr = all.get(next).getTrans();
+      for(int i=0, L=tr.size(); i<L; i++) {
+        DfaState c = tr.getAt(i);
+        Integer n = index.get(c);
+        if( n==null ) {
+          index.put(c, n = all.size());
+          all.add(c);
+        }
+        ranges.append(tr.getFirstAt(i)).append(tr.getLastAt(i));
+        children.add(n);
+      }
+    }
+    start.add(children.size);
+    states = all.toArray(new DfaState[all.size()]);
+    transStart = Arrays.copyOf(start.data, start.size);
+    ranges.getChars(0, ranges.length(), this.ranges = new char[ranges.length()], 0);
+    child = Arrays.copyOf(children.data, children.size);
+    cls = new int[states.length];
+    perm = new int[states.length];
+    pos = new int[states.length];
+    isTouched = new boolean[states.length];
+  }
+  /**********************************************************************/
+  /**
+   * returns the start states of an automaton equivalent to the one
+   * of each of the given start states, where equivalent states are
+   * shared.
+   */
+  static DfaState[] merge(DfaState[] starts) {
+    StateMerger m = new StateMerger(starts);
+    m.findPredecessors();
+    m.partitionByAction();
+    m.refine();
+    DfaState[] merged = m.build();
+    DfaState[] result = new DfaState[starts.length];
+    for(int i=0; i<starts.length; i++) {
+      result[i] = merged[m.cls[m.startIndex[i]]];
+    }
+    return result;
+  }
+  /**********************************************************************/
+  private void findPredecessors() {
+    int N = states.length;
+    predStart = new int[N+1];
+    for(int c : child) predStart[c+1] += 1;
+    for(int n=0; n<N; n++) predStart[n+1] += predStart[n];
+    preds = new int[predStart[N]];
+    int[] fill = Arrays.copyOf(predStart, N);
+    for(int n=0; n<N; n++) {
+      for(int t=transStart[n]; t<transStart[n+1]; t++) {
+        preds[fill[child[t]]++] = n;
+      }
+    }
+  }
+  /**********************************************************************/
+  private void partitionByAction() {
+    Map<FaAction,Integer> actionIds = new IdentityHashMap<>();
+    Map<Key,Integer> classes = new HashMap<>();
+    for(int n=0; n<states.length; n++) {
+      DfaState s = states[n];
+      if( s.getSubinfos()!=null ) {
+        // never merged, subinfos are too expensive to compare
+        cls[n] = newClass();
+        continue;
+      }
+      FaAction[] cand = s.getCandidates();
+      int[] key = new int[cand==null ? 1 : 1+cand.length];
+      key[0] = actionId(actionIds, s.getAction());
+      for(int i=1; i<key.length; i++) {
+        key[i] = actionId(actionIds, cand[i-1]);
+      }
+      Key k = new Key(key, key.length);
+      Integer c = classes.get(k);
+      if( c==null ) classes.put(k, c = newClass());
+      cls[n] = c;
+    }
+
+    // sort the states by class and check them all
+    for(int n=0; n<states.length; n++) end[cls[n]] += 1;
+    for(int c=0, p=0; c<classCount; c++) {
+      first[c] = p;
+      p += end[c];
+      end[c] = first[c];
+    }
+    for(int n=0; n<states.length; n++) {
+      int p = end[cls[n]]++;
+      perm[p] = n;
+      pos[n] = p;
+      touch(n);
+    }
+  }
+  private static int actionId(Map<FaAction,Integer> ids, FaAction a) {
+    if( a==null ) return -1;
+    Integer id = ids.get(a);
+    if( id==null ) ids.put(a, id = ids.size());
+    return id;
+  }
+  private int newClass() {
+    if( classCount==first.length ) {
+      first = Arrays.copyOf(first, 2*classCount);
+      end = Arrays.copyOf(end, 2*classCount);
+    }
+    return classCount++;
+  }
+  private void touch(int n) {
+    if( isTouched[n] ) return;
+    isTouched[n] = true;
+    touched.add(n);
+  }
+  /**********************************************************************/
+  /**
+   * splits classes by the classes of the children of their touched
+   * members until nothing is touched any more.
+   */
+  private void refine() {
+    int N = states.length;
+    // touched members of class c are linked from head[c] through link
+    int[] head = new int[N];
+    Arrays.fill(head, -1);
+    int[] link = new int[N];
+    IntList classes = new IntList();
+    IntList t = new IntList();
+    // marks the members of t with the current stamp
+    int[] mark = new int[N];
+    int stamp = 0;
+    int[] buf = new int[16];
+    int[] repBuf = new int[16];
+    while( touched.size>0 ) {
+      IntList work = touched;
+      touched = new IntList();
+      classes.size = 0;
+      for(int i=0; i<work.size; i++) {
+        int n = work.data[i];
+        isTouched[n] = false;
+        int c = cls[n];
+        if( head[c]<0 ) classes.add(c);
+        link[n] = head[c];
+        head[c] = n;
+      }
+
+      for(int k=0; k<classes.size; k++) {
+        int c = classes.data[k];
+        stamp += 1;
+        t.size = 0;
+        for(int n=head[c]; n>=0; n=link[n]) {
+          t.add(n);
+          mark[n] = stamp;
+        }
+        head[c] = -1;
+        int size = end[c]-first[c];
+        if( size<2 ) continue;
+
+        // the members not touched all have the same signature, that
+        // of a representative which is then group 0, except those
+        // touched again by a split earlier in this round
+        int rep = -1;
+        if( t.size<size ) {
+          for(int p=first[c]; p<end[c] && rep<0; p++) {
+            int n = perm[p];
+            if( mark[n]!=stamp && !isTouched[n] ) rep = n;
+          }
+          if( rep<0 ) {
+            for(int p=first[c]; p<end[c]; p++) {
+              if( mark[perm[p]]!=stamp ) t.add(perm[p]);
+            }
+          }
+        }
+        int[] group = new int[t.size];
+        int G;
+        if( rep>=0 && t.size==1 ) {
+          // the most frequent case needs no map
+          repBuf = signature(rep, repBuf);
+          buf = signature(t.data[0], buf);
+          if( sameSignature(repBuf, buf) ) continue;
+          group[0] = 1;
+          G = 2;
+        } else {
+          Map<Key,Integer> groups = new HashMap<>();
+          if( rep>=0 ) {
+            buf = signature(rep, buf);
+            groups.put(new Key(buf, buf[0]).copy(), 0);
+          }
+          for(int i=0; i<t.size; i++) {
+            buf = signature(t.data[i], buf);
+            Key key = new Key(buf, buf[0]);
+            Integer g = groups.get(key);
+            if( g==null ) groups.put(key.copy(), g = groups.size());
+            group[i] = g;
+          }
+          G = groups.size();
+          if( G==1 ) continue;
+        }
+
+        // bucket the touched members by group
+        int[] start = new int[G+1];
+        for(int g : group) start[g+1] += 1;
+        for(int g=0; g<G; g++) start[g+1] += start[g];
+        int[] sorted = new int[t.size];
+        int[] fill = Arrays.copyOf(start, G);
+        for(int i=0; i<t.size; i++) sorted[fill[group[i]]++] = t.data[i];
+
+        // the untouched members keep the class, otherwise the
+        // largest group
+        int keep = 0;
+        if( rep<0 ) {
+          for(int g=1; g<G; g++) {
+            if( start[g+1]-start[g]>start[keep+1]-start[keep] ) keep = g;
+          }
+        }
+        for(int g=0; g<G; g++) {
+          if( g==keep ) continue;
+          int nc = newClass();
+          end[nc] = end[c];
+          for(int i=start[g]; i<start[g+1]; i++) moveToEnd(sorted[i], c);
+          first[nc] = end[c];
+          for(int p=first[nc]; p<end[nc]; p++) {
+            int n = perm[p];
+            cls[n] = nc;
+            for(int q=predStart[n]; q<predStart[n+1]; q++) touch(preds[q]);
+          }
+        }
+      }
+    }
+  }
+  private static boolean sameSignature(int[] a, int[] b) {
+    if( a[0]!=b[0] ) return false;
+    for(int i=1; i<a[0]; i++) if( a[i]!=b[i] ) return false;
+    return true;
+  }
+  // moves state n to the end of the segment of class c and shrinks it
+  private void moveToEnd(int n, int c) {
+    int p = pos[n];
+    int last = --end[c];
+    int other = perm[last];
+    perm[last] = n;
+    pos[n] = last;
+    perm[p] = other;
+    pos[other] = p;
+  }
+  /**
+   * returns the transitions of state n as triples of first and last
+   * character and class of the child in <code>buf</code>, which is
+   * reallocated to fit. Ranges leading to the same class are joined,
+   * so that states differing only in how their transitions are split
+   * are not separated. The length is stored in <code>buf[0]</code>.
+   */
+  private int[] signature(int n, int[] buf) {
+    int L = transStart[n+1]-transStart[n];
+    if( buf.length<1+3*L ) buf = new int[2*(1+3*L)];
+    int len = 1;
+    for(int t=transStart[n]; t<transStart[n+1]; t++) {
+      int c = cls[child[t]];
+      char lo = ranges[2*t];
+      char hi = ranges[2*t+1];
+      if( len>1 && buf[len-1]==c && buf[len-2]+1==lo ) {
+        buf[len-2] = hi;
+      } else {
+        buf[len++] = lo;
+        buf[len++] = hi;
+        buf[len++] = c;
+      }
+    }
+    buf[0] = len;
+    return buf;
+  }
+  /**********************************************************************/
+  private DfaState[] build() {
+    DfaState[] merged = new DfaState[classCount];
+    DfaState[] reps = new DfaState[classCount];
+    for(int c=0; c<classCount; c++) {
+      reps[c] = states[perm[first[c]]];
+      merged[c] = new DfaState(reps[c]);
+    }
+    Intervals<DfaState> ivals = new Intervals<>();
+    for(int c=0; c<classCount; c++) {
+      int n = perm[first[c]];
+      for(int t=transStart[n]; t<transStart[n+1]; t++) {
+        ivals.overwrite(ranges[2*t], ranges[2*t+1], merged[cls[child[t]]]);
+      }
+      CharTrans<DfaState> tr = reps[c].getTrans();
+      // keep the kind of table chosen by the compilation
+      if( tr instanceof TableCharTrans ) {
+        merged[c].setTrans(ivals.toFastCharTrans(Character.MAX_VALUE+1));
+      } else if( tr instanceof AsciiCharTrans ) {
+        merged[c].setTrans(ivals.toFastCharTrans(0));
+      } else {
+        merged[c].setTrans(ivals.toCharTrans(0.0));
+      }
+    }
+    return merged;
+  }
+  /**********************************************************************/
+  // a signature of a state, looked up while it is still in the
+  // reusable buffer and only copied when stored
+  private static final class Key {
+    private final int[] data;
+    private final int len;
+    private final int hash;
+    Key(int[] data, int len) {
+      this.data = data;
+      this.len = len;
+      int h = 1;
+      for(int i=0; i<len; i++) h = 31*h+data[i];
+      this.hash = h;
+    }
+    Key copy() {
+      return new Key(Arrays.copyOf(data, len), len);
+    }
+    @Override
+    public int hashCode() { return hash; }
+    @Override
+    public boolean equals(Object other) {
+      if( !(other instanceof Key) ) return false;
+      Key o = (Key)other;
+      if( o.len!=len || o.hash!=hash ) return false;
+      for(int i=0; i<len; i++) if( data[i]!=o.data[i] ) return false;
+      return true;
+    }
+  }
+}
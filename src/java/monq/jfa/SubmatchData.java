@@ -17,7 +17,6 @@ Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
 package monq.jfa;
 
 import java.util.Arrays;
-import java.util.Map;
 import monq.stuff.ArrayUtil;
 
 /**
@@ -27,49 +26,89 @@ import monq.stuff.ArrayUtil;
  * the associated submatches to be stored in a
  * <code>TextStore</code>.</p>
  *
+ * <p>While matching, only a reference to each state is stored,
+ * together with the position of the character. A state which starts
+ * no subgraph and is visited several times in a row, as in a loop
+ * like <code>[a-z]+</code>, is stored once with the position of its
+ * last visit, as are runs of states without any subgraph markers,
+ * since visiting them again changes nothing but the end of the
+ * subgraphs they continue. The subgraph markers of the states are
+ * precompiled by {@link DfaState#compileTags} into small sorted
+ * <code>int</code> arrays, so that the analysis neither hashes nor
+ * allocates, and its work grows with the number of states stored,
+ * not with the length of the match.</p>
+ *
+ * <p>This is not a tagged DFA. No registers are updated on the
+ * transitions, instead the markers are evaluated after the match,
+ * because which of them count depends on the action of the stop
+ * state finally reached.</p>
+ *
  *
  * @author &copy; 2004 Harald Kirsch
  */
 class SubmatchData {
-  // collects states we run through in match. If this turns out to be
-  // non-empty, the above two come into play.
+  // collects states we run through in match. If this turns out to
+  // contain states with subgraph markers, analyze() comes into play.
   // REMARK: This was a java.util.Stack before. Changing it to a plain
   // array and to my own resizing when necessary improved performance
   // by 16% on a typical text filtering application.
-  @SuppressWarnings("unchecked")
-  private Map<FaAction,FaSubinfo[]>[] subInfos = new Map[5];
+  private DfaState[] states = new DfaState[5];
+  // ends[i] is the position of the last visit of states[i] in a row
+  private int[] ends = new int[5];
   private boolean haveSubs;
 
-  // I allow access to this to allow a client to trim back to a
-  // smaller size. The client is anyway only Dfa.match().
-  int size = 0;
+  // number of states stored and number of characters seen, i.e. the
+  // position of the next state added
+  private int size = 0;
+  private int visits = 0;
 
   // These are used and reused in analyze(). Currently occupied space
-  // is kept there locally. Variable posPairs contains start/end pairs
-  // indicating a substring relating to a submatch. As long as only
-  // the start of a submatch was found, the end is kept at -1.
-  private FaSubinfo[] activeSubs = new FaSubinfo[5];
+  // is kept there locally. Variable activeSubs holds the codes (see
+  // FaSubinfo.code()) of developing submatches, posPairs contains
+  // start/end pairs indicating the respective substring. As long as
+  // only the start of a submatch was found, the end is kept at -1.
+  private int[] activeSubs = new int[5];
   private int[] posPairs = new int[10];
 
   /**********************************************************************/
   void reset() {
     size = 0;
+    visits = 0;
     haveSubs = false;
   }
   /**********************************************************************/
   void add(DfaState s) {
-    Map<FaAction,FaSubinfo[]> m = s.getSubinfos();
-    haveSubs |= (m!=null);
+    if( size>0 && !s.startsTags() ) {
+      DfaState last = states[size-1];
+      if( last==s || !s.hasTags() && !last.hasTags() ) {
+        ends[size-1] = visits++;
+        return;
+      }
+    }
+    haveSubs |= s.hasTags();
 
-    if (size>=subInfos.length) {
+    if (size>=states.length) {
       int newsize = size + 5 + size/10;
-      subInfos = Arrays.copyOf(subInfos, newsize);
+      states = Arrays.copyOf(states, newsize);
+      ends = Arrays.copyOf(ends, newsize);
     } 
-    subInfos[size] = m;
+    states[size] = s;
+    ends[size] = visits++;
 
     size += 1;
   }
   /**********************************************************************/
+  /**
+   * forgets the states visited from position <code>n</code> on, when
+   * the match turned out to be shorter than what was read.
+   */
+  void trim(int n) {
+    if( n>=visits ) return;
+    visits = n;
+    while( size>0 && (size==1 ? 0 : ends[size-2]+1)>=n ) size -= 1;
+    if( size>0 ) ends[size-1] = n-1;
+  }
+  /**********************************************************************/
   /**
    * <p>after a match, this is called to find those subgroups which
    * belong to <code>a</code>. The respective submatches are recorded
@@ -81,69 +120,59 @@ class SubmatchData {
     // exit.
     if( !haveSubs ) return;
 					 
-    //System.out.println("  analyzing for "+a+" (size="+size+") "+out);
     // This is tedious, because even when we fish for the specific
-    // action a, we get a list (in fact an FaSubinfo[]) back which can
-    // contain information on more than one submatch. As a
+    // action a, we get a list (in fact an int[] of codes) back which
+    // can contain information on more than one submatch. As a
     // consequence, we must be prepared to follow several developing
     // submatches in parallel.
-    // Developing submatches are stored in activeSubs and posPairs
-    // which are fields of this object.
 
     // currently used space in activeSubs and posPairs is held here
     int used = 0;
 
-    // We should loop over all subInfos we have collected during
+    // We should loop over all states we have collected during
     // matching. Instead, however we use the minimum of the string
-    // length and 'size' to allow some minimal tampering with the text
-    // in an invoke()-callback before it is handed down to us for
-    // analysis. 
-    // Remember that Subinfos of 'null' were recorded to keep in sync
-    // with the number of characters recorded.
-    int analyseSize = size;
-    if( analyseSize>out.length()+1 ) analyseSize = out.length()+1;
-
-    for(int i=0; i<analyseSize; i++) {
-      // subInfos for action a at character i, may end up being null
-      FaSubinfo[] ary = null;
+    // length and the number of visits to allow some minimal tampering
+    // with the text in an invoke()-callback before it is handed down
+    // to us for analysis. A run of visits is analyzed at its last
+    // position, or the last one still analyzed.
+    int limit = out.length();
+    for(int k=0; k<size; k++) {
+      if( k>0 && ends[k-1]>=limit ) break;
+      int i = Math.min(ends[k], limit);
+
+      // codes for action a at character i, may end up being null
+      int[] ary = states[k].getTags(a);
 
       // length of the above such that 0 shields a null value of the
       // above. 
-      int hereLen = 0;
+      int hereLen = ary==null ? 0 : ary.length;
 
-      Map<FaAction,FaSubinfo[]> sub = subInfos[i];
-      if( sub!=null ) {
-	ary = sub.get(a);
-	if( ary!=null ) hereLen = ary.length;
-      }
-
-      // activeSubs as well as ary are sorted according to
-      // FaSubinfo.id, so we can proceed in a kind of merge-sort
+      // activeSubs as well as ary are sorted according to the
+      // subgraph id, so we can proceed in a kind of merge-sort
       // fashion.
-      //   System.out.println("   "+i+" has "+hereLen+" subbies");
       int u = 0, n = 0;
       while( u<used || n<hereLen ) {
 	int c;
 	if( u==used ) c=1;
 	else if( n==hereLen ) c=-1;
-	else c = activeSubs[u].compareTo(ary[n]);
+	else c = FaSubinfo.codeId(activeSubs[u])-FaSubinfo.codeId(ary[n]);
 
 	if( c==0 ) {
 	  // u and n denote the same subgroup, i.e. u is being
 	  // extended if n is an inner node
-	  if( ary[n].isInner() ) {
-	    if( ary[n].isStop() ) posPairs[2*u+1] = i;
+	  int code = ary[n];
+	  if( FaSubinfo.isInner(code) ) {
+	    if( FaSubinfo.isStop(code) ) posPairs[2*u+1] = i;
 	    u += 1;
 	    n += 1;
 	    continue;
 	  } 
-	  if( ary[n].isStart() ) {
+	  if( FaSubinfo.isStart(code) ) {
 	    // ok, lets restart u after possibly recording it, if it
 	    // had a stop before
 	    if( posPairs[2*u+1]>=0 ) {
 	      out.addPart(posPairs[2*u], posPairs[2*u+1],
-			  activeSubs[u].id());
-	      //System.out.println("restart ("+activeSubs[u].id()+"):"+out);
+			  FaSubinfo.codeToId(activeSubs[u]));
 	    }
 	    posPairs[2*u] = i;
 	    posPairs[2*u+1] = -1;
@@ -162,8 +191,7 @@ class SubmatchData {
 	  // recorded. 
 	  if( posPairs[2*u+1]>=0 ) {
 	    out.addPart(posPairs[2*u], posPairs[2*u+1],
-			activeSubs[u].id());
-	    //System.out.println("discontinued:"+out);
+			FaSubinfo.codeToId(activeSubs[u]));
 	  }
 	  ArrayUtil.delete(activeSubs, u, 1);
 	  ArrayUtil.delete(posPairs, 2*u, 2);
@@ -171,12 +199,10 @@ class SubmatchData {
 	} else {
 	  // the group of n is new and needs to be initialized, if it
 	  // is a start node
-	  if( ary[n].isStart() ) {
-	    //System.out.println("Starting "+ary[n].getID()+" at "+i);
+	  if( FaSubinfo.isStart(ary[n]) ) {
 	    if( used>=activeSubs.length ) {
-	      activeSubs 
-		= (FaSubinfo[])ArrayUtil.resize(activeSubs, used+5);
-	      posPairs = ArrayUtil.resize(posPairs, used+10);
+	      activeSubs = ArrayUtil.resize(activeSubs, used+5);
+	      posPairs = ArrayUtil.resize(posPairs, 2*used+10);
 	    }
 	    ArrayUtil.insert(activeSubs, u, ary[n]);
 	    ArrayUtil.insert(posPairs, 2*u, i);
@@ -192,13 +218,10 @@ class SubmatchData {
     for(int u=0; u<used; u++) {
       if( posPairs[2*u+1]>=0 ) {
 	out.addPart(posPairs[2*u], posPairs[2*u+1],
-		    activeSubs[u].id());
-	//System.out.println("at end:"+out);
+		    FaSubinfo.codeToId(activeSubs[u]));
       }
     }
 
   }
   /**********************************************************************/
 }
-
-  
@@ -0,0 +1,139 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>runs a <code>Dfa</code> and a {@link TermMatcher} over the same
+ * input as if they were one automaton, see {@link Dfa#withTerms
+ * Dfa.withTerms()}. The longest of their matches wins, and matches of
+ * the same length compete by priority like the actions of a single
+ * <code>Dfa</code>.</p>
+ */
+final class TermDfa extends Dfa {
+  private static final long serialVersionUID = 1L;
+
+  private final Dfa dfa;
+  private final TermMatcher terms;
+
+  private final int minMatchLength;
+  private final String firstChars;
+  /**********************************************************************/
+  TermDfa(Dfa dfa, TermMatcher terms) {
+    super(new DfaState(), dfa.fmb, dfa.eofAction);
+    this.dfa = dfa;
+    this.terms = terms;
+    this.matchMax = dfa.matchMax;
+
+    int min = dfa.getMinMatchLength();
+    int tmin = terms.getMinMatchLength();
+    if( min<0 || tmin>=0 && tmin<min ) min = tmin;
+    this.minMatchLength = min;
+
+    List<char[]> ranges = new ArrayList<>();
+    for(String fc : new String[] {dfa.getFirstChars(),
+                                  terms.getFirstChars()}) {
+      for(int i=0; i<fc.length(); i+=2) {
+        ranges.add(new char[] {fc.charAt(i), fc.charAt(i+1)});
+      }
+    }
+    this.firstChars = DfaUnion.mergeRanges(ranges);
+  }
+  /**********************************************************************/
+  @Override
+  public boolean hasSubmatches() { return false; }
+  @Override
+  public int getMinMatchLength() { return minMatchLength; }
+  // separators between words may be arbitrarily long
+  @Override
+  public int getMaxMatchLength() { return -1; }
+  @Override
+  public int getTerminalStopCount() { return dfa.getTerminalStopCount(); }
+  @Override
+  public String getFirstChars() { return firstChars; }
+  @Override
+  public boolean matchesEmpty() { return dfa.matchesEmpty(); }
+  /**********************************************************************/
+  @Override
+  public Nfa toNfa(double memoryForSpeedTradeFactor) {
+    throw new UnsupportedOperationException("terms are no Nfa");
+  }
+  @Override
+  public synchronized DfaProfile createProfile() {
+    throw new UnsupportedOperationException("profile the Dfa instead");
+  }
+  @Override
+  public Dfa optimize(DfaProfile profile, double hotFraction,
+                      int maxTableSpan) {
+    throw new UnsupportedOperationException("optimize the Dfa instead");
+  }
+  @Override
+  public Dfa update(Nfa added, Nfa removed) {
+    throw new UnsupportedOperationException("update the Dfa instead");
+  }
+  @Override
+  public void toDot(PrintStream out) {
+    throw new UnsupportedOperationException("print the Dfa instead");
+  }
+  /**********************************************************************/
+  @Override
+  boolean canStart(char ch) {
+    return dfa.canStart(ch) || terms.canStart(ch);
+  }
+  /**********************************************************************/
+  @Override
+  FaAction match(CharSource in, StringBuilder out, SubmatchData smd,
+                 long rest)
+    throws IOException
+  {
+    // there are no submatches, so smd stays empty
+    smd.reset();
+    return match(in, out, rest);
+  }
+  @Override
+  FaAction matchPlain(CharSource in, StringBuilder out) throws IOException {
+    return match(in, out, -1);
+  }
+  /**********************************************************************/
+  // neither match may be longer than rest, unless that is negative
+  private FaAction match(CharSource in, StringBuilder out, long rest)
+    throws IOException
+  {
+    int start = out.length();
+    FaAction a = rest<0 ? dfa.matchPlain(in, out)
+        : dfa.match(in, out, dummySmd, rest);
+    if( a==DfaRun.EOF ) return a;
+    int aLen = a==null ? -1 : out.length()-start;
+
+    // both read the same input, so give it back for the terms
+    in.pushBack(out, start);
+    FaAction b = terms.match(in, out, rest);
+    int bLen = b==null ? -1 : out.length()-start;
+
+    if( bLen>aLen ) return b;
+    if( bLen==aLen ) return DfaUnion.compete(a, b);
+
+    // the match of the dfa is longer and out holds a prefix of it
+    while( out.length()-start<aLen ) out.append((char)in.read());
+    return a;
+  }
+}
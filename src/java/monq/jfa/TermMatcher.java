@@ -0,0 +1,438 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import monq.jfa.actions.Copy;
+
+/**
+ * <p>matches multi word terms word by word instead of character by
+ * character. A term is given as a list of regular expressions, one
+ * per word. It matches the concatenation of its words, separated by
+ * matches of a separator expression and followed by a trailing
+ * context expression, just as one regular expression put together
+ * this way would.</p>
+ *
+ * <p>Large dictionaries of multi word terms, for example those of
+ * {@link monq.programs.DictFilter}, use few distinct words in many
+ * combinations. Compiled into one <code>Dfa</code> character by
+ * character, every combination of words and separators needs its own
+ * states. Here, each distinct word is compiled only once into a
+ * <code>Dfa</code> which reports the set of words matching at a
+ * position by {@link IdAction}s, and the terms form a trie over word
+ * numbers.</p>
+ *
+ * <p>A separator in front of the first or behind the last word of a
+ * term is given as an empty string in its list of words.</p>
+ *
+ * <p>Run a <code>TermMatcher</code> together with the rest of a rule
+ * set by means of {@link Dfa#withTerms Dfa.withTerms()}.</p>
+ *
+ * <p><b>Note:</b> Terms must be added before the
+ * <code>TermMatcher</code> is used. Matching is thread safe.</p>
+ */
+public class TermMatcher implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final Dfa sepDfa;
+  private final Dfa trailDfa;
+
+  // number of each distinct word expression, while terms are added
+  private transient Map<String,Integer> wordIds = new HashMap<>();
+  private transient Nfa wordNfa = new Nfa(Nfa.NOTHING);
+  private volatile Dfa wordDfa = null;
+  private int wordCount = 0;
+
+  // the word id standing for a separator at the start or end of a term
+  private static final int SEP = -1;
+
+  private final Node root = new Node(0);
+  private int nodeCount = 1;
+
+  private static final ThreadLocal<Scratch> SCRATCH =
+      new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() { return new Scratch(); }
+      };
+  /**********************************************************************/
+  /**
+   * <p>creates an empty <code>TermMatcher</code>.</p>
+   *
+   * @param sepRe is the regular expression matching between two words
+   * of a term
+   * @param trailRe is the regular expression matching behind the last
+   * word of a term. Its match is part of the match of the term.
+   */
+  public TermMatcher(String sepRe, String trailRe) throws ReSyntaxException {
+    try {
+      sepDfa = new Nfa(sepRe, Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+      trailDfa = new Nfa(trailRe, Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    } catch( CompileDfaException e ) {
+      throw new Error("impossible", e);
+    }
+  }
+  /**********************************************************************/
+  /**
+   * <p>adds a term given by the regular expressions of its words. If
+   * the same words are added more than once, the actions compete like
+   * the actions of a <code>Dfa</code> for the same match.</p>
+   *
+   * @throws IllegalStateException if <code>this</code> was already
+   * used for matching
+   * @throws IllegalArgumentException if <code>words</code> is empty
+   * or has an empty string other than at its start or end, or
+   * has no other strings
+   */
+  public TermMatcher add(List<String> words, FaAction action)
+    throws ReSyntaxException
+  {
+    if( wordIds==null ) {
+      throw new IllegalStateException("terms must be added before matching");
+    }
+    boolean empty = true;
+    for(String w : words) empty &= w.isEmpty();
+    if( empty ) throw new IllegalArgumentException("no words");
+    Node n = root;
+    int last = words.size()-1;
+    for(int i=0; i<=last; i++) {
+      String w = words.get(i);
+      Integer id;
+      if( w.isEmpty() ) {
+        if( i>0 && i<last ) {
+          throw new IllegalArgumentException("empty word within term");
+        }
+        id = SEP;
+      } else {
+        id = wordIds.get(w);
+      }
+      if( id==null ) {
+        id = wordCount;
+        wordNfa.or(w, new IdAction(id));
+        wordIds.put(w, id);
+        wordCount += 1;
+      }
+      Node next = n.child(id);
+      if( next==null ) {
+        next = new Node(nodeCount++);
+        n.addChild(id, next);
+      }
+      n = next;
+    }
+    n.action = n.action==null ? action : DfaUnion.compete(n.action, action);
+    return this;
+  }
+  /**********************************************************************/
+  /**
+   * <p>compiles the words added so far. This is done automatically when
+   * <code>this</code> is used for the first time.</p>
+   */
+  public synchronized TermMatcher compile() throws CompileDfaException {
+    if( wordDfa!=null ) return this;
+    // most words start a term, and looking them up by binary search
+    // in the root is the most frequent step of match()
+    Node[] dense = new Node[wordCount];
+    for(int i=0; i<root.words.length; i++) {
+      if( root.words[i]!=SEP ) dense[root.words[i]] = root.next[i];
+    }
+    root.dense = dense;
+    wordDfa = wordNfa.compile(DfaRun.UNMATCHED_COPY);
+    wordNfa = null;
+    wordIds = null;
+    return this;
+  }
+  /**********************************************************************/
+  /**
+   * <p>returns the number of distinct word expressions.</p>
+   */
+  public int getWordCount() { return wordCount; }
+
+  /**
+   * <p>returns the number of nodes of the trie of terms, including
+   * its root.</p>
+   */
+  public int getNodeCount() { return nodeCount; }
+
+  /**
+   * <p>returns the <code>Dfa</code> recognizing the words.</p>
+   */
+  public Dfa getWordDfa() { return compiled(); }
+  /**********************************************************************/
+  private Dfa compiled() {
+    Dfa result = wordDfa;
+    if( result!=null ) return result;
+    try {
+      return compile().wordDfa;
+    } catch( CompileDfaException e ) {
+      // IdActions always merge
+      throw new Error("impossible", e);
+    }
+  }
+  /**********************************************************************/
+  private void writeObject(java.io.ObjectOutputStream out)
+    throws IOException
+  {
+    compiled();
+    out.defaultWriteObject();
+  }
+  /**********************************************************************/
+  boolean canStart(char ch) {
+    if( compiled().getStart().follow(ch)!=null ) return true;
+    return root.child(SEP)!=null && sepDfa.getStart().follow(ch)!=null;
+  }
+  int getMinMatchLength() {
+    int min = compiled().getMinMatchLength();
+    if( min<0 ) return -1;
+    return min+Math.max(0, trailDfa.getMinMatchLength());
+  }
+  String getFirstChars() {
+    String result = compiled().getFirstChars();
+    if( root.child(SEP)==null ) return result;
+    List<char[]> ranges = new ArrayList<>();
+    for(String fc : new String[] {result, sepDfa.getFirstChars()}) {
+      for(int i=0; i<fc.length(); i+=2) {
+        ranges.add(new char[] {fc.charAt(i), fc.charAt(i+1)});
+      }
+    }
+    return DfaUnion.mergeRanges(ranges);
+  }
+  /**********************************************************************/
+  /**
+   * finds the longest term matching a prefix of the input like {@link
+   * Dfa#matchPlain}: the match is appended to out, all characters read
+   * beyond are pushed back, and the action is returned, or null if
+   * there is no match. If <code>rest</code> is not negative, the
+   * match is shorter than <code>rest</code>, as with the limit passed
+   * to {@link Dfa#match(CharSource,StringBuilder,SubmatchData,long)}.
+   */
+  FaAction match(CharSource in, StringBuilder out, long rest)
+    throws IOException
+  {
+    Dfa words = compiled();
+    Scratch sc = SCRATCH.get();
+    sc.reset(in, rest);
+
+    int bestLen = -1;
+    FaAction best = null;
+    sc.push(0, root);
+    while( sc.items>0 ) {
+      sc.items -= 1;
+      int pos = sc.pos[sc.items];
+      Node n = sc.nodes[sc.items];
+      if( n==root ) {
+        wordsAt(sc, words, pos, n);
+        Node sep = n.child(SEP);
+        if( sep!=null ) {
+          int count = sc.sep.collect(sc, sepDfa, pos);
+          for(int i=0; i<count; i++) sc.push(pos+sc.sep.lens[i], sep);
+        }
+        continue;
+      }
+      if( n.action!=null ) {
+        int count = sc.trail.collect(sc, trailDfa, pos);
+        for(int i=0; i<count; i++) {
+          int len = pos+sc.trail.lens[i];
+          if( len>bestLen ) {
+            bestLen = len;
+            best = n.action;
+          } else if( len==bestLen ) {
+            best = DfaUnion.compete(best, n.action);
+          }
+        }
+      }
+      if( n.words.length==0 ) continue;
+      // a separator word is the same as the one between two words
+      Node sep = n.child(SEP);
+      int count = sc.sep.collect(sc, sepDfa, pos);
+      for(int i=0; i<count; i++) {
+        wordsAt(sc, words, pos+sc.sep.lens[i], n);
+        if( sep!=null ) sc.push(pos+sc.sep.lens[i], sep);
+      }
+    }
+
+    sc.in = null;
+    if( best==null ) {
+      in.pushBack(sc.text, 0);
+      return null;
+    }
+    out.append(sc.text, 0, bestLen);
+    in.pushBack(sc.text, bestLen);
+    return best;
+  }
+  /**********************************************************************/
+  // pushes the children of n reached by the words matching at pos
+  private static void wordsAt(Scratch sc, Dfa words, int pos, Node n)
+    throws IOException
+  {
+    int count = sc.word.collect(sc, words, pos);
+    for(int i=0; i<count; i++) {
+      for(int id : ((IdAction)sc.word.actions[i]).idList()) {
+        Node next = n.child(id);
+        if( next!=null ) sc.push(pos+sc.word.lens[i], next);
+      }
+    }
+  }
+  /**********************************************************************/
+  private static final class Node implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final int id;
+    int[] words = new int[0];
+    Node[] next = new Node[0];
+    FaAction action = null;
+    // the children indexed by word, set up by compile() for the root
+    Node[] dense = null;
+    Node(int id) { this.id = id; }
+
+    Node child(int word) {
+      if( dense!=null && word>=0 ) {
+        return word<dense.length ? dense[word] : null;
+      }
+      int i = Arrays.binarySearch(words, word);
+      return i<0 ? null : next[i];
+    }
+    void addChild(int word, Node n) {
+      int i = -Arrays.binarySearch(words, word)-1;
+      int L = words.length;
+      int[] w = new int[L+1];
+      Node[] nx = new Node[L+1];
+      System.arraycopy(words, 0, w, 0, i);
+      System.arraycopy(next, 0, nx, 0, i);
+      w[i] = word;
+      nx[i] = n;
+      System.arraycopy(words, i, w, i+1, L-i);
+      System.arraycopy(next, i, nx, i+1, L-i);
+      words = w;
+      next = nx;
+    }
+  }
+  /**********************************************************************/
+  // the lengths of all prefixes of the input from a position on
+  // which a Dfa matches, together with their actions
+  private static final class Stops {
+    int[] lens = new int[8];
+    FaAction[] actions = new FaAction[8];
+
+    int collect(Scratch sc, Dfa dfa, int pos) throws IOException {
+      int count = 0;
+      DfaState s = dfa.getStart();
+      int len = 0;
+      while( s!=null ) {
+        if( s.getAction()!=null ) {
+          if( count==lens.length ) {
+            lens = Arrays.copyOf(lens, 2*count);
+            actions = Arrays.copyOf(actions, 2*count);
+          }
+          lens[count] = len;
+          actions[count] = s.getAction();
+          count += 1;
+        }
+        int ch = sc.charAt(pos+len);
+        if( ch<0 ) break;
+        s = s.follow((char)ch);
+        len += 1;
+      }
+      return count;
+    }
+  }
+  /**********************************************************************/
+  // per thread state of match()
+  private static final class Scratch {
+    final StringBuilder text = new StringBuilder();
+    CharSource in;
+    boolean eof;
+    // no character at or beyond this position is read
+    int limit;
+
+    // positions and trie nodes still to be explored
+    int[] pos = new int[16];
+    Node[] nodes = new Node[16];
+    int items;
+    // the pairs of position and node id pushed, as an open addressing
+    // hash set of keys made by key(), where 0 marks a free slot
+    long[] seen = new long[64];
+    int seenCount;
+
+    final Stops word = new Stops();
+    final Stops sep = new Stops();
+    final Stops trail = new Stops();
+
+    void reset(CharSource in, long rest) {
+      this.in = in;
+      text.setLength(0);
+      eof = false;
+      limit = rest<0 || rest>Integer.MAX_VALUE ? Integer.MAX_VALUE
+          : (int)rest-1;
+      items = 0;
+      if( seenCount>0 ) {
+        if( seen.length>1024 ) seen = new long[64];
+        else Arrays.fill(seen, 0L);
+        seenCount = 0;
+      }
+    }
+    void push(int p, Node n) {
+      if( !addSeen((((long)p<<32)|n.id)+1) ) return;
+      if( items==pos.length ) {
+        pos = Arrays.copyOf(pos, 2*items);
+        nodes = Arrays.copyOf(nodes, 2*items);
+      }
+      pos[items] = p;
+      nodes[items] = n;
+      items += 1;
+    }
+    private boolean addSeen(long key) {
+      if( 2*(seenCount+1)>seen.length ) {
+        long[] old = seen;
+        seen = new long[2*old.length];
+        for(long k : old) if( k!=0 ) insert(k);
+      }
+      if( !insert(key) ) return false;
+      seenCount += 1;
+      return true;
+    }
+    private boolean insert(long key) {
+      int mask = seen.length-1;
+      long h = key*0x9E3779B97F4A7C15L;
+      int i = (int)(h^(h>>>32)) & mask;
+      while( seen[i]!=0 ) {
+        if( seen[i]==key ) return false;
+        i = (i+1)&mask;
+      }
+      seen[i] = key;
+      return true;
+    }
+    int charAt(int p) throws IOException {
+      if( p>=limit ) return -1;
+      while( p>=text.length() ) {
+        if( eof ) return -1;
+        int ch = in.read();
+        if( ch<0 ) {
+          eof = true;
+          return -1;
+        }
+        text.append((char)ch);
+      }
+      return text.charAt(p);
+    }
+  }
+}
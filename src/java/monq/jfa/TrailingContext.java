@@ -0,0 +1,143 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+
+package monq.jfa;
+
+/**
+ * <p>wraps the action of an expression with a trailing context like
+ * <code>r(?=s)</code>. The automaton matches <code>rs</code> and the
+ * matching loops of the <code>Dfa</code> classes cut off what was
+ * matched by <code>s</code> before they push back what they read
+ * beyond the match, so the trailing context is returned to the input
+ * together with that and the client sees only the match of
+ * <code>r</code>.</p>
+ *
+ * <p>If <code>s</code> has a fixed length, the cut is <code>give</code>
+ * characters before the end. Otherwise small automata for
+ * <code>r</code> and <code>s</code> find it after the match: the
+ * match of <code>r</code> is the longest prefix matched by
+ * <code>r</code> such that <code>s</code> matches the rest. This costs
+ * a second pass over the match for <code>r</code> and one over the
+ * rest for <code>s</code> at each end of <code>r</code>, so a
+ * fixed-length context is cheaper.</p>
+ */
+final class TrailingContext extends AbstractFaAction {
+  private static final long serialVersionUID = 1L;
+
+  final FaAction client;
+  // length of s or -1, in which case r and s are used
+  final int give;
+  private final Dfa r;
+  private final Dfa s;
+  /**********************************************************************/
+  TrailingContext(FaAction client, int give) {
+    this(client, give, null, null);
+  }
+  TrailingContext(FaAction client, Dfa r, Dfa s) {
+    this(client, -1, r, s);
+  }
+  private TrailingContext(FaAction client, int give, Dfa r, Dfa s) {
+    this.client = client;
+    this.give = give;
+    this.r = r;
+    this.s = s;
+    if( client instanceof AbstractFaAction ) {
+      this.priority = ((AbstractFaAction)client).priority;
+    }
+  }
+  /**********************************************************************/
+  /**
+   * returns a trailing context like this one for another client.
+   */
+  TrailingContext wrap(FaAction other) {
+    return new TrailingContext(other, give, r, s);
+  }
+  /**********************************************************************/
+  /**
+   * returns the end of the match of <code>r</code> if the whole match
+   * is <code>text</code> from <code>start</code> to <code>end</code>.
+   */
+  int end(CharSequence text, int start, int end) {
+    if( s==null ) return Math.max(start, end-give);
+    int result = end;
+    DfaState d = r.getStart();
+    for(int i=start; i<end; i++) {
+      d = d.follow(text.charAt(i));
+      if( d==null ) break;
+      if( d.getAction()!=null && matches(s, text, i+1, end) ) result = i+1;
+    }
+    return result;
+  }
+  // tells whether dfa matches text from start to end exactly
+  private static boolean matches(Dfa dfa, CharSequence text,
+                                 int start, int end) {
+    DfaState d = dfa.getStart();
+    for(int i=start; i<end && d!=null; i++) d = d.follow(text.charAt(i));
+    return d!=null && d.getAction()!=null;
+  }
+  /**********************************************************************/
+  @Override
+  public void invoke(StringBuilder yytext, int start, DfaRun runner)
+    throws CallbackException
+  {
+    client.invoke(yytext, start, runner);
+  }
+  /**********************************************************************/
+  /**
+   * <p>merges like the clients if the trailing contexts are the same,
+   * otherwise by priority.</p>
+   */
+  @Override
+  public FaAction mergeWith(FaAction other) {
+    if( equals(other) ) return this;
+    if( other instanceof TrailingContext ) {
+      TrailingContext o = (TrailingContext)other;
+      if( sameContext(o) ) {
+        FaAction m = client.mergeWith(o.client);
+        if( m==null ) m = o.client.mergeWith(client);
+        if( m==client ) return this;
+        if( m==o.client ) return o;
+        if( m!=null ) return wrap(m);
+      }
+    }
+    return super.mergeWith(other);
+  }
+  @Override
+  public boolean mergesByPriority() {
+    return client instanceof AbstractFaAction
+      && ((AbstractFaAction)client).mergesByPriority();
+  }
+  // automata for r and s are only the same if they are identical
+  private boolean sameContext(TrailingContext o) {
+    return give==o.give && r==o.r && s==o.s;
+  }
+  /**********************************************************************/
+  @Override
+  public boolean equals(Object other) {
+    if( !(other instanceof TrailingContext) ) return false;
+    TrailingContext o = (TrailingContext)other;
+    return sameContext(o) && client.equals(o.client);
+  }
+  @Override
+  public int hashCode() {
+    return 31*client.hashCode()+give;
+  }
+  @Override
+  public String toString() {
+    return client+"(?="+(s==null ? Integer.toString(give) : "*")+")";
+  }
+}
@@ -23,13 +23,17 @@ import java.util.Map;
 /**
  * <p>counts matches and can then be used with {@link If} to perform
  * conditional actions depending on whether a threshold count is
- * reached. To retrieve and store the current count,
- * the callback obtains a <code>Map</code> from a {@link MapProvider}
- * that has to be in the {@link monq.jfa.DfaRun#clientData} field of
- * the calling <code>DfaRun</code>. The value is stored in the
- * <code>Map</code> with the key specified in the constructor. The
- * same key may be used in a {@link Printf} callback's format like
- * <code>"%(key)</code> to insert the value into the output stream.</p>
+ * reached. If the {@link monq.jfa.DfaRun#clientData} field of the
+ * calling <code>DfaRun</code> contains a {@link MapProvider}, the
+ * counter is stored in its <code>Map</code> with the key specified in
+ * the constructor and looked up there on every use. The same key may
+ * then be used in a {@link Printf} callback's format like
+ * <code>"%(key)</code> to insert the value into the output stream,
+ * other <code>Count</code> objects with the same key share the
+ * counter, and clearing the <code>Map</code> or replacing the
+ * <code>MapProvider</code> starts the count over. Without a
+ * <code>MapProvider</code> the counter is kept in a {@link
+ * monq.jfa.RunLocal} of the <code>DfaRun</code>.</p>
  *
  * <p>Whenever <code>invoke</code> is called for a
  * successfull match, the counter is incremented by one. 
@@ -53,6 +57,12 @@ import java.util.Map;
 public class Count extends AbstractFaAction {
   private final String key;
 
+  // the counter of runs without a MapProvider
+  private final RunLocal<Int> counters = new RunLocal<Int>() {
+    @Override
+    protected Int initialValue(DfaRun r) { return new Int(); }
+  };
+
   private static final class Int { 
     int value = 0;
     public String toString() { return Integer.toString(value); }
@@ -65,8 +75,8 @@ public class Count extends AbstractFaAction {
   public Count(String key) { this.key = key; }
   /**********************************************************************/
   private Int getCounter(DfaRun r) {
-    MapProvider mp = (MapProvider)r.clientData;
-    Map<Object,Object> m = mp.getMap();
+    if( !(r.clientData instanceof MapProvider) ) return counters.get(r);
+    Map<Object,Object> m = ((MapProvider)r.clientData).getMap();
     Int i = (Int)m.get(key);
     if( i==null ) m.put(key, i=new Int());
     return i;
@@ -77,9 +87,8 @@ public class Count extends AbstractFaAction {
   }
   /**********************************************************************/
   /**
-   * <p>given the <code>DfaRun</code> which has just the right
-   * <code>MapProvider</code> in its <code>clientData</code> field,
-   * this returns the current counter value.</p>
+   * <p>returns the current counter value of the given
+   * <code>DfaRun</code>.</p>
    */
   public int getValue(DfaRun r) { return getCounter(r).value; }
   /**********************************************************************/
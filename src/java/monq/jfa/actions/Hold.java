@@ -28,14 +28,18 @@ import java.util.*;
  * the output.</p>
  *
  * <p>This callback sets {@link monq.jfa.DfaRun#collect} to
- * <code>true</code> and records the position.  To store the position,
- * the callback obtains a <code>Map</code> from a {@link MapProvider}
- * that has to be in the {@link monq.jfa.DfaRun#clientData} field of
- * the calling <code>DfaRun</code>. The <code>Hold</code> object
- * stores only one entry in the <code>Map</code> with itself as the
- * key. Consequently you may use the <code>Map</code> in other
- * callbacks to store information that may be necessary to make the
- * later decision whether to ship or drop the text.</p>
+ * <code>true</code> and records the position. If the {@link
+ * monq.jfa.DfaRun#clientData} field of the calling
+ * <code>DfaRun</code> contains a {@link MapProvider}, the position is
+ * stored in its <code>Map</code>. The <code>Hold</code> object stores
+ * only one entry in the <code>Map</code> with itself as the key, so
+ * clearing the <code>Map</code> or replacing the
+ * <code>MapProvider</code> forgets the positions recorded, and you
+ * may use the <code>Map</code> in other callbacks to store
+ * information that may be necessary to make the later decision
+ * whether to ship or drop the text. Without a
+ * <code>MapProvider</code> the position is kept in a {@link
+ * monq.jfa.RunLocal} of the <code>DfaRun</code>.</p>
  *
  * <p>At the point where the decision can be made, use the callback
  * generated by either {@link #drop drop()} or {@link #ship ship()} to
@@ -61,6 +65,14 @@ import java.util.*;
  */
 public class Hold extends AbstractFaAction {
 
+  // the stacks of runs without a MapProvider
+  private final RunLocal<List<StackElem>> stacks =
+    new RunLocal<List<StackElem>>() {
+      @Override
+      protected List<StackElem> initialValue(DfaRun r) {
+	return new ArrayList<>();
+      }
+    };
 
   private static class StackElem {
     // state the calling Dfa was in when calling us
@@ -76,14 +88,19 @@ public class Hold extends AbstractFaAction {
   }
   /**********************************************************************/
   public void invoke(StringBuilder yytext, int start, DfaRun r) {
+    getStack(r).add(new StackElem(r.collect, start));
+    r.collect = true;
+  }
+  /**********************************************************************/
+  private List<StackElem> getStack(DfaRun r) {
+    if( !(r.clientData instanceof MapProvider) ) return stacks.get(r);
     Map<Object,Object> m = ((MapProvider)(r.clientData)).getMap();
     @SuppressWarnings("unchecked")
     List<StackElem> stack = (List<StackElem>)m.get(this);
     if( stack==null ) {
       m.put(this, stack=new ArrayList<>());
     }
-    stack.add(new StackElem(r.collect, start));
-    r.collect = true;
+    return stack;
   }
   /**********************************************************************/
   /**
@@ -96,11 +113,9 @@ public class Hold extends AbstractFaAction {
   }
   /**********************************************************************/
   private StackElem peek(DfaRun r, boolean pop) {
-    Map<Object,Object> m = ((MapProvider)(r.clientData)).getMap();
-    @SuppressWarnings("unchecked")
-    List<StackElem> stack = (List<StackElem>)m.get(this);
-    int l = -1;
-    if( stack==null || (l=stack.size())==0 ) {
+    List<StackElem> stack = getStack(r);
+    int l = stack.size();
+    if( l==0 ) {
       throw new 
 	IllegalStateException("no current start position available");
     }
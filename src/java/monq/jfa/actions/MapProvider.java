@@ -23,9 +23,11 @@ import java.util.Map;
  * monq.jfa.FaAction} callbacks to perform their task. When the
  * <code>invoke()</code> method of a such a callback is called, it
  * expects a <code>MapProvider</code> in the {@link
- * monq.jfa.DfaRun#clientData} object passed in. Examples are {@link
- * Hold}, {@link Count} and {@link Store} while {@link Printf} uses
- * the MapProvider only if available.</p>
+ * monq.jfa.DfaRun#clientData} object passed in. An example is {@link
+ * Store}, while {@link Count} and {@link Printf} use the
+ * MapProvider only if available. State private to an action is
+ * better kept in a {@link monq.jfa.RunLocal}, which does not need a
+ * hash lookup.</p>
  */
 public interface MapProvider {
   /**
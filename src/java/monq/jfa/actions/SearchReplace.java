@@ -26,7 +26,7 @@ import monq.jfa.*;
  * @version $Revision: 1.9 $, $Date: 2005-07-08 13:01:26 $
  */
 public class SearchReplace extends AbstractFaAction {
-  private final Dfa dfa;
+  private final ChildRun child;
   private final int count;
   private final TextSplitter splitter;
   private final Formatter f;
@@ -59,7 +59,7 @@ public class SearchReplace extends AbstractFaAction {
     this.splitter = sp;
     this.count = count;
     this.f = fmt;
-    this.dfa = new Nfa(regexp, new AbstractFaAction() {
+    Dfa dfa = new Nfa(regexp, new AbstractFaAction() {
 	public void invoke(StringBuilder out, int start, DfaRun r) 
 	  throws CallbackException
 	{
@@ -78,6 +78,16 @@ public class SearchReplace extends AbstractFaAction {
 	  f.format(out, store, null);
 	}
       }).compile(DfaRun.UNMATCHED_COPY);
+    this.child = new ChildRun(dfa) {
+	@Override
+	protected DfaRun initialValue(DfaRun parent) {
+	  DfaRun r = super.initialValue(parent);
+	  Info info = new Info();
+	  if( splitter!=null ) info.ts = new TextStore();
+	  r.clientData = info;
+	  return r;
+	}
+      };
   }
   /**
    * <p>calls the four parameter constructor with <code>sp=null</code> and
@@ -101,21 +111,13 @@ public class SearchReplace extends AbstractFaAction {
   private static final class Info {
     public TextStore ts = null;
     public int count;
-    public Info(int count) { this.count = count; }
   }
   /*******************************************************************/
   public void invoke(StringBuilder out, int start, DfaRun runner) {
-    CharSequenceCharSource in = 
-      new CharSequenceCharSource(out.substring(start));
-    DfaRun r = new DfaRun(dfa, in);
-    Info info = new Info(count);
-
-    if( splitter!=null ) info.ts = new TextStore();
-    r.clientData = info;
-    out.setLength(start);
+    DfaRun r = child.get(runner);
+    ((Info)r.clientData).count = count;
     try {
-      r.setIn(in);
-      r.filter(out);
+      r.filter(out, start);
     } catch( java.io.IOException e ) {
       ///CLOVER:OFF
       throw new Error("impossible");
@@ -123,4 +125,3 @@ public class SearchReplace extends AbstractFaAction {
     }
   }
 }
- 
@@ -0,0 +1,76 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa.actions;
+
+import monq.jfa.*;
+
+/**
+ * <p>implements an {@link FaAction} which switches the calling
+ * {@link DfaRun} to another start condition of its {@link Dfa}, as
+ * set up by {@link Dfa#withStartConditions
+ * Dfa.withStartConditions()}. The example given for {@link SwitchDfa}
+ * looks like this with start conditions:</p><pre>
+ *   Dfa skip = new Nfa(rIn, new SwitchCondition("work", Drop.DROP))
+ *                  .or(  other stuff )
+ *                  .compile(DfaRun.UNMATCHED_DROP);
+ *   Dfa work = new Nfa(rOut, new SwitchCondition("skip", Drop.DROP))
+ *                  .or(  other stuff )
+ *                  .compile(DfaRun.UNMATCHED_COPY);
+ *   Map&lt;String,Dfa&gt; conditions = new LinkedHashMap&lt;&gt;();
+ *   conditions.put("skip", skip);
+ *   conditions.put("work", work);
+ *   DfaRun r = new DfaRun(Dfa.withStartConditions(conditions), ...);</pre>
+ *
+ * <p>The conditions are referred to by name, so no set up is needed
+ * after compilation, and the automata share their common states.</p>
+ */
+public class SwitchCondition extends AbstractFaAction {
+  private static final long serialVersionUID = 1L;
+
+  private final String condition;
+  private final FaAction action;
+
+  /**
+   * <p>creates an {@link FaAction} to switch the calling
+   * <code>DfaRun</code> to the start condition with the given name
+   * and then invoke <code>action</code>, if it is not
+   * <code>null</code>. Like for {@link SwitchDfa}, without action the
+   * triggering text shows up in the output.</p>
+   */
+  public SwitchCondition(String condition, FaAction action) {
+    this.condition = condition;
+    this.action = action;
+  }
+  /**
+   * <p>calls the 2 parameter constructor with
+   * <code>action==null</code>.</p>
+   */
+  public SwitchCondition(String condition) { this(condition, null); }
+
+  /**
+   * returns the name of the start condition switched to.
+   */
+  public String getCondition() { return condition; }
+
+  @Override
+  public void invoke(StringBuilder out, int start, DfaRun r)
+    throws CallbackException
+  {
+    r.setStartCondition(condition);
+    if( action!=null ) action.invoke(out, start, r);
+  }
+}
@@ -28,6 +28,8 @@ import monq.ie.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>
@@ -84,6 +86,15 @@ import java.util.*;
  * with {@link Term2Re#convert Term2Re.convert()}. Note in particular that
  * terms are matched with a one character trailing context.
  * </p>
+ * <dl>
+ * <dt>edits</dt>
+ * <dd>allows the term to be matched with the given number of edits,
+ * i.e. insertions, deletions or substitutions of letters and digits,
+ * as is typical for text obtained by OCR. The automaton is built with
+ * {@link monq.jfa.Nfa#fuzzy Nfa.fuzzy()} instead of enumerating
+ * spelling variants. Such terms are never matched word by word and
+ * are not split into shards.</dd>
+ * </dl>
  *
  * <h3>The <code>&lt;r&gt;</code> element</h3>
  * <p>
@@ -115,12 +126,76 @@ import java.util.*;
  * changed with {@link #setOutputEncoding setOutputEncoding()}.
  * </p>
  *
+ * <h3>Reloading the dictionary</h3>
+ * <p>
+ * {@link #reload reload()} compiles a changed dictionary and then
+ * atomically replaces the <code>Dfa</code> used by {@link #createRun}
+ * and {@link #createService createService()}. Runs and services
+ * created before continue on the old <code>Dfa</code> until they are
+ * done, so a server need not be restarted and loses no work. {@link
+ * #watch watch()} reloads whenever the dictionary file changed and
+ * then stayed the same for one more check, and on the command line, a
+ * connection from the local host to the control port given with
+ * <code>-cp</code> triggers a reload, unless one is already running.
+ * </p>
+ *
+ * <h3>Terms matched word by word</h3>
+ * <p>
+ * Every <code>&lt;t&gt;</code> element becomes a regular expression
+ * which allows for variations of each word and for separators
+ * between them. In a large dictionary, these expressions make the
+ * <code>Dfa</code> huge, although they use comparatively few
+ * distinct words. With the <code>tokens</code> parameter of the
+ * constructor, the terms are instead compiled word by word into a
+ * {@link monq.jfa.TermMatcher}, which finds the same matches with a
+ * small automaton for the words and a trie of terms over them. This
+ * compiles faster, but filtering is about 3 times slower, so it is
+ * not the default.
+ * </p>
+ *
+ * <h3>Nested and overlapping matches</h3>
+ * <p>
+ * The filter marks up the leftmost longest match and continues
+ * behind it, so a term within a longer one, like
+ * <code>kinase</code> in <code>protein kinase C</code>, is not
+ * found. With {@link #setOverlapping setOverlapping()}, services
+ * created report all matches, one per line with the start and end
+ * offset of the match in characters, followed by the filled
+ * template. Matches starting within a word are not reported, unless
+ * the catch-all word was suppressed.
+ * </p>
+ *
+ * <h3>Very large dictionaries</h3>
+ * <p>
+ * If a dictionary is too large to be compiled into one
+ * <code>Dfa</code>, the terms and regular expressions can be split into
+ * shards which are compiled separately, in parallel, and then run in
+ * lock-step with {@link Dfa#union Dfa.union()}. The output is the
+ * same, while the filter does a bit more work per character.
+ * </p>
+ *
  * @author &copy; 2004 Harald Kirsch
  */
 public class DictFilter implements ServiceFactory {
 
-  // the dictionary Dfa. It is set up in a way that it can be reused. 
-  private Dfa dictDfa;
+  // the dictionary Dfa currently handed out. It is set up in a way
+  // that it can be reused and is replaced as a whole by reload().
+  private volatile Generation current;
+  // held while reload() compiles, so that the control port can tell
+  // whether a reload is running
+  private final ReentrantLock reloadLock = new ReentrantLock();
+
+  // the parameters needed to compile the dictionary again on reload()
+  private String inputType;
+  private String elemName;
+  private boolean verbose;
+  private boolean memDebug;
+  private boolean defaultWord;
+  private int shards = 1;
+  private boolean tokens = false;
+
+  // report all matches with an OverlapRun instead of filtering
+  private volatile boolean overlapping = false;
 
   // If the inputEncoding is null, it will
   // be guessed with monq.stuff.EncodingDetector
@@ -140,6 +215,76 @@ public class DictFilter implements ServiceFactory {
     this.outputEncoding = enc;
   }
   /**********************************************************************/
+  /**
+   * <p>makes {@link #createService createService()} report all
+   * matches, including nested and overlapping ones, instead of
+   * filtering the input. This is only available for input type
+   * <code>raw</code>.</p>
+   *
+   * @throws IllegalStateException if the input type is not
+   * <code>raw</code> or if terms are matched word by word
+   */
+  public void setOverlapping(boolean overlapping) {
+    if( overlapping && !"raw".equals(inputType) ) {
+      throw new IllegalStateException("overlapping matches are only "
+                                      +"reported for input type raw");
+    }
+    if( overlapping && tokens ) {
+      throw new IllegalStateException("overlapping matches are not "
+                                      +"reported for terms matched "
+                                      +"word by word");
+    }
+    this.overlapping = overlapping;
+  }
+  /**********************************************************************/
+  /**
+   * a compiled dictionary together with the number of services still
+   * working with it.
+   */
+  private static final class Generation {
+    final Dfa dfa;
+    final int number;
+    final AtomicInteger active = new AtomicInteger();
+    Generation(Dfa dfa, int number) {
+      this.dfa = dfa;
+      this.number = number;
+    }
+  }
+  /**********************************************************************/
+  /**
+   * <p>describes a {@link #reload reload()} of the dictionary.</p>
+   */
+  public static final class ReloadInfo {
+    /** number of the dictionary loaded, starting with 0 for the first */
+    public final int generation;
+    /** time in milliseconds to read and compile the dictionary */
+    public final long compileMillis;
+    /**
+     * heap in use before the new dictionary was compiled and after
+     * it replaced the old one, in bytes. As long as services run on
+     * the old dictionary, both are in memory.
+     */
+    public final long heapBefore, heapAfter;
+    /** number of services still running on the old dictionary */
+    public final int oldActive;
+
+    ReloadInfo(int generation, long compileMillis,
+               long heapBefore, long heapAfter, int oldActive) {
+      this.generation = generation;
+      this.compileMillis = compileMillis;
+      this.heapBefore = heapBefore;
+      this.heapAfter = heapAfter;
+      this.oldActive = oldActive;
+    }
+    @Override
+    public String toString() {
+      return "dictionary generation "+generation+" compiled in "
+        +compileMillis+"ms, heap in use "+(heapBefore>>20)+"MB before and "
+        +(heapAfter>>20)+"MB after, "+oldActive
+        +" services still running on the old dictionary";
+    }
+  }
+  /**********************************************************************/
   // used while parsing the mwt file.
   private static final class ReadHelper implements ContextStackProvider {
     private List<Object> stack = new ArrayList<>();
@@ -151,6 +296,14 @@ public class DictFilter implements ServiceFactory {
     // the dictionary Nfa filled up while reading the mwt file
     private Nfa dict;
 
+    // if the dictionary is compiled in shards, its expressions and
+    // actions are collected here instead of in dict
+    private List<String> regexes = null;
+    private List<FaAction> actions = null;
+
+    // if terms are matched word by word, they are added here
+    private TermMatcher terms = null;
+
     // print generated regexps to stderr, one per line if this is true
     private boolean verbose = false;
 
@@ -209,12 +362,205 @@ public class DictFilter implements ServiceFactory {
   {
     init(mwtFile, inputType, elemName, verbose, memDebug, defaultWord);
   }
+  /**
+   * <p>creates a <code>DictFilter</code> like {@link
+   * #DictFilter(Reader,String,String,boolean,boolean,boolean)}, but
+   * compiles the dictionary into the given number of shards, see
+   * above.</p>
+   */
+  public DictFilter(Reader mwtFile, String inputType, 
+		    String elemName, 
+		    boolean verbose, boolean memDebug,
+		    boolean defaultWord, int shards)
+    throws java.io.IOException, ReSyntaxException, CompileDfaException
+  {
+    if( shards<1 ) {
+      throw new IllegalArgumentException("shards must be positive");
+    }
+    this.shards = shards;
+    init(mwtFile, inputType, elemName, verbose, memDebug, defaultWord);
+  }
+  /**
+   * <p>creates a <code>DictFilter</code> like {@link
+   * #DictFilter(Reader,String,String,boolean,boolean,boolean,int)},
+   * but if <code>tokens</code> is true, matches the terms word by
+   * word, see above.</p>
+   */
+  public DictFilter(Reader mwtFile, String inputType, 
+		    String elemName, 
+		    boolean verbose, boolean memDebug,
+		    boolean defaultWord, int shards, boolean tokens)
+    throws java.io.IOException, ReSyntaxException, CompileDfaException
+  {
+    if( shards<1 ) {
+      throw new IllegalArgumentException("shards must be positive");
+    }
+    this.shards = shards;
+    this.tokens = tokens;
+    init(mwtFile, inputType, elemName, verbose, memDebug, defaultWord);
+  }
   private void init(Reader mwtFile, String inputType, 
 		    String elemName, boolean verbose, 
 		    boolean memDebug, boolean defaultWord) 
     throws java.io.IOException, ReSyntaxException, CompileDfaException
   {
+    if( !"raw".equals(inputType) && !"xml".equals(inputType)
+        && !"elem".equals(inputType) ) {
+      throw new IllegalArgumentException
+	("`"+inputType+"' is not a valid input type");
+    }
+    this.inputType = inputType;
+    this.elemName = elemName;
+    this.verbose = verbose;
+    this.memDebug = memDebug;
+    this.defaultWord = defaultWord;
+    current = new Generation(compile(mwtFile), 0);
+  }
+  /********************************************************************/
+  /**
+   * <p>reads the dictionary from <code>mwtFile</code> and compiles it
+   * with the settings passed to the constructor, while the current
+   * dictionary stays in use. Then the new one atomically replaces
+   * it. Runs and services created afterwards use the new dictionary,
+   * those created before finish on the old one. If reading or
+   * compiling fails, the current dictionary is kept.</p>
+   *
+   * <p>Calls are serialized, so concurrent reloads do not compile at
+   * the same time.</p>
+   */
+  public ReloadInfo reload(Reader mwtFile)
+    throws java.io.IOException, ReSyntaxException, CompileDfaException
+  {
+    reloadLock.lock();
+    try {
+      Runtime rt = Runtime.getRuntime();
+      long heapBefore = rt.totalMemory()-rt.freeMemory();
+      long start = System.currentTimeMillis();
+      Dfa dfa = compile(mwtFile);
+      long compileMillis = System.currentTimeMillis()-start;
+      Generation old = current;
+      current = new Generation(dfa, old.number+1);
+      return new ReloadInfo(old.number+1, compileMillis, heapBefore,
+                            rt.totalMemory()-rt.freeMemory(),
+                            old.active.get());
+    } finally {
+      reloadLock.unlock();
+    }
+  }
+  /**
+   * <p>reloads the dictionary from the given file, guessing its
+   * encoding like {@link #main main()}.</p>
+   */
+  public ReloadInfo reload(File mwtFile)
+    throws java.io.IOException, ReSyntaxException, CompileDfaException
+  {
+    try (Reader rin = openMwt(mwtFile)) {
+      return reload(rin);
+    }
+  }
+  private static Reader openMwt(File mwtFile) throws IOException {
+    InputStream in = 
+      new BufferedInputStream(new java.io.FileInputStream(mwtFile));
+    String mwtEnc = monq.stuff.EncodingDetector.detect(in);
+    return new InputStreamReader(in, mwtEnc);
+  }
+  /********************************************************************/
+  /**
+   * <p>starts a daemon thread which checks every
+   * <code>millis</code> milliseconds whether <code>mwtFile</code> was
+   * modified and then {@link #reload(File) reloads} it. To not read a
+   * file still being written, the modification time must have stayed
+   * the same since the previous check. The outcome of each reload is
+   * written to <code>log</code>, if it is not <code>null</code>.</p>
+   *
+   * @return the thread started
+   */
+  public Thread watch(final File mwtFile, final long millis,
+                      final PrintStream log) {
+    Thread t = new Thread(new Runnable() {
+        public void run() {
+          // the time of the dictionary loaded and the one seen last
+          long stamp = mwtFile.lastModified();
+          long seen = stamp;
+          while( true ) {
+            try {
+              Thread.sleep(millis);
+            } catch( InterruptedException e ) {
+              return;
+            }
+            long m = mwtFile.lastModified();
+            if( m!=seen ) {
+              seen = m;
+              continue;
+            }
+            if( m==stamp ) continue;
+            stamp = m;
+            try {
+              ReloadInfo info = reload(mwtFile);
+              if( log!=null ) log.println(info);
+            } catch( Exception e ) {
+              if( log!=null ) {
+                log.println("reloading `"+mwtFile+"' failed, keeping "
+                            +"the old dictionary: "+e);
+              }
+            }
+          }
+        }
+      }, "DictFilter.watch");
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+  /********************************************************************/
+  /**
+   * <p>returns a service factory for a control port. Each connection
+   * reloads the dictionary from <code>mwtFile</code> and receives a
+   * line describing the outcome. If a reload is already running, the
+   * connection is told so and nothing else is done, so that repeated
+   * connections do not queue up compilations.</p>
+   */
+  public ServiceFactory createReloadFactory(final File mwtFile) {
+    return new ServiceFactory() {
+      public Service createService(InputStream in, OutputStream out,
+                                   Object p) {
+        final PrintStream pout = new PrintStream(out, true);
+        return new Service() {
+          private Exception e = null;
+          public Exception getException() { return e; }
+          public void run() {
+            if( !reloadLock.tryLock() ) {
+              pout.println("reload already running, request ignored");
+              return;
+            }
+            try {
+              pout.println(reload(mwtFile));
+            } catch( Exception ex ) {
+              e = ex;
+              pout.println("reload failed, keeping the old dictionary: "
+                           +ex);
+            } finally {
+              reloadLock.unlock();
+            }
+          }
+        };
+      }
+    };
+  }
+  /********************************************************************/
+  // reads and compiles the dictionary with the settings stored by init()
+  private Dfa compile(Reader mwtFile) 
+    throws java.io.IOException, ReSyntaxException, CompileDfaException
+  {
+    Dfa dictDfa;
     ReadHelper rh = new ReadHelper(verbose);
+    if( shards>1 ) {
+      rh.regexes = new ArrayList<>();
+      rh.actions = new ArrayList<>();
+    }
+    if( tokens ) {
+      rh.terms = new TermMatcher(Term2Re.RE_SEP_WORD,
+                                 Term2Re.RE_TRAIL_CONTEXT);
+    }
     DfaRun r;
 
     try {
@@ -286,9 +632,19 @@ public class DictFilter implements ServiceFactory {
     // set up the fa to only care for certain types of input
     Nfa nfa = rh.dict;
 
+    List<Dfa> shardDfas = null;
+    if( rh.regexes!=null ) {
+      shardDfas = Nfa.compileShards(rh.regexes, rh.actions,
+                                    DfaRun.UNMATCHED_COPY, shards,
+                                    Runtime.getRuntime()
+                                    .availableProcessors());
+      rh.regexes = null;
+      rh.actions = null;
+    }
+
     if( "raw".equals(inputType) ) {
       // nothing to add to dict
-      dictDfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+      dictDfa = compileDict(nfa, shardDfas, rh.terms);
 
     } else if( "xml".equals(inputType) ) {
       nfa.or(Xml.STag()+"|"+Xml.ETag()+"|"+Xml.EmptyElemTag()
@@ -296,21 +652,37 @@ public class DictFilter implements ServiceFactory {
 	.or("<[?](.*[?]>)!", Copy.COPY)
 	.or("<[!]--(.*-->)!", Copy.COPY)
 	 ;
-      dictDfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+      dictDfa = compileDict(nfa, shardDfas, rh.terms);
 
     } else if( "elem".equals(inputType) ) {
       nfa.or(Xml.Reference, Copy.COPY);
 
-      SwitchDfa toEnv = new SwitchDfa(Copy.COPY);
-      toEnv.setPriority(Integer.MAX_VALUE);
-      SwitchDfa toWork = new SwitchDfa(Copy.COPY);
-      Dfa env = new Nfa(Xml.STag(elemName), toWork)
-	.compile(DfaRun.UNMATCHED_COPY);
-      nfa.or(Xml.ETag(elemName), toEnv);
-      dictDfa = nfa.compile(DfaRun.UNMATCHED_COPY);
-      toEnv.setDfa(env);
-      toWork.setDfa(dictDfa);
-      dictDfa = env;
+      if( shardDfas==null && rh.terms==null ) {
+	// the envelope and the dictionary become start conditions of
+	// one Dfa
+	SwitchCondition toEnv = new SwitchCondition("env", Copy.COPY);
+	toEnv.setPriority(Integer.MAX_VALUE);
+	nfa.or(Xml.ETag(elemName), toEnv);
+	Map<String,Dfa> conditions = new LinkedHashMap<>();
+	conditions.put("env", new Nfa(Xml.STag(elemName),
+				      new SwitchCondition("dict", Copy.COPY))
+		       .compile(DfaRun.UNMATCHED_COPY));
+	conditions.put("dict", nfa.compile(DfaRun.UNMATCHED_COPY));
+	dictDfa = Dfa.withStartConditions(conditions);
+      } else {
+	// shards and terms are run by wrapping automata, which cannot
+	// share states
+	SwitchDfa toEnv = new SwitchDfa(Copy.COPY);
+	toEnv.setPriority(Integer.MAX_VALUE);
+	SwitchDfa toWork = new SwitchDfa(Copy.COPY);
+	Dfa env = new Nfa(Xml.STag(elemName), toWork)
+	  .compile(DfaRun.UNMATCHED_COPY);
+	nfa.or(Xml.ETag(elemName), toEnv);
+	dictDfa = compileDict(nfa, shardDfas, rh.terms);
+	toEnv.setDfa(env);
+	toWork.setDfa(dictDfa);
+	dictDfa = env;
+      }
     } else {
       throw new IllegalArgumentException
 	("`"+inputType+"' is not a valid input type");
@@ -338,6 +710,22 @@ public class DictFilter implements ServiceFactory {
     Thread t = new Thread(c);
     t.setDaemon(true);
     t.start();
+    return dictDfa;
+  }
+  // compiles the rules in nfa and combines them with the shards and
+  // the terms, if any
+  private static Dfa compileDict(Nfa nfa, List<Dfa> shardDfas,
+                                 TermMatcher terms)
+    throws CompileDfaException
+  {
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+    if( shardDfas!=null ) {
+      List<Dfa> parts = new ArrayList<>(shardDfas);
+      parts.add(dfa);
+      dfa = Dfa.union(parts, DfaRun.UNMATCHED_COPY, null);
+    }
+    if( terms==null ) return dfa;
+    return Dfa.withTerms(dfa, terms.compile());
   }
   /********************************************************************/
   /**
@@ -345,18 +733,89 @@ public class DictFilter implements ServiceFactory {
    * dictionary DFA.
    */
   public DfaRun createRun() {
-    return new DfaRun(dictDfa);
+    return new DfaRun(current.dfa);
   }
   /********************************************************************/
   /**
    * returns the dictionary DFA.
    */
-  public Dfa getDfa() { return dictDfa; }
+  public Dfa getDfa() { return current.dfa; }
+  /********************************************************************/
+  /**
+   * returns the number of the dictionary currently in use, which is
+   * 0 for the one read by the constructor and increases with every
+   * {@link #reload reload()}.
+   */
+  public int getGeneration() { return current.number; }
+  /********************************************************************/
+  // counts the services running on a generation of the dictionary
+  private static final class CountingService extends DfaRunService {
+    private final Generation gen;
+    CountingService(DfaRun r, PrintStream out, Generation gen) {
+      super(r, out);
+      this.gen = gen;
+      gen.active.incrementAndGet();
+    }
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        gen.active.decrementAndGet();
+      }
+    }
+  }
+  /********************************************************************/
+  // writes all matches of dictionary entries found by an OverlapRun
+  private static final class OverlapService implements Service {
+    private final OverlapRun r;
+    private final PrintStream out;
+    private final Generation gen;
+    private final boolean defaultWord;
+    private Exception e;
+    OverlapService(OverlapRun r, PrintStream out, Generation gen,
+                   boolean defaultWord) {
+      this.r = r;
+      this.out = out;
+      this.gen = gen;
+      this.defaultWord = defaultWord;
+      gen.active.incrementAndGet();
+    }
+    @Override
+    public Exception getException() { return e; }
+    @Override
+    public void run() {
+      StringBuilder sb = new StringBuilder();
+      try {
+        while( r.next() ) {
+          // the catch-all word and the xml markup are no entries
+          if( !(r.action() instanceof MwtCallback) ) continue;
+          if( defaultWord && isWordChar(r.charBefore()) ) continue;
+          sb.setLength(0);
+          long end = r.apply(sb);
+          out.print(r.start());
+          out.print('\t');
+          out.print(end);
+          out.print('\t');
+          out.println(sb);
+        }
+        out.flush();
+      } catch( IOException ex ) {
+        this.e = ex;
+      } finally {
+        gen.active.decrementAndGet();
+      }
+    }
+    // the characters of the catch-all word
+    private static boolean isWordChar(int ch) {
+      return ch>='A' && ch<='Z' || ch>='a' && ch<='z' || ch>='0' && ch<='9';
+    }
+  }
   /********************************************************************/
   public Service createService(InputStream in, OutputStream out, Object p) 
     throws ServiceCreateException
   {
-    DfaRun r = createRun();
+    Generation gen = current;
     Reader rin;
     if( inputEncoding==null ) {
       if( !in.markSupported() ) in = new BufferedInputStream(in);
@@ -380,11 +839,14 @@ public class DictFilter implements ServiceFactory {
     }
       
     ReaderCharSource rc = new ReaderCharSource(rin);
-    r.setIn(rc);
 
     try {
-      return new DfaRunService(r, new PrintStream(out, 
-						  true, outputEncoding));
+      PrintStream pout = new PrintStream(out, true, outputEncoding);
+      if( overlapping ) {
+        return new OverlapService(new OverlapRun(gen.dfa, rc), pout, gen,
+                                  defaultWord);
+      }
+      return new CountingService(new DfaRun(gen.dfa, rc), pout, gen);
     } catch( UnsupportedEncodingException e ) {
       throw new ServiceCreateException
 	("non-existant output encoding specified in DictFilter", e);
@@ -423,25 +885,35 @@ public class DictFilter implements ServiceFactory {
       }
     };
   /********************************************************************/
+  // characters inserted or substituted in terms with edits
+  private static final String FUZZY_ALPHABET = "[A-Za-z0-9]";
+  private static final String TRAIL_CONTEXT =
+    "(?="+Term2Re.RE_TRAIL_CONTEXT+")";
+
   private static final class Do_t_r extends AbstractFaAction {
     Map<String,String>  m = new HashMap<>();
-    DfaRun convert;
+    DfaRun convertWords;
+    DfaRun convertBare;
     public Do_t_r(ReParser rep) {
       try {
-	convert = 
+	convertWords =
+	  Term2Re.createWordConverter(Term2Re.RE_SPLIT_WORD, rep);
+	convertBare =
 	  Term2Re.createConverter(Term2Re.RE_SPLIT_WORD,
-				  //"[ \\-_]?",
-				  Term2Re.RE_SEP_WORD,
-				  Term2Re.RE_TRAIL_CONTEXT,
-				  rep);
+				  Term2Re.RE_SEP_WORD, null, rep);
       } catch( ReSyntaxException e ) {
 	throw new Error("impossible", e);
       }
     }
 
+    // the term as a regular expression matched only if followed by
+    // the trailing context, which is then not part of the match
     private String convert(String txt) {
+      return "("+convert(convertBare, txt)+")"+TRAIL_CONTEXT;
+    }
+    private static String convert(DfaRun converter, String txt) {
       try {
-	return convert.filter(txt);
+	return converter.filter(txt);
       } catch( IOException e ) {
 	throw new Error("impossible", e);
       }
@@ -500,9 +972,35 @@ public class DictFilter implements ServiceFactory {
       String re = StdCharEntities.toChar(m.remove(Xml.CONTENT));
       
       int tc = 0;		// length of trailing context
-      if( isTerm ) {
+      List<String> words = null;
+      int edits = 0;
+      if( isTerm && m.containsKey("edits") ) {
+	try {
+	  edits = Integer.parseInt(m.remove("edits"));
+	} catch( NumberFormatException e ) {
+	  throw new CallbackException
+	    ("found edits attribute which is not a number", e);
+	}
+	if( edits<0 ) {
+	  throw new CallbackException("found negative edits attribute");
+	}
+      }
+      if( edits>0 ) {
+	re = convert(convertBare, re);
+      } else if( isTerm && rh.terms!=null ) {
+	words = Term2Re.convertWords(convertWords, re);
+	boolean empty = true;
+	for(String w : words) empty &= w.isEmpty();
+	if( empty ) {
+	  // nothing but separators, leave it to the character automaton
+	  words = null;
+	  re = convert(re);
+	} else {
+	  re = words.toString();
+	  tc = 1;
+	}
+      } else if( isTerm ) {
 	re = convert(re);
-	tc = 1;
       } else {
 	String tmp = m.remove("tc");
 	if( tmp==null ) tmp="0";
@@ -531,9 +1029,39 @@ public class DictFilter implements ServiceFactory {
       }
       
       if( rh.verbose ) System.err.println(">>"+re+"<<");
+      MwtCallback cb = 
+	new MwtCallback(fsp, rh.recentTemplate, tc, rh.nextPrio++);
+      if( edits>0 ) {
+	try {
+	  rh.dict.or(new Nfa(re).fuzzy(edits, FUZZY_ALPHABET)
+		     .trailingContext(Term2Re.RE_TRAIL_CONTEXT).addAction(cb));
+	} catch( ReSyntaxException e ) {
+	  throw new CallbackException
+	    ("regular expression syntax error (see cause)", e);
+	}
+	yytext.setLength(start);
+	return;
+      }
+      if( words!=null ) {
+	try {
+	  rh.terms.add(words, cb);
+	} catch( ReSyntaxException e ) {
+	  throw new CallbackException
+	    ("regular expression syntax error (see cause)", e);
+	} catch( IllegalArgumentException e ) {
+	  throw new CallbackException("term without words", e);
+	}
+	yytext.setLength(start);
+	return;
+      }
+      if( rh.regexes!=null ) {
+	rh.regexes.add(re);
+	rh.actions.add(cb);
+	yytext.setLength(start);
+	return;
+      }
       try {
-	rh.dict.or(re, new MwtCallback(fsp, rh.recentTemplate, tc, 
-				       rh.nextPrio++));
+	rh.dict.or(re, cb);
       } catch( ReSyntaxException e ) {
 	throw new CallbackException
 	  ("regular expression syntax error (see cause)", e);
@@ -558,9 +1086,8 @@ public class DictFilter implements ServiceFactory {
       throws CallbackException
     {
       int L = yytext.length();
-      // matches from regular expressions created by Term2Re always
-      // match a trailing character, normally blank. We have to give it
-      // back.
+      // terms matched word by word and <r tc="n"> match a trailing
+      // context, normally a blank. We have to give it back.
       if( tc>0 && tc<L-start ) r.unskip(yytext, L=L-tc);
 
       synchronized(store) {
@@ -637,6 +1164,31 @@ public class DictFilter implements ServiceFactory {
 			     1, 1, null));
     cmd.addOption(new BooleanOption("-dm", "debug memory: write memory "+
 				    "of Dfa and Nfa to stderr"));
+    cmd.addOption(new LongOption
+		  ("-s", "shards",
+		   "compile the dictionary into the given number of "
+		   +"automata which are run in lock-step, for "
+		   +"dictionaries too large for a single one",
+		   1, 1, 1, 1000));
+    cmd.addOption(new BooleanOption
+		  ("-tt", "match terms word by word, which compiles large "
+		   +"dictionaries of multi word terms faster, but filters "
+		   +"about 3 times slower"));
+    cmd.addOption(new BooleanOption
+		  ("-o", "report all matches, including nested and "
+		   +"overlapping ones, one per line as start offset, end "
+		   +"offset and filled template, only with '-t raw'"));
+    cmd.addOption(new LongOption
+		  ("-w", "secs",
+		   "when running as a server, check the dictionary file "
+		   +"every secs seconds and reload it when it changed",
+		   1, 1, 1, Integer.MAX_VALUE));
+    cmd.addOption(new LongOption
+		  ("-cp", "port",
+		   "when running as a server, reload the dictionary file "
+		   +"on every connection from the local host to the given "
+		   +"control port, unless a reload is running",
+		   1, 1, 0, 65535));
     
     try {
       cmd.parse(argv);
@@ -667,17 +1219,25 @@ public class DictFilter implements ServiceFactory {
     String elemName = (String)cmd.getValue("-e");
 
     DictFilter dict;
-    try (InputStream mwtFile = 
-      new BufferedInputStream(new java.io.FileInputStream(mwtFileName))) {;
-      String mwtEnc = monq.stuff.EncodingDetector.detect(mwtFile);
-      Reader rin = new InputStreamReader(mwtFile, mwtEnc);
+    try (Reader rin = openMwt(new File(mwtFileName))) {
+      int shards = 1;
+      if( cmd.available("-s") ) shards = (int)cmd.getLongValue("-s");
       dict = new DictFilter(rin, inputType, elemName, 
-                            verbose, memDebug, defaultWord);
+                            verbose, memDebug, defaultWord, shards,
+                            cmd.available("-tt"));
     }
     
     // now set the encodings verified earlier
     if( enc[0]!=null ) dict.setInputEncoding(enc[0]);
     if( enc[1]!=null ) dict.setOutputEncoding(enc[1]);
+    if( cmd.available("-o") ) {
+      try {
+        dict.setOverlapping(true);
+      } catch( IllegalStateException e ) {
+        System.err.println(prog+": "+e.getMessage());
+        System.exit(1);
+      }
+    }
 
 
     if( cmd.available("-c") ) {
@@ -697,6 +1257,24 @@ public class DictFilter implements ServiceFactory {
       //go into server mood
       FilterServiceFactory fsf = new FilterServiceFactory(dict);
       int port = ((Long)cmd.getValue("-p")).intValue();
+      File mwt = new File(mwtFileName);
+      if( cmd.available("-w") ) {
+        dict.watch(mwt, 1000*cmd.getLongValue("-w"), System.out);
+      }
+      if( cmd.available("-cp") ) {
+        // anyone able to connect can trigger a compilation, so only
+        // the local host may
+        int cport = (int)cmd.getLongValue("-cp");
+        java.net.ServerSocket control =
+          new java.net.ServerSocket(cport, 50,
+                                    java.net.InetAddress.getLoopbackAddress());
+        Thread t = new Thread(new TcpServer(control,
+                                            dict.createReloadFactory(mwt),
+                                            1)
+                              .setLogging(System.out));
+        t.setDaemon(true);
+        t.start();
+      }
       new TcpServer(port, fsf, 20).setLogging(System.out).serve();
     } else {
       // filter stdin to stdout, use the file descriptor to be able to
@@ -22,6 +22,8 @@ import monq.clifj.*;
 import monq.net.*;
 
 import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * <p>is a class and a command line program to copy input to output
@@ -177,6 +179,10 @@ public class Grep implements ServiceFactory {
 
   private final Dfa main;
 
+  // the Grep whose automaton is handed out by createRun(), which is
+  // this one until replaced by reload()
+  private volatile Grep active = this;
+
   // in some situations, callbacks must communicate and store
   // intermediate state
   private boolean needCom = false;
@@ -312,21 +318,23 @@ public class Grep implements ServiceFactory {
     
 
     // let the end-of-roi action switch to the envelope
-    SwitchDfa toEnv = new SwitchDfa(toEnvAction);
+    SwitchCondition toEnv = new SwitchCondition("envelope", toEnvAction);
     toEnv.setPriority(Integer.MAX_VALUE);
     nfa.or(roiOff, toEnv);
     Dfa work = nfa.compile(fmRoi);
 
     // set up the envelope Nfa, we need just one action which switches
     // into the ROI
-    SwitchDfa toWork = new SwitchDfa(toWorkAction);
+    SwitchCondition toWork = new SwitchCondition("roi", toWorkAction);
     Nfa envelope = new Nfa(roiOn, toWork);
     envelope.setMemoryForSpeedTradeFactor(1e9f);
-    main = envelope.compile(fmMain);
 
-    // connect the SwitchDfa objects to their DFAs
-    toEnv.setDfa(main);
-    toWork.setDfa(work);
+    // both run as start conditions of one Dfa, starting with the
+    // envelope
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("envelope", envelope.compile(fmMain));
+    conditions.put("roi", work);
+    main = Dfa.withStartConditions(conditions);
 
   }
   /**********************************************************************/
@@ -336,11 +344,31 @@ public class Grep implements ServiceFactory {
    * supplied by a <code>DfaRun</code>.</p>
    */
   public DfaRun createRun() {
-    DfaRun r = new DfaRun(main);
-    if( needCom ) r.clientData = new Com();
+    Grep g = active;
+    DfaRun r = new DfaRun(g.main);
+    if( g.needCom ) r.clientData = new Com();
     return r;
   }
   /**********************************************************************/
+  /**
+   * <p>atomically replaces the automaton used by {@link #createRun}
+   * and {@link #createService createService()} with the one of
+   * <code>other</code>, which may have been created with completely
+   * different parameters. Runs and services created before continue
+   * with the old automaton, so a server can switch to new expressions
+   * without a restart.</p>
+   *
+   * <p>Unlike {@link DictFilter#reload DictFilter.reload()}, this
+   * neither compiles nor reports on compile time and memory. A
+   * <code>Grep</code> takes its expressions from the command line, so
+   * there is no file to watch and nothing to recompile on request of
+   * a control port. Compile <code>other</code> in the background
+   * before, if the server must not wait for it.</p>
+   */
+  public void reload(Grep other) {
+    active = other.active;
+  }
+  /**********************************************************************/
   @Override
   public Service createService(java.io.InputStream in,
 			       java.io.OutputStream out,
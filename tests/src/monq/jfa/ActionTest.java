@@ -19,6 +19,9 @@ package monq.jfa;
 //import monq.jfa.*;
 import monq.jfa.actions.*;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -292,5 +295,235 @@ public class ActionTest {
     assertEquals("123", s);
   }
   /**********************************************************************/
-}
+  @Test
+  public void countFollowsMapProvider() throws Exception {
+    Count c = new Count("n");
+    DfaRun r = new Nfa("b", c)
+      .or("=", new Printf("%(n)"))
+      .compile(DfaRun.UNMATCHED_DROP)
+      .createRun();
+    final Map<Object,Object> m = new HashMap<>();
+    r.clientData = new MapProvider() {
+      @Override
+      public Map<Object,Object> getMap() { return m; }
+    };
+    assertEquals("bbb3", r.filter("bab b="));
+    assertEquals(3, c.getValue(r));
+
+    // the Map is where the counter lives
+    m.clear();
+    assertEquals(0, c.getValue(r));
+    assertEquals("b1", r.filter("b="));
+
+    final Map<Object,Object> other = new HashMap<>();
+    r.clientData = new MapProvider() {
+      @Override
+      public Map<Object,Object> getMap() { return other; }
+    };
+    assertEquals("bb2", r.filter("bb="));
+    assertEquals(2, c.getValue(r));
+  }
+  /**********************************************************************/
+  @Test
+  public void holdFollowsMapProvider() throws Exception {
+    final Hold h = new Hold();
+    final Map<Object,Object> m = new HashMap<>();
+    DfaRun r = new Nfa("\\[", h)
+      .or("\\]", h.ship())
+      .or("\\!", new AbstractFaAction() {
+          public void invoke(StringBuilder out, int start, DfaRun r) {
+            m.clear();
+          }
+        })
+      .or("\\@", new AbstractFaAction() {
+          public void invoke(StringBuilder out, int start, DfaRun r) {
+            r.clientData = new MapProvider() {
+              final Map<Object,Object> other = new HashMap<>();
+              @Override
+              public Map<Object,Object> getMap() { return other; }
+            };
+          }
+        })
+      .compile(DfaRun.UNMATCHED_COPY)
+      .createRun();
+    r.clientData = new MapProvider() {
+      @Override
+      public Map<Object,Object> getMap() { return m; }
+    };
+    assertEquals("a[b]", r.filter("a[b]"));
+
+    // the Map is where the positions live, so clearing or replacing
+    // it forgets them
+    for(String s : new String[]{"[a!b]", "[a@b]"}) {
+      r.collect = false;
+      try {
+        r.filter(s);
+        fail("expected exception for "+s);
+      } catch( CallbackException e ) {
+        assertTrue(e.getMessage().startsWith("Hold not active"));
+      }
+    }
+  }
+  /**********************************************************************/
+  @Test
+  public void countAndHoldWithoutMapProvider() throws Exception {
+    Hold h = new Hold();
+    Count c = new Count("ccc");
+    Dfa dfa = new
+      Nfa("\\[", new Run(h, c.reset()))
+      .or("b", c)
+      .or("\\]", new If(c.ge(3), h.ship(), h.drop()))
+      .compile(DfaRun.UNMATCHED_COPY);
+
+    // two runs of the same Dfa keep their own state
+    DfaRun r1 = dfa.createRun();
+    DfaRun r2 = dfa.createRun();
+    assertEquals("[abbb] ", r1.filter("[abbb] [ab]"));
+    assertEquals(" [bbbb]", r2.filter("[bb] [bbbb]"));
+    assertEquals(1, c.getValue(r1));
+    assertEquals(4, c.getValue(r2));
+  }
+  /**********************************************************************/
+  @Test
+  public void runLocal() throws Exception {
+    RunLocal<StringBuilder> plain = new RunLocal<>();
+    RunLocal<StringBuilder> init = new RunLocal<StringBuilder>() {
+      @Override
+      protected StringBuilder initialValue(DfaRun r) {
+        return new StringBuilder("x");
+      }
+    };
+    DfaRun r = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY)
+      .createRun();
+    assertNull(plain.get(r));
+    StringBuilder sb = init.get(r);
+    assertEquals("x", sb.toString());
+    assertSame(sb, init.get(r));
+    plain.set(r, sb);
+    assertSame(sb, plain.get(r));
+    init.remove(r);
+    assertNotSame(sb, init.get(r));
+    assertSame(sb, plain.get(r));
+  }
+  /**********************************************************************/
+  @Test
+  public void runLocalIndexReused() throws Exception {
+    DfaRun r = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY)
+      .createRun();
+    RunLocal<String> old = new RunLocal<>();
+    int index = old.index();
+    old.set(r, "old");
+    WeakReference<RunLocal<String>> ref = new WeakReference<>(old);
+    old = null;
+    for(int i=0; i<100 && ref.get()!=null; i++) System.gc();
+    assertNull(ref.get());
 
+    // the collected index is taken as soon as it is enqueued
+    RunLocal<String> fresh = null;
+    for(int i=0; i<100 && (fresh==null || fresh.index()!=index); i++) {
+      System.gc();
+      fresh = new RunLocal<>();
+    }
+    assertEquals(index, fresh.index());
+    // the value of the collected RunLocal is not passed on
+    assertNull(fresh.get(r));
+    fresh.set(r, "fresh");
+    assertEquals("fresh", fresh.get(r));
+  }
+  /**********************************************************************/
+  public static class Worker {
+    public void upper(StringBuilder out, int start, DfaRun r) {
+      String s = out.substring(start).toUpperCase();
+      out.setLength(start);
+      out.append(s);
+    }
+    public void fail(StringBuilder out, int start, DfaRun r)
+      throws CallbackException
+    {
+      throw new CallbackException("failed");
+    }
+    public void checked(StringBuilder out, int start, DfaRun r)
+      throws java.io.IOException
+    {
+      throw new java.io.IOException("checked");
+    }
+  }
+  public static class OtherWorker {
+    public void upper(StringBuilder out, int start, DfaRun r) {
+      out.insert(start, '^');
+    }
+  }
+  @Test
+  public void call() throws Exception {
+    DfaRun r = new Nfa("[a-z]+", new Call("upper"))
+      .compile(DfaRun.UNMATCHED_COPY)
+      .createRun();
+    r.clientData = new Worker();
+    assertEquals("AB, CD", r.filter("ab, cd"));
+    r.clientData = new OtherWorker();
+    assertEquals("^ab, ^cd", r.filter("ab, cd"));
+    r.clientData = new Worker();
+    assertEquals("AB", r.filter("ab"));
+  }
+  /**********************************************************************/
+  @Test
+  public void callErrors() throws Exception {
+    Dfa dfa = new Nfa("a", new Call("fail"))
+      .or("b", new Call("checked"))
+      .or("c", new Call("nosuchmethod"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    DfaRun r = dfa.createRun();
+    r.clientData = new Worker();
+    try {
+      r.filter("a");
+      fail("no exception");
+    } catch( CallbackException e ) {
+      assertTrue(e.getMessage().startsWith("failed"));
+    }
+    for(String in : new String[] {"b", "c"}) {
+      try {
+        r.filter(in);
+        fail("no exception");
+      } catch( IllegalArgumentException e ) {
+        assertNotNull(e.getCause());
+      }
+    }
+  }
+  /**********************************************************************/
+  @Test
+  public void searchReplaceReusesChildRun() throws Exception {
+    final List<DfaRun> children = new ArrayList<>();
+    final ChildRun child = new ChildRun(new Nfa("[0-9]", new Printf("<%0>"))
+                                        .compile(DfaRun.UNMATCHED_COPY)) {
+      @Override
+      protected DfaRun initialValue(DfaRun parent) {
+        DfaRun r = super.initialValue(parent);
+        children.add(r);
+        return r;
+      }
+    };
+    Dfa dfa = new Nfa("[0-9]+x", new AbstractFaAction() {
+        @Override
+        public void invoke(StringBuilder out, int start, DfaRun r)
+          throws CallbackException
+        {
+          try {
+            child.get(r).filter(out, start);
+          } catch( CallbackException e ) {
+            throw e;
+          } catch( java.io.IOException e ) {
+            throw new Error("impossible", e);
+          }
+        }
+      })
+      .or("[a-z]+", new SearchReplace("[aeiou]", "%0%0"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    DfaRun r1 = dfa.createRun();
+    DfaRun r2 = dfa.createRun();
+    assertEquals("<1><2>x, b<3>x: boot", r1.filter("12x, b3x: bot"));
+    assertEquals("<4>x <5><6>x", r2.filter("4x 56x"));
+    assertEquals("<7>x", r1.filter("7x"));
+    assertEquals(2, children.size());
+  }
+  /**********************************************************************/
+}
@@ -0,0 +1,75 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import monq.jfa.actions.Copy;
+import monq.jfa.actions.Printf;
+
+public class CompileBudgetTest {
+
+  @Test
+  public void stateLimit() throws Exception {
+    FaAction culprit = new Printf("culprit");
+    Nfa nfa = new Nfa("[0-9]+", Copy.COPY).or(".*a.{20}", culprit);
+    try {
+      nfa.compile(DfaRun.UNMATCHED_COPY, null,
+                  new CompileBudget().setMaxStates(1000));
+      fail("budget should have been exceeded");
+    } catch( CompileBudgetException e ) {
+      assertEquals(1001, e.getStates());
+      assertTrue(e.getMemoryEstimate()>0);
+      assertTrue(e.getPath().length()>0);
+      assertEquals(1, e.getActions().size());
+      assertTrue(e.getActions().get(0)==culprit);
+      assertTrue(e.getMessage().startsWith("compile budget exceeded"));
+    }
+  }
+
+  @Test(expected=CompileBudgetException.class)
+  public void memoryLimit() throws Exception {
+    new Nfa(".*a.{20}", Copy.COPY)
+      .compile(DfaRun.UNMATCHED_COPY, null,
+               new CompileBudget().setMaxMemory(100000));
+  }
+
+  @Test
+  public void withinBudget() throws Exception {
+    CompileBudget budget = new CompileBudget()
+      .setMaxStates(100).setMaxMemory(1000000).setMaxTime(60000);
+    Dfa dfa = new Nfa("[a-z]+", new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY, null, budget);
+    assertEquals("<ab> <c>", new DfaRun(dfa).filter("ab c"));
+  }
+
+  @Test
+  public void probe() throws Exception {
+    assertNull(CompileBudget.probe("[a-z]+@[a-z]+[.](com|org)", 1000, 4.0));
+    assertNull(CompileBudget.probe("(.*a.{2})", 1000, 4.0));
+    String msg = CompileBudget.probe("(.*a.{20})", 1000, 4.0);
+    assertNotNull(msg);
+    assertTrue(msg, msg.contains("more than 1000 states"));
+    assertNotNull(CompileBudget.probe("(.*a.{6})", 1000, 4.0));
+  }
+}
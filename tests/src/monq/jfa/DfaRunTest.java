@@ -4,10 +4,19 @@ package monq.jfa;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import org.junit.Test;
 
 import monq.jfa.actions.Copy;
+import monq.jfa.actions.Printf;
+import monq.jfa.actions.TailContextN;
 
 public class DfaRunTest {
 
@@ -26,4 +35,215 @@ public class DfaRunTest {
     r.read(sb);
     assertEquals("xyz23a", sb.toString());
   }
+
+  @Test
+  public void plainMatchSkipsNonStarters() throws Exception {
+    Dfa dfa = new Nfa("ab", new Printf("[%0]")).compile(DfaRun.UNMATCHED_COPY);
+    String text = "xxxaxab--ab-aab";
+    assertEquals("xxxax[ab]--[ab]-a[ab]", new DfaRun(dfa).filter(text));
+
+    DfaRun r = new DfaRun(dfa, new CharSequenceCharSource(text));
+    r.maxCopy = 2;
+    StringBuilder sb = new StringBuilder();
+    assertEquals(null, r.next(sb));
+    assertEquals("xx", sb.toString());
+    sb.setLength(0);
+    assertEquals(null, r.next(sb));
+    assertEquals("xa", sb.toString());
+    sb.setLength(0);
+    r.next(sb);
+    assertEquals("xab", sb.toString());
+    assertEquals(1, r.matchStart());
+
+    dfa = new Nfa("ab", new Printf("[%0]")).compile(DfaRun.UNMATCHED_DROP);
+    r = new DfaRun(dfa);
+    assertEquals("[ab][ab][ab]", r.filter(text));
+  }
+
+  @Test
+  public void multiRunSameAsSeparate() throws Exception {
+    Dfa[] dfas = {
+      new Nfa("a+b", new Printf("[%0]"))
+          .or("b[a-z]*", new Printf("<%0>"))
+          .compile(DfaRun.UNMATCHED_COPY),
+      new Nfa("[0-9]+", new Printf("(%0)")).compile(DfaRun.UNMATCHED_DROP),
+      // pushes back a character which is not the input
+      new Nfa("xa", new AbstractFaAction() {
+          public void invoke(StringBuilder out, int start, DfaRun r) {
+            out.setLength(start);
+            r.unskip("b");
+          }
+        }).or("aa", new Printf("#"))
+          .or("x[b-z]", new TailContextN(1, new Printf("{%0}")))
+          .compile(DfaRun.UNMATCHED_COPY),
+    };
+    String text = "aab bab xaa 12 xb aaab9 xxa xaxab abbbbbbbbbbbb33";
+    for(int chunk : new int[] {1, 3, 8192}) {
+      MultiDfaRun m =
+          new MultiDfaRun(new CharSequenceCharSource(text), chunk);
+      StringBuilder[] outs = new StringBuilder[dfas.length];
+      for(int i=0; i<dfas.length; i++) {
+        outs[i] = new StringBuilder();
+        m.add(dfas[i], outs[i]);
+      }
+      m.filter();
+      assertEquals(text.length(), m.getCharsRead());
+      for(int i=0; i<dfas.length; i++) {
+        assertEquals("dfa "+i+" chunk "+chunk,
+                     new DfaRun(dfas[i]).filter(text), outs[i].toString());
+      }
+    }
+  }
+
+  @Test
+  public void matchSet() throws Exception {
+    // the client of higher priority runs, all ids are reported
+    FaAction report = new AbstractFaAction() {
+        public void invoke(StringBuilder out, int start, DfaRun r) {
+          out.append(r.matchSet());
+        }
+      }.setPriority(1);
+    Dfa dfa = new Nfa()
+        .or("[a-z]+", new IdAction(0, new Printf("<%0>")))
+        .or("a[a-z]*", new IdAction(1))
+        .or("[a-z]*c", new IdAction(2, report))
+        .or("[0-9]+", new IdAction(3))
+        .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("abc{0, 1, 2} <ab> bc{0, 2} <b> 12",
+                 new DfaRun(dfa).filter("abc ab bc b 12"));
+
+    DfaRun r = new DfaRun(dfa, new CharSequenceCharSource("x12"));
+    StringBuilder sb = new StringBuilder();
+    assertEquals(null, r.matchSet());
+    r.next(sb);
+    BitSet expected = new BitSet();
+    expected.set(0);
+    assertEquals(expected, r.matchSet());
+    r.next(sb);
+    expected.clear();
+    expected.set(3);
+    assertEquals(expected, r.matchSet());
+  }
+
+  @Test(expected = CompileDfaException.class)
+  public void matchSetClientsClash() throws Exception {
+    new Nfa()
+        .or("a", new IdAction(0, new Printf("1")))
+        .or("a", new IdAction(1, new Printf("2")))
+        .compile(DfaRun.UNMATCHED_COPY);
+  }
+
+  @Test
+  public void overlapRunFindsNested() throws Exception {
+    Nfa nfa = new Nfa();
+    for(String w : new String[] {"protein kinase C", "kinase", "protein",
+                                 "in"}) {
+      nfa.or(nfa.escape(w), new Printf("<%0>"));
+    }
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+    OverlapRun r =
+        new OverlapRun(dfa, new CharSequenceCharSource("protein kinase C!"));
+    assertEquals(Arrays.asList("0-7 protein", "5-7 in", "9-11 in",
+                               "8-14 kinase", "0-16 protein kinase C"),
+                 hits(r));
+    assertFalse(r.next());
+
+    r.setIn(new CharSequenceCharSource("akinase"));
+    assertTrue(r.next());
+    assertEquals("in", r.text());
+    assertEquals('k', r.charBefore());
+    assertTrue(r.next());
+    assertEquals("kinase", r.text());
+    assertEquals('a', r.charBefore());
+    StringBuilder sb = new StringBuilder("x");
+    assertEquals(7, r.apply(sb));
+    assertEquals("x<kinase>", sb.toString());
+  }
+
+  @Test
+  public void overlapRunApplyTrailingContext() throws Exception {
+    Dfa dfa = new Nfa("[a-z]+ ", new TailContextN(1, new Printf("[%0]")))
+        .compile(DfaRun.UNMATCHED_COPY);
+    OverlapRun r = new OverlapRun(dfa, new CharSequenceCharSource("ab c"));
+    StringBuilder sb = new StringBuilder();
+    assertTrue(r.next());
+    assertEquals(3, r.end());
+    assertEquals(2, r.apply(sb));
+    assertEquals("[ab]", sb.toString());
+    assertTrue(r.next());
+    assertEquals(1, r.start());
+    assertFalse(r.next());
+  }
+
+  @Test
+  public void overlapRunTrailingContextOperator() throws Exception {
+    Dfa dfa = new Nfa("[a-z]+(?= )", new Printf("[%0]"))
+        .compile(DfaRun.UNMATCHED_COPY);
+    OverlapRun r = new OverlapRun(dfa, new CharSequenceCharSource("ab c"));
+    assertEquals(Arrays.asList("0-2 ab", "1-2 b"), hits(r));
+    r.setIn(new CharSequenceCharSource("ab c"));
+    StringBuilder sb = new StringBuilder();
+    assertTrue(r.next());
+    assertEquals(2, r.apply(sb));
+    assertEquals("[ab]", sb.toString());
+
+    dfa = new Nfa("[a-z]+(?= +[0-9])", new Printf("[%0]"))
+        .compile(DfaRun.UNMATCHED_COPY);
+    r = new OverlapRun(dfa, new CharSequenceCharSource("ab  1"));
+    assertEquals(Arrays.asList("0-2 ab", "1-2 b"), hits(r));
+  }
+
+  @Test
+  public void overlapRunUnion() throws Exception {
+    List<String> words = Arrays.asList("abc", "bcd", "b", "cd", "abcd",
+                                       "[a-d]+x", "d+");
+    List<FaAction> actions = new ArrayList<>();
+    Nfa all = new Nfa();
+    for(int i=0; i<words.size(); i++) {
+      actions.add(new Printf("%0").setPriority(i));
+      all.or(words.get(i), actions.get(i));
+    }
+    Dfa union = Dfa.union(Nfa.compileShards(words, actions,
+                                            DfaRun.UNMATCHED_COPY, 3, 1),
+                          DfaRun.UNMATCHED_COPY, null);
+    Dfa single = all.compile(DfaRun.UNMATCHED_COPY);
+    String text = "abcdddxabbcdx";
+    List<String> expected =
+        hits(new OverlapRun(single, new CharSequenceCharSource(text)));
+    // every piece of the text matched by one of the words
+    Regexp re = new Regexp(words);
+    List<String> brute = new ArrayList<>();
+    for(int e=1; e<=text.length(); e++) {
+      for(int b=0; b<e; b++) {
+        String piece = text.substring(b, e);
+        if( re.matches(piece) ) brute.add(b+"-"+e+" "+piece);
+      }
+    }
+    assertEquals(brute, expected);
+    assertEquals(expected,
+                 hits(new OverlapRun(union, new CharSequenceCharSource(text))));
+  }
+  @Test(timeout=20000)
+  public void overlapRunIsLinear() throws Exception {
+    // every x starts a thread and none of them dies before the y
+    Dfa dfa = new Nfa("x[^\\n]*y", new Printf("%0"))
+        .compile(DfaRun.UNMATCHED_COPY);
+    int n = 400_000;
+    StringBuilder text = new StringBuilder(n+1);
+    for(int i=0; i<n; i++) text.append('x');
+    text.append('y');
+    OverlapRun r = new OverlapRun(dfa, new CharSequenceCharSource(text));
+    int count = 0;
+    while( r.next() ) {
+      assertEquals(count, r.start());
+      assertEquals(n+1, r.end());
+      count += 1;
+    }
+    assertEquals(n, count);
+  }
+  private static List<String> hits(OverlapRun r) throws Exception {
+    List<String> result = new ArrayList<>();
+    while( r.next() ) result.add(r.start()+"-"+r.end()+" "+r.text());
+    return result;
+  }
 }
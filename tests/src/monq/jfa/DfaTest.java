@@ -18,12 +18,21 @@ package monq.jfa;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 
 import monq.jfa.actions.Copy;
 import monq.jfa.actions.Drop;
+import monq.jfa.actions.Printf;
+import monq.jfa.actions.SwitchCondition;
 
 /**
  *
@@ -156,4 +165,489 @@ public class DfaTest  {
     dfa.match(new CharSequenceCharSource(longWord), out, new SubmatchData());
     assertEquals(SIZE, out.length());
   }
+
+  @Test
+  public void profileAndOptimize() throws Exception {
+    Dfa dfa = new Nfa("[a-z]+", new Printf("<%0>"))
+      .or("[0-9]+", Drop.DROP)
+      .or("[^a-z0-9]+", new Printf("_"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    DfaProfile profile = dfa.createProfile();
+    assertEquals(4, profile.size());
+    assertEquals(0, profile.getTotalVisits());
+
+    String text = "hello 42 world, 7 words";
+    DfaRun r = new DfaRun(dfa);
+    r.setProfile(profile);
+    String expected = r.filter(text);
+    assertEquals("<hello>__<world>__<words>", expected);
+    assertTrue(profile.getTotalVisits()>text.length());
+    // the start state is visited once per match and once at EOF
+    assertEquals(10, profile.getVisits(0));
+
+    Dfa fast = dfa.optimize(profile, 0.9, 256);
+    assertEquals(expected, new DfaRun(fast).filter(text));
+    assertEquals(expected, new DfaRun(dfa.optimize(profile, 0.0, 256))
+                 .filter(text));
+
+    // the start state is hot and it spans all characters, so it must
+    // get the ASCII optimized table
+    DfaState start = fast.getStart();
+    assertTrue(start.getTrans() instanceof AsciiCharTrans);
+    assertTrue(dfa.getStart().getTrans() instanceof ArrayCharTrans);
+
+    r.setProfile(null);
+    profile.reset();
+    r.filter(text);
+    assertEquals(0, profile.getTotalVisits());
+  }
+
+  @Test
+  public void profileSurvivesSharedStates() throws Exception {
+    Dfa words = new Nfa("[a-z]+", Copy.COPY)
+      .or("[0-9]+", Drop.DROP)
+      .or("#+", Drop.DROP)
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa digits = new Nfa("[0-9]+", Drop.DROP).compile(DfaRun.UNMATCHED_COPY);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("words", words);
+    conditions.put("digits", digits);
+    Dfa dfa = Dfa.withStartConditions(conditions);
+
+    DfaProfile profile = dfa.createProfile();
+    DfaRun r = new DfaRun(dfa);
+    r.setProfile(profile);
+    r.filter("ab 12 cd #");
+    long[] expected = new long[profile.size()];
+    for(int i=0; i<expected.length; i++) expected[i] = profile.getVisits(i);
+    // one visit per match, per unmatched space and at EOF
+    assertEquals(8, expected[0]);
+
+    // profiles of automata sharing states must not disturb each other
+    profile.reset();
+    dfa.getStartCondition("digits").createProfile();
+    words.createProfile();
+    r.filter("ab 12 cd #");
+    for(int i=0; i<expected.length; i++) {
+      assertEquals(expected[i], profile.getVisits(i));
+    }
+  }
+
+  @Test
+  public void analysis() throws Exception {
+    Dfa dfa = new Nfa("abc|de", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    assertFalse(dfa.hasSubmatches());
+    assertEquals(2, dfa.getMinMatchLength());
+    assertEquals(3, dfa.getMaxMatchLength());
+    assertEquals(1, dfa.getTerminalStopCount());
+    assertEquals("aadd", dfa.getFirstChars());
+
+    dfa = new Nfa("x[0-9]+", Copy.COPY).or("y(!z)", Copy.COPY)
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertTrue(dfa.hasSubmatches());
+    assertEquals(2, dfa.getMinMatchLength());
+    assertEquals(-1, dfa.getMaxMatchLength());
+    assertEquals("xxyy", dfa.getFirstChars());
+
+    dfa = new Nfa("a*", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    assertEquals(0, dfa.getMinMatchLength());
+    assertEquals(-1, dfa.getMaxMatchLength());
+    assertEquals(0, dfa.getTerminalStopCount());
+
+    dfa = new Nfa(Nfa.NOTHING).compile(DfaRun.UNMATCHED_COPY);
+    assertEquals(-1, dfa.getMinMatchLength());
+    assertEquals(-1, dfa.getMaxMatchLength());
+    assertEquals("", dfa.getFirstChars());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void optimizeWithForeignProfile() throws Exception {
+    Dfa dfa1 = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Dfa dfa2 = new Nfa("b", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    dfa1.optimize(dfa2.createProfile(), 0.9, 256);
+  }
+
+  /**
+   * asserts that both automata have the same action after every
+   * input, even if one has more states than the other.
+   */
+  private static void assertEquivalent(Dfa expected, Dfa actual) {
+    Map<DfaState,DfaState> seen = new IdentityHashMap<>();
+    LinkedList<DfaState[]> work = new LinkedList<>();
+    work.add(new DfaState[] {expected.getStart(), actual.getStart()});
+    while( work.size()>0 ) {
+      DfaState[] pair = work.removeLast();
+      if( seen.get(pair[0])==pair[1] ) continue;
+      seen.put(pair[0], pair[1]);
+      assertEquals(pair[0].getAction(), pair[1].getAction());
+      StringBuilder firsts = new StringBuilder();
+      for(DfaState s : pair) {
+        CharTrans<DfaState> tr = s.getTrans();
+        for(int i=0; i<tr.size(); i++) {
+          firsts.append(tr.getFirstAt(i));
+          if( tr.getLastAt(i)<Character.MAX_VALUE ) {
+            firsts.append((char)(tr.getLastAt(i)+1));
+          }
+        }
+      }
+      for(int i=0; i<firsts.length(); i++) {
+        char ch = firsts.charAt(i);
+        DfaState e = pair[0].follow(ch);
+        DfaState a = pair[1].follow(ch);
+        assertEquals(e==null, a==null);
+        if( e!=null ) work.add(new DfaState[] {e, a});
+      }
+    }
+  }
+
+  @Test
+  public void updateSameAsRecompile() throws Exception {
+    Random r = new Random(17);
+    List<String> words = new ArrayList<>();
+    List<FaAction> actions = new ArrayList<>();
+    for(int i=0; i<400; i++) {
+      StringBuilder w = new StringBuilder();
+      for(int k=r.nextInt(5); k>=0; k--) w.append((char)('a'+r.nextInt(3)));
+      // some duplicates with the same action
+      boolean dup = i>0 && r.nextInt(10)==0;
+      words.add(dup ? words.get(i-1) : w.toString());
+      actions.add(dup ? actions.get(i-1) : new Printf("<"+i+">").setPriority(i));
+    }
+    FaAction fallback = new Printf("[%0]").setPriority(-1);
+
+    Nfa base = new Nfa().setUpdatable(true).or("[a-c]+", fallback);
+    for(int i=0; i<300; i++) base.or(words.get(i), actions.get(i));
+    Dfa dfa = base.compile(DfaRun.UNMATCHED_COPY);
+
+    for(int round=0; round<3; round++) {
+      Nfa added = new Nfa();
+      Nfa removed = new Nfa();
+      Nfa all = new Nfa().or("[a-c]+", fallback);
+      for(int i=0; i<400; i++) {
+        boolean in = i<300 ? i%(round+2)!=1 : round==2;
+        boolean was = round==0 ? i<300 : i<300 ? i%(round+1)!=1 : false;
+        if( in ) all.or(words.get(i), actions.get(i));
+        if( in && !was ) added.or(words.get(i), actions.get(i));
+        if( was && !in ) removed.or(words.get(i), actions.get(i));
+      }
+      dfa = dfa.update(added, removed);
+      assertEquivalent(all.compile(DfaRun.UNMATCHED_COPY), dfa);
+    }
+    assertEquals("<382> [cccccc]",
+                 new DfaRun(dfa).filter(words.get(382)+" cccccc"));
+  }
+
+  @Test
+  public void updateDuplicates() throws Exception {
+    FaAction a = new Printf("<a>");
+    Dfa dfa = new Nfa("x", a).or("x", a).or("yy", Copy.COPY)
+      .setUpdatable(true).compile(DfaRun.UNMATCHED_DROP);
+    dfa = dfa.update(null, new Nfa("x", a));
+    assertEquals("<a>yy", new DfaRun(dfa).filter("x yy"));
+    dfa = dfa.update(null, new Nfa("x", a));
+    assertEquals("yy", new DfaRun(dfa).filter("x yy"));
+    dfa = dfa.update(null, new Nfa("yy", Copy.COPY));
+    assertEquals("", new DfaRun(dfa).filter("x yy"));
+    assertEquals(-1, dfa.getMinMatchLength());
+    dfa = dfa.update(new Nfa("z", a), null);
+    assertEquals("<a>", new DfaRun(dfa).filter("x yy z"));
+  }
+
+  @Test
+  public void updateAddsFromOptimized() throws Exception {
+    Dfa dfa = new Nfa("[a-z]+", new Printf("<%0>"))
+      .or("[0-9]+", Drop.DROP)
+      .compile(DfaRun.UNMATCHED_COPY);
+    DfaProfile profile = dfa.createProfile();
+    dfa = dfa.optimize(profile, 0.9, 256)
+      .update(new Nfa("hello", new Printf("!").setPriority(1)), null);
+    assertEquals("!  <world>", new DfaRun(dfa).filter("hello 42 world"));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void updateRemovesUnknown() throws Exception {
+    Dfa dfa = new Nfa("ab", Copy.COPY).setUpdatable(true)
+      .compile(DfaRun.UNMATCHED_COPY);
+    dfa.update(null, new Nfa("a", Copy.COPY));
+  }
+
+  @Test(expected=UnsupportedOperationException.class)
+  public void updateRemovesOnlyIfUpdatable() throws Exception {
+    Dfa dfa = new Nfa("ab", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    dfa.update(null, new Nfa("ab", Copy.COPY));
+  }
+
+  @Test
+  public void updateSharesStates() throws Exception {
+    Dfa dfa = new Nfa("abc", Copy.COPY).or("xyz", Drop.DROP)
+      .setUpdatable(true).compile(DfaRun.UNMATCHED_COPY);
+    Dfa more = dfa.update(new Nfa("abd", Copy.COPY), null);
+    assertSame(dfa.getStart().follow('x'), more.getStart().follow('x'));
+    assertNotSame(dfa.getStart().follow('a'), more.getStart().follow('a'));
+    assertEquals("abdabc", new DfaRun(more).filter("abdabcxyz"));
+    Dfa less = more.update(null, new Nfa("xyz", Drop.DROP));
+    assertSame(more.getStart().follow('a'), less.getStart().follow('a'));
+    assertEquals("abdxyz", new DfaRun(less).filter("abdxyz"));
+  }
+
+  @Test(expected=CompileDfaException.class)
+  public void updateClash() throws Exception {
+    Dfa dfa = new Nfa("ab", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    dfa.update(new Nfa("a?b", Drop.DROP), null);
+  }
+
+  @Test(expected=UnsupportedOperationException.class)
+  public void updateWithSubmatches() throws Exception {
+    Dfa dfa = new Nfa("ab", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    dfa.update(new Nfa("x(!y)", Copy.COPY), null);
+  }
+
+  @Test
+  public void unionSameAsCombined() throws Exception {
+    Random r = new Random(5);
+    List<String> regexes = new ArrayList<>();
+    List<FaAction> actions = new ArrayList<>();
+    for(int i=0; i<500; i++) {
+      StringBuilder w = new StringBuilder();
+      for(int k=r.nextInt(6); k>=0; k--) w.append((char)('a'+r.nextInt(4)));
+      if( r.nextInt(20)==0 ) w.append("[a-d]*");
+      regexes.add(w.toString());
+      actions.add(new Printf("<%0:"+i+">").setPriority(i));
+    }
+    regexes.add("[a-d]+");
+    actions.add(new Printf("[%0]").setPriority(-1));
+
+    Nfa all = new Nfa();
+    for(int i=0; i<regexes.size(); i++) all.or(regexes.get(i), actions.get(i));
+    Dfa combined = all.compile(DfaRun.UNMATCHED_COPY);
+    List<Dfa> shards = Nfa.compileShards(regexes, actions,
+                                         DfaRun.UNMATCHED_COPY, 4, 2);
+    assertEquals(4, shards.size());
+    Dfa union = Dfa.union(shards, DfaRun.UNMATCHED_COPY, null);
+
+    StringBuilder text = new StringBuilder();
+    for(int i=0; i<5000; i++) text.append((char)('a'+r.nextInt(5)));
+    assertEquals(new DfaRun(combined).filter(text.toString()),
+                 new DfaRun(union).filter(text.toString()));
+    union.matchMax = 3;
+    combined.matchMax = 3;
+    assertEquals(new DfaRun(combined).filter(text.toString()),
+                 new DfaRun(union).filter(text.toString()));
+
+    assertEquals(combined.getMinMatchLength(), union.getMinMatchLength());
+    assertEquals(combined.getMaxMatchLength(), union.getMaxMatchLength());
+    // adjacent ranges are merged
+    assertEquals("aabbccdd", combined.getFirstChars());
+    assertEquals("ad", union.getFirstChars());
+  }
+
+  @Test
+  public void withTermsKeepsMatchMax() throws Exception {
+    Dfa dfa = new Nfa("x+", new Printf("<%0>")).compile(DfaRun.UNMATCHED_COPY);
+    dfa.matchMax = 4;
+    TermMatcher terms = new TermMatcher("[ ]+", "[.]?");
+    terms.add(Arrays.asList("ab", "cd"), new Printf("[%0]"));
+    terms.add(Arrays.asList("ab"), new Printf("{%0}"));
+    Dfa combined = Dfa.withTerms(dfa, terms);
+    assertEquals(4, combined.matchMax);
+    String text = "ab cd xxxxxx";
+    // like a Dfa, matches are shorter than matchMax
+    assertEquals("{ab} cd <xxx><xxx>", new DfaRun(combined).filter(text));
+    combined.matchMax = 6;
+    assertEquals("[ab cd] <xxxxx><x>", new DfaRun(combined).filter(text));
+    combined.matchMax = -1;
+    assertEquals("[ab cd] <xxxxxx>", new DfaRun(combined).filter(text));
+  }
+
+  @Test
+  public void unionPicksLongestThenPriority() throws Exception {
+    Dfa a = new Nfa("ab", new Printf("<a>").setPriority(1))
+      .or("x+", new Printf("<x>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa b = new Nfa("abc", new Printf("<b>"))
+      .or("x+", new Printf("<X>").setPriority(2))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa c = new Nfa("ab", new Printf("<c>")).compile(DfaRun.UNMATCHED_COPY);
+    Dfa u = Dfa.union(Arrays.asList(Dfa.union(Arrays.asList(a, b),
+                                              DfaRun.UNMATCHED_DROP, null),
+                                    c),
+                      DfaRun.UNMATCHED_DROP, null);
+    assertEquals("<b><a><X>", new DfaRun(u).filter("abc ab- xx"));
+    assertEquals("aadd", Dfa.union(Arrays.asList(
+        new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY),
+        new Nfa("d", Copy.COPY).compile(DfaRun.UNMATCHED_COPY)),
+                                   DfaRun.UNMATCHED_COPY, null)
+                 .getFirstChars());
+  }
+
+  @Test
+  public void compileShardsSyntaxError() throws Exception {
+    List<String> regexes = Arrays.asList("b", "z(", "a(", "c");
+    List<FaAction> actions = Arrays.<FaAction>asList(Copy.COPY, Copy.COPY,
+                                                     Copy.COPY, Copy.COPY);
+    try {
+      Nfa.compileShards(regexes, actions, DfaRun.UNMATCHED_COPY, 4, 4);
+      fail("expected exception");
+    } catch( ReSyntaxException e ) {
+      assertEquals("z(", e.text);
+    }
+    // one shard sorts "a(x" before "b(x"
+    regexes = Arrays.asList("c", "b(x", "a(x");
+    try {
+      Nfa.compileShards(regexes, actions.subList(0, 3),
+                        DfaRun.UNMATCHED_COPY, 1, 1);
+      fail("expected exception");
+    } catch( ReSyntaxException e ) {
+      assertEquals("b(x", e.text);
+    }
+  }
+
+  @Test
+  public void compileShardsFallback() throws Exception {
+    List<Dfa> shards =
+        Nfa.compileShards(Arrays.asList("a", "b"),
+                          Arrays.<FaAction>asList(Copy.COPY, Copy.COPY),
+                          DfaRun.UNMATCHED_DROP, 2, 2);
+    assertEquals("a", new DfaRun(shards.get(0)).filter("xaby"));
+    assertEquals("b", new DfaRun(shards.get(1)).filter("xaby"));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void unionWithSubmatches() throws Exception {
+    Dfa a = new Nfa("x(!y)", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Dfa.union(Arrays.asList(a), DfaRun.UNMATCHED_COPY, null);
+  }
+
+  @Test
+  public void charMap() throws Exception {
+    CharMap fold = CharMap.LOWERCASE.andThen(CharMap.NO_ACCENTS)
+      .andThen(CharMap.WHITESPACE);
+    assertEquals("protein kinase e", fold.map("Protein\tKINÄSE É"));
+    Dfa dfa = new Nfa("protein[ ]+kinase", new Printf("<%0>"))
+      .or("a(!b+)c", new Printf(true, "[%1]"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa mapped = Dfa.withCharMap(dfa, fold);
+    assertEquals("aapp", dfa.getFirstChars());
+    assertTrue(mapped.getFirstChars().startsWith("AAPPaapp\u00c0"));
+    String text = "x Protein\n KINÄSE, ABbc protein kinase";
+    String expected = "x <Protein\n KINÄSE>, [Bb] <protein kinase>";
+    assertEquals(expected, new DfaRun(mapped).filter(text));
+    assertEquals("x Protein\n KINÄSE, ABbc <protein kinase>",
+                 new DfaRun(dfa).filter(text));
+
+    // profiling and updating keep the mapping
+    DfaProfile profile = mapped.createProfile();
+    DfaRun r = new DfaRun(mapped);
+    r.setProfile(profile);
+    r.filter(text);
+    assertTrue(profile.getTotalVisits()>0);
+    Dfa fast = mapped.optimize(profile, 0.9, 256);
+    assertEquals(expected, new DfaRun(fast).filter(text));
+    Dfa plain = Dfa.withCharMap(new Nfa("y", Copy.COPY)
+                                .compile(DfaRun.UNMATCHED_DROP), fold);
+    Dfa more = plain.update(new Nfa("x", new Printf("{%0}")), null);
+    assertEquals("{X}Y", new DfaRun(more).filter("XzY"));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void charMapTwice() throws Exception {
+    Dfa dfa = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Dfa.withCharMap(Dfa.withCharMap(dfa, CharMap.LOWERCASE),
+                    CharMap.NO_ACCENTS);
+  }
+
+  @Test
+  public void startConditions() throws Exception {
+    String ref = "&[a-z]+;";
+    Dfa text = new Nfa("[a-z]+", new Printf("<%0>"))
+      .or(ref, Copy.COPY)
+      .or("\\[", new SwitchCondition("code", Drop.DROP))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa code = new Nfa(ref, Copy.COPY)
+      .or("\\]", new SwitchCondition("text", Drop.DROP))
+      .compile(DfaRun.UNMATCHED_DROP);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("text", text);
+    conditions.put("code", code);
+    Dfa dfa = Dfa.withStartConditions(conditions);
+
+    assertEquals(Arrays.asList("text", "code"),
+                 new ArrayList<>(dfa.getStartConditions()));
+    assertSame(dfa, dfa.getStartCondition("text"));
+    DfaRun r = new DfaRun(dfa);
+    assertEquals("<ab> &amp; <gh> &lt;",
+                 r.filter("ab [cd &amp; ef] gh &lt;"));
+    r.setStartCondition("code");
+    assertEquals("&lt;", r.filter("ab &lt;"));
+
+    // the states of the reference are shared
+    Map<DfaState,DfaState> distinct = new IdentityHashMap<>();
+    for(String name : dfa.getStartConditions()) {
+      for(DfaState s : dfa.getStartCondition(name).createProfile().states) {
+        distinct.put(s, s);
+      }
+    }
+    int separate = text.createProfile().size()+code.createProfile().size();
+    assertTrue(distinct.size()+" vs "+separate, distinct.size()<separate);
+    assertEquals(0, text.getStartConditions().size());
+  }
+
+  @Test
+  public void startConditionMergesEquivalentStates() throws Exception {
+    // few distinct actions let many states become equivalent
+    FaAction[] actions = {new Printf("<%0>").setPriority(0),
+                          new Printf("[%0]").setPriority(1),
+                          new Printf("{%0}").setPriority(2)};
+    Random rand = new Random(4711);
+    Nfa nfa = new Nfa();
+    for(int i=0; i<300; i++) {
+      StringBuilder word = new StringBuilder();
+      for(int k=rand.nextInt(6); k>=0; k--) {
+        word.append((char)('a'+rand.nextInt(4)));
+      }
+      nfa.or(word+"(x|y+)?", actions[rand.nextInt(3)]);
+    }
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("one", dfa);
+    Dfa merged = Dfa.withStartConditions(conditions);
+    StringBuilder text = new StringBuilder();
+    for(int i=0; i<5000; i++) text.append("abcdxy ".charAt(rand.nextInt(7)));
+    assertEquals(new DfaRun(dfa).filter(text.toString()),
+                 new DfaRun(merged).filter(text.toString()));
+    assertTrue(merged.createProfile().size()<dfa.createProfile().size());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void startConditionUnknown() throws Exception {
+    Dfa dfa = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("a", dfa);
+    Dfa.withStartConditions(conditions).getStartCondition("b");
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void startConditionOfMapped() throws Exception {
+    Dfa dfa = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("a", Dfa.withCharMap(dfa, CharMap.LOWERCASE));
+    Dfa.withStartConditions(conditions);
+  }
+
+  @Test(expected=UnsupportedOperationException.class)
+  public void startConditionNotOptimized() throws Exception {
+    Dfa dfa = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("a", dfa);
+    Dfa merged = Dfa.withStartConditions(conditions);
+    merged.optimize(merged.createProfile(), 0.95, 256);
+  }
+
+  @Test(expected=UnsupportedOperationException.class)
+  public void startConditionNotUpdated() throws Exception {
+    Dfa dfa = new Nfa("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    Map<String,Dfa> conditions = new LinkedHashMap<>();
+    conditions.put("a", dfa);
+    Dfa.withStartConditions(conditions).update(new Nfa("b", Copy.COPY), null);
+  }
 }
@@ -35,6 +35,19 @@ public class MatchGroupTest extends TestCase {
     assertEquals("abc-b- abbbbbc-bbbbb-", s);
   }
   /**********************************************************************/
+  // more groups active at the same time than the initial size of
+  // the bookkeeping arrays used in SubmatchData.analyze()
+  public void test_ManyNested()
+    throws ReSyntaxException, CompileDfaException, java.io.IOException {
+    String s = new
+      Nfa("(!(!(!(!(!(!(!a)b)c)d)e)f)g)",
+          new Printf(true, "%1 %2 %3 %4 %5 %6 %7"))
+      .compile(DfaRun.UNMATCHED_COPY)
+      .createRun()
+      .filter("xabcdefgx");
+    assertEquals("xa ab abc abcd abcde abcdef abcdefgx", s);
+  }
+  /**********************************************************************/
 
   // demonstrate how match groups may overlap. Despite the overlap,
   // these two groups are uniquely separable.
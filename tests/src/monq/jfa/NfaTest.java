@@ -28,6 +28,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -332,6 +335,199 @@ public class NfaTest {
 		 e.getMessage().substring(0, l));
   }
 
+  @Test
+  public void testManyActionsByPriority() throws Exception {
+    Nfa nfa = new Nfa(Nfa.NOTHING);
+    for(int i=0; i<100; i++) {
+      nfa.or("a|b", new Printf(false, "<"+i+">").setPriority(i));
+      nfa.or("b", new Printf(false, "["+i+"]").setPriority(100+i));
+    }
+    Dfa dfa = nfa.or("a", Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<99>[99]", new DfaRun(dfa).filter("ab"));
+    assertTrue(((AbstractFaAction)Copy.COPY).mergesByPriority());
+  }
+
+  /**
+   * an action overriding mergeWith() must not be short-cut by merging
+   * by priority, which would report a clash here
+   */
+  @Test
+  public void testCustomMergeWith() throws Exception {
+    final FaAction merged = new Printf(false, "merged");
+    AbstractFaAction merging = new Printf(false, "x") {
+      @Override
+      public FaAction mergeWith(FaAction other) {
+        FaAction result = super.mergeWith(other);
+        if( result!=null ) return result;
+        return merged;
+      }
+    };
+    assertFalse(merging.mergesByPriority());
+    Dfa dfa = new Nfa("a", merging)
+      .or("a", new Printf(false, "y"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("merged", new DfaRun(dfa).filter("a"));
+  }
+
+  @Test
+  public void testRepeat() throws Exception {
+    Nfa nfa = new Nfa("ab").repeat(2, 3).addAction(new Printf("<%0>"));
+    Dfa dfa = nfa.or(new Nfa("x").repeat(2, -1).addAction(new Printf("[%0]")))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("ab|<ababab>|<abab>|x|[xx]|[xxxxx]",
+                 new DfaRun(dfa).filter("ab|ababab|abab|x|xx|xxxxx"));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testRepeatBadCount() throws Exception {
+    new Nfa("a", Copy.COPY).repeat(3, 2);
+  }
+
+  @Test
+  public void testFuzzy() throws Exception {
+    // every string over [abc] up to length 5 is compared with the
+    // edit distance computed directly
+    String[] words = {"abca", "b", "ab(c|cc)"};
+    for(String word : words) {
+      for(int edits=0; edits<=2; edits++) {
+        Dfa dfa = new Nfa(word).fuzzy(edits, "[abc]").seq("#")
+          .addAction(new Printf("<%0>")).compile(DfaRun.UNMATCHED_COPY);
+        DfaRun r = new DfaRun(dfa);
+        List<String> all = new ArrayList<>();
+        all.add("");
+        for(int i=0; i<all.size(); i++) {
+          String s = all.get(i);
+          if( s.length()<5 ) {
+            for(char ch='a'; ch<='c'; ch++) all.add(s+ch);
+          }
+          boolean expected = false;
+          for(String m : word.equals("ab(c|cc)")
+                ? new String[] {"abc", "abcc"} : new String[] {word}) {
+            expected |= levenshtein(s, m)<=edits;
+          }
+          assertEquals(word+" "+edits+" "+s, expected,
+                       r.filter(s+"#").equals("<"+s+"#>"));
+        }
+      }
+    }
+  }
+  private static int levenshtein(String a, String b) {
+    int[] row = new int[b.length()+1];
+    for(int j=0; j<row.length; j++) row[j] = j;
+    for(int i=1; i<=a.length(); i++) {
+      int diag = row[0];
+      row[0] = i;
+      for(int j=1; j<=b.length(); j++) {
+        int up = row[j];
+        int cost = a.charAt(i-1)==b.charAt(j-1) ? 0 : 1;
+        row[j] = Math.min(Math.min(row[j]+1, row[j-1]+1), diag+cost);
+        diag = up;
+      }
+    }
+    return row[b.length()];
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testFuzzyBadAlphabet() throws Exception {
+    new Nfa("abc").fuzzy(1, "ab");
+  }
+
+  @Test
+  public void testBulkOr() throws Exception {
+    List<String> regexes = new ArrayList<>();
+    List<FaAction> actions = new ArrayList<>();
+    Nfa single = new Nfa();
+    for(int i=0; i<5000; i++) {
+      String re = "w"+(i%3000)+"(x|y)?";
+      FaAction a = new Printf("<"+i+">").setPriority(i);
+      regexes.add(re);
+      actions.add(a);
+      single.or(re, a);
+    }
+    regexes.add("(!a+)b");
+    actions.add(new Printf(true, "[%1]"));
+    single.or(regexes.get(5000), actions.get(5000));
+
+    Nfa bulk = new Nfa().or(regexes, actions, 4);
+    Dfa d1 = single.compile(DfaRun.UNMATCHED_COPY);
+    Dfa d2 = bulk.compile(DfaRun.UNMATCHED_COPY);
+    String text = "w17 w2999x w2500y w4000 aab";
+    assertEquals("<3017> <2999> <2500> <3400>0 [aa]", new DfaRun(d1).filter(text));
+    assertEquals(new DfaRun(d1).filter(text), new DfaRun(d2).filter(text));
+  }
+
+  @Test
+  public void testBulkOrDuplicateSubmatch() throws Exception {
+    List<String> regexes = Arrays.asList("a(!b+)", "a(!b+)", "c");
+    List<FaAction> actions = Arrays.<FaAction>asList(
+        new Printf(true, "[%1]").setPriority(1),
+        new Printf(true, "{%1}").setPriority(2),
+        new Printf("<%0>"));
+    Dfa dfa = new Nfa().or(regexes, actions, 1).compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("{bb} <c>", new DfaRun(dfa).filter("abb c"));
+  }
+
+  @Test
+  public void testBulkOrSyntaxError() throws Exception {
+    List<String> regexes = new ArrayList<>();
+    for(int i=0; i<3000; i++) regexes.add(i==1234 ? "x(" : "x"+i);
+    regexes.add("y)");
+    List<FaAction> actions = new ArrayList<>();
+    for(int i=0; i<regexes.size(); i++) actions.add(Copy.COPY);
+    Nfa nfa = new Nfa("z", Copy.COPY);
+    try {
+      nfa.or(regexes, actions, 3);
+      fail("syntax error not detected");
+    } catch( ReSyntaxException e ) {
+      assertEquals(ReSyntaxException.EEOFUNEX, e.emsg);
+      assertEquals("x(", e.text);
+    }
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("z x1", new DfaRun(dfa).filter("z x1"));
+  }
+
+  @Test
+  public void testBulkOrRethrowsFailure() throws Exception {
+    List<String> regexes = new ArrayList<>();
+    List<FaAction> actions = new ArrayList<>();
+    for(int i=0; i<3000; i++) {
+      regexes.add(i==2500 ? "boom" : "x"+i);
+      actions.add(Copy.COPY);
+    }
+    ReParserFactory old = Nfa.getDefaultParserFactory();
+    Nfa.setDefaultParserFactory(new ReParserFactory() {
+      @Override
+      public ReParser newReParser() {
+        final ReParser p = ReClassicParser.factory.newReParser();
+        return new ReParser() {
+          @Override
+          public void parse(NfaParserView nfa, CharSequence regex)
+            throws ReSyntaxException
+          {
+            if( "boom".equals(regex.toString()) ) {
+              throw new IllegalStateException("boom");
+            }
+            p.parse(nfa, regex);
+          }
+          @Override
+          public String specialChars() { return p.specialChars(); }
+          @Override
+          public void escape(StringBuilder out, CharSequence in, int at) {
+            p.escape(out, in, at);
+          }
+        };
+      }
+    });
+    try {
+      new Nfa().or(regexes, actions, 3);
+      fail("failure of a parsing thread was lost");
+    } catch( IllegalStateException e ) {
+      assertEquals("boom", e.getMessage());
+    } finally {
+      Nfa.setDefaultParserFactory(old);
+    }
+  }
+
   /**
    * an Nfa with no actions should compile to the empty automaton
    */
@@ -4,26 +4,49 @@ import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import monq.jfa.actions.Call;
+import monq.jfa.actions.Copy;
+import monq.jfa.actions.Hold;
+import monq.jfa.actions.If;
 import monq.jfa.actions.MapProvider;
+import monq.jfa.actions.Printf;
+import monq.jfa.actions.Run;
+import monq.jfa.actions.SearchReplace;
+import monq.jfa.actions.SwitchCondition;
+import monq.jfa.actions.SwitchDfa;
+import monq.jfa.actions.TailContextN;
 
 /**
  * contains one test to verify that {@link Nfa#setMemoryForSpeedTradeFactor}
@@ -96,6 +119,94 @@ public class PerformanceTest {
     assertEquals(javaResult, counts);
   }
   
+  /**
+   * compiles a dictionary of 1M entries where each of 1000 terms has
+   * 1000 actions with distinct priorities, once with actions that
+   * {@link AbstractFaAction#mergesByPriority merge by priority} and
+   * once forcing the pairwise merge, and verifies that both pick the
+   * same winner. The merge step alone is timed separately on the
+   * 1000 actions of one stop state, since the total is dominated by
+   * the subset construction. The order alternates between rounds, so
+   * that JIT warm-up does not favour either.
+   */
+  @Test
+  public void priorityMergeTest() throws Exception {
+    int terms = 1000;
+    int repeats = 1000;
+    for(int round=0; round<3; round++) {
+      for(int i=0; i<2; i++) {
+        boolean byPriority = (round+i)%2==0;
+        Nfa nfa = new Nfa(Nfa.NOTHING);
+        int prio = 0;
+        for(int r=0; r<repeats; r++) {
+          for(int t=0; t<terms; t++) {
+            nfa.or("t"+t+"x", new PrioAction(prio++, byPriority));
+          }
+        }
+        Timing timing = new Timing();
+        Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+        timing.stop();
+        System.out.printf("compiling %d entries, byPriority=%s: %s%n",
+                          prio, byPriority, timing);
+        assertEquals(Integer.toString((repeats-1)*terms+17),
+                     new DfaRun(dfa).filter("t17x"));
+
+        List<FaAction> candidates = new ArrayList<>(repeats);
+        for(int r=0; r<repeats; r++) {
+          candidates.add(new PrioAction(r, byPriority));
+        }
+        Set<FaAction> found = new LinkedHashSet<>();
+        List<Nfa.Clash> clashes = new ArrayList<>();
+        FaAction winner = null;
+        timing = new Timing();
+        for(int t=0; t<terms; t++) {
+          winner = Nfa.findAction(new StringBuilder(), 'a', 'a', clashes,
+                                  found, candidates);
+        }
+        timing.stop();
+        System.out.printf("merging %d actions, byPriority=%s: %s%n",
+                          terms*repeats, byPriority, timing);
+        assertSame(candidates.get(repeats-1), winner);
+        assertEquals(0, clashes.size());
+      }
+    }
+  }
+
+  /**
+   * compares counted repetitions against the same repetitions written
+   * out as a sequence of optional copies, which is how they were
+   * compiled before {@link Nfa#repeat} existed.
+   */
+  @Test
+  public void repeatCountTest() throws Exception {
+    String[][] cases = {
+        {"[a-z]", "1", "200"}, {"word ", "0", "50"}, {"ab|a", "0", "30"},
+    };
+    for(String[] c : cases) {
+      int from = Integer.parseInt(c[1]);
+      int to = Integer.parseInt(c[2]);
+      StringBuilder flat = new StringBuilder();
+      for(int i=0; i<to; i++) {
+        flat.append('(').append(c[0]).append(i<from ? ")" : ")?");
+      }
+      String counted = "("+c[0]+"){"+from+","+to+"}";
+      for(int i=0; i<3; i++) {
+        Timing tFlat = new Timing();
+        Dfa dFlat = new Nfa(flat, Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+        tFlat.stop();
+        Timing tCounted = new Timing();
+        Dfa dCounted =
+            new Nfa(counted, Copy.COPY).compile(DfaRun.UNMATCHED_COPY);
+        tCounted.stop();
+        int nFlat = dFlat.createProfile().size();
+        int nCounted = dCounted.createProfile().size();
+        System.out.printf("%s: flat %s, %d states; counted %s, %d states%n",
+                          counted, tFlat, nFlat, tCounted, nCounted);
+        assertEquals(nFlat, nCounted);
+      }
+    }
+  }
+
   private static Map<String,Count>
   countMatches(String[] rexes, String[] names, StringBuilder text) {
     Map<String,Count> result = new HashMap<>();
@@ -123,6 +234,749 @@ public class PerformanceTest {
     return result;
   }
   
+  /**
+   * compares compile time and peak heap usage of the position
+   * automaton front end against Thompson's construction for a
+   * dictionary and for a set of XML tag rules.
+   */
+  @Test
+  public void positionAutomatonTest() throws Exception {
+    String[] words = new String(createText(200_000)).split("[ ]+");
+    List<String> dict = new ArrayList<>();
+    for(String word : words) {
+      if( word.length()>=4 ) dict.add(new Nfa().escape(word));
+    }
+    List<String> xml = new ArrayList<>();
+    for(int i=0; i<200; i++) {
+      xml.add(Xml.STag("elem"+i));
+      xml.add(Xml.ETag("elem"+i));
+      xml.add(Xml.EmptyElemTag("empty"+i));
+    }
+    xml.add(Xml.Reference);
+    Map<String,List<String>> ruleSets = new HashMap<>();
+    ruleSets.put("dictionary", dict);
+    ruleSets.put("xml", xml);
+
+    for(Map.Entry<String,List<String>> e : ruleSets.entrySet()) {
+      for(int i=0; i<3; i++) {
+        int[] sizes = new int[2];
+        for(boolean positions : new boolean[] {false, true}) {
+          Nfa nfa = new Nfa().setPositionAutomaton(positions);
+          for(String re : e.getValue()) nfa.or(re, Copy.COPY);
+          assertEquals(positions, nfa.isPositionAutomaton());
+          System.gc();
+          long before = heapPeak(true);
+          Timing t = new Timing();
+          Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+          t.stop();
+          long peak = heapPeak(false)-before;
+          sizes[positions ? 1 : 0] = dfa.createProfile().size();
+          System.out.printf("%s, %d rules, positions=%s: %s, "
+                            +"peak heap +%dkB, %d states%n",
+                            e.getKey(), e.getValue().size(), positions, t,
+                            peak/1024, sizes[positions ? 1 : 0]);
+        }
+        assertEquals(sizes[0], sizes[1]);
+      }
+    }
+  }
+  /**
+   * changes a few hundred entries of a large dictionary and compares
+   * Dfa.update() with a complete compilation.
+   */
+  @Test
+  public void dfaUpdateTest() throws Exception {
+    String text = createText(400_000).toString();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : text.split("[ ]+")) {
+      if( word.length()>=4 ) unique.add(new Nfa().escape(word));
+    }
+    List<String> dict = new ArrayList<>(unique);
+    int N = dict.size()-300;
+    FaAction a = new Printf("<%0>");
+    Nfa nfa = new Nfa().setUpdatable(true);
+    for(int i=0; i<N; i++) nfa.or(dict.get(i), a);
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+
+    for(int i=0; i<3; i++) {
+      Nfa added = new Nfa();
+      Nfa removed = new Nfa();
+      Nfa all = new Nfa();
+      // the first N words are in the dictionary initially, then
+      // every second one of the last 600 words changes in each round
+      for(int k=0; k<dict.size(); k++) {
+        boolean in = k<N-300 || (k+i)%2==0;
+        boolean was = k<N-300 || (i==0 ? k<N : (k+i-1)%2==0);
+        if( in ) all.or(dict.get(k), a);
+        if( in && !was ) added.or(dict.get(k), a);
+        if( was && !in ) removed.or(dict.get(k), a);
+      }
+      Timing t = new Timing();
+      Dfa full = all.compile(DfaRun.UNMATCHED_COPY);
+      t.stop();
+      Timing tUpdate = new Timing();
+      dfa = dfa.update(added, removed);
+      tUpdate.stop();
+      System.out.printf("dictionary of %d words, complete compile %s, "
+                        +"update %s%n", N, t, tUpdate);
+      String s = text.substring(0, 50_000);
+      assertEquals(new DfaRun(full).filter(s), new DfaRun(dfa).filter(s));
+    }
+  }
+  /**
+   * runs several small dictionaries over the same gzipped UTF-8 input,
+   * once with a separate pass for each and once with one MultiDfaRun
+   * reading and decoding the input only once.
+   */
+  @Test
+  public void multiDfaRunTest() throws Exception {
+    String text = createText(2_000_000).toString();
+    ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    try(GZIPOutputStream out = new GZIPOutputStream(gz)) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+    byte[] bytes = gz.toByteArray();
+    String[] words = text.split("[ ]+");
+    Random r = new Random(2);
+    int K = 8;
+    Dfa[] dfas = new Dfa[K];
+    for(int k=0; k<K; k++) {
+      Nfa nfa = new Nfa();
+      FaAction a = new Printf("<"+k+":%0>");
+      for(int i=0; i<500; i++) {
+        String w = words[r.nextInt(words.length)];
+        if( w.length()>=3 ) nfa.or(nfa.escape(w), a);
+      }
+      dfas[k] = nfa.compile(DfaRun.UNMATCHED_DROP);
+    }
+    for(int i=0; i<3; i++) {
+      StringBuilder[] separate = new StringBuilder[K];
+      Timing t = new Timing();
+      for(int k=0; k<K; k++) {
+        separate[k] = new StringBuilder();
+        CharSource in = new ReaderCharSource(
+            new GZIPInputStream(new ByteArrayInputStream(bytes)), "UTF-8");
+        new DfaRun(dfas[k], in).filter(separate[k]);
+      }
+      t.stop();
+      StringBuilder[] shared = new StringBuilder[K];
+      Timing tShared = new Timing();
+      MultiDfaRun m = new MultiDfaRun(new ReaderCharSource(
+          new GZIPInputStream(new ByteArrayInputStream(bytes)), "UTF-8"));
+      for(int k=0; k<K; k++) {
+        shared[k] = new StringBuilder();
+        m.add(dfas[k], shared[k]);
+      }
+      m.filter();
+      tShared.stop();
+      System.out.printf("%d dictionaries over %d chars, separate passes "
+                        +"%s, shared input %s%n", K, text.length(), t,
+                        tShared);
+      for(int k=0; k<K; k++) {
+        assertEquals(separate[k].toString(), shared[k].toString());
+      }
+    }
+  }
+  /**
+   * classifies words by 300 expressions, once with a Regexp per
+   * expression and once with one Regexp for all of them reporting the
+   * set of expressions matched.
+   */
+  @Test
+  public void regexpSetTest() throws Exception {
+    String[] words = createText(200_000).toString().split("[ ]+");
+    List<String> res = new ArrayList<>();
+    Nfa escaper = new Nfa();
+    for(int i=0; res.size()<300; i++) {
+      String w = words[i];
+      if( w.length()<3 ) continue;
+      if( res.size()%2==0 ) res.add(escaper.escape(w));
+      else res.add("[a-z]*"+escaper.escape(w.substring(w.length()-2)));
+    }
+    Regexp[] single = new Regexp[res.size()];
+    for(int k=0; k<single.length; k++) single[k] = new Regexp(res.get(k));
+    Regexp all = new Regexp(res);
+    for(int i=0; i<3; i++) {
+      Timing t = new Timing();
+      long count = 0;
+      for(String w : words) {
+        for(Regexp r : single) if( r.matches(w) ) count += 1;
+      }
+      t.stop();
+      Timing tSet = new Timing();
+      long countSet = 0;
+      for(String w : words) {
+        if( all.matches(w) ) countSet += all.matchSet().cardinality();
+      }
+      tSet.stop();
+      System.out.printf("%d words against %d expressions, one by one %s, "
+                        +"as a set %s%n", words.length, res.size(), t, tSet);
+      assertEquals(count, countSet);
+    }
+  }
+  /**
+   * finds all occurrences of dictionary words, including those within
+   * other words, in one pass with an OverlapRun and compares the time
+   * with a DfaRun reporting leftmost longest matches only.
+   */
+  @Test
+  public void overlapRunTest() throws Exception {
+    String text = createText(400_000).toString();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : text.split("[ ]+")) {
+      if( word.length()>=3 ) unique.add(new Nfa().escape(word));
+    }
+    Nfa nfa = new Nfa();
+    FaAction a = new Printf("<%0>");
+    for(String w : unique) nfa.or(w, a);
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_DROP);
+    for(int i=0; i<3; i++) {
+      Timing t = new Timing();
+      String longest = new DfaRun(dfa).filter(text);
+      t.stop();
+      Timing tAll = new Timing();
+      OverlapRun r = new OverlapRun(dfa, new CharSequenceCharSource(text));
+      long hits = 0;
+      while( r.next() ) hits += 1;
+      tAll.stop();
+      int matches = longest.split(">").length;
+      System.out.printf("%d words, %d leftmost longest matches %s, "
+                        +"%d matches overlapping %s%n", unique.size(),
+                        matches, t, hits, tAll);
+      assertTrue(hits>=matches);
+    }
+  }
+  /**
+   * compiles a dictionary of multi word terms character by character
+   * and word by word and compares the compile time, the heap retained
+   * and the filter speed. Like in charMapTest(), the order alternates
+   * between rounds and each filter is built in its own method call.
+   */
+  @Test
+  public void tokenDictTest() throws Exception {
+    String text = createText(400_000).toString();
+    String[] words = text.split("[ ]+");
+    Random r = new Random(3);
+    StringBuilder mwt = new StringBuilder();
+    mwt.append("<?xml version='1.0'?>\n<mwt>\n")
+      .append("<template>[%0|%1]</template>\n");
+    for(int i=0; i<20_000; i++) {
+      mwt.append("<t p1=\"").append(i).append("\">");
+      int n = 1+r.nextInt(3);
+      for(int k=0; k<n; k++) {
+        String w = words[r.nextInt(words.length)];
+        if( w.length()<2 ) w = "xy";
+        mwt.append(k>0 ? " " : "").append(monq.jfa.xml.StdCharEntities
+                                          .toEntities(w));
+      }
+      mwt.append("</t>\n");
+    }
+    mwt.append("</mwt>\n");
+    String expected = null;
+    for(int round=0; round<4; round++) {
+      for(int i=0; i<2; i++) {
+        String out = tokenDictRound(mwt.toString(), text, (round+i)%2==1);
+        if( expected==null ) expected = out;
+        assertEquals(expected, out);
+      }
+    }
+  }
+  private static String tokenDictRound(String mwt, String text,
+                                       boolean tokens)
+    throws Exception
+  {
+    long before = heapUsed(true);
+    Timing t = new Timing();
+    monq.programs.DictFilter dict = new monq.programs.DictFilter(
+        new java.io.StringReader(mwt), "raw", null,
+        false, false, true, 1, tokens);
+    t.stop();
+    long heap = heapUsed(true)-before;
+    String out = null;
+    Timing tf = new Timing();
+    for(int i=0; i<5; i++) out = dict.createRun().filter(text);
+    tf.stop();
+    System.out.printf("20000 terms %s: compile %s, heap +%dkB, "
+                      +"filter 5x %s%n", tokens ? "word by word" : "as regexps",
+                      t, heap/1024, tf);
+    return out;
+  }
+  /**
+   * compiles a dictionary matched with one edit once from all spelling
+   * variants added with or() and once with Nfa.fuzzy().
+   */
+  @Test
+  public void fuzzyDictTest() throws Exception {
+    String text = createText(400_000).toString();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : text.split("[ ]+")) {
+      if( word.length()>=6 && word.matches("[a-z]+") ) unique.add(word);
+      if( unique.size()==300 ) break;
+    }
+    String expected = null;
+    for(boolean fuzzy : new boolean[] {false, true}) {
+      Timing t = new Timing();
+      Nfa nfa = new Nfa();
+      int prio = 0;
+      for(String word : unique) {
+        FaAction a = new Printf("<%0>").setPriority(prio++);
+        if( fuzzy ) {
+          nfa.or(new Nfa(word).fuzzy(1, "[a-z]").addAction(a));
+          continue;
+        }
+        Set<String> variants = new LinkedHashSet<>();
+        for(int i=0; i<=word.length(); i++) {
+          String head = word.substring(0, i);
+          if( i<word.length() ) variants.add(head+word.substring(i+1));
+          for(char ch='a'; ch<='z'; ch++) {
+            variants.add(head+ch+word.substring(i));
+            if( i<word.length() ) variants.add(head+ch+word.substring(i+1));
+          }
+        }
+        for(String v : variants) nfa.or(v, a);
+      }
+      Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+      t.stop();
+      Timing tf = new Timing();
+      String out = new DfaRun(dfa).filter(text);
+      tf.stop();
+      System.out.printf("%d words with 1 edit %s: compile %s, filter %s%n",
+                        unique.size(),
+                        fuzzy ? "by Nfa.fuzzy()" : "as variants", t, tf);
+      if( expected==null ) expected = out;
+      assertEquals(expected, out);
+    }
+  }
+  /**
+   * compiles a case insensitive dictionary once with every letter
+   * expanded into a class like [aA] and once in lower case, run with
+   * CharMap.LOWERCASE. The order alternates between rounds and each
+   * automaton is built in its own method call, so that no automaton
+   * of the previous round is still reachable while the heap is
+   * measured.
+   */
+  @Test
+  public void charMapTest() throws Exception {
+    String lower = createText(400_000).toString();
+    String text = lower+lower.toUpperCase();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : lower.split("[ ]+")) {
+      if( word.length()>=4 && word.matches("[a-z]+") ) unique.add(word);
+    }
+    // the static tables are not part of any automaton
+    CharMap.LOWERCASE.map('a');
+    String expected = null;
+    for(int round=0; round<4; round++) {
+      for(int i=0; i<2; i++) {
+        String out = charMapRound(unique, text, (round+i)%2==1);
+        if( expected==null ) expected = out;
+        assertEquals(expected, out);
+      }
+    }
+  }
+  private static String charMapRound(Set<String> words, String text,
+                                     boolean mapped)
+    throws Exception
+  {
+    long before = heapUsed(true);
+    Timing t = new Timing();
+    Nfa nfa = new Nfa();
+    for(String word : words) {
+      StringBuilder re = new StringBuilder();
+      for(char ch : word.toCharArray()) {
+        if( mapped ) re.append(ch);
+        else re.append('[').append(ch).append(Character.toUpperCase(ch))
+               .append(']');
+      }
+      nfa.or(re, new Printf("<%0>"));
+    }
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+    if( mapped ) dfa = Dfa.withCharMap(dfa, CharMap.LOWERCASE);
+    nfa = null;
+    t.stop();
+    long heap = heapUsed(true)-before;
+    String out = null;
+    Timing tf = new Timing();
+    for(int i=0; i<5; i++) out = new DfaRun(dfa).filter(text);
+    tf.stop();
+    System.out.printf("%d words %s: compile %s, heap +%dkB, filter 5x %s%n",
+                      words.size(),
+                      mapped ? "with CharMap" : "as [aA] classes",
+                      t, heap/1024, tf);
+    return out;
+  }
+  /**
+   * matches dictionary words followed by a non-letter once with the
+   * character in the match, given back by TailContextN, and once with
+   * the trailing context operator.
+   */
+  @Test
+  public void trailingContextTest() throws Exception {
+    String text = createText(400_000).toString();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : text.split("[ ]+")) {
+      if( word.length()>=4 && word.matches("[a-z]+") ) unique.add(word);
+    }
+    String expected = null;
+    for(boolean operator : new boolean[] {false, true}) {
+      Timing t = new Timing();
+      Nfa nfa = new Nfa();
+      for(String word : unique) {
+        if( operator ) {
+          nfa.or(word+"(?=[^a-z])", new Printf("<%0>"));
+        } else {
+          nfa.or(word+"[^a-z]", new TailContextN(1, new Printf("<%0>")));
+        }
+      }
+      Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+      t.stop();
+      Timing tf = new Timing();
+      String out = null;
+      for(int i=0; i<5; i++) out = new DfaRun(dfa).filter(text);
+      tf.stop();
+      System.out.printf("%d words %s: compile %s, filter 5x %s%n",
+                        unique.size(),
+                        operator ? "with (?=[^a-z])" : "with TailContextN",
+                        t, tf);
+      if( expected==null ) expected = out;
+      assertEquals(expected, out);
+    }
+  }
+  /**
+   * runs a dictionary inside and outside of <code>&lt;b&gt;</code>
+   * elements, dropping unmatched text inside, once with two Dfas
+   * switched by SwitchDfa and once as start conditions of one Dfa,
+   * sharing the dictionary states. Like in charMapTest(), the order
+   * alternates between rounds and each automaton is built in its own
+   * method call.
+   */
+  @Test
+  public void startConditionsTest() throws Exception {
+    String words = createText(400_000).toString();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : words.split("[ ]+")) {
+      if( word.length()>=4 && word.matches("[a-z]+") ) unique.add(word);
+    }
+    List<FaAction> actions = new ArrayList<>();
+    for(String word : unique) {
+      actions.add(new Printf("<%0>").setPriority(actions.size()));
+    }
+    StringBuilder sb = new StringBuilder();
+    String[] parts = words.split("\\.");
+    for(int i=0; i<parts.length; i++) {
+      sb.append(i%2==0 ? "<b>" : "</b>").append(parts[i]);
+    }
+    String text = sb.toString();
+
+    String expected = null;
+    for(int round=0; round<4; round++) {
+      for(int i=0; i<2; i++) {
+        String out = startConditionsRound(unique, actions, text,
+                                          (round+i)%2==1);
+        if( expected==null ) expected = out;
+        assertEquals(expected, out);
+      }
+    }
+  }
+  private static String startConditionsRound(Set<String> words,
+                                             List<FaAction> actions,
+                                             String text, boolean shared)
+    throws Exception
+  {
+    long before = heapUsed(true);
+    Timing t = new Timing();
+    FaAction toIn, toOut;
+    SwitchDfa switchIn = null, switchOut = null;
+    if( shared ) {
+      toIn = new SwitchCondition("in", Copy.COPY);
+      toOut = new SwitchCondition("out", Copy.COPY);
+    } else {
+      toIn = switchIn = new SwitchDfa(Copy.COPY);
+      toOut = switchOut = new SwitchDfa(Copy.COPY);
+    }
+    Nfa out = new Nfa("<b>", toIn);
+    Nfa in = new Nfa("</b>", toOut);
+    int i = 0;
+    for(String word : words) {
+      out.or(word, actions.get(i));
+      in.or(word, actions.get(i));
+      i += 1;
+    }
+    Dfa dOut = out.compile(DfaRun.UNMATCHED_COPY);
+    Dfa dIn = in.compile(DfaRun.UNMATCHED_DROP);
+    out = in = null;
+    Dfa dfa;
+    if( shared ) {
+      Map<String,Dfa> conditions = new LinkedHashMap<>();
+      conditions.put("out", dOut);
+      conditions.put("in", dIn);
+      dfa = Dfa.withStartConditions(conditions);
+    } else {
+      switchIn.setDfa(dIn);
+      switchOut.setDfa(dOut);
+      dfa = dOut;
+    }
+    dOut = dIn = null;
+    t.stop();
+    long heap = heapUsed(true)-before;
+    String result = null;
+    Timing tf = new Timing();
+    for(int k=0; k<5; k++) result = new DfaRun(dfa).filter(text);
+    tf.stop();
+    System.out.printf("%d words %s: compile %s, heap +%dkB, filter 5x %s%n",
+                      words.size(),
+                      shared ? "as start conditions" : "in two Dfas",
+                      t, heap/1024, tf);
+    return result;
+  }
+  /**
+   * runs Count and Hold on every word and sentence of a text.
+   */
+  @Test
+  public void countHoldTest() throws Exception {
+    Hold h = new Hold();
+    // not the Count of this class
+    monq.jfa.actions.Count c = new monq.jfa.actions.Count("words");
+    Dfa dfa = new Nfa("[a-z]+", c)
+      .or("[0-9]+", c.add(2))
+      .or("\\.", new Run(new If(c.ge(8), h.ship(), h.drop()),
+                          c.reset(), h))
+      .or("\u0001", h)
+      .or("\u0002", new If(c.ge(8), h.ship(), h.drop()))
+      .compile(DfaRun.UNMATCHED_COPY);
+    String text = "\u0001"+createText(400_000)+"\u0002";
+
+    Timing t = new Timing();
+    String out = null;
+    for(int i=0; i<50; i++) {
+      DfaRun r = new DfaRun(dfa);
+      final Map<Object,Object> m = new HashMap<>();
+      r.clientData = new MapProvider() {
+        @Override
+        public Map<Object,Object> getMap() { return m; }
+      };
+      out = r.filter(text);
+    }
+    t.stop();
+    System.out.printf("Count and Hold: filter 50x %s, %d of %d chars kept%n",
+                      t, out.length(), text.length());
+    assertTrue(out.length()<text.length());
+  }
+  /**
+   * compares Call with an action calling the same method directly.
+   */
+  @Test
+  public void callTest() throws Exception {
+    String text = createText(400_000).toString();
+    FaAction direct = new AbstractFaAction() {
+      @Override
+      public void invoke(StringBuilder out, int start, DfaRun r) {
+        ((Tally)r.clientData).word(out, start, r);
+      }
+    };
+    long expected = -1;
+    for(FaAction a : new FaAction[] {direct, new Call("word")}) {
+      Dfa dfa = new Nfa("[a-zA-Z]+", a).compile(DfaRun.UNMATCHED_COPY);
+      Tally tally = new Tally();
+      Timing t = new Timing();
+      for(int i=0; i<20; i++) {
+        DfaRun r = new DfaRun(dfa);
+        r.clientData = tally;
+        r.filter(text);
+      }
+      t.stop();
+      System.out.printf("%s: filter 20x %s%n",
+                        a==direct ? "direct" : "Call", t);
+      if( expected<0 ) expected = tally.chars;
+      assertEquals(expected, tally.chars);
+    }
+  }
+  public static final class Tally {
+    long chars = 0;
+    public void word(StringBuilder out, int start, DfaRun r) {
+      chars += out.length()-start;
+    }
+  }
+  /**
+   * runs a SearchReplace on every word of a text.
+   */
+  @Test
+  public void searchReplaceTest() throws Exception {
+    String text = createText(400_000).toString();
+    Dfa dfa = new Nfa("[a-zA-Z]+", new SearchReplace("[aeiou]", "[%0]"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Timing t = new Timing();
+    String out = null;
+    for(int i=0; i<20; i++) out = new DfaRun(dfa).filter(text);
+    t.stop();
+    System.out.printf("SearchReplace on every word: filter 20x %s%n", t);
+    assertTrue(out.length()>text.length());
+  }
+  private static long heapUsed() {
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory()-rt.freeMemory();
+  }
+  // the heap in use after collecting until it no longer shrinks
+  private static long heapUsed(boolean collect) {
+    long used = heapUsed();
+    for(int i=0; collect && i<10; i++) {
+      System.gc();
+      long now = heapUsed();
+      if( now>=used ) return now;
+      used = now;
+    }
+    return used;
+  }
+  /**
+   * compiles a dictionary into one Dfa and into shards combined by
+   * Dfa.union() and compares peak heap, compile time and filter
+   * speed.
+   */
+  @Test
+  public void shardedCompileTest() throws Exception {
+    String text = createText(400_000).toString();
+    Set<String> unique = new LinkedHashSet<>();
+    for(String word : text.split("[ ]+")) {
+      if( word.length()>=4 ) unique.add(new Nfa().escape(word));
+    }
+    final List<String> dict = new ArrayList<>(unique);
+    final List<FaAction> actions = new ArrayList<>();
+    for(int i=0; i<dict.size(); i++) {
+      actions.add(new Printf("<%0>").setPriority(i));
+    }
+    String expected = null;
+    for(final int shards : new int[] {1, 4, 16}) {
+      Callable<List<Dfa>> compile = new Callable<List<Dfa>>() {
+        @Override
+        public List<Dfa> call() throws Exception {
+          return Nfa.compileShards(dict, actions, DfaRun.UNMATCHED_COPY,
+                                   shards, 1);
+        }
+      };
+      long peak = liveHeapPeak(compile);
+      Timing t = new Timing();
+      Dfa dfa = Dfa.union(compile.call(), DfaRun.UNMATCHED_COPY, null);
+      t.stop();
+      Timing tf = new Timing();
+      String out = new DfaRun(dfa).filter(text);
+      tf.stop();
+      System.out.printf("%d words in %d shards: compile %s, live heap "
+                        +"peak +%dkB, filter %s%n", dict.size(), shards, t,
+                        peak/1024, tf);
+      if( expected==null ) expected = out;
+      assertEquals(expected, out);
+    }
+  }
+  /**
+   * runs task while another thread forces a full collection every few
+   * milliseconds, and returns the largest increase of the heap in use
+   * after a collection. Unlike the peak usage of the memory pools,
+   * this does not count garbage which was just not collected yet.
+   */
+  private static long liveHeapPeak(Callable<?> task) throws Exception {
+    System.gc();
+    final long before = heapUsed();
+    final long[] peak = {0};
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread sampler = new Thread() {
+      @Override
+      public void run() {
+        while( !done.get() ) {
+          System.gc();
+          peak[0] = Math.max(peak[0], heapUsed()-before);
+          try {
+            Thread.sleep(5);
+          } catch( InterruptedException e ) {
+            return;
+          }
+        }
+      }
+    };
+    sampler.start();
+    try {
+      task.call();
+    } finally {
+      done.set(true);
+      sampler.join();
+    }
+    return peak[0];
+  }
+  private static long heapPeak(boolean reset) {
+    long sum = 0;
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if( pool.getType()!=MemoryType.HEAP ) continue;
+      if( reset ) pool.resetPeakUsage();
+      sum += pool.getPeakUsage().getUsed();
+    }
+    return sum;
+  }
+  /**
+   * compares adding 500k expressions one by one with the bulk or(),
+   * which parses with one thread per processor and parses repeated
+   * expressions only once.
+   */
+  @Test
+  public void bulkOrTest() throws Exception {
+    String[] words = new String(createText(2_000_000)).split("[ ]+");
+    List<String> regexes = new ArrayList<>();
+    List<FaAction> actions = new ArrayList<>();
+    Random r = new Random(1);
+    Nfa escaper = new Nfa();
+    for(int i=0; regexes.size()<500_000; i++) {
+      String w = escaper.escape(words[i%words.length]);
+      if( w.length()<3 ) continue;
+      regexes.add(r.nextInt(4)==0 ? w+"[0-9]*" : w+r.nextInt(1000));
+      actions.add(Copy.COPY);
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    for(int i=0; i<3; i++) {
+      Timing t = new Timing();
+      Nfa single = new Nfa();
+      for(int k=0; k<regexes.size(); k++) {
+        single.or(regexes.get(k), actions.get(k));
+      }
+      t.stop();
+      Timing tBulk = new Timing();
+      Nfa bulk = new Nfa().or(regexes, actions, threads);
+      tBulk.stop();
+      System.out.printf("%d expressions one by one %s, bulk with %d "
+                        +"threads %s%n", regexes.size(), t, threads, tBulk);
+      // repeated expressions are parsed only once in bulk
+      assertTrue(bulk.countStates()<=single.countStates());
+    }
+  }
+
+  /**
+   * compiles rule sets dominated by the Unicode classes of {@link
+   * Xml#Name}. Each Dfa state then has to partition hundreds of
+   * character ranges of many Nfa states.
+   */
+  @Test
+  public void unicodeClassCompileTest() throws Exception {
+    for(int i=0; i<3; i++) {
+      Nfa tags = new Nfa()
+        .or(Xml.STag(), Copy.COPY)
+        .or(Xml.ETag(), Copy.COPY)
+        .or(Xml.EmptyElemTag(), Copy.COPY);
+      for(int k=0; k<50; k++) tags.or("e"+k+Xml.Name, Copy.COPY);
+      Timing t = new Timing();
+      Dfa dfa = tags.compile(DfaRun.UNMATCHED_COPY);
+      t.stop();
+      System.out.printf("xml tags and names: %s, %d states%n",
+                        t, dfa.createProfile().size());
+
+      Nfa names = new Nfa();
+      for(int k=0; k<300; k++) names.or(Xml.Name+"#"+k, Copy.COPY);
+      t = new Timing();
+      dfa = names.compile(DfaRun.UNMATCHED_COPY);
+      t.stop();
+      System.out.printf("300 names: %s, %d states%n",
+                        t, dfa.createProfile().size());
+      assertEquals(303, dfa.createProfile().size());
+    }
+  }
+
+
   private static Timing runFilter(Nfa nfa, CharSequence text, float tradeOff)
       throws CompileDfaException, IOException
   {
@@ -245,6 +1099,23 @@ public class PerformanceTest {
       }
     }
     /*+******************************************************************/
+    private static final class PrioAction extends AbstractFaAction {
+      private final boolean byPriority;
+      public PrioAction(int priority, boolean byPriority) {
+        this.priority = priority;
+        this.byPriority = byPriority;
+      }
+      @Override
+      public boolean mergesByPriority() {
+        return byPriority;
+      }
+      @Override
+      public void invoke(StringBuilder yytext, int start, DfaRun runner) {
+        yytext.setLength(start);
+        yytext.append(priority);
+      }
+    }
+    /*+******************************************************************/
     private static final class CountWords extends AbstractFaAction {
       private Map<String,Count> counts = new HashMap<>();
 
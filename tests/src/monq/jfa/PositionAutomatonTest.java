@@ -0,0 +1,120 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import monq.jfa.actions.Printf;
+
+public class PositionAutomatonTest {
+
+  // filters text with the regexes compiled by both front ends and
+  // checks that the results are the same
+  private static String crosscheck(String text, String... regexes)
+    throws Exception
+  {
+    Nfa thompson = new Nfa();
+    Nfa glushkov = new Nfa().setPositionAutomaton(true);
+    for(int i=0; i<regexes.length; i++) {
+      FaAction a = new Printf("<"+i+":%0>").setPriority(i);
+      thompson.or(regexes[i], a);
+      glushkov.or(regexes[i], a);
+    }
+    assertTrue(glushkov.isPositionAutomaton());
+    Dfa t = thompson.compile(DfaRun.UNMATCHED_COPY);
+    Dfa g = glushkov.compile(DfaRun.UNMATCHED_COPY);
+    String expected = new DfaRun(t).filter(text);
+    assertEquals(expected, new DfaRun(g).filter(text));
+    return expected;
+  }
+
+  @Test
+  public void literals() throws Exception {
+    assertEquals("<0:abc> <1:abd> <2:ab>x <0:abc>",
+                 crosscheck("abc abd abx abc", "abc", "abd", "ab"));
+  }
+
+  @Test
+  public void operators() throws Exception {
+    crosscheck("aaab xyxyz bbbb a1b22 -- q",
+               "a*b", "(xy)+z?", "b{2,3}", "[a-z][0-9]+[a-z]?",
+               "[^a-z ]+", "-(a|q)?");
+    crosscheck("abababab aaaaaaa ab",
+               "(ab){2,}", "ba{0,4}", "(a|ab){1,3}", ".");
+  }
+
+  @Test
+  public void trailingContext() throws Exception {
+    assertEquals("<0:ab>, <0:cd>. <2:efx> <1:ab>,",
+                 crosscheck("ab, cd. efx ab,", "[a-z]+(?=[,.] )",
+                            "[a-z]+(?=(\\.|x|,))", "[a-z]+"));
+
+    // a context of variable length is left to the Thompson construction
+    Nfa nfa = new Nfa().setPositionAutomaton(true)
+      .or("[a-z]+(?=,+ )", new Printf("<%0>"));
+    assertFalse(nfa.isPositionAutomaton());
+    assertEquals("<ab>,, cd,", new DfaRun(nfa.compile(DfaRun.UNMATCHED_COPY))
+                 .filter("ab,, cd,"));
+  }
+
+  @Test
+  public void priorities() throws Exception {
+    assertEquals("<1:if> <2:iffy>",
+                 crosscheck("if iffy", "[a-z]+", "if", "iffy"));
+  }
+
+  @Test
+  public void clash() throws Exception {
+    Nfa nfa = new Nfa().setPositionAutomaton(true)
+      .or("a+", new Printf("x"))
+      .or("a", new Printf("y"));
+    assertTrue(nfa.isPositionAutomaton());
+    try {
+      nfa.compile(DfaRun.UNMATCHED_COPY);
+      fail("should have thrown");
+    } catch( CompileDfaException e ) {
+      assertTrue(e.getMessage().startsWith(CompileDfaException.EAMBIGUOUS));
+    }
+  }
+
+  @Test
+  public void fallback() throws Exception {
+    Nfa nfa = new Nfa().setPositionAutomaton(true)
+      .or("a+", new Printf("<%0>"));
+    assertTrue(nfa.isPositionAutomaton());
+    nfa.or("x(!y)z", new Printf(true, "[%1]"));
+    assertFalse(nfa.isPositionAutomaton());
+    Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<aa> [y] b", new DfaRun(dfa).filter("aa xyz b"));
+
+    nfa = new Nfa().setPositionAutomaton(true)
+      .or("a+", new Printf("<%0>"))
+      .or("b", new Printf("(%0)"));
+    nfa.star();
+    assertFalse(nfa.isPositionAutomaton());
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void notEmpty() throws Exception {
+    new Nfa("a", new Printf("x")).setPositionAutomaton(true);
+  }
+}
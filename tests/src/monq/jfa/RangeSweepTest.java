@@ -0,0 +1,114 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.jfa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RangeSweepTest {
+
+  // the partition as created by splitting Intervals for each range
+  private static Intervals<Set<Integer>>
+    byIntervals(char[] firsts, char[] lasts, int[] targets)
+  {
+    Intervals<Set<Integer>> v = new Intervals<>();
+    for(int t=0; t<firsts.length; t++) {
+      int from = v.split(firsts[t]);
+      if( from<0 ) {
+        from = -(from+1);
+      } else if( v.getAt(from)!=null ) {
+        v.setAt(from, new HashSet<>(v.getAt(from)));
+      }
+      int to = v.size();
+      if( lasts[t]<Character.MAX_VALUE ) {
+        to = v.split((char)(lasts[t]+1));
+        if( to<0 ) {
+          to = -(to+1);
+        } else if( v.getAt(to)!=null ) {
+          v.setAt(to, new HashSet<>(v.getAt(to)));
+        }
+      }
+      for(int i=from; i<to; i++) {
+        Set<Integer> s = v.getAt(i);
+        if( s==null ) v.setAt(i, s = new HashSet<>());
+        s.add(targets[t]);
+      }
+    }
+    return v;
+  }
+
+  @Test
+  public void sameAsSplitting() {
+    Random r = new Random(17);
+    RangeSweep sweep = new RangeSweep();
+    for(int round=0; round<200; round++) {
+      int n = r.nextInt(40);
+      char[] firsts = new char[n];
+      char[] lasts = new char[n];
+      int[] targets = new int[n];
+      sweep.clear();
+      for(int t=0; t<n; t++) {
+        int a = r.nextInt(3)==0 ? r.nextInt(65536) : 'a'+r.nextInt(26);
+        int b = Math.min(65535, a+r.nextInt(r.nextBoolean() ? 3 : 65536));
+        firsts[t] = (char)a;
+        lasts[t] = (char)b;
+        targets[t] = t;
+        sweep.add(firsts[t], lasts[t], t);
+      }
+      sweep.sweep();
+      Intervals<Set<Integer>> expected = byIntervals(firsts, lasts, targets);
+      assertEquals(expected.size(), sweep.size());
+      for(int i=0; i<sweep.size(); i++) {
+        assertEquals(expected.getFirstAt(i), sweep.getFirstAt(i));
+        assertEquals(expected.getLastAt(i), sweep.getLastAt(i));
+        Set<Integer> s = new HashSet<>();
+        for(int k=sweep.getFrom(i); k<sweep.getTo(i); k++) {
+          s.add(sweep.getTargets()[k]);
+        }
+        Set<Integer> e = expected.getAt(i);
+        assertEquals(e==null ? new HashSet<Integer>() : e, s);
+      }
+    }
+  }
+
+  @Test
+  public void sameAsPrevious() {
+    RangeSweep sweep = new RangeSweep();
+    // a character class [a-cx-z] of two states to the same target
+    sweep.add('a', 'c', 0);
+    sweep.add('x', 'z', 0);
+    sweep.add('a', 'c', 1);
+    sweep.add('x', 'z', 1);
+    sweep.add('y', 'y', 2);
+    sweep.sweep();
+    // [0-`] [a-c] [d-w] [x] [y] [z] [{-]
+    assertEquals(7, sweep.size());
+    assertFalse(sweep.sameAsPrevious(1));
+    assertFalse(sweep.sameAsPrevious(2));
+    assertTrue(sweep.sameAsPrevious(3));
+    assertFalse(sweep.sameAsPrevious(4));
+    assertFalse(sweep.sameAsPrevious(5));
+    assertFalse(sweep.sameAsPrevious(6));
+  }
+}
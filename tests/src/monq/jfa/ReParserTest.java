@@ -426,6 +426,29 @@ public class ReParserTest {
   }
   /*+******************************************************************/
   @Test
+  public void testRepeatNested() {
+    // fixed length, so optional copies are nested
+    Regexp re = new Regexp("([0-9][a-z]){1,4}");
+    assertFalse(re.matches(""));
+    assertTrue(re.matches("1a"));
+    assertTrue(re.matches("1a2b3c"));
+    assertTrue(re.matches("1a2b3c4d"));
+    assertFalse(re.matches("1a2b3c4d5e"));
+    assertFalse(re.matches("1a2"));
+  }
+  /*+******************************************************************/
+  @Test
+  public void testRepeatVariableLength() {
+    Regexp re = new Regexp("(a|bc){0,3}");
+    assertTrue(re.matches(""));
+    assertTrue(re.matches("abc"));
+    assertTrue(re.matches("bcbcbc"));
+    assertTrue(re.matches("aaa"));
+    assertFalse(re.matches("aaaa"));
+    assertFalse(re.matches("abcabc"));
+  }
+  /*+******************************************************************/
+  @Test
   public void testRepeatComplex() {
     Regexp re = new Regexp("( ?(harald|kirsch)){2,3}");
     assertTrue(re.matches("harald kirsch"));
@@ -485,6 +508,176 @@ public class ReParserTest {
     sb.append('z');
     assertTrue(re.matches(sb.toString()));
   }
-}
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContext() throws Exception {
+    Dfa dfa = new Nfa("[a-z]+(?=[ .,])", new Printf("<%0>"))
+      .or("[a-z]+", new Printf("{%0}"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<ab> <cd>.{ef}", new DfaRun(dfa).filter("ab cd.ef"));
+
+    // the trailing context may be longer than the alternative
+    dfa = new Nfa("a(?=bc)", new Printf("<%0>"))
+      .or("ab", new Printf("{%0}"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<a>bc{ab}d", new DfaRun(dfa).filter("abcabd"));
+  }
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContextSubmatch() throws Exception {
+    Dfa dfa = new Nfa("(!a+)(!b+)(?=[xy])", new Printf(true, "[%1|%2]"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("[aa|b]x[a|bb]y abz",
+                 new DfaRun(dfa).filter("aabxabby abz"));
+  }
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContextMethod() throws Exception {
+    Dfa dfa = new Nfa("[0-9]+").trailingContext("[a-z][a-z]")
+      .addAction(new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<12>km 3m", new DfaRun(dfa).filter("12km 3m"));
+
+    // changes before the action make the context part of the match
+    dfa = new Nfa("a").trailingContext("b").seq("c")
+      .addAction(new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<abc>", new DfaRun(dfa).filter("abc"));
+
+    dfa = new Nfa("a").trailingContext("b+")
+      .addAction(new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<a>bbb <a>b", new DfaRun(dfa).filter("abbb ab"));
+
+    Nfa n = new Nfa("a*");
+    try {
+      n.trailingContext("b");
+      fail("expected exception");
+    } catch( ReSyntaxException e ) {
+      assertEquals(ReSyntaxException.ETRAILLENGTH, e.emsg);
+    }
+    // the automaton is unchanged
+    dfa = n.seq("c", new Printf("<%0>")).compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<aac>b", new DfaRun(dfa).filter("aacb"));
+  }
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContextVariable() throws Exception {
+    Dfa dfa = new Nfa("[a-z]+(?= +[0-9])", new Printf("<%0>"))
+      .or("[a-z]+", new Printf("{%0}"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<ab>   1 {cd} {x}", new DfaRun(dfa).filter("ab   1 cd x"));
 
+    // where r and s overlap, r gets the longest prefix possible
+    dfa = new Nfa("a+(?=a*b)", new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<aaa>b", new DfaRun(dfa).filter("aaab"));
+    dfa = new Nfa("x[ab]*(?=b+c|d)", new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<xabb>bc <xa>d", new DfaRun(dfa).filter("xabbbc xad"));
 
+    // the context may match the empty string
+    dfa = new Nfa("ab(?=c*)", new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    assertEquals("<ab>ccx<ab>", new DfaRun(dfa).filter("abccxab"));
+  }
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContextUnion() throws Exception {
+    Dfa a = new Nfa("ab(?=c)", new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa b = new Nfa("abcd", new Printf("{%0}"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    Dfa u = Dfa.union(Arrays.asList(a, b), DfaRun.UNMATCHED_COPY, null);
+    assertEquals("<ab>c{abcd}", new DfaRun(u).filter("abcabcd"));
+
+    a = new Nfa("ab+(?=c+)", new Printf("<%0>"))
+      .compile(DfaRun.UNMATCHED_COPY);
+    u = Dfa.union(Arrays.asList(a, b), DfaRun.UNMATCHED_COPY, null);
+    assertEquals("<abb>cc{abcd}", new DfaRun(u).filter("abbccabcd"));
+  }
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContextErrors() {
+    String[][] cases = {
+      {"a(?=b)c", ReSyntaxException.ETRAILPLACE},
+      {"(a(?=b))", ReSyntaxException.ETRAILPLACE},
+      {"x|a(?=b)", ReSyntaxException.ETRAILPLACE},
+      {"a*(?=b)", ReSyntaxException.ETRAILLENGTH},
+    };
+    for(String[] c : cases) {
+      try {
+        nfa.or(c[0], Copy.COPY);
+        fail("expected exception for "+c[0]);
+      } catch( ReSyntaxException e ) {
+        assertEquals(c[0], c[1], e.emsg);
+      }
+    }
+  }
+  /*+******************************************************************/
+  @Test
+  public void testTrailingContextNotSpecial() throws Exception {
+    // "(?=" only starts a trailing context outside of a character class
+    // and when not escaped
+    assertTrue(new Regexp("[(?=]+").matches("?(="));
+    assertTrue(new Regexp("\\(\\?=").matches("(?="));
+    Regexp re = new Regexp("a(?=b|c)");
+    assertEquals(1, re.atStartOf("ac"));
+    assertEquals(-1, re.atStartOf("ad"));
+  }
+  /*+******************************************************************/
+  // a view written against NfaParserView only, as external code may
+  // have done before ExtendedNfaParserView existed
+  private static final class PlainView implements NfaParserView {
+    private final NfaParserView v;
+    PlainView(NfaParserView v) { this.v = v; }
+    public void pushCharSet(CharSequence pairs, boolean invert) {
+      v.pushCharSet(pairs, invert);
+    }
+    public void pushDot() { v.pushDot(); }
+    public void pushString(CharSequence str) { v.pushString(str); }
+    public void or() { v.or(); }
+    public void seq() { v.seq(); }
+    public void star() { v.star(); }
+    public void plus() { v.plus(); }
+    public void optional() { v.optional(); }
+    public void dup() { v.dup(); }
+    public void allPrefixes() throws CompileDfaException { v.allPrefixes(); }
+    public void not() throws CompileDfaException { v.not(); }
+    public void invert() throws CompileDfaException { v.invert(); }
+    public void shortest() throws CompileDfaException { v.shortest(); }
+    public void swap() { v.swap(); }
+    public boolean markAsSub() { return v.markAsSub(); }
+  }
+  @Test
+  public void testRangeWithPlainView() throws Exception {
+    final ReParser p = ReClassicParser.factory.newReParser();
+    ReParser plain = new ReParser() {
+      public void parse(NfaParserView view, CharSequence regex)
+        throws ReSyntaxException
+      {
+        p.parse(new PlainView(view), regex);
+      }
+      public String specialChars() { return p.specialChars(); }
+      public void escape(StringBuilder out, CharSequence in, int startAt) {
+        p.escape(out, in, startAt);
+      }
+    };
+    String[] res = {"a{2}", "a{1,3}", "xa{0,2}", "a{2,}", "xa{0,}"};
+    for(String re : res) {
+      FaAction mark = new Printf("<%0>");
+      Dfa expected = new Nfa(re, mark).compile(DfaRun.UNMATCHED_COPY);
+      Nfa nfa = new Nfa().setReParser(plain).or(re, mark);
+      Dfa dfa = nfa.compile(DfaRun.UNMATCHED_COPY);
+      String s = "a-aa-aaa-aaaa-aaaaa-x-xa-xaaa";
+      assertEquals(re, new DfaRun(expected).filter(s),
+                   new DfaRun(dfa).filter(s));
+    }
+    try {
+      new Nfa().setReParser(plain).or("a(?=b)", Copy.COPY);
+      fail("expected exception");
+    } catch( ReSyntaxException e ) {
+      assertEquals(ReSyntaxException.ETRAILVIEW, e.emsg);
+    }
+  }
+}
@@ -18,6 +18,9 @@ package monq.jfa;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.BitSet;
+
 import org.junit.Test;
 
 /**
@@ -113,7 +116,30 @@ public class RegexpTest {
     assertTrue(re.matches("aa"));
     assertTrue(re.matches("aaa"));
   }
-}
-
-
 
+  @Test
+  public void matchSet() {
+    Regexp r = new Regexp(Arrays.asList("[a-z]+", "a.*", ".*c", "abc",
+                                        "[0-9]+"));
+    assertTrue(r.matches("abc"));
+    assertEquals(bits(0, 1, 2, 3), r.matchSet());
+    assertTrue(r.matches("ab"));
+    assertEquals(bits(0, 1), r.matchSet());
+    assertTrue(r.matches("a1c"));
+    assertEquals(bits(1, 2), r.matchSet());
+    assertFalse(r.matches("1a"));
+    assertEquals(2, r.find("%%ab", 0));
+    assertEquals(bits(0, 1), r.matchSet());
+    assertEquals(4, r.atStartOf("0123a"));
+    assertEquals(bits(4), r.matchSet());
+
+    Regexp single = new Regexp("a");
+    assertTrue(single.matches("a"));
+    assertNull(single.matchSet());
+  }
+  private static BitSet bits(int... ids) {
+    BitSet result = new BitSet();
+    for(int id : ids) result.set(id);
+    return result;
+  }
+}
@@ -0,0 +1,243 @@
+/*+*********************************************************************
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation
+Foundation, Inc., 59 Temple Place - Suite 330, Boston MA 02111-1307, USA.
+************************************************************************/
+
+package monq.programs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import monq.jfa.DfaRun;
+import monq.net.Service;
+
+public class DictFilterTest {
+  private static String mwt(String... terms) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version='1.0'?>\n<mwt>\n")
+      .append("<template>[%0|%1]</template>\n");
+    for(int i=0; i<terms.length; i++) {
+      sb.append("<t p1=\"id").append(i).append("\">")
+        .append(terms[i]).append("</t>\n");
+    }
+    return sb.append("</mwt>\n").toString();
+  }
+
+  @Test
+  public void reload() throws Exception {
+    DictFilter dict =
+      new DictFilter(new StringReader(mwt("casein", "p53")), "raw", null,
+                     false);
+    dict.setInputEncoding("UTF-8");
+    dict.setOutputEncoding("UTF-8");
+    String text = "casein and p53 or alzheimer ";
+    assertEquals("[casein|id0] and [p53|id1] or alzheimer ",
+                 dict.createRun().filter(text));
+    assertEquals(0, dict.getGeneration());
+
+    DfaRun oldRun = dict.createRun();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Service oldService =
+      dict.createService(new ByteArrayInputStream(text.getBytes("UTF-8")),
+                         out, null);
+
+    DictFilter.ReloadInfo info =
+      dict.reload(new StringReader(mwt("alzheimer")));
+    assertEquals(1, info.generation);
+    assertEquals(1, info.oldActive);
+    assertEquals(1, dict.getGeneration());
+    assertEquals("casein and p53 or [alzheimer|id0] ",
+                 dict.createRun().filter(text));
+
+    // created before the reload, so still with the old dictionary
+    assertEquals("[casein|id0] and [p53|id1] or alzheimer ",
+                 oldRun.filter(text));
+    oldService.run();
+    assertNull(oldService.getException());
+    assertEquals("[casein|id0] and [p53|id1] or alzheimer ",
+                 out.toString("UTF-8"));
+    assertEquals(0, dict.reload(new StringReader(mwt("p53"))).oldActive);
+  }
+
+  @Test
+  public void controlPortIgnoresRunningReload() throws Exception {
+    final DictFilter dict =
+      new DictFilter(new StringReader(mwt("casein")), "raw", null, false);
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Reader slow = new Reader() {
+        private final Reader in = new StringReader(mwt("p53"));
+        @Override
+        public int read(char[] buf, int off, int len) throws IOException {
+          reading.countDown();
+          try {
+            release.await();
+          } catch( InterruptedException e ) {
+            throw new InterruptedIOException();
+          }
+          return in.read(buf, off, len);
+        }
+        @Override
+        public void close() {}
+      };
+    final Exception[] failure = {null};
+    Thread t = new Thread(new Runnable() {
+        public void run() {
+          try {
+            dict.reload(slow);
+          } catch( Exception e ) {
+            failure[0] = e;
+          }
+        }
+      });
+    t.start();
+    reading.await();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Service control = dict.createReloadFactory(new File("no such file"))
+      .createService(null, out, null);
+    control.run();
+    assertNull(control.getException());
+    assertEquals("reload already running, request ignored",
+                 out.toString().trim());
+
+    release.countDown();
+    t.join();
+    assertNull(failure[0]);
+    assertEquals(1, dict.getGeneration());
+  }
+
+  @Test
+  public void failedReloadKeepsDictionary() throws Exception {
+    DictFilter dict =
+      new DictFilter(new StringReader(mwt("casein")), "raw", null, false);
+    try {
+      dict.reload(new StringReader("<mwt><t>x</t></mwt>"));
+      fail("expected an exception");
+    } catch( Exception e ) {
+      // a term before any template
+    }
+    assertEquals(0, dict.getGeneration());
+    assertEquals("[casein|id0] ", dict.createRun().filter("casein "));
+  }
+
+  @Test
+  public void grepReload() throws Exception {
+    Grep grep = new Grep(true, false, new String[] {"a+", "<%0>"});
+    DfaRun old = grep.createRun();
+    grep.reload(new Grep(true, false, new String[] {"b+", "[%0]"}));
+    assertEquals("aa[bb]", grep.createRun().filter("aabb"));
+    assertEquals("<aa>bb", old.filter("aabb"));
+  }
+
+  @Test
+  public void shards() throws Exception {
+    String[] terms = new String[200];
+    StringBuilder text = new StringBuilder();
+    for(int i=0; i<terms.length; i++) {
+      terms[i] = "term"+Integer.toString(i, 3);
+      text.append(terms[i]).append(i%3==0 ? "x " : " ");
+    }
+    text.append("<b>term1</b> ");
+    for(String type : new String[] {"raw", "xml", "elem"}) {
+      DictFilter one = new DictFilter(new StringReader(mwt(terms)), type,
+                                      "b", false, false, true);
+      DictFilter sharded = new DictFilter(new StringReader(mwt(terms)), type,
+                                          "b", false, false, true, 4);
+      assertEquals(one.createRun().filter(text.toString()),
+                   sharded.createRun().filter(text.toString()));
+    }
+  }
+
+  @Test
+  public void overlapping() throws Exception {
+    DictFilter dict =
+      new DictFilter(new StringReader(mwt("protein kinase C", "kinase")),
+                     "raw", null, false);
+    dict.setInputEncoding("UTF-8");
+    dict.setOutputEncoding("UTF-8");
+    dict.setOverlapping(true);
+    String text = "protein kinase C and phosphokinase.";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Service s =
+      dict.createService(new ByteArrayInputStream(text.getBytes("UTF-8")),
+                         out, null);
+    s.run();
+    assertNull(s.getException());
+    String nl = System.lineSeparator();
+    assertEquals("8\t14\t[kinase|id1]"+nl+"0\t16\t[protein kinase C|id0]"+nl,
+                 out.toString("UTF-8"));
+
+    DictFilter xml =
+      new DictFilter(new StringReader(mwt("kinase")), "xml", null, false);
+    try {
+      xml.setOverlapping(true);
+      fail("expected an exception");
+    } catch( IllegalStateException e ) {
+      // only raw input
+    }
+  }
+
+  @Test
+  public void tokens() throws Exception {
+    String[] terms = {"protein kinase C", "kinase", "IL-2 receptor",
+                      "anaemia", "body", "the way of life", "alpha(1) p53",
+                      "p53", "kinase C", "way", "-ras", "Bcl-"};
+    String text = "Protein kinases C. anemia anaemias bodies, IL 2 "
+      +"receptors IL2receptor the Way of lifes! alpha(1)-p53 the waies "
+      +"of life phosphokinase kinase  C kinase-C <b>p53 </b>p53 "
+      +"K-ras ras bcl 2 Bcl-x Bcl_";
+    for(String type : new String[] {"raw", "xml", "elem"}) {
+      for(int shards : new int[] {1, 3}) {
+        DictFilter chars = new DictFilter(new StringReader(mwt(terms)), type,
+                                          "b", false, false, true, shards,
+                                          false);
+        DictFilter words = new DictFilter(new StringReader(mwt(terms)), type,
+                                          "b", false, false, true, shards,
+                                          true);
+        assertEquals(type+" "+shards, chars.createRun().filter(text),
+                     words.createRun().filter(text));
+      }
+    }
+  }
+
+  @Test
+  public void fuzzy() throws Exception {
+    String mwt = "<?xml version='1.0'?>\n<mwt>\n"
+      +"<template>[%0|%1]</template>\n"
+      +"<t p1=\"k\" edits=\"1\">protein kinase</t>\n"
+      +"<t p1=\"c\" edits=\"2\">casein</t>\n"
+      +"<t p1=\"p\">p53</t>\n"
+      +"</mwt>\n";
+    DictFilter dict = new DictFilter(new StringReader(mwt), "raw", null,
+                                     false, false, true);
+    assertEquals("[Protein kinase|k] [protein klnase|k] "
+                 +"[proteln kinases|k] protein kinxsex "
+                 +"[caseln|c] [casin|c] [cazcin|c] cazzcin [p53|p] p52 ",
+                 dict.createRun().filter("Protein kinase protein klnase "
+                                         +"proteln kinases protein kinxsex "
+                                         +"caseln casin cazcin cazzcin "
+                                         +"p53 p52 "));
+  }
+}